@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+import org.sakaiproject.nakamura.api.activity.ActivityRoute;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the activity delivery engine, shared by the delivery workers.
+ */
+public class ActivityDeliveryMetrics implements ActivityDeliveryMetricsMBean {
+
+  /**
+   * Delivery counters for one kind of route.
+   */
+  private static class RouteMetrics {
+    private final AtomicLong deliveries = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    private void record(long nanos) {
+      deliveries.incrementAndGet();
+      totalNanos.addAndGet(nanos);
+      long max = maxNanos.get();
+      while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+        max = maxNanos.get();
+      }
+    }
+  }
+
+  private volatile BlockingQueue<?> queue;
+  private final AtomicLong delivered = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong saves = new AtomicLong();
+  private final ConcurrentMap<String, RouteMetrics> routes = new ConcurrentHashMap<String, RouteMetrics>();
+
+  /**
+   * @param queue
+   *          the queue of activities waiting for delivery, null if there is none.
+   */
+  void setQueue(BlockingQueue<?> queue) {
+    this.queue = queue;
+  }
+
+  /**
+   * The name a route is recorded under. Routes are usually anonymous classes of the
+   * router that made them, so the router class name is used.
+   */
+  static String getRouteName(ActivityRoute route) {
+    Class<?> c = route.getClass();
+    while (c.isAnonymousClass() && c.getEnclosingClass() != null) {
+      c = c.getEnclosingClass();
+    }
+    return c.getSimpleName();
+  }
+
+  void recordRoute(String route, long nanos) {
+    RouteMetrics m = routes.get(route);
+    if (m == null) {
+      RouteMetrics newMetrics = new RouteMetrics();
+      m = routes.putIfAbsent(route, newMetrics);
+      if (m == null) {
+        m = newMetrics;
+      }
+    }
+    m.record(nanos);
+  }
+
+  void recordDelivered(int activities) {
+    delivered.addAndGet(activities);
+  }
+
+  void recordFailed() {
+    failed.incrementAndGet();
+  }
+
+  void recordSave() {
+    saves.incrementAndGet();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.activity.ActivityDeliveryMetricsMBean#getQueueDepth()
+   */
+  public int getQueueDepth() {
+    BlockingQueue<?> q = queue;
+    return q == null ? 0 : q.size();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.activity.ActivityDeliveryMetricsMBean#getDeliveredActivities()
+   */
+  public long getDeliveredActivities() {
+    return delivered.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.activity.ActivityDeliveryMetricsMBean#getFailedActivities()
+   */
+  public long getFailedActivities() {
+    return failed.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.activity.ActivityDeliveryMetricsMBean#getSaves()
+   */
+  public long getSaves() {
+    return saves.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.activity.ActivityDeliveryMetricsMBean#getRouteNames()
+   */
+  public String[] getRouteNames() {
+    return routes.keySet().toArray(new String[0]);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.activity.ActivityDeliveryMetricsMBean#getRouteDeliveries(java.lang.String)
+   */
+  public long getRouteDeliveries(String route) {
+    RouteMetrics m = routes.get(route);
+    return m == null ? 0 : m.deliveries.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.activity.ActivityDeliveryMetricsMBean#getRouteAverageLatencyMicros(java.lang.String)
+   */
+  public long getRouteAverageLatencyMicros(String route) {
+    RouteMetrics m = routes.get(route);
+    if (m == null) {
+      return 0;
+    }
+    long n = m.deliveries.get();
+    return n == 0 ? 0 : m.totalNanos.get() / n / 1000L;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.activity.ActivityDeliveryMetricsMBean#getRouteMaxLatencyMicros(java.lang.String)
+   */
+  public long getRouteMaxLatencyMicros(String route) {
+    RouteMetrics m = routes.get(route);
+    return m == null ? 0 : m.maxNanos.get() / 1000L;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.activity.ActivityDeliveryMetricsMBean#reset()
+   */
+  public void reset() {
+    delivered.set(0);
+    failed.set(0);
+    saves.set(0);
+    routes.clear();
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+/**
+ * JMX view of the activity delivery engine.
+ */
+public interface ActivityDeliveryMetricsMBean {
+
+  /**
+   * @return the number of activities waiting to be delivered.
+   */
+  int getQueueDepth();
+
+  long getDeliveredActivities();
+
+  long getFailedActivities();
+
+  /**
+   * @return the number of saves, each covering a batch of activities.
+   */
+  long getSaves();
+
+  /**
+   * @return the kinds of route that have delivered activities, named after the router
+   *         that created them.
+   */
+  String[] getRouteNames();
+
+  long getRouteDeliveries(String route);
+
+  /**
+   * @return the average time in microseconds to deliver to a route of this kind,
+   *         excluding the shared saves.
+   */
+  long getRouteAverageLatencyMicros(String route);
+
+  long getRouteMaxLatencyMicros(String route);
+
+  void reset();
+}
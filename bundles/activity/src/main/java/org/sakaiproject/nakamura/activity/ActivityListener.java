@@ -21,7 +21,9 @@ import static org.sakaiproject.nakamura.api.activity.ActivityConstants.PARAM_ACT
 import static org.sakaiproject.nakamura.api.activity.ActivityConstants.PARAM_SOURCE;
 
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.osgi.service.component.ComponentContext;
@@ -34,7 +36,20 @@ import org.sakaiproject.nakamura.util.JcrUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -45,10 +60,32 @@ import javax.jms.Message;
 import javax.jms.MessageConsumer;
 import javax.jms.MessageListener;
 import javax.jms.Topic;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
+/**
+ * Delivers activities to their feeds. The JMS delivery thread only queues the activity,
+ * a small pool of workers, each with its own administrative session, takes activities
+ * off the queue in batches and delivers every route of a batch with two saves. Messages
+ * are acknowledged by the client once their activity has been delivered, since an
+ * acknowledgement covers every message received before it, a message is acknowledged
+ * only when all the activities received before it have been delivered as well.
+ */
 @Component(label = "ActivityListener", description = "Listens for new activities", immediate = true, metatype = true)
 public class ActivityListener implements MessageListener {
 
+  @Property(intValue = 4, label = "Delivery Workers", description = "The number of threads delivering activities to feeds.")
+  static final String WORKERS = "activity.delivery.workers";
+
+  @Property(intValue = 1000, label = "Delivery Queue Size", description = "The number of activities that may wait for delivery before the JMS listener blocks.")
+  static final String QUEUE_SIZE = "activity.delivery.queueSize";
+
+  @Property(intValue = 50, label = "Delivery Batch Size", description = "The largest number of activities a worker delivers with one save.")
+  static final String BATCH_SIZE = "activity.delivery.batchSize";
+
+  private static final String MBEAN_NAME = "org.sakaiproject.nakamura.activity:type=ActivityDelivery";
+
   // References/properties need for JMS
   @Reference
   protected ConnectionFactoryService connFactoryService;
@@ -64,14 +101,90 @@ public class ActivityListener implements MessageListener {
 
   private Connection connection = null;
 
+  private BlockingQueue<QueuedActivity> deliveryQueue;
+  private List<Thread> workers = new ArrayList<Thread>();
+  private volatile boolean running;
+  private int batchSize = 50;
+  private final ActivityDeliveryMetrics metrics = new ActivityDeliveryMetrics();
+
+  private final Object acknowledgeLock = new Object();
+  private long received;
+  /**
+   * The sequence of each activity received and not yet delivered.
+   */
+  private final SortedSet<Long> undelivered = new TreeSet<Long>();
   /**
-   * Start a JMS connection.
+   * The message of each delivered activity not yet acknowledged, by sequence.
    */
+  private final SortedMap<Long, Message> unacknowledged = new TreeMap<Long, Message>();
+
+  /**
+   * An activity waiting for delivery, with the message it came in and the order it was
+   * received in.
+   */
+  private static class QueuedActivity {
+    private final String path;
+    private final Message message;
+    private final long sequence;
+
+    private QueuedActivity(String path, Message message, long sequence) {
+      this.path = path;
+      this.message = message;
+      this.sequence = sequence;
+    }
+  }
+
+  /**
+   * An activity delivery to one route, waiting for the copy.
+   */
+  private static class Delivery {
+    private final String source;
+    private final String destination;
+    private final String route;
+    private final long prepareNanos;
+
+    private Delivery(String source, String destination, String route, long prepareNanos) {
+      this.source = source;
+      this.destination = destination;
+      this.route = route;
+      this.prepareNanos = prepareNanos;
+    }
+  }
+
+  /**
+   * Start the delivery workers and a JMS connection.
+   */
+  @SuppressWarnings("unchecked")
   public void activate(ComponentContext componentContext) {
+    Dictionary props = componentContext.getProperties();
+    int workerCount = Math.max(1, OsgiUtil.toInteger(props.get(WORKERS), 4));
+    int queueSize = Math.max(1, OsgiUtil.toInteger(props.get(QUEUE_SIZE), 1000));
+    batchSize = Math.max(1, OsgiUtil.toInteger(props.get(BATCH_SIZE), 50));
+
+    deliveryQueue = new LinkedBlockingQueue<QueuedActivity>(queueSize);
+    synchronized (acknowledgeLock) {
+      received = 0;
+      undelivered.clear();
+      unacknowledged.clear();
+    }
+    metrics.setQueue(deliveryQueue);
+    registerMetrics();
+    running = true;
+    for (int i = 0; i < workerCount; i++) {
+      Thread worker = new Thread(new Runnable() {
+        public void run() {
+          deliverQueuedActivities();
+        }
+      }, "Activity Delivery " + i);
+      worker.setDaemon(true);
+      worker.start();
+      workers.add(worker);
+    }
+
     try {
       connection = connFactoryService.getDefaultConnectionFactory().createConnection();
       javax.jms.Session session = connection.createSession(false,
-          javax.jms.Session.AUTO_ACKNOWLEDGE);
+          javax.jms.Session.CLIENT_ACKNOWLEDGE);
       Topic dest = session.createTopic(ActivityConstants.EVENT_TOPIC);
       MessageConsumer consumer = session.createConsumer(dest);
       consumer.setMessageListener(this);
@@ -88,7 +201,7 @@ public class ActivityListener implements MessageListener {
   }
 
   /**
-   * Close the JMS connection
+   * Close the JMS connection, then let the workers deliver what is queued.
    */
   protected void deactivate(ComponentContext ctx) {
     if (connection != null) {
@@ -98,6 +211,23 @@ public class ActivityListener implements MessageListener {
         LOG.error("Cannot close the activity JMS connection.", e);
       }
     }
+    running = false;
+    for (Thread worker : workers) {
+      try {
+        worker.join(30000L);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+      if (worker.isAlive()) {
+        LOG.warn("{} did not finish delivering activities, interrupting it.", worker
+            .getName());
+        worker.interrupt();
+      }
+    }
+    workers.clear();
+    metrics.setQueue(null);
+    unregisterMetrics();
   }
 
   /**
@@ -106,36 +236,165 @@ public class ActivityListener implements MessageListener {
    * @see javax.jms.MessageListener#onMessage(javax.jms.Message)
    */
   public void onMessage(Message message) {
+    QueuedActivity activity = null;
     try {
       final String activityItemPath = message
           .getStringProperty(ActivityConstants.EVENT_PROP_PATH);
+      LOG.info("Queueing activity: {}", activityItemPath);
+      synchronized (acknowledgeLock) {
+        activity = new QueuedActivity(activityItemPath, message, received++);
+        undelivered.add(activity.sequence);
+      }
+      // blocks the JMS delivery thread while the workers catch up.
+      deliveryQueue.put(activity);
+    } catch (JMSException e) {
+      LOG.error("Got a JMS exception in the activity listener.", e);
+    } catch (InterruptedException e) {
+      LOG.warn("Interrupted while queueing an activity for delivery.");
+      synchronized (acknowledgeLock) {
+        undelivered.remove(activity.sequence);
+      }
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * The worker loop, runs until deactivated and the queue is empty.
+   */
+  private void deliverQueuedActivities() {
+    Session session = null;
+    List<QueuedActivity> batch = new ArrayList<QueuedActivity>(batchSize);
+    List<String> activityPaths = new ArrayList<String>(batchSize);
+    try {
+      while (running || !deliveryQueue.isEmpty()) {
+        try {
+          QueuedActivity activity = deliveryQueue.poll(1, TimeUnit.SECONDS);
+          if (activity == null) {
+            continue;
+          }
+          batch.add(activity);
+          deliveryQueue.drainTo(batch, batchSize - 1);
+        } catch (InterruptedException e) {
+          return;
+        }
+        for (QueuedActivity activity : batch) {
+          activityPaths.add(activity.path);
+        }
+        try {
+          if (session == null || !session.isLive()) {
+            session = slingRepository.loginAdministrative(null); // usage checked and Ok KERN-577
+          }
+          deliverBatch(session, activityPaths);
+        } catch (RepositoryException e) {
+          LOG.error("Unable to get a session to deliver activities.", e);
+          for (int i = 0; i < batch.size(); i++) {
+            metrics.recordFailed();
+          }
+        } finally {
+          // a failed activity is logged and counted, a redelivery would fail again.
+          acknowledge(batch);
+          batch.clear();
+          activityPaths.clear();
+        }
+      }
+    } finally {
+      if (session != null) {
+        session.logout();
+      }
+    }
+  }
+
+  /**
+   * Delivers a batch of activities. If the batch fails the activities are retried one
+   * at a time, so that one bad activity does not stop the others.
+   *
+   * @param session
+   *          The session that should be used to do the delivering.
+   * @param activityPaths
+   *          The paths of the activities.
+   */
+  protected void deliverBatch(Session session, List<String> activityPaths) {
+    int delivered = 0;
+    try {
+      delivered = deliverActivities(session, activityPaths);
+    } catch (RepositoryException e) {
+      LOG.warn("Unable to deliver a batch of {} activities, retrying them one at a time: {}",
+          activityPaths.size(), e.getMessage());
+      refresh(session);
+      for (String activityPath : activityPaths) {
+        try {
+          delivered += deliverActivities(session, Collections.singletonList(activityPath));
+        } catch (RepositoryException e1) {
+          LOG.error("Unable to deliver activity " + activityPath, e1);
+          refresh(session);
+        }
+      }
+    }
+    // every activity of the batch is counted once, whether it was retried or not.
+    metrics.recordDelivered(delivered);
+    for (int i = delivered; i < activityPaths.size(); i++) {
+      metrics.recordFailed();
+    }
+  }
+
+  /**
+   * Delivers activities to all their routes. The feeds are created and saved in one go,
+   * then the activities are copied and the source properties saved in one go.
+   *
+   * @param session
+   *          The session that should be used to do the delivering.
+   * @param activityPaths
+   *          The paths of the activities.
+   * @return the number of activities delivered, those that can not be delivered are
+   *         skipped.
+   * @throws RepositoryException
+   */
+  protected int deliverActivities(Session session, List<String> activityPaths)
+      throws RepositoryException {
+    List<Delivery> deliveries = new ArrayList<Delivery>();
+    Set<String> destinations = new HashSet<String>();
+    int delivered = 0;
+    for (String activityItemPath : activityPaths) {
       LOG.info("Processing activity: {}", activityItemPath);
-      Session session = slingRepository.loginAdministrative(null); // usage checked and Ok KERN-577
       Node activity = (Node) session.getItem(activityItemPath);
       if (!activity.hasProperty(PARAM_ACTOR_ID)) {
         // we must know the actor
-        throw new IllegalStateException(
-            "Could not determine actor of activity: " + activity);
+        LOG.error("Could not determine actor of activity: {}", activityItemPath);
+        continue;
       }
 
       // Get all the routes for this activity.
-      List<ActivityRoute> routes = activityRouterManager
-          .getActivityRoutes(activity);
-
-      // Copy the activity items to each endpoint.
+      List<ActivityRoute> routes = activityRouterManager.getActivityRoutes(activity);
       for (ActivityRoute route : routes) {
-        deliverActivityToFeed(session, activity, route.getDestination());
+        long start = System.nanoTime();
+        String deliveryPath = prepareFeed(session, activity, route.getDestination());
+        // two routes to the same feed only get one copy.
+        if (destinations.add(deliveryPath)) {
+          deliveries.add(new Delivery(activity.getPath(), deliveryPath,
+              ActivityDeliveryMetrics.getRouteName(route), System.nanoTime() - start));
+        }
       }
+      delivered++;
+    }
+    // the workspace copy needs the feeds to be persisted.
+    save(session);
 
-    } catch (JMSException e) {
-      LOG.error("Got a JMS exception in the activity listener.", e);
-    } catch (RepositoryException e) {
-      LOG.error("Got a repository exception in the activity listener.", e);
+    // Copy the activity items to each endpoint.
+    for (Delivery delivery : deliveries) {
+      long start = System.nanoTime();
+      // already there if this is a retry.
+      if (!session.itemExists(delivery.destination)) {
+        copyActivityItem(session, delivery.source, delivery.destination);
+      }
+      metrics.recordRoute(delivery.route, delivery.prepareNanos + System.nanoTime()
+          - start);
     }
+    save(session);
+    return delivered;
   }
 
   /**
-   * Delivers an activity to a feed.
+   * Makes sure the feed and the folder for an activity exist, without saving.
    *
    * @param session
    *          The session that should be used to do the delivering.
@@ -143,10 +402,11 @@ public class ActivityListener implements MessageListener {
    *          The node that represents the activity.
    * @param activityFeedPath
    *          The path that holds the feed where the activity should be delivered.
+   * @return the path the activity should be copied to.
    * @throws RepositoryException
    */
-  protected void deliverActivityToFeed(Session session, Node activity,
-      String activityFeedPath) throws RepositoryException {
+  protected String prepareFeed(Session session, Node activity, String activityFeedPath)
+      throws RepositoryException {
     // ensure the activityFeed node with the proper type
     Node activityFeedNode = JcrUtils.deepGetOrCreateNode(session,
         activityFeedPath);
@@ -154,7 +414,6 @@ public class ActivityListener implements MessageListener {
       activityFeedNode.setProperty(
           JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
           ActivityConstants.ACTIVITY_FEED_RESOURCE_TYPE);
-      session.save();
     }
     // activityFeed exists, let's continue with delivery
     // activityFeed is a BigStore, get the hashed (real) path
@@ -163,16 +422,12 @@ public class ActivityListener implements MessageListener {
     // ensure the parent path exists before we copy source activity
     final String parentPath = deliveryPath.substring(0, deliveryPath
         .lastIndexOf("/"));
-    final Node parentNode = JcrUtils.deepGetOrCreateNode(session, parentPath);
-    if (parentNode.isNew()) {
-      session.save();
-    }
-    // now copy the activity from the store to the feed
-    copyActivityItem(session, activity.getPath(), deliveryPath);
+    JcrUtils.deepGetOrCreateNode(session, parentPath);
+    return deliveryPath;
   }
 
   /**
-   * Copies an activity over.
+   * Copies an activity over. The source property is not saved.
    *
    * @param session
    *          The session that should be used to do the copying.
@@ -192,8 +447,80 @@ public class ActivityListener implements MessageListener {
     // in the ActivityStore
     Node feedItem = (Node) session.getItem(destination);
     feedItem.setProperty(PARAM_SOURCE, source);
+  }
+
+  /**
+   * Marks a batch of activities as delivered, and acknowledges the message of the latest
+   * activity received before any that is still waiting for delivery.
+   *
+   * @param batch
+   *          the activities that have been delivered.
+   */
+  private void acknowledge(List<QueuedActivity> batch) {
+    synchronized (acknowledgeLock) {
+      for (QueuedActivity activity : batch) {
+        undelivered.remove(activity.sequence);
+        unacknowledged.put(activity.sequence, activity.message);
+      }
+      Message last = null;
+      while (!unacknowledged.isEmpty()
+          && (undelivered.isEmpty() || unacknowledged.firstKey() < undelivered.first())) {
+        last = unacknowledged.remove(unacknowledged.firstKey());
+      }
+      if (last != null) {
+        try {
+          last.acknowledge();
+        } catch (JMSException e) {
+          LOG.warn("Unable to acknowledge delivered activities: {}", e.getMessage());
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the delivery counters.
+   */
+  protected ActivityDeliveryMetrics getMetrics() {
+    return metrics;
+  }
+
+  private void save(Session session) throws RepositoryException {
     if (session.hasPendingChanges()) {
       session.save();
+      metrics.recordSave();
+    }
+  }
+
+  private void refresh(Session session) {
+    try {
+      session.refresh(false);
+    } catch (RepositoryException e) {
+      LOG.warn("Unable to discard changes: {}", e.getMessage());
+    }
+  }
+
+  private void registerMetrics() {
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(MBEAN_NAME);
+      if (!mBeanServer.isRegistered(objectName)) {
+        mBeanServer.registerMBean(metrics, objectName);
+      }
+    } catch (JMException e) {
+      LOG.warn("Unable to register activity delivery metrics with JMX: {}", e
+          .getMessage());
+    }
+  }
+
+  private void unregisterMetrics() {
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(MBEAN_NAME);
+      if (mBeanServer.isRegistered(objectName)) {
+        mBeanServer.unregisterMBean(objectName);
+      }
+    } catch (JMException e) {
+      LOG.debug(e.getMessage(), e);
     }
   }
 
@@ -20,14 +20,21 @@ package org.sakaiproject.nakamura.activity;
 import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
 
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.easymock.EasyMock;
 import org.junit.Before;
 import org.junit.Test;
+import org.sakaiproject.nakamura.api.activity.AbstractActivityRoute;
 import org.sakaiproject.nakamura.api.activity.ActivityConstants;
+import org.sakaiproject.nakamura.api.activity.ActivityRoute;
+import org.sakaiproject.nakamura.api.activity.ActivityRouterManager;
 import org.sakaiproject.nakamura.api.activity.ActivityUtils;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
@@ -54,7 +61,7 @@ public class ActivityListenerTest {
   }
 
   @Test
-  public void testDelivery() throws RepositoryException {
+  public void testPrepareFeed() throws RepositoryException {
     String activityFeedPath = "/_user/private/admin/activity";
 
     // Feed does not exist.
@@ -70,24 +77,112 @@ public class ActivityListenerTest {
     expect(adminNode.hasNode("activity")).andReturn(false).anyTimes();
     expect(adminNode.addNode("activity")).andReturn(activityFeedNode)
         .anyTimes();
-    session.save();
 
     replay(adminNode);
 
     // Skip the deepGetCreate dance on the saving in feed..
     Node parentNode = createMock(Node.class);
-    expect(parentNode.isNew()).andReturn(false);
     
     String dest = ActivityUtils.getPathFromId(id, activityFeedPath);
     expect(session.itemExists("/_user/private/admin/activity/2010/01/21/09"))
         .andReturn(true);
     expect(session.getItem("/_user/private/admin/activity/2010/01/21/09")).andReturn(parentNode);
 
-    prepareCopy(path, dest);
+    // nothing is saved or copied while preparing the feed.
     replay(session);
 
     ActivityListener listener = new ActivityListener();
-    listener.deliverActivityToFeed(session, activity, activityFeedPath);
+    assertEquals(dest, listener.prepareFeed(session, activity, activityFeedPath));
+    EasyMock.verify(session);
+  }
+
+  @Test
+  public void testBatchedDelivery() throws RepositoryException {
+    final List<String> prepared = new ArrayList<String>();
+    final List<String> copied = new ArrayList<String>();
+    ActivityListener listener = new ActivityListener() {
+      @Override
+      protected String prepareFeed(Session session, Node activity, String activityFeedPath)
+          throws RepositoryException {
+        prepared.add(activityFeedPath);
+        return activityFeedPath + "/" + activity.getName();
+      }
+
+      @Override
+      protected void copyActivityItem(Session session, String source, String destination)
+          throws RepositoryException {
+        copied.add(destination);
+      }
+    };
+
+    // three activities, each routed to three feeds, one of them twice.
+    List<String> paths = new ArrayList<String>();
+    for (int i = 0; i < 3; i++) {
+      String activityPath = pathToActivity + "activity" + i;
+      paths.add(activityPath);
+      Node node = createMock(Node.class);
+      expect(node.hasProperty(ActivityConstants.PARAM_ACTOR_ID)).andReturn(true);
+      expect(node.getName()).andReturn("activity" + i).anyTimes();
+      expect(node.getPath()).andReturn(activityPath).anyTimes();
+      replay(node);
+      expect(session.getItem(activityPath)).andReturn(node);
+    }
+    List<ActivityRoute> routes = new ArrayList<ActivityRoute>();
+    routes.add(new AbstractActivityRoute("/_user/private/jack/activity") {
+    });
+    routes.add(new AbstractActivityRoute("/_user/private/jill/activity") {
+    });
+    routes.add(new AbstractActivityRoute("/sites/physics-101/activity") {
+    });
+    routes.add(new AbstractActivityRoute("/sites/physics-101/activity") {
+    });
+    ActivityRouterManager activityRouterManager = createMock(ActivityRouterManager.class);
+    expect(activityRouterManager.getActivityRoutes((Node) EasyMock.anyObject()))
+        .andReturn(routes).times(3);
+    listener.activityRouterManager = activityRouterManager;
+
+    expect(session.itemExists((String) EasyMock.anyObject())).andReturn(false).anyTimes();
+    expect(session.hasPendingChanges()).andReturn(true).times(2);
+    // one save for the feeds, one for the copies.
+    session.save();
+    EasyMock.expectLastCall().times(2);
+    replay(session, activityRouterManager);
+
+    assertEquals(3, listener.deliverActivities(session, paths));
+    assertEquals(12, prepared.size());
+    assertEquals(9, copied.size());
+    EasyMock.verify(session, activityRouterManager);
+
+    ActivityDeliveryMetrics metrics = listener.getMetrics();
+    assertEquals(2, metrics.getSaves());
+    assertEquals(9, metrics.getRouteDeliveries("ActivityListenerTest"));
+  }
+
+  @Test
+  public void testFailuresCountedOnce() throws RepositoryException {
+    ActivityListener listener = new ActivityListener() {
+      @Override
+      protected int deliverActivities(Session session, List<String> activityPaths)
+          throws RepositoryException {
+        if (activityPaths.size() > 1) {
+          throw new RepositoryException("The batch failed");
+        }
+        // the first activity has no actor and is skipped.
+        return activityPaths.get(0).endsWith("activity0") ? 0 : 1;
+      }
+    };
+    session.refresh(false);
+    EasyMock.expectLastCall().anyTimes();
+    replay(session);
+
+    List<String> paths = new ArrayList<String>();
+    paths.add(pathToActivity + "activity0");
+    paths.add(pathToActivity + "activity1");
+    listener.deliverBatch(session, paths);
+
+    ActivityDeliveryMetrics metrics = listener.getMetrics();
+    assertEquals(1, metrics.getDeliveredActivities());
+    assertEquals(1, metrics.getFailedActivities());
   }
 
   @Test
@@ -114,8 +209,6 @@ public class ActivityListenerTest {
         .andReturn(null);
     replay(node);
     expect(session.getItem(destAbsPath)).andReturn(node);
-    expect(session.hasPendingChanges()).andReturn(true).anyTimes();
-    session.save();
 
     replay(workspace);
   }
@@ -141,7 +234,6 @@ public class ActivityListenerTest {
               ActivityConstants.ACTIVITY_FEED_RESOURCE_TYPE)).andReturn(null);
       expect(session.itemExists(path)).andReturn(true);
       expect(session.getItem(path)).andReturn(bigStoreNode).anyTimes();
-      session.save();
     }
     replay(bigStoreNode);
     return bigStoreNode;
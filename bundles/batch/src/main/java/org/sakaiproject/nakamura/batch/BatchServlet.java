@@ -40,6 +40,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
@@ -62,17 +63,24 @@ import javax.servlet.http.HttpServletResponse;
     methods = @ServiceMethod(
         name = "POST",
         description = "Get multiple request responses into a single response. It can do GET, POST and DELETE everything is defined in the json block.",
-        parameters = @ServiceParameter(
+        parameters = {@ServiceParameter(
             name = "requests",
             description = "A JSON string representing a request. <br />Example:" +
                 "<pre>[{  \"url\" : \"/foo/bar\",  \"method\" : \"POST\",  \"parameters\" : {    \"val\" : 123,    \"val@TypeHint\" : \"Long\"  }},{  \"url\" : \"/_user/a/ad/admin/public/authprofile.json\",  \"method\" : \"GET\"}]</pre>"
-        ),
+          ),
+          @ServiceParameter(
+            name = "stream",
+            description = "If true, the response array is streamed, each result is written and " +
+                "flushed as soon as its request is done rather than once all the requests are. " +
+                "The requests are still executed one after the other, in order."
+          )
+        },
         response = {@ServiceResponse(
             code = 200,
             description = "All requests are successful. <br />" +
                 "A JSON array is returned containing an object for each resource. Example:" +
                 "<pre>[\n" +
-                "{\"url\": \"/_user/a/ad/admin/public/authprofile.json\",\n \"body\": \"{\"user\"...\",\n \"success\":true, \"status\": 200,\n \"headers\":{\"Content-Type\":\"application/json\"}\n} \n]</pre>"
+                "{\"url\": \"/_user/a/ad/admin/public/authprofile.json\",\n \"body\": \"{\"user\"...\",\n \"success\":true, \"status\": 200, \"time\": 12,\n \"headers\":{\"Content-Type\":\"application/json\"}\n} \n]</pre>"
           ),
           @ServiceResponse(
             code = 400,
@@ -92,6 +100,7 @@ public class BatchServlet extends SlingAllMethodsServlet {
       .getLogger(BatchServlet.class);
 
   protected static final String REQUESTS_PARAMETER = "requests";
+  protected static final String STREAM_PARAMETER = "stream";
 
   /**
    * {@inheritDoc}
@@ -167,6 +176,11 @@ public class BatchServlet extends SlingAllMethodsServlet {
       return;
     }
 
+    if (Boolean.parseBoolean(request.getParameter(STREAM_PARAMETER))) {
+      doStreamedRequests(request, response, batchedRequests);
+      return;
+    }
+
     // Loop over the requests and handle each one.
     try {
       StringWriter sw = new StringWriter();
@@ -191,6 +205,7 @@ public class BatchServlet extends SlingAllMethodsServlet {
       SlingHttpServletResponse response, RequestInfo requestInfo,
       JSONWriter write) throws JSONException {
 
+    long start = System.currentTimeMillis();
     // Wrap the request and response so we can read them.
     RequestWrapper requestWrapper = new RequestWrapper(request);
     requestWrapper.setRequestInfo(requestInfo);
@@ -207,7 +222,8 @@ public class BatchServlet extends SlingAllMethodsServlet {
         responseWrapper.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
       }
       // Write the response (status, headers, body) back to the client.
-      writeResponse(write, responseWrapper, requestInfo);
+      writeResponse(write, responseWrapper, requestInfo, System.currentTimeMillis()
+          - start);
     } catch (ServletException e) {
       writeFailedRequest(write, requestInfo);
     } catch (IOException e) {
@@ -216,8 +232,40 @@ public class BatchServlet extends SlingAllMethodsServlet {
 
   }
 
+  /**
+   * Executes the batch writing and flushing the result of each request as soon as it is
+   * done, so that the client can start on the first results while the rest run and only
+   * one body is held at a time. The requests run on the request thread through the
+   * request dispatcher, so each one goes through the same filters as the sequential mode.
+   *
+   * @param request
+   * @param response
+   * @param batchedRequests
+   * @throws IOException
+   */
+  private void doStreamedRequests(SlingHttpServletRequest request,
+      SlingHttpServletResponse response, List<RequestInfo> batchedRequests)
+      throws IOException {
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    PrintWriter writer = response.getWriter();
+    JSONWriter write = new JSONWriter(writer);
+    try {
+      write.array();
+      for (RequestInfo r : batchedRequests) {
+        doRequest(request, response, r, write);
+        writer.flush();
+      }
+      write.endArray();
+      writer.flush();
+    } catch (JSONException e) {
+      // The response is already committed, all we can do is stop writing.
+      LOGGER.warn("Failed to stream the JSON response", e);
+    }
+  }
+
   private void writeResponse(JSONWriter write, ResponseWrapper responseWrapper,
-      RequestInfo requestData) throws JSONException {
+      RequestInfo requestData, long time) throws JSONException {
     try {
       String body = responseWrapper.getDataAsString();
       write.object();
@@ -229,6 +277,8 @@ public class BatchServlet extends SlingAllMethodsServlet {
       write.value(body);
       write.key("status");
       write.value(responseWrapper.getResponseStatus());
+      write.key("time");
+      write.value(time);
       write.key("headers");
       write.object();
       Dictionary<String, String> headers = responseWrapper.getResponseHeaders();
@@ -17,22 +17,39 @@
  */
 package org.sakaiproject.nakamura.batch;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.sakaiproject.nakamura.batch.BatchServlet.REQUESTS_PARAMETER;
+import static org.sakaiproject.nakamura.batch.BatchServlet.STREAM_PARAMETER;
 
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletResponse;
 
 /**
@@ -74,4 +91,64 @@ public class BatchServletTest {
     servlet.doPost(request, response);
   }
 
+  @Test
+  public void testStreamedRequests() throws Exception {
+    String json = "[{\"url\" : \"/a.json\",\"method\" : \"GET\"},"
+        + "{\"url\" : \"/b\",\"method\" : \"POST\"},"
+        + "{\"url\" : \"/c.json\",\"method\" : \"GET\"}]";
+    when(request.getParameter(REQUESTS_PARAMETER)).thenReturn(json);
+    when(request.getParameter(STREAM_PARAMETER)).thenReturn("true");
+    RequestDispatcher a = mockDispatcher("/a.json", "a");
+    RequestDispatcher b = mockDispatcher("/b", "b");
+    RequestDispatcher c = mockDispatcher("/c.json", "c");
+
+    // each result is flushed before the next request starts.
+    final StringWriter out = new StringWriter();
+    final List<String> flushed = new ArrayList<String>();
+    when(response.getWriter()).thenReturn(new PrintWriter(out) {
+      @Override
+      public void flush() {
+        super.flush();
+        flushed.add(out.toString());
+      }
+    });
+
+    servlet.doPost(request, response);
+
+    InOrder inOrder = inOrder(a, b, c);
+    inOrder.verify(a).forward(any(ServletRequest.class), any(ServletResponse.class));
+    inOrder.verify(b).forward(any(ServletRequest.class), any(ServletResponse.class));
+    inOrder.verify(c).forward(any(ServletRequest.class), any(ServletResponse.class));
+    assertTrue(flushed.size() >= 3);
+    assertTrue(flushed.get(0).contains("\"body\":\"a\""));
+    assertFalse(flushed.get(0).contains("\"body\":\"b\""));
+
+    JSONArray arr = new JSONArray(out.toString());
+    assertEquals(3, arr.length());
+    assertResult(arr.getJSONObject(0), "/a.json", "a");
+    assertResult(arr.getJSONObject(1), "/b", "b");
+    assertResult(arr.getJSONObject(2), "/c.json", "c");
+  }
+
+  private RequestDispatcher mockDispatcher(String url, final String body)
+      throws Exception {
+    RequestDispatcher dispatcher = mock(RequestDispatcher.class);
+    doAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        ((ServletResponse) invocation.getArguments()[1]).getWriter().write(body);
+        return null;
+      }
+    }).when(dispatcher).forward(any(ServletRequest.class), any(ServletResponse.class));
+    when(request.getRequestDispatcher(url)).thenReturn(dispatcher);
+    return dispatcher;
+  }
+
+  private void assertResult(JSONObject result, String url, String body) throws Exception {
+    assertEquals(url, result.getString("url"));
+    assertTrue(result.getBoolean("success"));
+    assertEquals(200, result.getInt("status"));
+    assertEquals(body, result.getString("body"));
+    assertTrue(result.has("time"));
+  }
+
 }
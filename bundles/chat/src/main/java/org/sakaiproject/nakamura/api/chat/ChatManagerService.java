@@ -49,4 +49,21 @@ public interface ChatManagerService {
    * Flush the entire cache.
    */
   public void clear();
+
+  /**
+   * Wait until a user has a chat update later than a given time, or a timeout elapses.
+   * If too many requests are already waiting this returns immediately.
+   * 
+   * @param userID
+   *          The ID of the user.
+   * @param since
+   *          The time (milliseconds) of the last update the user has seen.
+   * @param timeout
+   *          The longest to wait (milliseconds).
+   * @return The last time the user's chat messages were updated, which will be later
+   *         than since if there has been an update.
+   * @throws InterruptedException
+   */
+  public Long waitForUpdate(String userID, long since, long timeout)
+      throws InterruptedException;
 }
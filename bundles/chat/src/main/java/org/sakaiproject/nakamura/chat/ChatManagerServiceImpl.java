@@ -22,11 +22,18 @@ import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.chat.ChatManagerService;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 
+import java.util.Dictionary;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * The <code>ChatManagerServiceImpl</code>
  */
@@ -34,13 +41,41 @@ import org.sakaiproject.nakamura.api.memory.CacheScope;
 @Service(value = ChatManagerService.class)
 @Properties(value = {
     @Property(name = "service.vendor", value = "The Sakai Foundation"),
-    @Property(name = "service.description", value = "Chat Manager Implementation") })
+    @Property(name = "service.description", value = "Chat Manager Implementation"),
+    @Property(name = ChatManagerServiceImpl.MAX_PARKED, intValue = ChatManagerServiceImpl.DEFAULT_MAX_PARKED, description = "The maximum number of chat update requests held open waiting for an update. Each one holds a container thread.") })
 @Reference(name = "CacheManagerService", referenceInterface = CacheManagerService.class)
 public class ChatManagerServiceImpl implements ChatManagerService {
 
   private static final String CHAT_CACHE = "chat";
+  /**
+   * The property holding the maximum number of requests that may be parked waiting for
+   * updates.
+   */
+  static final String MAX_PARKED = "chat.maxParked";
+  static final int DEFAULT_MAX_PARKED = 20;
+  /**
+   * Parked requests re-check the cache at this interval (ms), to see updates made on
+   * other nodes in the cluster.
+   */
+  private static final long RECHECK_INTERVAL = 2000L;
+
+  /**
+   * The requests waiting for an update for a user.
+   */
+  private static class Waiters {
+    private int count;
+  }
 
   private CacheManagerService cacheManagerService;
+  private ConcurrentMap<String, Waiters> waiters = new ConcurrentHashMap<String, Waiters>();
+  private AtomicInteger parked = new AtomicInteger();
+  private volatile int maxParked = DEFAULT_MAX_PARKED;
+
+  @SuppressWarnings("unchecked")
+  protected void activate(ComponentContext componentContext) {
+    Dictionary props = componentContext.getProperties();
+    maxParked = Math.max(0, OsgiUtil.toInteger(props.get(MAX_PARKED), DEFAULT_MAX_PARKED));
+  }
 
   protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
     this.cacheManagerService = cacheManagerService;
@@ -89,6 +124,87 @@ public class ChatManagerServiceImpl implements ChatManagerService {
    */
   public void put(String userID, long time) {
     getCachedMap().put(userID, time);
+    Waiters w = waiters.get(userID);
+    if (w != null) {
+      synchronized (w) {
+        w.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * 
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.chat.ChatManagerService#waitForUpdate(java.lang.String,
+   *      long, long)
+   */
+  public Long waitForUpdate(String userID, long since, long timeout)
+      throws InterruptedException {
+    Long lastUpdate = get(userID);
+    if ((lastUpdate != null && lastUpdate > since) || timeout <= 0) {
+      return lastUpdate;
+    }
+    if (parked.incrementAndGet() > maxParked) {
+      parked.decrementAndGet();
+      return lastUpdate;
+    }
+    try {
+      Waiters w = enter(userID);
+      try {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (w) {
+          while (true) {
+            lastUpdate = get(userID);
+            long remaining = deadline - System.currentTimeMillis();
+            if ((lastUpdate != null && lastUpdate > since) || remaining <= 0) {
+              return lastUpdate;
+            }
+            w.wait(Math.min(remaining, RECHECK_INTERVAL));
+          }
+        }
+      } finally {
+        leave(userID, w);
+      }
+    } finally {
+      parked.decrementAndGet();
+    }
+  }
+
+  /**
+   * Register a waiting request for a user.
+   */
+  private Waiters enter(String userID) {
+    while (true) {
+      Waiters w = waiters.get(userID);
+      if (w == null) {
+        Waiters newWaiters = new Waiters();
+        w = waiters.putIfAbsent(userID, newWaiters);
+        if (w == null) {
+          w = newWaiters;
+        }
+      }
+      synchronized (w) {
+        // a Waiters with no count has been removed from the map, try again.
+        if (w.count >= 0) {
+          w.count++;
+          return w;
+        }
+      }
+    }
+  }
+
+  /**
+   * Unregister a waiting request for a user, removing the user when nobody is waiting.
+   */
+  private void leave(String userID, Waiters w) {
+    synchronized (w) {
+      w.count--;
+      if (w.count == 0) {
+        w.count = -1;
+        waiters.remove(userID, w);
+      }
+    }
   }
 
   /**
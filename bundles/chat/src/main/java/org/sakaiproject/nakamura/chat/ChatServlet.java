@@ -50,10 +50,16 @@ import javax.servlet.ServletException;
 @ServiceDocumentation(name = "ChatServlet", shortDescription = "Check for new chat messages.", description = "Provides a mechanism to check if the currently logged in user has new chat messages awaiting.", bindings = @ServiceBinding(type = BindingType.TYPE, bindings = "sakai/messagestore", selectors = @ServiceSelector(name = "chatupdate")), methods = { @ServiceMethod(name = "GET", response = {
     @ServiceResponse(code = 200, description = "Normal retrieval."),
     @ServiceResponse(code = 500, description = "Something went wrong trying to look for an update.") }, description = "GETs to this servlet will produce a JSON object with 3 keys. \n"
-    + "<ul><li>update: A boolean that states if there is a new chat message.</li><li>time: The current server time in millisecnds.</li><li>pulltime: The current time in a JCR formatted date.<li></ul>", parameters = @ServiceParameter(name = "t", description = "This variable should hold the last time value retrieved from this servet. If this variable is ommitted it uses the current time.")) })
+    + "<ul><li>update: A boolean that states if there is a new chat message.</li><li>time: The current server time in millisecnds.</li><li>pulltime: The current time in a JCR formatted date.<li></ul>", parameters = {
+    @ServiceParameter(name = "t", description = "This variable should hold the last time value retrieved from this servet. If this variable is ommitted it uses the current time."),
+    @ServiceParameter(name = "wait", description = "Optional, the number of seconds (at most 30) to hold the request open waiting for an update when there is none. The connection is kept alive between such requests.") }) })
 public class ChatServlet extends SlingSafeMethodsServlet {
   private static final Logger LOGGER = LoggerFactory.getLogger(ChatServlet.class);
   private static final long serialVersionUID = -4011626674940239621L;
+  /**
+   * The longest a request may wait for an update (ms).
+   */
+  private static final long MAX_WAIT = 30000L;
   private transient ChatManagerService chatManagerService;
 
   // We use this format rather than ISO8601 because Jackrabbit uses a subset (8601:2000)
@@ -78,9 +84,19 @@ public class ChatServlet extends SlingSafeMethodsServlet {
     String userID = request.getRemoteUser();
     boolean hasUpdate = false;
     RequestParameter timestampParam = request.getRequestParameter("t");
+    RequestParameter waitParam = request.getRequestParameter("wait");
 
     long time = System.currentTimeMillis();
     long requestTime = time;
+    // the time to wait for an update (ms), negative if this is not a valid long poll.
+    long wait = -1;
+    if (waitParam != null) {
+      try {
+        wait = Math.min(Long.parseLong(waitParam.getString()) * 1000L, MAX_WAIT);
+      } catch (NumberFormatException e) {
+        LOGGER.info("User requested non-Long wait: {}", waitParam.getString());
+      }
+    }
 
     Long lastUpdate = chatManagerService.get(userID);
 
@@ -106,6 +122,17 @@ public class ChatServlet extends SlingSafeMethodsServlet {
       }
     }
 
+    if (!hasUpdate && wait >= 0) {
+      // Long poll, hold the request until there is an update or we time out.
+      try {
+        lastUpdate = chatManagerService.waitForUpdate(userID, time, wait);
+        hasUpdate = lastUpdate != null && time < lastUpdate;
+        requestTime = System.currentTimeMillis();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
     LOGGER.info("Returned time = {}, update = {}", time, hasUpdate);
 
     Calendar cal = Calendar.getInstance();
@@ -133,7 +160,9 @@ public class ChatServlet extends SlingSafeMethodsServlet {
       response.sendError(500, "Unable to parse JSON.");
     }
 
-    // Make sure the connection is not keep-alive.
-    response.setHeader("Connection", "close");
+    if (wait < 0) {
+      // Make sure the connection is not keep-alive, long polling clients will be back.
+      response.setHeader("Connection", "close");
+    }
   }
 }
@@ -18,6 +18,7 @@
 package org.sakaiproject.nakamura.chat;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
@@ -27,6 +28,7 @@ import org.apache.sling.commons.json.JSONObject;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
@@ -40,6 +42,7 @@ import static org.easymock.EasyMock.verify;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Hashtable;
 
 import javax.servlet.ServletException;
 
@@ -90,6 +93,7 @@ public class ChatServletTest {
     SlingHttpServletResponse response = createMock(SlingHttpServletResponse.class);
     expect(request.getRemoteUser()).andReturn(user1);
     expect(request.getRequestParameter("t")).andReturn(null);
+    expect(request.getRequestParameter("wait")).andReturn(null);
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
     PrintWriter printWriter = new PrintWriter(baos);
     response.setContentType("application/json");
@@ -114,6 +118,7 @@ public class ChatServletTest {
     RequestParameter param = createMock(RequestParameter.class);
     expect(param.getString()).andReturn("100");
     expect(request.getRequestParameter("t")).andReturn(param);
+    expect(request.getRequestParameter("wait")).andReturn(null);
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
     PrintWriter printWriter = new PrintWriter(baos);
     response.setContentType("application/json");
@@ -140,6 +145,7 @@ public class ChatServletTest {
     RequestParameter param = createMock(RequestParameter.class);
     expect(param.getString()).andReturn("20");
     expect(request.getRequestParameter("t")).andReturn(param);
+    expect(request.getRequestParameter("wait")).andReturn(null);
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
     PrintWriter printWriter = new PrintWriter(baos);
     response.setContentType("application/json");
@@ -158,4 +164,104 @@ public class ChatServletTest {
     assertEquals(true, obj.get("update"));
   }
 
+  @Test
+  public void testWaitForUpdate() throws ServletException, IOException,
+      JSONException {
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    SlingHttpServletResponse response = createMock(SlingHttpServletResponse.class);
+    expect(request.getRemoteUser()).andReturn(user1);
+    RequestParameter param = createMock(RequestParameter.class);
+    expect(param.getString()).andReturn("100");
+    expect(request.getRequestParameter("t")).andReturn(param);
+    RequestParameter waitParam = createMock(RequestParameter.class);
+    expect(waitParam.getString()).andReturn("10");
+    expect(request.getRequestParameter("wait")).andReturn(waitParam);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PrintWriter printWriter = new PrintWriter(baos);
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    expect(response.getWriter()).andReturn(printWriter);
+    replay(param, waitParam, request, response);
+
+    // User1 has seen everything up to 100, and gets a message at 200 while waiting.
+    chatManagerService.put(user1, 50);
+    Thread sender = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(200);
+        } catch (InterruptedException e) {
+          return;
+        }
+        chatManagerService.put(user1, 200);
+      }
+    };
+    sender.start();
+
+    long start = System.currentTimeMillis();
+    chatServlet.doGet(request, response);
+    long elapsed = System.currentTimeMillis() - start;
+
+    printWriter.flush();
+    JSONObject obj = new JSONObject(baos.toString("UTF-8"));
+    assertEquals(true, obj.get("update"));
+    assertTrue("Waited " + elapsed + "ms for the update", elapsed < 5000);
+    verify(request, response);
+  }
+
+  @Test
+  public void testInvalidWaitClosesConnection() throws ServletException, IOException,
+      JSONException {
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    SlingHttpServletResponse response = createMock(SlingHttpServletResponse.class);
+    expect(request.getRemoteUser()).andReturn(user1);
+    RequestParameter param = createMock(RequestParameter.class);
+    expect(param.getString()).andReturn("100");
+    expect(request.getRequestParameter("t")).andReturn(param);
+    RequestParameter waitParam = createMock(RequestParameter.class);
+    expect(waitParam.getString()).andReturn("soon").anyTimes();
+    expect(request.getRequestParameter("wait")).andReturn(waitParam);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PrintWriter printWriter = new PrintWriter(baos);
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    expect(response.getWriter()).andReturn(printWriter);
+    response.setHeader("Connection", "close");
+    replay(param, waitParam, request, response);
+
+    chatManagerService.put(user1, 50);
+
+    chatServlet.doGet(request, response);
+
+    printWriter.flush();
+    JSONObject obj = new JSONObject(baos.toString("UTF-8"));
+    assertEquals(false, obj.get("update"));
+    verify(request, response);
+  }
+
+  @Test
+  public void testParkedLimit() throws InterruptedException {
+    ComponentContext componentContext = createMock(ComponentContext.class);
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(ChatManagerServiceImpl.MAX_PARKED, 0);
+    expect(componentContext.getProperties()).andReturn(properties);
+    replay(componentContext);
+    chatManagerService.activate(componentContext);
+
+    chatManagerService.put(user1, 50);
+    long start = System.currentTimeMillis();
+    Long lastUpdate = chatManagerService.waitForUpdate(user1, 100, 5000);
+    assertEquals(Long.valueOf(50), lastUpdate);
+    assertTrue(System.currentTimeMillis() - start < 5000);
+  }
+
+  @Test
+  public void testWaitTimesOut() throws InterruptedException {
+    chatManagerService.put(user1, 50);
+    long start = System.currentTimeMillis();
+    Long lastUpdate = chatManagerService.waitForUpdate(user1, 100, 100);
+    assertEquals(Long.valueOf(50), lastUpdate);
+    assertTrue(System.currentTimeMillis() - start >= 100);
+  }
+
 }
@@ -43,6 +43,15 @@ public interface ClusterTrackingService {
    *
    */
   public static final String EVENT_FROM_SERVER = "from-server";
+  /**
+   * A list of tracking cookies pinged in one batch, paired by position with
+   * {@link #EVENT_USERS}.
+   */
+  public static final String EVENT_TRACKING_COOKIES = "tracking-cookies";
+  /**
+   * A list of users pinged in one batch, an empty string for a request with no user.
+   */
+  public static final String EVENT_USERS = "users";
 
   public static final String EVENT_PING_CLUSTER_USER = "org/sakaiproject/nakamura/cluster/user/ping";
 
@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.cluster;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the user tracking pings requested by this server and the messages carrying
+ * them between servers.
+ */
+public class ClusterTrackingMetrics implements ClusterTrackingMetricsMBean {
+
+  private final AtomicLong remotePings = new AtomicLong();
+  private final AtomicLong usersSent = new AtomicLong();
+  private final AtomicLong messagesSent = new AtomicLong();
+  private final AtomicLong messagesReceived = new AtomicLong();
+  private final AtomicLong usersReceived = new AtomicLong();
+
+  void recordRemotePing() {
+    remotePings.incrementAndGet();
+  }
+
+  void recordMessageSent(int users) {
+    messagesSent.incrementAndGet();
+    usersSent.addAndGet(users);
+  }
+
+  void recordMessageReceived(int users) {
+    messagesReceived.incrementAndGet();
+    usersReceived.addAndGet(users);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.cluster.ClusterTrackingMetricsMBean#getRemotePingsRequested()
+   */
+  public long getRemotePingsRequested() {
+    return remotePings.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.cluster.ClusterTrackingMetricsMBean#getUsersSent()
+   */
+  public long getUsersSent() {
+    return usersSent.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.cluster.ClusterTrackingMetricsMBean#getMessagesSent()
+   */
+  public long getMessagesSent() {
+    return messagesSent.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.cluster.ClusterTrackingMetricsMBean#getMessagesReceived()
+   */
+  public long getMessagesReceived() {
+    return messagesReceived.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.cluster.ClusterTrackingMetricsMBean#getUsersReceived()
+   */
+  public long getUsersReceived() {
+    return usersReceived.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.cluster.ClusterTrackingMetricsMBean#reset()
+   */
+  public void reset() {
+    remotePings.set(0);
+    usersSent.set(0);
+    messagesSent.set(0);
+    messagesReceived.set(0);
+    usersReceived.set(0);
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.cluster;
+
+/**
+ * JMX view of the user tracking pings exchanged with other servers in the cluster. Pings
+ * are sent one user per message unless remote-ping-batched is enabled, it is off by
+ * default.
+ */
+public interface ClusterTrackingMetricsMBean {
+
+  /**
+   * @return the number of requests that needed the home server of their tracking cookie
+   *         to be pinged.
+   */
+  long getRemotePingsRequested();
+
+  /**
+   * @return the number of users sent to other servers, after pings for the same user in
+   *         the same interval were coalesced.
+   */
+  long getUsersSent();
+
+  /**
+   * @return the number of ping messages sent to other servers, one per user unless
+   *         batching is enabled.
+   */
+  long getMessagesSent();
+
+  /**
+   * @return the number of ping messages received from other servers, single and
+   *         batched.
+   */
+  long getMessagesReceived();
+
+  /**
+   * @return the number of users received from other servers.
+   */
+  long getUsersReceived();
+
+  void reset();
+}
@@ -41,11 +41,21 @@ import org.slf4j.LoggerFactory;
 
 import java.lang.management.ManagementFactory;
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Dictionary;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
 import java.util.List;
-
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
 import javax.servlet.http.Cookie;
@@ -87,6 +97,19 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
   @Property(name="secure-host-url", value = "http://localhost:8081",description = "The URL where other nodes in the cluster can contact this App server, will be different for each app server. Normal urls appended to the end of the url.")
   protected static final String PROP_SECURE_HOST_URL = "secure-host-url";
 
+  @Property(name = "remote-ping-interval", longValue = 5000L, description = "The interval (ms) between batches of user tracking pings sent to other servers, pings for the same user within an interval are sent once.")
+  protected static final String PROP_REMOTE_PING_INTERVAL = "remote-ping-interval";
+
+  @Property(name = "remote-ping-batched", boolValue = false, description = "Send the pings for a server in batches of up to 500 users. Off by default, pings are then sent one user per message. Servers before this version only apply single pings, enable this once every server in the cluster has been upgraded.")
+  protected static final String PROP_REMOTE_PING_BATCHED = "remote-ping-batched";
+
+  private static final String MBEAN_NAME = "org.sakaiproject.nakamura.cluster:type=UserTracking";
+
+  /**
+   * The largest number of users sent in one ping message.
+   */
+  private static final int MAX_BATCH = 500;
+
   /**
    * The Cache Manager service, injected.
    */
@@ -121,6 +144,15 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
   private long prev;
   private String thisSecureUrl;
 
+  private final Object pendingLock = new Object();
+  /**
+   * Users waiting to be pinged, by the id of their home server and then tracking cookie.
+   */
+  private Map<String, Map<String, String>> pendingPings = new HashMap<String, Map<String, String>>();
+  private ScheduledExecutorService flusher;
+  private boolean remotePingBatched;
+  private ClusterTrackingMetrics metrics = new ClusterTrackingMetrics();
+
   /**
    * Constructor for testing purposes only.
    *
@@ -133,6 +165,18 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
 
   }
 
+  /**
+   * Constructor for testing purposes only.
+   *
+   * @param cacheManagerService
+   * @param eventAdmin
+   */
+  protected ClusterTrackingServiceImpl(CacheManagerService cacheManagerService,
+      EventAdmin eventAdmin) {
+    this(cacheManagerService);
+    this.eventAdmin = eventAdmin;
+  }
+
   public ClusterTrackingServiceImpl() {
     GregorianCalendar calendar = new GregorianCalendar(2009, 8, 22);
     epoch = calendar.getTimeInMillis();
@@ -149,6 +193,16 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
 
     Dictionary<String, Object> properties = ctx.getProperties();
     thisSecureUrl = (String) properties.get(PROP_SECURE_HOST_URL);
+    long remotePingInterval = 5000L;
+    Object interval = properties.get(PROP_REMOTE_PING_INTERVAL);
+    if (interval instanceof Number) {
+      remotePingInterval = ((Number) interval).longValue();
+    } else if (interval != null) {
+      remotePingInterval = Long.parseLong(interval.toString());
+    }
+    Object batched = properties.get(PROP_REMOTE_PING_BATCHED);
+    remotePingBatched = batched instanceof Boolean ? (Boolean) batched : Boolean
+        .parseBoolean(String.valueOf(batched));
 
     componentStartTime = String.valueOf(System.currentTimeMillis());
     MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
@@ -157,6 +211,25 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
     isActive = true;
     pingInstance();
     isReady = true;
+
+    flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Cluster User Ping Flusher");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    flusher.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          flushRemotePings();
+        } catch (RuntimeException e) {
+          LOGGER.warn("Failed to send user tracking pings: {}", e.getMessage());
+          LOGGER.debug(e.getMessage(), e);
+        }
+      }
+    }, remotePingInterval, remotePingInterval, TimeUnit.MILLISECONDS);
+    registerMetrics();
   }
 
   /**
@@ -166,6 +239,13 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
    * @throws Exception
    */
   protected void deactivate(ComponentContext ctx) throws Exception {
+    if (flusher != null) {
+      flusher.shutdown();
+      flusher.awaitTermination(10, TimeUnit.SECONDS);
+      flusher = null;
+    }
+    flushRemotePings();
+    unregisterMetrics();
     try {
       removeInstance(serverId);
     } catch ( IllegalStateException e ) {
@@ -317,6 +397,9 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
   }
 
   /**
+   * Queue a ping to the home server of the tracking cookie, pings for the same cookie are
+   * sent once per interval.
+   *
    * @param trackingCookie
    * @param remoteUser
    * @throws PingRemoteTrackingFailedException
@@ -328,16 +411,123 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
       throw new PingRemoteTrackingFailedException("Server at " + trackingCookie
           + " not alive ");
     }
-    // send over OSGi and then JMS over the OSGi2JMS Bridge
-    Dictionary<String, Object> messageDict = new Hashtable<String, Object>();
-    messageDict.put(EVENT_FROM_SERVER, serverId);
-    messageDict.put(EVENT_TO_SERVER, clusterServer.getServerId());
-    messageDict.put(EVENT_TRACKING_COOKIE, trackingCookie);
-    messageDict.put(EVENT_USER, remoteUser);
-    Event pingUserEvent = new Event(EVENT_PING_CLUSTER_USER + "/"
-        + clusterServer.getServerId(), messageDict);
-    eventAdmin.postEvent(pingUserEvent);
+    metrics.recordRemotePing();
+    synchronized (pendingLock) {
+      Map<String, String> users = pendingPings.get(clusterServer.getServerId());
+      if (users == null) {
+        users = new LinkedHashMap<String, String>();
+        pendingPings.put(clusterServer.getServerId(), users);
+      }
+      users.put(trackingCookie, remoteUser == null ? "" : remoteUser);
+    }
+  }
+
+  /**
+   * Send the pending pings. When batching is enabled each server gets one message for
+   * each {@link #MAX_BATCH} users, otherwise one message per user that older servers
+   * understand.
+   */
+  protected void flushRemotePings() {
+    Map<String, Map<String, String>> toSend;
+    synchronized (pendingLock) {
+      if (pendingPings.isEmpty()) {
+        return;
+      }
+      toSend = pendingPings;
+      pendingPings = new HashMap<String, Map<String, String>>();
+    }
+    for (Entry<String, Map<String, String>> e : toSend.entrySet()) {
+      String toServer = e.getKey();
+      if (!remotePingBatched) {
+        for (Entry<String, String> user : e.getValue().entrySet()) {
+          Dictionary<String, Object> messageDict = new Hashtable<String, Object>();
+          messageDict.put(EVENT_FROM_SERVER, serverId);
+          messageDict.put(EVENT_TO_SERVER, toServer);
+          messageDict.put(EVENT_TRACKING_COOKIE, user.getKey());
+          if (user.getValue().length() > 0) {
+            messageDict.put(EVENT_USER, user.getValue());
+          }
+          eventAdmin.postEvent(new Event(EVENT_PING_CLUSTER_USER + "/" + toServer,
+              messageDict));
+          metrics.recordMessageSent(1);
+        }
+        continue;
+      }
+      List<String> trackingCookies = new ArrayList<String>(e.getValue().keySet());
+      List<String> users = new ArrayList<String>(e.getValue().values());
+      for (int i = 0; i < trackingCookies.size(); i += MAX_BATCH) {
+        int end = Math.min(trackingCookies.size(), i + MAX_BATCH);
+        // send over OSGi and then JMS over the OSGi2JMS Bridge
+        Dictionary<String, Object> messageDict = new Hashtable<String, Object>();
+        messageDict.put(EVENT_FROM_SERVER, serverId);
+        messageDict.put(EVENT_TO_SERVER, toServer);
+        messageDict.put(EVENT_TRACKING_COOKIES, new ArrayList<String>(trackingCookies
+            .subList(i, end)));
+        messageDict.put(EVENT_USERS, new ArrayList<String>(users.subList(i, end)));
+        Event pingUserEvent = new Event(EVENT_PING_CLUSTER_USER + "/" + toServer,
+            messageDict);
+        eventAdmin.postEvent(pingUserEvent);
+        metrics.recordMessageSent(end - i);
+      }
+    }
+  }
 
+  /**
+   * Apply a batch of pings from another server. A batch whose lists differ in length is
+   * malformed and is dropped, as the users can not be matched to the cookies.
+   *
+   * @param trackingCookies
+   * @param users
+   *          the user for each tracking cookie, an empty string where there is no user.
+   */
+  protected void pingTracking(List<String> trackingCookies, List<String> users) {
+    if (trackingCookies.size() != users.size()) {
+      LOGGER.warn("Dropping a batch of {} tracking cookies with {} users", trackingCookies
+          .size(), users.size());
+      return;
+    }
+    int n = trackingCookies.size();
+    metrics.recordMessageReceived(n);
+    for (int i = 0; i < n; i++) {
+      String remoteUser = users.get(i);
+      try {
+        pingTracking(trackingCookies.get(i), "".equals(remoteUser) ? null : remoteUser,
+            false);
+      } catch (PingRemoteTrackingFailedException e) {
+        LOGGER.warn(e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * @return the ping counters.
+   */
+  protected ClusterTrackingMetrics getMetrics() {
+    return metrics;
+  }
+
+  private void registerMetrics() {
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(MBEAN_NAME);
+      if (!mBeanServer.isRegistered(objectName)) {
+        mBeanServer.registerMBean(metrics, objectName);
+      }
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register user tracking metrics with JMX: {}", e.getMessage());
+    }
+  }
+
+  private void unregisterMetrics() {
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(MBEAN_NAME);
+      if (mBeanServer.isRegistered(objectName)) {
+        mBeanServer.unregisterMBean(objectName);
+      }
+    } catch (JMException e) {
+      LOGGER.debug(e.getMessage(), e);
+    }
   }
 
   /**
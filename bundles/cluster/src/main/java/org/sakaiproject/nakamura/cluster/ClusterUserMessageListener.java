@@ -25,6 +25,9 @@ import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.jms.Connection;
 import javax.jms.JMSException;
 import javax.jms.Message;
@@ -90,17 +93,31 @@ public class ClusterUserMessageListener implements MessageListener {
    *
    * @see javax.jms.MessageListener#onMessage(javax.jms.Message)
    */
+  @SuppressWarnings("unchecked")
   public void onMessage(Message message) {
     try {
       String fromServer = message
           .getStringProperty(ClusterTrackingService.EVENT_FROM_SERVER);
       String toServer = message.getStringProperty(ClusterTrackingService.EVENT_TO_SERVER);
+      Object trackingCookies = message
+          .getObjectProperty(ClusterTrackingService.EVENT_TRACKING_COOKIES);
+      if (trackingCookies instanceof List) {
+        // a batch of pings coalesced by the sending server.
+        Object users = message.getObjectProperty(ClusterTrackingService.EVENT_USERS);
+        List<String> cookieList = (List<String>) trackingCookies;
+        LOGGER.debug("Applying {} cluster user pings from:{} to:{}", new Object[] {
+            cookieList.size(), fromServer, toServer });
+        clusterTrackingServiceImpl.pingTracking(cookieList,
+            users instanceof List ? (List<String>) users : new ArrayList<String>());
+        return;
+      }
       String trackingCookie = message
           .getStringProperty(ClusterTrackingService.EVENT_TRACKING_COOKIE);
       String remoteUser = message.getStringProperty(ClusterTrackingService.EVENT_USER);
       LOGGER.info(
           "Started handling cluster user jms message. from:{} to:{} cookie:{} user:{}",
           new Object[] { fromServer, toServer, trackingCookie, remoteUser });
+      clusterTrackingServiceImpl.getMetrics().recordMessageReceived(1);
       clusterTrackingServiceImpl.pingTracking(trackingCookie, remoteUser, false);
     } catch (PingRemoteTrackingFailedException e) {
       LOGGER.error(e.getMessage());
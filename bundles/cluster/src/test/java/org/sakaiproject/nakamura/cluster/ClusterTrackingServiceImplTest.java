@@ -18,7 +18,9 @@
 package org.sakaiproject.nakamura.cluster;
 
 import static org.easymock.EasyMock.capture;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.isA;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
@@ -29,6 +31,9 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
@@ -36,6 +41,7 @@ import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
 
 import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Hashtable;
 
 import javax.management.AttributeNotFoundException;
@@ -59,6 +65,8 @@ public class ClusterTrackingServiceImplTest extends AbstractEasyMockTest {
   private Cache<Object> userTrackingCache;
   private Cache<Object> serverTrackingCache;
   private ComponentContext componentContext;
+  private EventAdmin eventAdmin;
+  private Hashtable<String, Object> properties;
 
   @SuppressWarnings("unchecked")
   @Before
@@ -72,10 +80,15 @@ public class ClusterTrackingServiceImplTest extends AbstractEasyMockTest {
     expect(
         cacheManagerService.getCache("server-tracking-cache",
             CacheScope.CLUSTERREPLICATED)).andReturn(serverTrackingCache).anyTimes();
-    clusterTrackingServiceImpl = new ClusterTrackingServiceImpl(cacheManagerService);
+    eventAdmin = createMock(EventAdmin.class);
+    clusterTrackingServiceImpl = new ClusterTrackingServiceImpl(cacheManagerService,
+        eventAdmin);
     componentContext = createMock(ComponentContext.class);
-    Hashtable<String, Object> dict = new Hashtable<String, Object>();
+    properties = new Hashtable<String, Object>();
+    Hashtable<String, Object> dict = properties;
     dict.put(ClusterTrackingServiceImpl.PROP_SECURE_HOST_URL, "http://localhost:8081");
+    // flushed explicitly by the tests.
+    dict.put(ClusterTrackingServiceImpl.PROP_REMOTE_PING_INTERVAL, 3600000L);
     expect(componentContext.getProperties()).andReturn(dict).anyTimes();
   }
 
@@ -379,5 +392,102 @@ public class ClusterTrackingServiceImplTest extends AbstractEasyMockTest {
 
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testCoalesceRemotePings() throws Exception {
+    // activate
+    String serverId = getServerId();
+    expect(serverTrackingCache.list()).andReturn(new ArrayList<Object>()).times(2);
+    expect(serverTrackingCache.put(eq(serverId), isA(ClusterServerImpl.class))).andReturn(
+        new Object());
+
+    ClusterServerImpl otherServer = new ClusterServerImpl("otherServerId", 1,
+        "http://localhost:8082");
+    expect(serverTrackingCache.get("otherServerId")).andReturn(otherServer).anyTimes();
+    // every request for the two users misses the local cache, as it would if they
+    // arrived together after a failover.
+    expect(userTrackingCache.get(isA(String.class))).andReturn(null).anyTimes();
+    expect(userTrackingCache.put(isA(String.class), isA(ClusterUserImpl.class))).andReturn(
+        null).anyTimes();
+    Capture<Event> eventCapture = new Capture<Event>();
+    eventAdmin.postEvent(capture(eventCapture));
+    expectLastCall().once();
+
+    // deactivate
+    serverTrackingCache.remove(serverId);
+
+    properties.put(ClusterTrackingServiceImpl.PROP_REMOTE_PING_BATCHED, true);
+    replay();
+    clusterTrackingServiceImpl.activate(componentContext);
+    for (int i = 0; i < 10; i++) {
+      clusterTrackingServiceImpl.pingTracking("otherServerId-cookie1", "ieb", true);
+      clusterTrackingServiceImpl.pingTracking("otherServerId-cookie2", "alice", true);
+    }
+    clusterTrackingServiceImpl.flushRemotePings();
+    // nothing left to send.
+    clusterTrackingServiceImpl.flushRemotePings();
+
+    Event event = eventCapture.getValue();
+    assertEquals(ClusterTrackingService.EVENT_PING_CLUSTER_USER + "/otherServerId", event
+        .getTopic());
+    assertEquals(Arrays.asList("otherServerId-cookie1", "otherServerId-cookie2"), event
+        .getProperty(ClusterTrackingService.EVENT_TRACKING_COOKIES));
+    assertEquals(Arrays.asList("ieb", "alice"), event
+        .getProperty(ClusterTrackingService.EVENT_USERS));
+    ClusterTrackingMetrics metrics = clusterTrackingServiceImpl.getMetrics();
+    assertEquals(20, metrics.getRemotePingsRequested());
+    assertEquals(2, metrics.getUsersSent());
+    assertEquals(1, metrics.getMessagesSent());
+
+    clusterTrackingServiceImpl.deactivate(componentContext);
+    verify();
+  }
+
+  @Test
+  public void testSingleRemotePingsUnlessBatched() throws Exception {
+    // activate
+    String serverId = getServerId();
+    expect(serverTrackingCache.list()).andReturn(new ArrayList<Object>()).times(2);
+    expect(serverTrackingCache.put(eq(serverId), isA(ClusterServerImpl.class))).andReturn(
+        new Object());
+
+    ClusterServerImpl otherServer = new ClusterServerImpl("otherServerId", 1,
+        "http://localhost:8082");
+    expect(serverTrackingCache.get("otherServerId")).andReturn(otherServer).anyTimes();
+    expect(userTrackingCache.get(isA(String.class))).andReturn(null).anyTimes();
+    expect(userTrackingCache.put(isA(String.class), isA(ClusterUserImpl.class))).andReturn(
+        null).anyTimes();
+    Capture<Event> first = new Capture<Event>();
+    Capture<Event> second = new Capture<Event>();
+    eventAdmin.postEvent(capture(first));
+    eventAdmin.postEvent(capture(second));
+
+    // deactivate
+    serverTrackingCache.remove(serverId);
+
+    replay();
+    clusterTrackingServiceImpl.activate(componentContext);
+    for (int i = 0; i < 10; i++) {
+      clusterTrackingServiceImpl.pingTracking("otherServerId-cookie1", "ieb", true);
+      clusterTrackingServiceImpl.pingTracking("otherServerId-cookie2", null, true);
+    }
+    clusterTrackingServiceImpl.flushRemotePings();
+
+    // servers that have not been upgraded only understand a single ping per message.
+    assertEquals(ClusterTrackingService.EVENT_PING_CLUSTER_USER + "/otherServerId", first
+        .getValue().getTopic());
+    assertEquals("otherServerId-cookie1", first.getValue().getProperty(
+        ClusterTrackingService.EVENT_TRACKING_COOKIE));
+    assertEquals("ieb", first.getValue().getProperty(ClusterTrackingService.EVENT_USER));
+    assertEquals(null, first.getValue().getProperty(
+        ClusterTrackingService.EVENT_TRACKING_COOKIES));
+    assertEquals("otherServerId-cookie2", second.getValue().getProperty(
+        ClusterTrackingService.EVENT_TRACKING_COOKIE));
+    assertEquals(null, second.getValue().getProperty(ClusterTrackingService.EVENT_USER));
+    assertEquals(2, clusterTrackingServiceImpl.getMetrics().getMessagesSent());
+
+    clusterTrackingServiceImpl.deactivate(componentContext);
+    verify();
+  }
 
 }
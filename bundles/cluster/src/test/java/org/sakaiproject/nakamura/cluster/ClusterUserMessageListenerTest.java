@@ -36,10 +36,12 @@ import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
 
 import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Hashtable;
 
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageConsumer;
 import javax.jms.Session;
@@ -139,6 +141,7 @@ public class ClusterUserMessageListenerTest extends AbstractEasyMockTest {
     
     expect(message.getStringProperty("from-server")).andReturn("otherServerId");
     expect(message.getStringProperty("to-server")).andReturn("toserver");
+    expect(message.getObjectProperty("tracking-cookies")).andReturn(null);
     expect(message.getStringProperty("tracking-cookie")).andReturn("thistrackingcookie");
     expect(message.getStringProperty("user")).andReturn("ieb");
     ClusterUserImpl clusterUser = new ClusterUserImpl("ieb", "otherServerId");
@@ -157,10 +160,76 @@ public class ClusterUserMessageListenerTest extends AbstractEasyMockTest {
 
     clusterTrackingServiceImpl.deactivate(componentContext);
 
+    assertEquals(1, clusterTrackingServiceImpl.getMetrics().getMessagesReceived());
+    assertEquals(1, clusterTrackingServiceImpl.getMetrics().getUsersReceived());
     checkActivation();
     verify();
   }
 
+  @Test
+  public void testBatch() throws Exception {
+    activate();
+    Message message = createMock(Message.class);
+    ConnectionFactory connectionFactory = createMock(ConnectionFactory.class);
+    expect(connectionFactoryService.getDefaultConnectionFactory()).andReturn(connectionFactory);
+    expect(connectionFactory.createConnection()).andThrow(new JMSException("not needed"));
+    expect(message.getStringProperty("from-server")).andReturn("otherServerId");
+    expect(message.getStringProperty("to-server")).andReturn("toserver");
+    expect(message.getObjectProperty("tracking-cookies")).andReturn(
+        Arrays.asList("cookie1", "cookie2"));
+    expect(message.getObjectProperty("users")).andReturn(Arrays.asList("ieb", ""));
+    // both users are applied in one pass, the second had no user.
+    expect(userTrackingCache.get("cookie1")).andReturn(null);
+    expect(userTrackingCache.get("cookie2")).andReturn(null);
+    Capture<ClusterUserImpl> user1 = new Capture<ClusterUserImpl>();
+    Capture<ClusterUserImpl> user2 = new Capture<ClusterUserImpl>();
+    expect(userTrackingCache.put(EasyMock.eq("cookie1"), capture(user1))).andReturn(null);
+    expect(userTrackingCache.put(EasyMock.eq("cookie2"), capture(user2))).andReturn(null);
+
+    deactivate();
+
+    replay();
+    clusterTrackingServiceImpl.activate(componentContext);
+    clusterUserMessageListener.activate(componentContext);
+
+    clusterUserMessageListener.onMessage(message);
+
+    clusterTrackingServiceImpl.deactivate(componentContext);
+
+    assertEquals("ieb", user1.getValue().getUser());
+    assertEquals(null, user2.getValue().getUser());
+    checkActivation();
+    verify();
+  }
+
+  @Test
+  public void testMalformedBatch() throws Exception {
+    activate();
+    Message message = createMock(Message.class);
+    ConnectionFactory connectionFactory = createMock(ConnectionFactory.class);
+    expect(connectionFactoryService.getDefaultConnectionFactory()).andReturn(connectionFactory);
+    expect(connectionFactory.createConnection()).andThrow(new JMSException("not needed"));
+    expect(message.getStringProperty("from-server")).andReturn("otherServerId");
+    expect(message.getStringProperty("to-server")).andReturn("toserver");
+    expect(message.getObjectProperty("tracking-cookies")).andReturn(
+        Arrays.asList("cookie1", "cookie2"));
+    expect(message.getObjectProperty("users")).andReturn(Arrays.asList("ieb"));
+    // the users can not be matched to the cookies, nothing is applied.
+
+    deactivate();
+
+    replay();
+    clusterTrackingServiceImpl.activate(componentContext);
+    clusterUserMessageListener.activate(componentContext);
+
+    clusterUserMessageListener.onMessage(message);
+
+    clusterTrackingServiceImpl.deactivate(componentContext);
+
+    assertEquals(0, clusterTrackingServiceImpl.getMetrics().getMessagesReceived());
+    checkActivation();
+    verify();
+  }
 
   /**
    *
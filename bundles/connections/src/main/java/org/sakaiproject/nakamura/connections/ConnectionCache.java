@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.connections;
+
+import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+import org.sakaiproject.nakamura.api.memory.Cache;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the state of every connection of a user, so that listing the connections of a
+ * user in some state does not query the contact store. A user is loaded with one query
+ * the first time it is asked for, kept up to date by {@link ConnectionManagerImpl} as
+ * connections change, and dropped when anything under the contact store of the user
+ * changes by other means. Users are held in cluster invalidated caches, so a user that
+ * is updated or dropped on one node is dropped on the others.
+ */
+public class ConnectionCache {
+
+  /**
+   * The connections of users by user id.
+   */
+  static final String CONNECTION_CACHE = "connections.users";
+
+  /**
+   * The users held, by the path to their contact store.
+   */
+  static final String BASE_CACHE = "connections.bases";
+
+  /**
+   * The connections of a user.
+   */
+  static class Connections {
+    /**
+     * The path to the contact store of the user.
+     */
+    final String basePath;
+    /**
+     * The state of each connection, by the id of the other user.
+     */
+    final Map<String, ConnectionState> states;
+
+    Connections(String basePath, Map<String, ConnectionState> states) {
+      this.basePath = basePath;
+      this.states = states;
+    }
+  }
+
+  private final Cache<Connections> users;
+
+  private final Cache<String> bases;
+
+  /**
+   * @param users
+   *          the cache the connections are held in.
+   * @param bases
+   *          the cache the users are held in by the path to their contact store.
+   */
+  ConnectionCache(Cache<Connections> users, Cache<String> bases) {
+    this.users = users;
+    this.bases = bases;
+  }
+
+  /**
+   * @param user
+   * @param state
+   *          the state of the connections to list, or null for all.
+   * @return the ids of the users connected to the user in the state, or null if the user
+   *         is not held.
+   */
+  List<String> get(String user, ConnectionState state) {
+    Connections connections = users.get(user);
+    if (connections == null) {
+      return null;
+    }
+    List<String> connected = new ArrayList<String>();
+    for (Map.Entry<String, ConnectionState> e : connections.states.entrySet()) {
+      if (state == null || state == e.getValue()) {
+        connected.add(e.getKey());
+      }
+    }
+    return connected;
+  }
+
+  /**
+   * Hold the connections of a user.
+   *
+   * @param user
+   * @param basePath
+   *          the path to the contact store of the user.
+   * @param states
+   *          the state of each connection, by the id of the other user.
+   */
+  void put(String user, String basePath, Map<String, ConnectionState> states) {
+    bases.put(basePath, user);
+    users.put(user, new Connections(basePath, states));
+  }
+
+  /**
+   * A connection has changed state, update the user if it is held. The connections are
+   * copied and put back, never changed in place.
+   *
+   * @param user
+   * @param otherUser
+   * @param state
+   */
+  void update(String user, String otherUser, ConnectionState state) {
+    synchronized (users) {
+      Connections connections = users.get(user);
+      if (connections != null) {
+        Map<String, ConnectionState> states = new LinkedHashMap<String, ConnectionState>(
+            connections.states);
+        states.put(otherUser, state);
+        users.put(user, new Connections(connections.basePath, states));
+      }
+    }
+  }
+
+  /**
+   * Something under a path has changed, drop the user whose contact store contains the
+   * path.
+   *
+   * @param path
+   */
+  void changed(String path) {
+    if (path.indexOf("/" + ConnectionConstants.CONTACT_STORE_NAME) < 0) {
+      return;
+    }
+    for (String p = path; p.length() > 0; p = p.substring(0, Math.max(0, p
+        .lastIndexOf('/')))) {
+      String user = bases.get(p);
+      if (user != null) {
+        users.remove(user);
+        return;
+      }
+    }
+  }
+}
@@ -38,14 +38,19 @@ import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.Services;
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.Group;
 import org.apache.jackrabbit.api.security.user.UserManager;
 import org.apache.jackrabbit.util.ISO9075;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
 import org.sakaiproject.nakamura.api.connections.ConnectionException;
 import org.sakaiproject.nakamura.api.connections.ConnectionManager;
@@ -53,6 +58,9 @@ import org.sakaiproject.nakamura.api.connections.ConnectionOperation;
 import org.sakaiproject.nakamura.api.connections.ConnectionState;
 import org.sakaiproject.nakamura.api.locking.LockManager;
 import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.personal.PersonalUtils;
 import org.sakaiproject.nakamura.util.JcrUtils;
 import org.slf4j.Logger;
@@ -62,6 +70,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -82,8 +91,9 @@ import javax.jcr.query.QueryResult;
  */
 @Component(immediate = true, description = "Service for doing operations with connections.", label = "ConnectionSearchResultProcessor")
 @Properties(value = { @Property(name = "service.vendor", value = "The Sakai Foundation") })
-@Service(value = ConnectionManager.class)
-public class ConnectionManagerImpl implements ConnectionManager {
+@Services(value = { @Service(value = ConnectionManager.class),
+    @Service(value = EventHandler.class) })
+public class ConnectionManagerImpl implements ConnectionManager, EventHandler {
 
   private static final Logger LOGGER = LoggerFactory
       .getLogger(ConnectionManagerImpl.class);
@@ -94,6 +104,25 @@ public class ConnectionManagerImpl implements ConnectionManager {
   @Reference
   protected transient SlingRepository slingRepository;
 
+  @Reference
+  protected transient CacheManagerService cacheManagerService;
+
+  /**
+   * Changes to contact stores made other than through {@link #connect} drop the
+   * connections of the user from the cache.
+   */
+  @Property(value = { SlingConstants.TOPIC_RESOURCE_ADDED,
+      SlingConstants.TOPIC_RESOURCE_CHANGED, SlingConstants.TOPIC_RESOURCE_REMOVED },
+      propertyPrivate = true)
+  static final String EVENT_TOPICS = EventConstants.EVENT_TOPIC;
+
+  /**
+   * Only changes in the contact stores are delivered.
+   */
+  @Property(value = "(" + SlingConstants.PROPERTY_PATH + "="
+      + ConnectionUtils.CONNECTION_PATH_ROOT + "/*)", propertyPrivate = true)
+  static final String EVENT_FILTER = EventConstants.EVENT_FILTER;
+
   private static Map<TransitionKey, StatePair> stateMap = new HashMap<TransitionKey, StatePair>();
 
   static {
@@ -264,6 +293,9 @@ public class ConnectionManagerImpl implements ConnectionManager {
       if (adminSession.hasPendingChanges()) {
         adminSession.save();
       }
+      ConnectionCache connectionCache = getConnectionCache();
+      connectionCache.update(thisUserId, otherUserId, getConnectionState(thisNode));
+      connectionCache.update(otherUserId, thisUserId, getConnectionState(otherNode));
 
       if (operation == ConnectionOperation.invite) {
         throw new ConnectionException(200, "Invitation made between "
@@ -331,41 +363,94 @@ public class ConnectionManagerImpl implements ConnectionManager {
    *      org.sakaiproject.nakamura.api.connections.ConnectionState)
    */
   public List<String> getConnectedUsers(String user, ConnectionState state) {
-    ArrayList<String> l = new ArrayList<String>();
+    ConnectionCache connectionCache = getConnectionCache();
+    List<String> connected = connectionCache.get(user, state);
+    if (connected == null) {
+      Map<String, ConnectionState> states = new LinkedHashMap<String, ConnectionState>();
+      String connectionPath = loadConnections(user, states);
+      if (connectionPath != null) {
+        connectionCache.put(user, connectionPath, states);
+      }
+      connected = new ArrayList<String>();
+      for (Entry<String, ConnectionState> e : states.entrySet()) {
+        if (state == null || state == e.getValue()) {
+          connected.add(e.getKey());
+        }
+      }
+    }
+    return connected;
+  }
+
+  /**
+   * Reads the state of every connection of a user.
+   *
+   * @param user
+   * @param states
+   *          filled with the state of each connection by the id of the other user, null
+   *          where the connection has no state.
+   * @return the path to the contact store of the user, or null if there is no such user.
+   */
+  private String loadConnections(String user, Map<String, ConnectionState> states) {
     // search string should look something like this
-    // "//_user/contacts/a0/b0/c0/d0/aaron/*[@sling:resourceType=\"sakai/contact\" and @sakai:state=\"ACCEPTED\"]"
+    // "//_user/contacts/a0/b0/c0/d0/aaron/*[@sling:resourceType=\"sakai/contact\"]"
     try {
       Session adminSession = slingRepository.loginAdministrative(null);
       try {
         UserManager um = AccessControlUtil.getUserManager(adminSession);
         Authorizable au = um.getAuthorizable(user);
+        if (au == null) {
+          return null;
+        }
         // this will generate the bigstore path
         String connectionPath = ConnectionUtils.getConnectionPathBase(au);
         // create the search query string
         String search = "/jcr:root" + ISO9075.encodePath(connectionPath)
             + "//element(*)[@" + JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY
-            + "=\"" + ConnectionConstants.SAKAI_CONTACT_RT + "\"";
-        if (state != null) {
-          search += " and @" + ConnectionConstants.SAKAI_CONNECTION_STATE + "=\""
-              + state.name() + "\"]";
-        } else {
-          search += "]";
-        }
+            + "=\"" + ConnectionConstants.SAKAI_CONTACT_RT + "\"]";
         QueryManager qm = adminSession.getWorkspace().getQueryManager();
         Query query = qm.createQuery(search, Query.XPATH);
         QueryResult result = query.execute();
         NodeIterator nodeIterator = result.getNodes();
         while (nodeIterator.hasNext()) {
           Node node = nodeIterator.nextNode();
-          l.add(node.getName());
+          ConnectionState connectionState = null;
+          if (node.hasProperty(ConnectionConstants.SAKAI_CONNECTION_STATE)) {
+            connectionState = getConnectionState(node);
+          }
+          states.put(node.getName(), connectionState);
         }
+        return connectionPath;
       } finally {
         adminSession.logout();
       }
     } catch (RepositoryException e) {
       throw new IllegalStateException(e.getMessage(), e);
+    } catch (ConnectionException e) {
+      throw new IllegalStateException(e.getMessage(), e);
     }
-    return l;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    Object path = event.getProperty(SlingConstants.PROPERTY_PATH);
+    if (path instanceof String) {
+      getConnectionCache().changed((String) path);
+    }
+  }
+
+  /**
+   * @return the connections of users, kept up to date by {@link #connect}.
+   */
+  protected ConnectionCache getConnectionCache() {
+    Cache<ConnectionCache.Connections> users = cacheManagerService.getCache(
+        ConnectionCache.CONNECTION_CACHE, CacheScope.CLUSTERINVALIDATED);
+    Cache<String> bases = cacheManagerService.getCache(ConnectionCache.BASE_CACHE,
+        CacheScope.CLUSTERINVALIDATED);
+    return new ConnectionCache(users, bases);
   }
 
   protected Node getOrCreateConnectionNode(Session session, Authorizable fromUser,
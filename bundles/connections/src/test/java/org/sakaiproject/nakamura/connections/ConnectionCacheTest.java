@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.connections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Checks connections are listed by state, kept up to date by connect and dropped when the
+ * contact store of the user changes.
+ */
+public class ConnectionCacheTest {
+
+  private static final String ALICE_BASE = "/_user/contacts/a/al/alice";
+
+  private MapCacheImpl<ConnectionCache.Connections> users;
+  private ConnectionCache cache;
+
+  @Before
+  public void setUp() {
+    users = new MapCacheImpl<ConnectionCache.Connections>();
+    cache = new ConnectionCache(users, new MapCacheImpl<String>());
+    Map<String, ConnectionState> states = new LinkedHashMap<String, ConnectionState>();
+    states.put("bob", ConnectionState.ACCEPTED);
+    states.put("carol", ConnectionState.PENDING);
+    states.put("dave", null);
+    cache.put("alice", ALICE_BASE, states);
+  }
+
+  @Test
+  public void testGet() {
+    assertEquals(Arrays.asList("bob"), cache.get("alice", ConnectionState.ACCEPTED));
+    assertEquals(Arrays.asList("bob", "carol", "dave"), cache.get("alice", null));
+    assertNull(cache.get("bob", ConnectionState.ACCEPTED));
+  }
+
+  @Test
+  public void testUpdate() {
+    cache.update("alice", "carol", ConnectionState.ACCEPTED);
+    cache.update("bob", "alice", ConnectionState.ACCEPTED);
+    assertEquals(Arrays.asList("bob", "carol"), cache
+        .get("alice", ConnectionState.ACCEPTED));
+    assertNull(cache.get("bob", ConnectionState.ACCEPTED));
+  }
+
+  @Test
+  public void testChanged() {
+    cache.changed("/_user/a/al/alice/public/authprofile");
+    assertEquals(Arrays.asList("bob"), cache.get("alice", ConnectionState.ACCEPTED));
+    cache.changed(ALICE_BASE + "/bob");
+    assertNull(cache.get("alice", ConnectionState.ACCEPTED));
+  }
+
+  @Test
+  public void testUpdatePutBack() {
+    ConnectionCache.Connections held = users.get("alice");
+    cache.update("alice", "carol", ConnectionState.ACCEPTED);
+    assertEquals("Copied, not changed in place", ConnectionState.PENDING, held.states
+        .get("carol"));
+    assertEquals(Arrays.asList("bob", "carol"), cache
+        .get("alice", ConnectionState.ACCEPTED));
+  }
+}
@@ -38,9 +38,15 @@ import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
 import org.sakaiproject.nakamura.api.connections.ConnectionException;
 import org.sakaiproject.nakamura.api.connections.ConnectionState;
 import org.sakaiproject.nakamura.api.locking.LockManager;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import javax.jcr.Node;
@@ -62,6 +68,14 @@ public class ConnectionManagerImplTest {
     lockManager = mock(LockManager.class);
     connectionManager = new ConnectionManagerImpl();
     connectionManager.lockManager = lockManager;
+    Cache<Object> users = new MapCacheImpl<Object>();
+    Cache<Object> bases = new MapCacheImpl<Object>();
+    CacheManagerService cacheManagerService = mock(CacheManagerService.class);
+    when(cacheManagerService.getCache(ConnectionCache.CONNECTION_CACHE,
+        CacheScope.CLUSTERINVALIDATED)).thenReturn(users);
+    when(cacheManagerService.getCache(ConnectionCache.BASE_CACHE,
+        CacheScope.CLUSTERINVALIDATED)).thenReturn(bases);
+    connectionManager.cacheManagerService = cacheManagerService;
   }
 
   @Test
@@ -266,4 +280,17 @@ public class ConnectionManagerImplTest {
     verify(contactNode).setProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY, ConnectionConstants.SAKAI_CONTACT_RT);
     verify(contactNode).setProperty("jcr:reference", "bob-iden-tifi-er", PropertyType.REFERENCE);
   }
+
+  @Test
+  public void testGetConnectedUsersHeld() {
+    Map<String, ConnectionState> states = new LinkedHashMap<String, ConnectionState>();
+    states.put("bob", ConnectionState.ACCEPTED);
+    states.put("carol", ConnectionState.INVITED);
+    connectionManager.getConnectionCache().put("alice", "/_user/contacts/a/al/alice",
+        states);
+    // there is no repository, the connections have to come from the cache
+    assertEquals(Arrays.asList("bob"), connectionManager.getConnectedUsers("alice",
+        ConnectionState.ACCEPTED));
+  }
+
 }
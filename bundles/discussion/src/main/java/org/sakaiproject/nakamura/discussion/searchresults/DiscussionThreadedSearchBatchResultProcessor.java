@@ -17,6 +17,10 @@
  */
 package org.sakaiproject.nakamura.discussion.searchresults;
 
+import static org.sakaiproject.nakamura.api.search.SearchConstants.DEFAULT_PAGED_ITEMS;
+import static org.sakaiproject.nakamura.api.search.SearchConstants.PARAMS_ITEMS_PER_PAGE;
+import static org.sakaiproject.nakamura.api.search.SearchConstants.PARAMS_PAGE;
+
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
@@ -30,6 +34,7 @@ import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.search.AbstractSearchResultSet;
 import org.sakaiproject.nakamura.api.search.Aggregator;
+import org.sakaiproject.nakamura.api.search.RowIteratorImpl;
 import org.sakaiproject.nakamura.api.search.SearchBatchResultProcessor;
 import org.sakaiproject.nakamura.api.search.SearchException;
 import org.sakaiproject.nakamura.api.search.SearchResultSet;
@@ -48,6 +53,7 @@ import javax.jcr.Session;
 import javax.jcr.ValueFormatException;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryResult;
+import javax.jcr.query.Row;
 import javax.jcr.query.RowIterator;
 
 /**
@@ -70,47 +76,69 @@ public class DiscussionThreadedSearchBatchResultProcessor implements
   @Reference
   protected transient PresenceService presenceService;
 
+  /**
+   * The rows of a search with the thread index that was built from them.
+   */
+  private static class IndexedRowIterator extends RowIteratorImpl {
+    private final ThreadedPostIndex index;
+
+    private IndexedRowIterator(List<Row> rows, ThreadedPostIndex index) {
+      super(rows);
+      this.index = index;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * The rows are indexed on their sakai:id in a single pass and may come in any order.
+   * The posts are then written out one thread at a time. If a page is requested, the
+   * items and page parameters select top level threads rather than rows.
+   *
+   * @see org.sakaiproject.nakamura.api.search.SearchBatchResultProcessor#writeNodes(org.apache.sling.api.SlingHttpServletRequest,
+   *      org.apache.sling.commons.json.io.JSONWriter,
+   *      org.sakaiproject.nakamura.api.search.Aggregator, javax.jcr.query.RowIterator)
+   */
   public void writeNodes(SlingHttpServletRequest request, JSONWriter writer,
       Aggregator aggregator, RowIterator iterator) throws JSONException,
       RepositoryException {
 
     Session session = request.getResourceResolver().adaptTo(Session.class);
-    List<Node> allNodes = new ArrayList<Node>();
-    for (; iterator.hasNext();) {
-      Node node = RowUtils.getNode(iterator.nextRow(), session);
+    ThreadedPostIndex index;
+    if (iterator instanceof IndexedRowIterator) {
+      index = ((IndexedRowIterator) iterator).index;
       if (aggregator != null) {
-        aggregator.add(node);
+        while (iterator.hasNext()) {
+          aggregator.add(RowUtils.getNode(iterator.nextRow(), session));
+        }
       }
-      allNodes.add(node);
+    } else {
+      index = index(iterator, session, aggregator, null);
     }
 
-    List<Post> basePosts = new ArrayList<Post>();
-    for (int i = 0; i < allNodes.size(); i++) {
-      Node n = allNodes.get(i);
-
-      if (n.hasProperty(DiscussionConstants.PROP_REPLY_ON)) {
-        String replyon = n.getProperty(DiscussionConstants.PROP_REPLY_ON)
-            .getString();
-        // This post is a reply on another post.
-        // Find that post and add it.
-        addPost(basePosts, n, replyon);
-
-      } else {
-        // This post is not a reply to another post, thus it is a basepost.
-        basePosts.add(new Post(n));
-      }
+    List<ThreadedPostIndex.Entry> threads = index.getThreads();
+    int start = 0;
+    int end = threads.size();
+    if (request.getRequestParameter(PARAMS_PAGE) != null) {
+      long nitems = SearchUtil.intRequestParameter(request, PARAMS_ITEMS_PER_PAGE,
+          DEFAULT_PAGED_ITEMS);
+      long offset = SearchUtil.intRequestParameter(request, PARAMS_PAGE, 0) * nitems;
+      start = (int) Math.min(offset, end);
+      end = (int) Math.min(offset + nitems, end);
     }
 
-    // The posts are sorted, now return them as json.
-
-    for (Post p : basePosts) {
-      p.outputPostAsJSON(writer, presenceService);
+    for (int i = start; i < end; i++) {
+      Post post = loadPost(threads.get(i), session);
+      post.outputPostAsJSON(writer, presenceService);
     }
   }
 
   /**
    * {@inheritDoc}
-   * 
+   *
+   * The threads are built here, so the size of the result set is the number of top level
+   * threads, which is what the page parameters select.
+   *
    * @see org.sakaiproject.nakamura.api.search.SearchResultProcessor#getSearchResultSet(org.apache.sling.api.SlingHttpServletRequest,
    *      javax.jcr.query.Query)
    */
@@ -119,39 +147,76 @@ public class DiscussionThreadedSearchBatchResultProcessor implements
     try {
       // Perform the query
       QueryResult qr = query.execute();
-      RowIterator iterator = qr.getRows();
+      Session session = request.getResourceResolver().adaptTo(Session.class);
 
-      // Get the hits
-      long hits = SearchUtil.getHits(qr);
+      // Build the threads, keeping the rows for the aggregator.
+      List<Row> rows = new ArrayList<Row>();
+      ThreadedPostIndex index = index(qr.getRows(), session, null, rows);
 
       // Return the result set.
-      return new AbstractSearchResultSet(iterator, hits);
+      return new AbstractSearchResultSet(new IndexedRowIterator(rows, index), index
+          .getThreads().size());
     } catch (RepositoryException e) {
       throw new SearchException(500, "Unable to execute query.");
     }
   }
 
   /**
-   * Adds the post to the list at the correct place.
-   * 
-   * @param basePosts
-   * @param n
-   * @return
-   * @throws ValueFormatException
-   * @throws PathNotFoundException
+   * Indexes the posts of a search in a single pass.
+   *
+   * @param iterator
+   * @param session
+   * @param aggregator
+   *          Receives every post node, may be null.
+   * @param rows
+   *          Receives every row that has a node, may be null.
+   * @return The index of the posts.
    * @throws RepositoryException
    */
-  private void addPost(List<Post> basePosts, Node n, String replyon)
-      throws ValueFormatException, PathNotFoundException, RepositoryException {
-    String postid = n.getProperty(MessageConstants.PROP_SAKAI_ID).getString();
-    for (Post p : basePosts) {
-      if (p.getPostId().equals(replyon)) {
-        p.getChildren().add(new Post(n));
-        break;
-      } else {
-        p.addPost(n, postid, replyon);
+  private ThreadedPostIndex index(RowIterator iterator, Session session,
+      Aggregator aggregator, List<Row> rows) throws RepositoryException {
+    ThreadedPostIndex index = new ThreadedPostIndex();
+    while (iterator.hasNext()) {
+      Row row = iterator.nextRow();
+      Node node = RowUtils.getNode(row, session);
+      if (node == null) {
+        continue;
+      }
+      if (aggregator != null) {
+        aggregator.add(node);
       }
+      if (rows != null) {
+        rows.add(row);
+      }
+      index.add(node.getPath(), getString(node, MessageConstants.PROP_SAKAI_ID),
+          getString(node, DiscussionConstants.PROP_REPLY_ON));
+    }
+    return index;
+  }
+
+  /**
+   * Loads the nodes of a thread.
+   *
+   * @param entry
+   * @param session
+   * @return The post with all of its replies.
+   * @throws RepositoryException
+   */
+  private Post loadPost(ThreadedPostIndex.Entry entry, Session session)
+      throws RepositoryException {
+    Post post = new Post((Node) session.getItem(entry.getPath()));
+    for (ThreadedPostIndex.Entry reply : entry.getReplies()) {
+      post.getChildren().add(loadPost(reply, session));
+    }
+    return post;
+  }
+
+  private String getString(Node node, String property) throws ValueFormatException,
+      PathNotFoundException, RepositoryException {
+    if (node.hasProperty(property)) {
+      return node.getProperty(property).getString();
     }
+    return null;
   }
 
 }
@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.discussion.searchresults;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the reply tree of a set of posts in a single pass. Posts are indexed on their
+ * sakai:id and attached to the post they reply on as soon as both have been seen, so the
+ * posts can be added in any order. Only the paths are kept, the nodes are loaded again
+ * one thread at a time when the tree is written out.
+ */
+class ThreadedPostIndex {
+
+  /**
+   * A post in the tree.
+   */
+  static class Entry {
+    private final String path;
+    private List<Entry> replies;
+
+    private Entry(String path) {
+      this.path = path;
+    }
+
+    String getPath() {
+      return path;
+    }
+
+    List<Entry> getReplies() {
+      if (replies == null) {
+        return new ArrayList<Entry>(0);
+      }
+      return replies;
+    }
+
+    private void addReply(Entry entry) {
+      if (replies == null) {
+        replies = new ArrayList<Entry>(4);
+      }
+      replies.add(entry);
+    }
+
+    private void addReplies(List<Entry> entries) {
+      if (replies == null) {
+        replies = entries;
+      } else {
+        replies.addAll(entries);
+      }
+    }
+  }
+
+  private final List<Entry> threads = new ArrayList<Entry>();
+  private final Map<String, Entry> posts = new HashMap<String, Entry>();
+  /**
+   * Replies whose parent has not been added yet, keyed on the id of that parent.
+   */
+  private final Map<String, List<Entry>> waiting = new HashMap<String, List<Entry>>();
+
+  /**
+   * Adds a post to the tree.
+   *
+   * @param path
+   *          The path of the post node.
+   * @param id
+   *          The sakai:id of the post, may be null.
+   * @param replyOn
+   *          The sakai:id of the post this is a reply on, or null if this post starts a
+   *          thread.
+   */
+  void add(String path, String id, String replyOn) {
+    Entry entry = new Entry(path);
+    if (id != null) {
+      posts.put(id, entry);
+      List<Entry> replies = waiting.remove(id);
+      if (replies != null) {
+        entry.addReplies(replies);
+      }
+    }
+
+    if (replyOn == null) {
+      threads.add(entry);
+    } else if (!replyOn.equals(id)) {
+      Entry parent = posts.get(replyOn);
+      if (parent != null) {
+        parent.addReply(entry);
+      } else {
+        List<Entry> replies = waiting.get(replyOn);
+        if (replies == null) {
+          replies = new ArrayList<Entry>(4);
+          waiting.put(replyOn, replies);
+        }
+        replies.add(entry);
+      }
+    }
+  }
+
+  /**
+   * @return The posts that start a thread, in the order they were added. Replies on
+   *         posts that were never added are not part of any thread.
+   */
+  List<Entry> getThreads() {
+    return threads;
+  }
+
+}
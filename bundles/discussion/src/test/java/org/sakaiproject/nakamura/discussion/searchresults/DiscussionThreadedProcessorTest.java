@@ -30,9 +30,11 @@ import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.apache.sling.commons.testing.jcr.MockNode;
 import org.junit.Test;
+import org.sakaiproject.nakamura.api.search.SearchException;
 import org.sakaiproject.nakamura.api.discussion.DiscussionConstants;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
+import org.sakaiproject.nakamura.api.search.SearchResultSet;
 import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
 import org.sakaiproject.nakamura.testutils.easymock.MockRowIterator;
 
@@ -49,6 +51,8 @@ import javax.jcr.Session;
 import javax.jcr.ValueFormatException;
 import javax.jcr.lock.LockException;
 import javax.jcr.nodetype.ConstraintViolationException;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryResult;
 import javax.jcr.query.RowIterator;
 import javax.jcr.security.AccessControlManager;
 import javax.jcr.version.VersionException;
@@ -91,6 +95,7 @@ public class DiscussionThreadedProcessorTest extends AbstractEasyMockTest {
     ResourceResolver resolver = createMock(ResourceResolver.class);
     expect(resolver.adaptTo(Session.class)).andReturn(session);
     expect(request.getResourceResolver()).andReturn(resolver);
+    expect(request.getRequestParameter("page")).andReturn(null);
 
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
     Writer w = new PrintWriter(baos);
@@ -136,10 +141,10 @@ public class DiscussionThreadedProcessorTest extends AbstractEasyMockTest {
     nodes.add(nodeC);
     nodes.add(nodeD);
 
-    expect(session.getItem("/msg/a")).andReturn(nodeA);
-    expect(session.getItem("/msg/b")).andReturn(nodeB);
-    expect(session.getItem("/msg/c")).andReturn(nodeC);
-    expect(session.getItem("/msg/d")).andReturn(nodeD);
+    expect(session.getItem("/msg/a")).andReturn(nodeA).anyTimes();
+    expect(session.getItem("/msg/b")).andReturn(nodeB).anyTimes();
+    expect(session.getItem("/msg/c")).andReturn(nodeC).anyTimes();
+    expect(session.getItem("/msg/d")).andReturn(nodeD).anyTimes();
     expect(session.getItem("/_user/a/ad/admin/public/authprofile")).andReturn(
         profileNode).anyTimes();
     expect(session.getItem("/_user/a/an/anonymous/public/authprofile")).andReturn(
@@ -162,4 +167,51 @@ public class DiscussionThreadedProcessorTest extends AbstractEasyMockTest {
         .get("sakai:id"));
   }
 
+  @Test
+  public void testTotalIsThreadCount() throws RepositoryException, SearchException {
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    Session session = createMock(Session.class);
+    ResourceResolver resolver = createMock(ResourceResolver.class);
+    expect(resolver.adaptTo(Session.class)).andReturn(session);
+    expect(request.getResourceResolver()).andReturn(resolver);
+
+    // 2 threads, 4 posts
+    // a
+    // - b
+    // -- c
+    // d
+    List<Node> nodes = new ArrayList<Node>();
+    nodes.add(createPost(session, "c", "b"));
+    nodes.add(createPost(session, "a", null));
+    nodes.add(createPost(session, "d", null));
+    nodes.add(createPost(session, "b", "a"));
+
+    Query query = createMock(Query.class);
+    QueryResult result = createMock(QueryResult.class);
+    expect(query.execute()).andReturn(result);
+    expect(result.getRows()).andReturn(new MockRowIterator(nodes));
+
+    replay();
+    SearchResultSet rs = processor.getSearchResultSet(request, query);
+    assertEquals(2, rs.getSize());
+    int rows = 0;
+    while (rs.getRowIterator().hasNext()) {
+      rs.getRowIterator().nextRow();
+      rows++;
+    }
+    assertEquals(4, rows);
+  }
+
+  private MockNode createPost(Session session, String id, String replyOn)
+      throws RepositoryException {
+    MockNode node = new MockNode("/msg/" + id);
+    node.setSession(session);
+    node.setProperty(MessageConstants.PROP_SAKAI_ID, id);
+    if (replyOn != null) {
+      node.setProperty(DiscussionConstants.PROP_REPLY_ON, replyOn);
+    }
+    expect(session.getItem("/msg/" + id)).andReturn(node).anyTimes();
+    return node;
+  }
+
 }
@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.discussion.searchresults;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.discussion.searchresults.ThreadedPostIndex.Entry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ *
+ */
+public class ThreadedPostIndexTest {
+
+  @Test
+  public void testAnyOrder() {
+    // a
+    // - b
+    // -- d
+    // - c
+    // e
+    String[][] posts = { { "a", null }, { "b", "a" }, { "c", "a" }, { "d", "b" },
+        { "e", null } };
+    String[] orders = { "abcde", "edcba", "dcbea", "bdace" };
+    for (String order : orders) {
+      ThreadedPostIndex index = new ThreadedPostIndex();
+      for (char c : order.toCharArray()) {
+        String[] post = posts[c - 'a'];
+        index.add("/msg/" + post[0], post[0], post[1]);
+      }
+      List<Entry> threads = index.getThreads();
+      assertEquals(2, threads.size());
+      Entry a = threads.get(order.indexOf('a') < order.indexOf('e') ? 0 : 1);
+      assertEquals("/msg/a", a.getPath());
+      assertEquals(2, a.getReplies().size());
+      Entry b = a.getReplies().get(order.indexOf('b') < order.indexOf('c') ? 0 : 1);
+      assertEquals("/msg/b", b.getPath());
+      assertEquals(1, b.getReplies().size());
+      assertEquals("/msg/d", b.getReplies().get(0).getPath());
+    }
+  }
+
+  @Test
+  public void testOrphansAndSelfReplies() {
+    ThreadedPostIndex index = new ThreadedPostIndex();
+    index.add("/msg/a", "a", null);
+    index.add("/msg/b", "b", "missing");
+    index.add("/msg/c", "c", "c");
+    index.add("/msg/d", null, "a");
+    assertEquals(1, index.getThreads().size());
+    assertEquals(1, index.getThreads().get(0).getReplies().size());
+    assertEquals("/msg/d", index.getThreads().get(0).getReplies().get(0).getPath());
+  }
+
+  @Test
+  public void testLargeDiscussion() {
+    // 10k posts in 100 threads, every reply on a random earlier post of its thread,
+    // added in random order.
+    Random random = new Random(42);
+    List<String[]> posts = new ArrayList<String[]>();
+    for (int t = 0; t < 100; t++) {
+      posts.add(new String[] { "t" + t, null });
+      for (int r = 1; r < 100; r++) {
+        int parent = random.nextInt(r);
+        posts.add(new String[] { "t" + t + "-" + r,
+            parent == 0 ? "t" + t : "t" + t + "-" + parent });
+      }
+    }
+    Collections.shuffle(posts, random);
+
+    ThreadedPostIndex index = new ThreadedPostIndex();
+    for (String[] post : posts) {
+      index.add("/msg/" + post[0], post[0], post[1]);
+    }
+    List<Entry> threads = index.getThreads();
+
+    assertEquals(100, threads.size());
+    int total = 0;
+    for (Entry thread : threads) {
+      total += count(thread);
+    }
+    assertEquals(10000, total);
+  }
+
+  private int count(Entry entry) {
+    int n = 1;
+    for (Entry reply : entry.getReplies()) {
+      n += count(reply);
+    }
+    return n;
+  }
+
+}
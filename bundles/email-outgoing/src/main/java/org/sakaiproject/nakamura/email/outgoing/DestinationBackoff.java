@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Tracks temporary delivery failures per destination, eg a recipient domain or the SMTP
+ * server itself. Each consecutive failure doubles the time before the destination is
+ * tried again, up to a maximum, and a random part of the delay is dropped so that the
+ * messages put off together are not all retried at the same moment. A success clears
+ * the destination.
+ */
+public class DestinationBackoff {
+
+  /**
+   * The state of a destination that has failed.
+   */
+  private static class Destination {
+    private final int failures;
+    private final long delay;
+    private final long retryAt;
+
+    private Destination(int failures, long delay, long retryAt) {
+      this.failures = failures;
+      this.delay = delay;
+      this.retryAt = retryAt;
+    }
+  }
+
+  private final long initialDelay;
+  private final long maxDelay;
+  private final Random random = new Random();
+  private final ConcurrentMap<String, Destination> destinations = new ConcurrentHashMap<String, Destination>();
+
+  /**
+   * @param initialDelay
+   *          the delay (ms) after the first failure.
+   * @param maxDelay
+   *          the largest delay (ms).
+   */
+  DestinationBackoff(long initialDelay, long maxDelay) {
+    this.initialDelay = Math.max(1L, initialDelay);
+    this.maxDelay = Math.max(this.initialDelay, maxDelay);
+  }
+
+  /**
+   * @param destination
+   *          the destination.
+   * @param now
+   *          the current time.
+   * @return the time the destination may be tried again, or 0 if it can be tried now.
+   */
+  long getRetryAt(String destination, long now) {
+    Destination d = destinations.get(destination);
+    if (d == null || d.retryAt <= now) {
+      return 0;
+    }
+    // spread the messages waiting on a destination over part of its delay.
+    return d.retryAt + (long) (random.nextDouble() * d.delay / 4);
+  }
+
+  /**
+   * Record a temporary failure.
+   * 
+   * @param destination
+   *          the destination.
+   * @param now
+   *          the current time.
+   * @return the time the destination may be tried again.
+   */
+  long failed(String destination, long now) {
+    Destination d = destinations.get(destination);
+    int failures = d == null ? 1 : d.failures + 1;
+    long delay = initialDelay;
+    for (int i = 1; i < failures && delay < maxDelay; i++) {
+      delay *= 2;
+    }
+    delay = Math.min(delay, maxDelay);
+    // wait between half and all of the delay.
+    long retryAt = now + delay / 2 + (long) (random.nextDouble() * (delay - delay / 2));
+    destinations.put(destination, new Destination(failures, delay, retryAt));
+    return retryAt;
+  }
+
+  /**
+   * Record a successful delivery.
+   */
+  void succeeded(String destination) {
+    destinations.remove(destination);
+  }
+
+  /**
+   * @return the number of consecutive failures of the destination.
+   */
+  int getFailures(String destination) {
+    Destination d = destinations.get(destination);
+    return d == null ? 0 : d.failures;
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the outgoing email delivery engine, shared by the delivery workers.
+ */
+public class EmailDeliveryMetrics implements EmailDeliveryMetricsMBean {
+
+  private volatile BlockingQueue<?> queue;
+  private volatile long since = System.currentTimeMillis();
+  private final AtomicLong sentMessages = new AtomicLong();
+  private final AtomicLong sentRecipients = new AtomicLong();
+  private final AtomicLong deferredRecipients = new AtomicLong();
+  private final AtomicLong failedRecipients = new AtomicLong();
+  private final AtomicLong connectionsOpened = new AtomicLong();
+
+  /**
+   * @param queue
+   *          the queue of emails waiting for delivery, null if there is none.
+   */
+  void setQueue(BlockingQueue<?> queue) {
+    this.queue = queue;
+  }
+
+  void recordSentMessage() {
+    sentMessages.incrementAndGet();
+  }
+
+  void recordSent(int recipients) {
+    sentRecipients.addAndGet(recipients);
+  }
+
+  void recordDeferred(int recipients) {
+    deferredRecipients.addAndGet(recipients);
+  }
+
+  void recordFailed(int recipients) {
+    failedRecipients.addAndGet(recipients);
+  }
+
+  void recordConnectionOpened() {
+    connectionsOpened.incrementAndGet();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.email.outgoing.EmailDeliveryMetricsMBean#getQueueDepth()
+   */
+  public int getQueueDepth() {
+    BlockingQueue<?> q = queue;
+    return q == null ? 0 : q.size();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.email.outgoing.EmailDeliveryMetricsMBean#getSentMessages()
+   */
+  public long getSentMessages() {
+    return sentMessages.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.email.outgoing.EmailDeliveryMetricsMBean#getSentRecipients()
+   */
+  public long getSentRecipients() {
+    return sentRecipients.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.email.outgoing.EmailDeliveryMetricsMBean#getDeferredRecipients()
+   */
+  public long getDeferredRecipients() {
+    return deferredRecipients.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.email.outgoing.EmailDeliveryMetricsMBean#getFailedRecipients()
+   */
+  public long getFailedRecipients() {
+    return failedRecipients.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.email.outgoing.EmailDeliveryMetricsMBean#getConnectionsOpened()
+   */
+  public long getConnectionsOpened() {
+    return connectionsOpened.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.email.outgoing.EmailDeliveryMetricsMBean#getSendRatePerMinute()
+   */
+  public double getSendRatePerMinute() {
+    long elapsed = Math.max(1L, System.currentTimeMillis() - since);
+    return sentMessages.get() * 60000.0 / elapsed;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.email.outgoing.EmailDeliveryMetricsMBean#reset()
+   */
+  public void reset() {
+    since = System.currentTimeMillis();
+    sentMessages.set(0);
+    sentRecipients.set(0);
+    deferredRecipients.set(0);
+    failedRecipients.set(0);
+    connectionsOpened.set(0);
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+/**
+ * JMX view of the outgoing email delivery engine.
+ */
+public interface EmailDeliveryMetricsMBean {
+
+  /**
+   * @return the number of emails waiting to be delivered.
+   */
+  int getQueueDepth();
+
+  /**
+   * @return the number of messages sent to at least one of their recipients.
+   */
+  long getSentMessages();
+
+  /**
+   * @return the number of recipients the sent messages were delivered to.
+   */
+  long getSentRecipients();
+
+  /**
+   * @return the number of recipients put off for a later retry after a temporary
+   *         failure, or because their destination was backing off.
+   */
+  long getDeferredRecipients();
+
+  /**
+   * @return the number of recipients that failed permanently.
+   */
+  long getFailedRecipients();
+
+  /**
+   * @return the number of SMTP connections opened, each connection sends many messages.
+   */
+  long getConnectionsOpened();
+
+  /**
+   * @return the average number of messages sent per minute since the last reset.
+   */
+  double getSendRatePerMinute();
+
+  void reset();
+}
@@ -23,6 +23,7 @@ import org.apache.commons.mail.MultiPartEmail;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.commons.scheduler.Job;
 import org.apache.sling.commons.scheduler.JobContext;
@@ -38,15 +39,22 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
@@ -60,7 +68,23 @@ import javax.jms.MessageConsumer;
 import javax.jms.MessageListener;
 import javax.jms.Session;
 import javax.jms.Topic;
-
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Sends the emails posted to {@link #TOPIC_NAME}. The JMS delivery thread only queues
+ * the email, a small pool of workers takes emails off the queue in batches and sends a
+ * batch with one administrative session over pooled SMTP connections. The recipients
+ * of a message are sent to per domain, and a domain that fails temporarily is backed off
+ * exponentially, as is the SMTP server if it can not be reached.
+ */
 @Component(label = "%email.out.name", description = "%email.out.description", immediate = true, metatype = true)
 public class OutgoingEmailMessageListener implements MessageListener {
   private static final Logger LOGGER = LoggerFactory
@@ -74,6 +98,24 @@ public class OutgoingEmailMessageListener implements MessageListener {
   private static final String MAX_RETRIES = "sakai.email.maxRetries";
   @Property(intValue = 30)
   private static final String RETRY_INTERVAL = "sakai.email.retryIntervalMinutes";
+  @Property(intValue = 480)
+  private static final String MAX_RETRY_INTERVAL = "sakai.email.maxRetryIntervalMinutes";
+  @Property(intValue = 2)
+  private static final String DELIVERY_WORKERS = "sakai.email.deliveryWorkers";
+  @Property(intValue = 1000)
+  private static final String QUEUE_SIZE = "sakai.email.queueSize";
+  @Property(intValue = 50)
+  private static final String BATCH_SIZE = "sakai.email.batchSize";
+  @Property(intValue = 100)
+  private static final String MESSAGES_PER_CONNECTION = "sakai.smtp.messagesPerConnection";
+
+  /**
+   * The number of recipients given to the SMTP server with one message, the least a
+   * server must accept.
+   */
+  static final int MAX_RECIPIENTS_PER_SEND = 100;
+
+  private static final String MBEAN_NAME = "org.sakaiproject.nakamura.email.outgoing:type=EmailDelivery";
 
   protected static final String TOPIC_NAME = "org/sakaiproject/nakamura/message/email/outgoing";
 
@@ -98,6 +140,59 @@ public class OutgoingEmailMessageListener implements MessageListener {
 
   private Integer retryInterval;
 
+  private SmtpConnectionPool connectionPool;
+  private DestinationBackoff backoff;
+  private BlockingQueue<OutgoingEmail> deliveryQueue;
+  private List<Thread> workers = new ArrayList<Thread>();
+  private volatile boolean running;
+  private int batchSize = 50;
+  private final EmailDeliveryMetrics metrics = new EmailDeliveryMetrics();
+
+  /**
+   * An email waiting to be sent.
+   */
+  protected static class OutgoingEmail {
+    private final String nodePath;
+    private final List<String> recipients;
+
+    protected OutgoingEmail(String nodePath, List<String> recipients) {
+      this.nodePath = nodePath;
+      this.recipients = recipients;
+    }
+  }
+
+  /**
+   * The SMTP connection used by a batch, borrowed from the pool when the first message is
+   * sent.
+   */
+  private class BatchTransport {
+    private SmtpConnectionPool.PooledTransport pooled;
+
+    private SmtpConnectionPool.PooledTransport get() throws MessagingException {
+      if (pooled == null) {
+        pooled = connectionPool.borrow();
+      }
+      return pooled;
+    }
+
+    /**
+     * Close the connection after a failure, the next send connects again.
+     */
+    private void discard() {
+      if (pooled != null) {
+        connectionPool.release(pooled, false);
+        pooled = null;
+      }
+    }
+
+    private void release() {
+      if (pooled != null) {
+        connectionPool.release(pooled, true);
+        pooled = null;
+      }
+    }
+  }
+
   public OutgoingEmailMessageListener() {
   }
 
@@ -105,6 +200,14 @@ public class OutgoingEmailMessageListener implements MessageListener {
     this.connFactoryService = connFactoryService;
   }
 
+  /**
+   * {@inheritDoc}
+   * 
+   * Queues the email for the delivery workers, or sends it straight away if there are
+   * none.
+   * 
+   * @see javax.jms.MessageListener#onMessage(javax.jms.Message)
+   */
   @SuppressWarnings("unchecked")
   public void onMessage(Message message) {
     try {
@@ -124,88 +227,243 @@ public class OutgoingEmailMessageListener implements MessageListener {
         }
       }
 
-      javax.jcr.Session adminSession = repository.loginAdministrative(null);
+      OutgoingEmail email = new OutgoingEmail(nodePath, recipients);
+      BlockingQueue<OutgoingEmail> queue = deliveryQueue;
+      if (queue == null) {
+        deliverBatch(Collections.singletonList(email));
+      } else {
+        // blocks the JMS delivery thread while the workers catch up.
+        queue.put(email);
+      }
+    } catch (JMSException e) {
+      LOGGER.error(e.getMessage(), e);
+    } catch (InterruptedException e) {
+      LOGGER.warn("Interrupted while queueing an email for delivery.");
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * The worker loop, runs until deactivated and the queue is empty.
+   */
+  private void deliverQueuedEmails() {
+    List<OutgoingEmail> batch = new ArrayList<OutgoingEmail>(batchSize);
+    while (running || !deliveryQueue.isEmpty()) {
+      try {
+        OutgoingEmail email = deliveryQueue.poll(1, TimeUnit.SECONDS);
+        if (email == null) {
+          continue;
+        }
+        batch.add(email);
+        deliveryQueue.drainTo(batch, batchSize - 1);
+      } catch (InterruptedException e) {
+        return;
+      }
+      try {
+        deliverBatch(batch);
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  /**
+   * Sends a batch of emails with one administrative session and one SMTP connection,
+   * saving the state of the messages once.
+   * 
+   * @param emails
+   *          the emails to send.
+   */
+  protected void deliverBatch(List<OutgoingEmail> emails) {
+    javax.jcr.Session adminSession = null;
+    BatchTransport transport = new BatchTransport();
+    try {
+      adminSession = repository.loginAdministrative(null);
       ResourceResolver resolver = jcrResourceResolverFactory.getResourceResolver(adminSession);
+      for (OutgoingEmail email : emails) {
+        try {
+          deliver(resolver, email, transport);
+        } catch (RepositoryException e) {
+          LOGGER.error(e.getMessage(), e);
+        }
+      }
+      if (adminSession.hasPendingChanges()) {
+        adminSession.save();
+      }
+    } catch (RepositoryException e) {
+      LOGGER.error(e.getMessage(), e);
+    } finally {
+      transport.release();
+      if (adminSession != null) {
+        adminSession.logout();
+      }
+    }
+  }
 
-      Node messageNode = resolver.getResource(nodePath).adaptTo(Node.class);
-
-      if (objRcpt != null) {
-        // validate the message
-        if (messageNode != null) {
-          if (messageNode.hasProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX)
-              && MessageConstants.BOX_OUTBOX.equals(messageNode.getProperty(
-                  MessageConstants.PROP_SAKAI_MESSAGEBOX).getString())) {
-            if (messageNode.hasProperty(MessageConstants.PROP_SAKAI_MESSAGEERROR)) {
-              // We're retrying this message, so clear the errors
-              messageNode.setProperty(MessageConstants.PROP_SAKAI_MESSAGEERROR, (String) null);
-            }
-            if (messageNode.hasProperty(MessageConstants.PROP_SAKAI_TO)
-                && messageNode.hasProperty(MessageConstants.PROP_SAKAI_FROM)) {
-              // make a commons-email message from the message
-              MultiPartEmail email;
-              try {
-                email = constructMessage(messageNode, recipients);
-
-                email.setSmtpPort(smtpPort);
-                email.setHostName(smtpServer);
-
-                email.send();
-              } catch (EmailException e) {
-                String exMessage = e.getMessage();
-                Throwable cause = e.getCause();
-
-                setError(messageNode, exMessage);
-                LOGGER.warn("Unable to send email: " + exMessage);
-
-                // Get the SMTP error code
-                // There has to be a better way to do this
-                boolean rescheduled = false;
-                if (cause != null && cause.getMessage() != null) {
-                  String smtpError = cause.getMessage().trim();
-                  try {
-                    int errorCode = Integer.parseInt(smtpError.substring(0, 3));
-                    // All retry-able SMTP errors should have codes starting
-                    // with 4
-                    scheduleRetry(errorCode, messageNode);
-                    rescheduled = true;
-                  } catch (NumberFormatException nfe) {
-                    // smtpError didn't start with an error code, let's dig for
-                    // it
-                    String searchFor = "response:";
-                    int rindex = smtpError.indexOf(searchFor);
-                    if (rindex > -1 && (rindex + searchFor.length()) < smtpError.length()) {
-                      int errorCode = Integer.parseInt(smtpError.substring(searchFor.length(),
-                          searchFor.length() + 3));
-                      scheduleRetry(errorCode, messageNode);
-                      rescheduled = true;
-                    }
-                  }
-                }
-                if (rescheduled) {
-                  LOGGER.info("Email rescheduled for redelivery.");
-                } else {
-                  LOGGER.error("Unable to reschedule email for delivery: " + e.getMessage(), e);
-                }
-              }
-            } else {
-              setError(messageNode, "Message must have a to and from set");
+  /**
+   * Checks and sends one email.
+   */
+  private void deliver(ResourceResolver resolver, OutgoingEmail email,
+      BatchTransport transport) throws RepositoryException {
+    Resource resource = resolver.getResource(email.nodePath);
+    if (resource == null) {
+      LOGGER.warn("Unable to find the message for email at {}", email.nodePath);
+      return;
+    }
+    Node messageNode = resource.adaptTo(Node.class);
+
+    if (email.recipients != null) {
+      // validate the message
+      if (messageNode != null) {
+        if (messageNode.hasProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX)
+            && MessageConstants.BOX_OUTBOX.equals(messageNode.getProperty(
+                MessageConstants.PROP_SAKAI_MESSAGEBOX).getString())) {
+          if (messageNode.hasProperty(MessageConstants.PROP_SAKAI_MESSAGEERROR)) {
+            // We're retrying this message, so clear the errors
+            messageNode.setProperty(MessageConstants.PROP_SAKAI_MESSAGEERROR, (String) null);
+          }
+          if (messageNode.hasProperty(MessageConstants.PROP_SAKAI_TO)
+              && messageNode.hasProperty(MessageConstants.PROP_SAKAI_FROM)) {
+            // make a commons-email message from the message
+            try {
+              MultiPartEmail multiPartEmail = constructMessage(messageNode, email.recipients);
+              multiPartEmail.setMailSession(connectionPool.getMailSession());
+              multiPartEmail.buildMimeMessage();
+              send(messageNode, multiPartEmail.getMimeMessage(), email.recipients, transport);
+            } catch (EmailException e) {
+              setError(messageNode, e.getMessage());
+              LOGGER.warn("Unable to build email: " + e.getMessage());
             }
           } else {
-            setError(messageNode, "Not an outbox");
+            setError(messageNode, "Message must have a to and from set");
           }
-          if (!messageNode.hasProperty(MessageConstants.PROP_SAKAI_MESSAGEERROR)) {
-            messageNode.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX,
-                MessageConstants.BOX_SENT);
+        } else {
+          setError(messageNode, "Not an outbox");
+        }
+        if (!messageNode.hasProperty(MessageConstants.PROP_SAKAI_MESSAGEERROR)) {
+          messageNode.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX,
+              MessageConstants.BOX_SENT);
+        }
+      }
+    } else if (messageNode != null) {
+      String retval = "null";
+      setError(messageNode, "Expected recipients to be String or List<String>.  Found " + retval);
+    }
+  }
+
+  /**
+   * Sends a message to its recipients, grouped by domain. Recipients in a domain that is
+   * backing off, or that fail temporarily, are retried later and the message is left
+   * with an error in the outbox until then.
+   * 
+   * @param messageNode
+   *          the message.
+   * @param mimeMessage
+   *          the message built for sending.
+   * @param recipients
+   *          the recipients.
+   * @param transport
+   *          the connection of the batch.
+   * @throws RepositoryException
+   */
+  private void send(Node messageNode, MimeMessage mimeMessage, List<String> recipients,
+      BatchTransport transport) throws RepositoryException {
+    Map<String, List<Address>> domains = new LinkedHashMap<String, List<Address>>();
+    Set<String> seen = new HashSet<String>();
+    List<String> failed = new ArrayList<String>();
+    List<String> deferred = new ArrayList<String>();
+    String error = null;
+    for (String recipient : recipients) {
+      recipient = recipient.trim();
+      if (recipient.length() == 0 || !seen.add(recipient)) {
+        continue;
+      }
+      try {
+        String domain = getDomain(recipient);
+        List<Address> addresses = domains.get(domain);
+        if (addresses == null) {
+          addresses = new ArrayList<Address>();
+          domains.put(domain, addresses);
+        }
+        addresses.add(new InternetAddress(recipient));
+      } catch (AddressException e) {
+        failed.add(recipient);
+        error = e.getMessage();
+      }
+    }
+
+    long retryAt = 0;
+    int sentTo = 0;
+    for (Map.Entry<String, List<Address>> domain : domains.entrySet()) {
+      List<Address> addresses = domain.getValue();
+      for (int i = 0; i < addresses.size(); i += MAX_RECIPIENTS_PER_SEND) {
+        List<Address> chunk = addresses.subList(i, Math.min(addresses.size(), i
+            + MAX_RECIPIENTS_PER_SEND));
+        long now = System.currentTimeMillis();
+        long backingOff = Math.max(backoff.getRetryAt(smtpServer, now), backoff.getRetryAt(
+            domain.getKey(), now));
+        if (backingOff > 0) {
+          LOGGER.debug("Putting off {} recipients in {}, the destination is backing off.",
+              chunk.size(), domain.getKey());
+          addAll(deferred, chunk);
+          retryAt = Math.max(retryAt, backingOff);
+          if (error == null) {
+            error = "Delivery to " + domain.getKey() + " has been put off.";
+          }
+          continue;
+        }
+        try {
+          SmtpConnectionPool.PooledTransport pooled = transport.get();
+          pooled.getTransport().sendMessage(mimeMessage, chunk.toArray(new Address[chunk.size()]));
+          pooled.sent();
+          sentTo += chunk.size();
+          backoff.succeeded(domain.getKey());
+          backoff.succeeded(smtpServer);
+        } catch (SendFailedException e) {
+          // some or all recipients were refused, the others have been sent the message.
+          error = e.getMessage();
+          Address[] sent = e.getValidSentAddresses();
+          if (sent != null) {
+            sentTo += sent.length;
+          }
+          List<String> refused = new ArrayList<String>();
+          addAll(refused, e.getInvalidAddresses());
+          addAll(refused, e.getValidUnsentAddresses());
+          if (isTemporary(getSmtpErrorCode(e))) {
+            deferred.addAll(refused);
+            retryAt = Math.max(retryAt, backoff.failed(domain.getKey(), now));
+          } else {
+            failed.addAll(refused);
+          }
+        } catch (MessagingException e) {
+          // the connection failed, or the server refused the message as a whole.
+          error = e.getMessage();
+          transport.discard();
+          if (isTemporary(getSmtpErrorCode(e))) {
+            addAll(deferred, chunk);
+            retryAt = Math.max(retryAt, backoff.failed(smtpServer, now));
+          } else {
+            addAll(failed, chunk);
           }
         }
-      } else {
-        String retval = "null";
-        setError(messageNode, "Expected recipients to be String or List<String>.  Found " + retval);
       }
-    } catch (JMSException e) {
-      LOGGER.error(e.getMessage(), e);
-    } catch (RepositoryException e) {
-      LOGGER.error(e.getMessage(), e);
+    }
+
+    if (sentTo > 0) {
+      metrics.recordSentMessage();
+      metrics.recordSent(sentTo);
+    }
+    if (!failed.isEmpty()) {
+      LOGGER.warn("Unable to send email to {}: {}", failed, error);
+      metrics.recordFailed(failed.size());
+    }
+    if (!deferred.isEmpty()) {
+      LOGGER.info("Unable to send email to {} recipients, rescheduling: {}", deferred.size(),
+          error);
+      scheduleRetry(messageNode, deferred, retryAt);
+    }
+    if (error != null) {
+      setError(messageNode, error);
     }
   }
 
@@ -272,48 +530,119 @@ public class OutgoingEmailMessageListener implements MessageListener {
     return email;
   }
 
-  private void scheduleRetry(int errorCode, Node messageNode) throws RepositoryException {
-    // All retry-able SMTP errors should have codes starting with 4
-    if ((int) (errorCode / 100) == 4) {
-      long retryCount = 0;
-      if (messageNode.hasProperty(MessageConstants.PROP_SAKAI_RETRY_COUNT)) {
-        retryCount = messageNode.getProperty(MessageConstants.PROP_SAKAI_RETRY_COUNT)
-            .getLong();
-      }
+  /**
+   * Schedules the message to be sent again to some of its recipients.
+   * 
+   * @param messageNode
+   *          the message.
+   * @param recipients
+   *          the recipients that have not been sent the message.
+   * @param retryAt
+   *          the time to retry at.
+   * @throws RepositoryException
+   */
+  private void scheduleRetry(Node messageNode, List<String> recipients, long retryAt)
+      throws RepositoryException {
+    long retryCount = 0;
+    if (messageNode.hasProperty(MessageConstants.PROP_SAKAI_RETRY_COUNT)) {
+      retryCount = messageNode.getProperty(MessageConstants.PROP_SAKAI_RETRY_COUNT)
+          .getLong();
+    }
 
-      if (retryCount < maxRetries) {
-        Job job = new Job() {
+    if (retryCount < maxRetries) {
+      messageNode.setProperty(MessageConstants.PROP_SAKAI_RETRY_COUNT, retryCount + 1);
+      Job job = new Job() {
 
-          public void execute(JobContext jc) {
-            Map<String, Serializable> config = jc.getConfiguration();
-            Properties eventProps = new Properties();
-            eventProps.put(NODE_PATH_PROPERTY, config.get(NODE_PATH_PROPERTY));
+        public void execute(JobContext jc) {
+          Map<String, Serializable> config = jc.getConfiguration();
+          Properties eventProps = new Properties();
+          eventProps.put(NODE_PATH_PROPERTY, config.get(NODE_PATH_PROPERTY));
+          eventProps.put(RECIPIENTS, config.get(RECIPIENTS));
 
-            Event retryEvent = new Event(TOPIC_NAME, eventProps);
-            eventAdmin.postEvent(retryEvent);
+          Event retryEvent = new Event(TOPIC_NAME, eventProps);
+          eventAdmin.postEvent(retryEvent);
 
-          }
-        };
+        }
+      };
 
-        HashMap<String, Serializable> jobConfig = new HashMap<String, Serializable>();
-        jobConfig.put(NODE_PATH_PROPERTY, messageNode.getPath());
+      HashMap<String, Serializable> jobConfig = new HashMap<String, Serializable>();
+      jobConfig.put(NODE_PATH_PROPERTY, messageNode.getPath());
+      jobConfig.put(RECIPIENTS, StringUtils.join(recipients.toArray(), ','));
 
-        int retryIntervalMillis = retryInterval * 60000;
-        Date nextTry = new Date(System.currentTimeMillis() + (retryIntervalMillis));
+      try {
+        scheduler.fireJobAt(null, job, jobConfig, new Date(retryAt));
+        metrics.recordDeferred(recipients.size());
+      } catch (Exception e) {
+        LOGGER.error(e.getMessage(), e);
+        metrics.recordFailed(recipients.size());
+      }
+    } else {
+      setError(messageNode, "Unable to send message, exhausted SMTP retries.");
+      metrics.recordFailed(recipients.size());
+    }
+  }
 
-        try {
-          scheduler.fireJobAt(null, job, jobConfig, nextTry);
-        } catch (Exception e) {
-          LOGGER.error(e.getMessage(), e);
+  /**
+   * Finds the SMTP reply code of a failure, from the first message in the chain of
+   * exceptions that has one.
+   * 
+   * @return the reply code, or -1 if there is none.
+   */
+  static int getSmtpErrorCode(Exception e) {
+    // There has to be a better way to do this
+    Throwable t = e;
+    while (t != null) {
+      String smtpError = t.getMessage() == null ? "" : t.getMessage().trim();
+      if (smtpError.length() >= 3 && StringUtils.isNumeric(smtpError.substring(0, 3))) {
+        return Integer.parseInt(smtpError.substring(0, 3));
+      }
+      // smtpError didn't start with an error code, let's dig for it
+      String searchFor = "response:";
+      int rindex = smtpError.indexOf(searchFor);
+      if (rindex > -1) {
+        String response = smtpError.substring(rindex + searchFor.length()).trim();
+        if (response.length() >= 3 && StringUtils.isNumeric(response.substring(0, 3))) {
+          return Integer.parseInt(response.substring(0, 3));
         }
+      }
+      if (t instanceof MessagingException) {
+        t = ((MessagingException) t).getNextException();
       } else {
-        setError(messageNode, "Unable to send message, exhausted SMTP retries.");
+        t = t.getCause();
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return true if a failure with this reply code may succeed later. All retry-able
+   *         SMTP errors have codes starting with 4, failures without a code are usually
+   *         connection problems.
+   */
+  private boolean isTemporary(int errorCode) {
+    return errorCode < 0 || errorCode / 100 == 4;
+  }
+
+  /**
+   * @return the domain of an address, in lower case.
+   */
+  static String getDomain(String address) {
+    int at = address.lastIndexOf('@');
+    return at < 0 ? "" : address.substring(at + 1).toLowerCase();
+  }
+
+  private void addAll(List<String> list, Address[] addresses) {
+    if (addresses != null) {
+      for (Address address : addresses) {
+        list.add(((InternetAddress) address).getAddress());
       }
-    } else {
-      LOGGER.warn("Not scheduling a retry for error code not of the form 4xx.");
     }
   }
 
+  private void addAll(List<String> list, List<Address> addresses) {
+    addAll(list, addresses.toArray(new Address[addresses.size()]));
+  }
+
   protected void activate(ComponentContext ctx) {
     @SuppressWarnings("unchecked")
     Dictionary props = ctx.getProperties();
@@ -360,6 +689,32 @@ public class OutgoingEmailMessageListener implements MessageListener {
       LOGGER.error("No SMTP server set");
     }
 
+    int maxRetryInterval = getInteger(props, MAX_RETRY_INTERVAL, 480);
+    backoff = new DestinationBackoff(retryInterval * 60000L, Math.max(retryInterval,
+        maxRetryInterval) * 60000L);
+    int workerCount = Math.max(0, getInteger(props, DELIVERY_WORKERS, 2));
+    int queueSize = Math.max(1, getInteger(props, QUEUE_SIZE, 1000));
+    batchSize = Math.max(1, getInteger(props, BATCH_SIZE, 50));
+    int messagesPerConnection = Math.max(1, getInteger(props, MESSAGES_PER_CONNECTION, 100));
+    connectionPool = new SmtpConnectionPool(smtpServer, smtpPort, Math.max(1, workerCount),
+        messagesPerConnection, metrics);
+
+    if (workerCount > 0) {
+      deliveryQueue = new LinkedBlockingQueue<OutgoingEmail>(queueSize);
+      metrics.setQueue(deliveryQueue);
+      running = true;
+      for (int i = 0; i < workerCount; i++) {
+        Thread worker = new Thread(new Runnable() {
+          public void run() {
+            deliverQueuedEmails();
+          }
+        }, "Outgoing Email Delivery " + i);
+        worker.setDaemon(true);
+        worker.start();
+        workers.add(worker);
+      }
+    }
+    registerMetrics();
 
     try {
       connection = connFactoryService.getDefaultConnectionFactory().createConnection();
@@ -379,6 +734,9 @@ public class OutgoingEmailMessageListener implements MessageListener {
     }
   }
 
+  /**
+   * Close the JMS connection, then let the workers send what is queued.
+   */
   protected void deactivate(ComponentContext ctx) {
     if (connection != null) {
       try {
@@ -386,6 +744,63 @@ public class OutgoingEmailMessageListener implements MessageListener {
       } catch (JMSException e) {
       }
     }
+    running = false;
+    for (Thread worker : workers) {
+      try {
+        worker.join(30000L);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+      if (worker.isAlive()) {
+        LOGGER.warn("{} did not finish sending emails, interrupting it.", worker.getName());
+        worker.interrupt();
+      }
+    }
+    workers.clear();
+    deliveryQueue = null;
+    metrics.setQueue(null);
+    if (connectionPool != null) {
+      connectionPool.close();
+    }
+    unregisterMetrics();
+  }
+
+  /**
+   * @return the delivery counters.
+   */
+  protected EmailDeliveryMetrics getMetrics() {
+    return metrics;
+  }
+
+  @SuppressWarnings("unchecked")
+  private int getInteger(Dictionary props, String name, int defaultValue) {
+    Object value = props.get(name);
+    return value instanceof Integer ? (Integer) value : defaultValue;
+  }
+
+  private void registerMetrics() {
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(MBEAN_NAME);
+      if (!mBeanServer.isRegistered(objectName)) {
+        mBeanServer.registerMBean(metrics, objectName);
+      }
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register email delivery metrics with JMX: {}", e.getMessage());
+    }
+  }
+
+  private void unregisterMetrics() {
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(MBEAN_NAME);
+      if (mBeanServer.isRegistered(objectName)) {
+        mBeanServer.unregisterMBean(objectName);
+      }
+    } catch (JMException e) {
+      LOGGER.debug(e.getMessage(), e);
+    }
   }
 
   private void setError(Node node, String error) throws RepositoryException {
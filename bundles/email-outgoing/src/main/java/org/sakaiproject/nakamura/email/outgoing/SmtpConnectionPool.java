@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedList;
+import java.util.Properties;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+/**
+ * A small pool of connected SMTP transports, so that many messages are sent over one
+ * connection instead of connecting for every message. A connection is closed when it
+ * has been idle for {@link #MAX_IDLE_TIME}, after it has sent the configured number of
+ * messages, or when a send on it fails.
+ */
+public class SmtpConnectionPool {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SmtpConnectionPool.class);
+
+  /**
+   * The time (ms) an idle connection is kept open, below the usual server timeouts.
+   */
+  static final long MAX_IDLE_TIME = 30000L;
+
+  /**
+   * A transport and how it has been used.
+   */
+  static class PooledTransport {
+    private final Transport transport;
+    private long lastUsed;
+    private int messages;
+
+    private PooledTransport(Transport transport) {
+      this.transport = transport;
+    }
+
+    /**
+     * @return the connected transport.
+     */
+    Transport getTransport() {
+      return transport;
+    }
+
+    /**
+     * Count a message sent on this connection.
+     */
+    void sent() {
+      messages++;
+    }
+  }
+
+  private final Session mailSession;
+  private final int maxIdle;
+  private final int maxMessagesPerConnection;
+  private final EmailDeliveryMetrics metrics;
+  private final LinkedList<PooledTransport> idle = new LinkedList<PooledTransport>();
+  private boolean closed;
+
+  /**
+   * @param host
+   *          the SMTP server.
+   * @param port
+   *          the SMTP port.
+   * @param maxIdle
+   *          the number of idle connections to keep.
+   * @param maxMessagesPerConnection
+   *          the number of messages sent before a connection is closed.
+   * @param metrics
+   *          counts the connections opened.
+   */
+  SmtpConnectionPool(String host, int port, int maxIdle, int maxMessagesPerConnection,
+      EmailDeliveryMetrics metrics) {
+    Properties props = new Properties();
+    props.put("mail.smtp.host", host);
+    props.put("mail.smtp.port", String.valueOf(port));
+    // deliver to the recipients that were accepted when others are refused.
+    props.put("mail.smtp.sendpartial", "true");
+    props.put("mail.smtp.connectiontimeout", "60000");
+    props.put("mail.smtp.timeout", "60000");
+    this.mailSession = Session.getInstance(props);
+    this.maxIdle = maxIdle;
+    this.maxMessagesPerConnection = maxMessagesPerConnection;
+    this.metrics = metrics;
+  }
+
+  /**
+   * @return the mail session the pooled transports are connected with.
+   */
+  Session getMailSession() {
+    return mailSession;
+  }
+
+  /**
+   * Take a connected transport from the pool, connecting a new one if none is idle.
+   * 
+   * @return the transport, to be given back with {@link #release(PooledTransport, boolean)}.
+   * @throws MessagingException
+   *           if the SMTP server can not be connected to.
+   */
+  PooledTransport borrow() throws MessagingException {
+    long now = System.currentTimeMillis();
+    while (true) {
+      PooledTransport pooled;
+      synchronized (this) {
+        pooled = idle.poll();
+      }
+      if (pooled == null) {
+        break;
+      }
+      // isConnected checks the connection with a NOOP.
+      if (now - pooled.lastUsed < MAX_IDLE_TIME && pooled.transport.isConnected()) {
+        return pooled;
+      }
+      close(pooled);
+    }
+    Transport transport = mailSession.getTransport("smtp");
+    transport.connect();
+    metrics.recordConnectionOpened();
+    return new PooledTransport(transport);
+  }
+
+  /**
+   * Give a transport back to the pool.
+   * 
+   * @param pooled
+   *          the transport.
+   * @param reusable
+   *          false if a send on the transport failed in a way that may have left the
+   *          connection unusable.
+   */
+  void release(PooledTransport pooled, boolean reusable) {
+    if (reusable && pooled.messages < maxMessagesPerConnection) {
+      synchronized (this) {
+        if (!closed && idle.size() < maxIdle) {
+          pooled.lastUsed = System.currentTimeMillis();
+          idle.addFirst(pooled);
+          return;
+        }
+      }
+    }
+    close(pooled);
+  }
+
+  /**
+   * Close every idle connection, connections in use are closed when they are released.
+   */
+  void close() {
+    LinkedList<PooledTransport> toClose;
+    synchronized (this) {
+      closed = true;
+      toClose = new LinkedList<PooledTransport>(idle);
+      idle.clear();
+    }
+    for (PooledTransport pooled : toClose) {
+      close(pooled);
+    }
+  }
+
+  private void close(PooledTransport pooled) {
+    try {
+      pooled.transport.close();
+    } catch (MessagingException e) {
+      LOGGER.debug("Unable to close an SMTP connection: {}", e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks the delay before a failing destination is retried grows exponentially within
+ * the bounds of the jitter, and is cleared by a success.
+ */
+public class DestinationBackoffTest {
+
+  @Test
+  public void testExponentialBackoff() {
+    DestinationBackoff backoff = new DestinationBackoff(1000L, 16000L);
+    long now = 100000L;
+    long delay = 1000L;
+    for (int i = 1; i <= 8; i++) {
+      long retryAt = backoff.failed("example.com", now);
+      assertTrue("Retry " + i + " too early", retryAt >= now + delay / 2);
+      assertTrue("Retry " + i + " too late", retryAt <= now + delay);
+      assertEquals(i, backoff.getFailures("example.com"));
+      delay = Math.min(delay * 2, 16000L);
+    }
+  }
+
+  @Test
+  public void testRetryAt() {
+    DestinationBackoff backoff = new DestinationBackoff(1000L, 16000L);
+    long now = 100000L;
+    assertEquals(0, backoff.getRetryAt("example.com", now));
+    long retryAt = backoff.failed("example.com", now);
+    assertTrue(backoff.getRetryAt("example.com", now) >= retryAt);
+    assertEquals("Other destinations are not held back", 0, backoff.getRetryAt(
+        "example.org", now));
+    assertEquals(0, backoff.getRetryAt("example.com", retryAt));
+  }
+
+  @Test
+  public void testSuccessClears() {
+    DestinationBackoff backoff = new DestinationBackoff(1000L, 16000L);
+    backoff.failed("example.com", 0);
+    backoff.failed("example.com", 0);
+    backoff.succeeded("example.com");
+    assertEquals(0, backoff.getFailures("example.com"));
+    assertEquals(0, backoff.getRetryAt("example.com", 0));
+  }
+
+  @Test
+  public void testSmtpErrorCode() {
+    assertEquals(451, OutgoingEmailMessageListener
+        .getSmtpErrorCode(new javax.mail.MessagingException("451 4.7.1 Try again later")));
+    assertEquals(550, OutgoingEmailMessageListener
+        .getSmtpErrorCode(new javax.mail.MessagingException("Bad response: 550 No such user")));
+    assertEquals(-1, OutgoingEmailMessageListener
+        .getSmtpErrorCode(new javax.mail.MessagingException("Could not connect")));
+  }
+}
@@ -1,9 +1,12 @@
 package org.sakaiproject.nakamura.email.outgoing;
 
 import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import org.apache.jackrabbit.JcrConstants;
 import org.apache.sling.api.resource.Resource;
@@ -22,7 +25,9 @@ import org.subethamail.wiser.WiserMessage;
 
 import java.io.ByteArrayInputStream;
 import java.net.BindException;
+import java.util.HashSet;
 import java.util.Properties;
+import java.util.Set;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
@@ -59,11 +64,16 @@ public class OutgoingEmailMessageListenerTest {
     props.put("sakai.smtp.port", smtpPort);
     props.put("sakai.email.maxRetries", 240);
     props.put("sakai.email.retryIntervalMinutes", 30);
+    // send on the calling thread.
+    props.put("sakai.email.deliveryWorkers", 0);
 
     ComponentContext ctx = createMock(ComponentContext.class);
     expect(ctx.getProperties()).andReturn(props).anyTimes();
 
     adminSession = createMock(Session.class);
+    expect(adminSession.hasPendingChanges()).andReturn(false).anyTimes();
+    adminSession.logout();
+    expectLastCall().anyTimes();
 
     messageNode = createMock(Node.class);
 
@@ -528,4 +538,96 @@ public class OutgoingEmailMessageListenerTest {
       assertEquals("fromnobody@example.com", m.getEnvelopeSender());
     }
   }
+
+  @Test
+  public void testBatchedDelivery() throws Exception {
+    int count = 20;
+    OutgoingEmailMessageListener listener = new OutgoingEmailMessageListener(
+        connFactoryService);
+
+    Properties props = new Properties();
+    props.put("sakai.smtp.server", "localhost");
+    props.put("sakai.smtp.port", smtpPort);
+    props.put("sakai.email.maxRetries", 240);
+    props.put("sakai.email.retryIntervalMinutes", 30);
+    props.put("sakai.email.deliveryWorkers", 1);
+    ComponentContext ctx = createMock(ComponentContext.class);
+    expect(ctx.getProperties()).andReturn(props).anyTimes();
+
+    Property boxName = createMock(Property.class);
+    expect(boxName.getString()).andReturn(MessageConstants.BOX_OUTBOX).anyTimes();
+    Property fromProp = createMock(Property.class);
+    expect(fromProp.getString()).andReturn("fromnobody@example.com").anyTimes();
+
+    Session session = createNiceMock(Session.class);
+    ResourceResolver rr = createMock(ResourceResolver.class);
+    Message[] messages = new Message[count];
+    Object[] mocks = new Object[count * 4];
+    for (int i = 0; i < count; i++) {
+      String to = "tonobody" + i + "@example" + (i % 3) + ".com";
+      Property toProp = createMock(Property.class);
+      expect(toProp.getString()).andReturn(to).anyTimes();
+      Node node = createNiceMock(Node.class);
+      expect(node.hasProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX)).andReturn(true)
+          .anyTimes();
+      expect(node.getProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX)).andReturn(boxName)
+          .anyTimes();
+      expect(node.hasProperty(MessageConstants.PROP_SAKAI_TO)).andReturn(true).anyTimes();
+      expect(node.getProperty(MessageConstants.PROP_SAKAI_TO)).andReturn(toProp)
+          .anyTimes();
+      expect(node.hasProperty(MessageConstants.PROP_SAKAI_FROM)).andReturn(true)
+          .anyTimes();
+      expect(node.getProperty(MessageConstants.PROP_SAKAI_FROM)).andReturn(fromProp)
+          .anyTimes();
+      Resource res = createMock(Resource.class);
+      expect(res.adaptTo(Node.class)).andReturn(node);
+      expect(rr.getResource(PATH + i)).andReturn(res);
+
+      messages[i] = createMock(Message.class);
+      expect(messages[i].getStringProperty(NODE_PATH_PROPERTY)).andReturn(PATH + i);
+      expect(messages[i].getObjectProperty(OutgoingEmailMessageListener.RECIPIENTS))
+          .andReturn(to);
+      mocks[i * 4] = toProp;
+      mocks[i * 4 + 1] = node;
+      mocks[i * 4 + 2] = res;
+      mocks[i * 4 + 3] = messages[i];
+    }
+
+    SlingRepository repository = createMock(SlingRepository.class);
+    expect(repository.loginAdministrative(null)).andReturn(session).anyTimes();
+    JcrResourceResolverFactory jrrf = createMock(JcrResourceResolverFactory.class);
+    expect(jrrf.getResourceResolver(session)).andReturn(rr).anyTimes();
+    listener.bindJcrResourceResolverFactory(jrrf);
+    listener.bindRepository(repository);
+
+    replay(mocks);
+    replay(ctx, boxName, fromProp, session, rr, repository, jrrf);
+
+    listener.activate(ctx);
+    try {
+      long start = System.currentTimeMillis();
+      for (Message message : messages) {
+        listener.onMessage(message);
+      }
+      EmailDeliveryMetrics metrics = listener.getMetrics();
+      while (metrics.getSentMessages() < count
+          && System.currentTimeMillis() - start < 10000L) {
+        Thread.sleep(10);
+      }
+      assertEquals(count, metrics.getSentMessages());
+      assertEquals(0, metrics.getQueueDepth());
+      // one worker sends every message over one connection.
+      assertEquals(1, metrics.getConnectionsOpened());
+    } finally {
+      listener.deactivate(ctx);
+    }
+
+    Set<String> receivers = new HashSet<String>();
+    for (WiserMessage m : wiser.getMessages()) {
+      receivers.add(m.getEnvelopeReceiver());
+    }
+    for (int i = 0; i < count; i++) {
+      assertTrue(receivers.contains("tonobody" + i + "@example" + (i % 3) + ".com"));
+    }
+  }
 }
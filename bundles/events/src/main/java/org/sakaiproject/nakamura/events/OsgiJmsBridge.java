@@ -21,6 +21,7 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventConstants;
@@ -34,16 +35,21 @@ import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventMessageM
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Dictionary;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import javax.jms.Connection;
 import javax.jms.DeliveryMode;
-import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Message;
-import javax.jms.MessageProducer;
 import javax.jms.Session;
 
 /**
@@ -54,7 +60,13 @@ import javax.jms.Session;
 public class OsgiJmsBridge implements EventHandler {
   private static final Logger LOGGER = LoggerFactory.getLogger(OsgiJmsBridge.class);
 
-  @Property(value = "*", propertyPrivate = true)
+  /**
+   * The topics that are bridged, only events that have JMS consumers need to be listed
+   * here. Use * to bridge every event.
+   */
+  @Property(value = { "org/sakaiproject/nakamura/activity",
+      "org/sakaiproject/nakamura/cluster/user/ping/*",
+      "org/sakaiproject/nakamura/message/email/outgoing" }, cardinality = 2147483647)
   static final String TOPICS = EventConstants.EVENT_TOPIC;
 
   @Property(value = "sakai.event.bridge")
@@ -66,6 +78,18 @@ public class OsgiJmsBridge implements EventHandler {
   @Property(intValue = Session.AUTO_ACKNOWLEDGE, propertyPrivate = true)
   static final String ACKNOWLEDGE_MODE = "bridge.acknowledgeMode";
 
+  @Property(boolValue = false)
+  static final String ASYNC_NON_PERSISTENT = "bridge.asyncNonPersistent";
+
+  @Property(intValue = 100)
+  static final String BATCH_SIZE = "bridge.batchSize";
+
+  /**
+   * The number of non persistent events that may be waiting to be sent asynchronously,
+   * once full events are sent on the calling thread.
+   */
+  static final int MAX_QUEUED_EVENTS = 10000;
+
   @Reference
   private ConnectionFactoryService connFactoryService;
   
@@ -76,11 +100,29 @@ public class OsgiJmsBridge implements EventHandler {
   private boolean transacted;
   private String connectionClientId;
   private int acknowledgeMode;
+  private boolean asyncNonPersistent;
+  private int batchSize;
 
   private long lastMessage = System.currentTimeMillis();
 
   private String serverId;
 
+  /**
+   * The connection shared by all the sessions, created on first use and discarded when
+   * it fails.
+   */
+  private Connection connection;
+  private final Object connectionLock = new Object();
+
+  /**
+   * Idle sessions, keyed by acknowledge mode.
+   */
+  private final ConcurrentMap<Integer, ConcurrentLinkedQueue<ProducerSession>> sessionPool = new ConcurrentHashMap<Integer, ConcurrentLinkedQueue<ProducerSession>>();
+
+  private BlockingQueue<Event> asyncQueue;
+  private Thread asyncSender;
+  private volatile boolean running;
+
   /**
    * Default constructor.
    */
@@ -113,10 +155,25 @@ public class OsgiJmsBridge implements EventHandler {
     transacted = (Boolean) props.get(SESSION_TRANSACTED);
     acknowledgeMode = (Integer) props.get(ACKNOWLEDGE_MODE);
     connectionClientId = (String) props.get(CONNECTION_CLIENT_ID);
+    asyncNonPersistent = OsgiUtil.toBoolean(props.get(ASYNC_NON_PERSISTENT), false);
+    batchSize = Math.max(1, OsgiUtil.toInteger(props.get(BATCH_SIZE), 100));
     serverId = clusterTrackingService.getCurrentServerId();
 
     LOGGER.info("Session Transacted: {}, Acknowledge Mode: {}, " + "Client ID: {}",
         new Object[] { transacted, acknowledgeMode, connectionClientId });
+
+    if (asyncNonPersistent) {
+      LOGGER.info("Sending non persistent events in batches of up to {}", batchSize);
+      asyncQueue = new LinkedBlockingQueue<Event>(MAX_QUEUED_EVENTS);
+      running = true;
+      asyncSender = new Thread(new Runnable() {
+        public void run() {
+          sendQueuedEvents();
+        }
+      }, "OSGi JMS Bridge Sender");
+      asyncSender.setDaemon(true);
+      asyncSender.start();
+    }
   }
 
   /**
@@ -125,6 +182,27 @@ public class OsgiJmsBridge implements EventHandler {
    * @param ctx
    */
   protected void deactivate(ComponentContext ctx) {
+    if (asyncSender != null) {
+      running = false;
+      asyncSender.interrupt();
+      try {
+        asyncSender.join(5000L);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      asyncSender = null;
+      asyncQueue = null;
+    }
+    for (ConcurrentLinkedQueue<ProducerSession> pool : sessionPool.values()) {
+      ProducerSession producerSession = null;
+      while ((producerSession = pool.poll()) != null) {
+        producerSession.close();
+      }
+    }
+    synchronized (connectionLock) {
+      closeConnection(connection);
+      connection = null;
+    }
   }
 
   /**
@@ -132,123 +210,255 @@ public class OsgiJmsBridge implements EventHandler {
    * 
    * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
    */
-  @SuppressWarnings("unchecked")
   public void handleEvent(Event event) {
     LOGGER.trace("Receiving event");
-    Connection conn = null;
-
     LOGGER.debug("Processing event {}", event);
-    Session clientSession = null;
+
+    BlockingQueue<Event> queue = asyncQueue;
+    if (queue != null && getMessageDeliveryMode(event) == DeliveryMode.NON_PERSISTENT
+        && queue.offer(event)) {
+      return;
+    }
+
+    // Sessions are not thread safe, so each session is used by one thread at a time
+    // and returned to the pool when the message has been sent.
+    int clientAcknowledgeMode = getAcknowledgeMode(event);
+    ProducerSession producerSession = null;
     try {
+      producerSession = borrowSession(clientAcknowledgeMode);
+      send(producerSession, event);
+      if (transacted) {
+        producerSession.getSession().commit();
+      }
+      returnSession(clientAcknowledgeMode, producerSession);
+      producerSession = null;
+    } catch (JMSException e) {
+      logJmsException(e);
+      discardConnection(producerSession);
+    } finally {
+      if (producerSession != null) {
+        producerSession.close();
+      }
+    }
+  }
 
-      conn = connFactoryService.getDefaultPooledConnectionFactory().createConnection();
-      // conn.setClientID(connectionClientId);
-      // post to JMS
-      // Sessions are not thread safe, so we need to create and destroy a session, for
-      // sending.
-      EventDeliveryMode deliveryMode = (EventDeliveryMode) event
-          .getProperty(EventDeliveryConstants.DELIVERY_MODE);
-      EventMessageMode messageMode = (EventMessageMode) event
-          .getProperty(EventDeliveryConstants.MESSAGE_MODE);
-
-      EventAcknowledgeMode acknowledgeModeForEvent = (EventAcknowledgeMode) event
-          .getProperty(EventDeliveryConstants.ACKNOWLEDGE_MODE);
-
-      int clientAcknowledgeMode = acknowledgeMode;
-      if (acknowledgeModeForEvent != null) {
-        switch (acknowledgeModeForEvent) {
-        case AUTO_ACKNOWLEDGE:
-          clientAcknowledgeMode = Session.AUTO_ACKNOWLEDGE;
-          break;
-        case CLIENT_ACKNOWLEDGE:
-          clientAcknowledgeMode = Session.CLIENT_ACKNOWLEDGE;
-          break;
-        case DUPS_OK_ACKNOWLEDGE:
-          clientAcknowledgeMode = Session.DUPS_OK_ACKNOWLEDGE;
-          break;
+  /**
+   * Drain the queue of non persistent events, sending each batch in one transaction.
+   */
+  private void sendQueuedEvents() {
+    ProducerSession producerSession = null;
+    List<Event> batch = new ArrayList<Event>(batchSize);
+    BlockingQueue<Event> queue = asyncQueue;
+    while (running || !queue.isEmpty()) {
+      try {
+        Event event = queue.poll(1, TimeUnit.SECONDS);
+        if (event == null) {
+          continue;
+        }
+        batch.add(event);
+        queue.drainTo(batch, batchSize - 1);
+      } catch (InterruptedException e) {
+        // deactivating, send what remains on the queue.
+        queue.drainTo(batch, batchSize);
+        if (batch.isEmpty()) {
+          continue;
         }
       }
-
-      clientSession = conn.createSession(transacted, clientAcknowledgeMode);
-
-      Message msg = clientSession.createMessage();
-
-      // may need to set a delivery mode eg persistent for certain types of messages.
-      // this should be specified in the OSGi event.
-      if (messageMode != null) {
-        switch (messageMode) {
-        case PERSISTENT:
-          msg.setJMSDeliveryMode(DeliveryMode.PERSISTENT);
-          break;
-        case NON_PERSISTENT:
-        default:
-          msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
-          break;
+      try {
+        if (producerSession == null) {
+          Connection conn = getConnection();
+          producerSession = new ProducerSession(conn, conn.createSession(true,
+              Session.SESSION_TRANSACTED));
         }
-      } else {
-        msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
+        for (Event event : batch) {
+          send(producerSession, event);
+        }
+        producerSession.getSession().commit();
+      } catch (JMSException e) {
+        LOGGER.warn("Unable to send a batch of {} events", batch.size());
+        logJmsException(e);
+        discardConnection(producerSession);
+        if (producerSession != null) {
+          producerSession.close();
+          producerSession = null;
+        }
+      } finally {
+        batch.clear();
       }
+    }
+    if (producerSession != null) {
+      producerSession.close();
+    }
+  }
 
-      Destination destination = null;
-      if (deliveryMode != null) {
-        switch (deliveryMode) {
-        case P2P:
-          destination = clientSession.createQueue(event.getTopic());
-          break;
-        case BROADCAST:
-        default:
-          destination = clientSession.createTopic(event.getTopic());
-          break;
-        }
-      } else {
-        destination = clientSession.createTopic(event.getTopic());
+  /**
+   * Convert an event to a message and send it with the session's producer for the
+   * event topic.
+   */
+  @SuppressWarnings("unchecked")
+  private void send(ProducerSession producerSession, Event event) throws JMSException {
+    EventDeliveryMode deliveryMode = (EventDeliveryMode) event
+        .getProperty(EventDeliveryConstants.DELIVERY_MODE);
+    int messageDeliveryMode = getMessageDeliveryMode(event);
+
+    Message msg = producerSession.getSession().createMessage();
+    msg.setJMSDeliveryMode(messageDeliveryMode);
+    msg.setJMSType(event.getTopic());
+
+    for (String name : event.getPropertyNames()) {
+      Object obj = event.getProperty(name);
+      // "Only objectified primitive objects, String, Map and List types are
+      // allowed" as stated by an exception when putting something into the
+      // message that was not of one of these types.
+      if (obj instanceof Byte || obj instanceof Boolean || obj instanceof Character
+          || obj instanceof Number || obj instanceof Map || obj instanceof String
+          || obj instanceof List) {
+        msg.setObjectProperty(name, obj);
       }
-      MessageProducer producer = clientSession.createProducer(destination);
-      msg.setJMSType(event.getTopic());
-
-      for (String name : event.getPropertyNames()) {
-        Object obj = event.getProperty(name);
-        // "Only objectified primitive objects, String, Map and List types are
-        // allowed" as stated by an exception when putting something into the
-        // message that was not of one of these types.
-        if (obj instanceof Byte || obj instanceof Boolean || obj instanceof Character
-            || obj instanceof Number || obj instanceof Map || obj instanceof String
-            || obj instanceof List) {
-          msg.setObjectProperty(name, obj);
-        }
+    }
+
+    msg.setStringProperty("clusterServerId", serverId);
+
+    // the producer sets the delivery mode on send, so it must be passed explicitly.
+    producerSession.getProducer(deliveryMode, event.getTopic()).send(msg,
+        messageDeliveryMode, Message.DEFAULT_PRIORITY, Message.DEFAULT_TIME_TO_LIVE);
+  }
+
+  /**
+   * @return the JMS delivery mode requested by the event, persistent unless the event
+   *         asks for non persistent delivery.
+   */
+  private int getMessageDeliveryMode(Event event) {
+    EventMessageMode messageMode = (EventMessageMode) event
+        .getProperty(EventDeliveryConstants.MESSAGE_MODE);
+    if (messageMode == EventMessageMode.NON_PERSISTENT) {
+      return DeliveryMode.NON_PERSISTENT;
+    }
+    return DeliveryMode.PERSISTENT;
+  }
+
+  /**
+   * @return the session acknowledge mode requested by the event, or the configured one.
+   */
+  private int getAcknowledgeMode(Event event) {
+    EventAcknowledgeMode acknowledgeModeForEvent = (EventAcknowledgeMode) event
+        .getProperty(EventDeliveryConstants.ACKNOWLEDGE_MODE);
+
+    int clientAcknowledgeMode = acknowledgeMode;
+    if (acknowledgeModeForEvent != null) {
+      switch (acknowledgeModeForEvent) {
+      case AUTO_ACKNOWLEDGE:
+        clientAcknowledgeMode = Session.AUTO_ACKNOWLEDGE;
+        break;
+      case CLIENT_ACKNOWLEDGE:
+        clientAcknowledgeMode = Session.CLIENT_ACKNOWLEDGE;
+        break;
+      case DUPS_OK_ACKNOWLEDGE:
+        clientAcknowledgeMode = Session.DUPS_OK_ACKNOWLEDGE;
+        break;
       }
-      
-      msg.setStringProperty("clusterServerId", serverId);
-      
-      // add the current user
+    }
+    return clientAcknowledgeMode;
+  }
 
-      producer.send(msg);
-    } catch (JMSException e) {
-      Throwable t = e.getCause();
-      if ( t != null && t.getClass().getName().equals("org.apache.activemq.transport.TransportDisposedIOException") ) {
-        if ( (System.currentTimeMillis() - lastMessage) > 15000L ) {
-          lastMessage = System.currentTimeMillis();
-          LOGGER.info("Transport disposed, probably on shutdown, use debug level logging to see more :{} ", e.getMessage());
+  /**
+   * Take an idle session from the pool, or create one on the shared connection.
+   */
+  private ProducerSession borrowSession(int clientAcknowledgeMode) throws JMSException {
+    Connection conn = getConnection();
+    ConcurrentLinkedQueue<ProducerSession> pool = sessionPool
+        .get(clientAcknowledgeMode);
+    if (pool != null) {
+      ProducerSession producerSession = null;
+      while ((producerSession = pool.poll()) != null) {
+        if (producerSession.getConnection() == conn) {
+          return producerSession;
         }
-        LOGGER.debug(e.getMessage(), e);
-      } else {
-        LOGGER.error(e.getMessage(), e);
+        // created on a connection that has since been discarded.
+        producerSession.close();
       }
-    } finally {
-      try {
-        if (conn != null) {
-          conn.close();
-        }
-      } catch (Exception e) {
-        LOGGER.error(e.getMessage(), e);
+    }
+    try {
+      return new ProducerSession(conn, conn.createSession(transacted,
+          clientAcknowledgeMode));
+    } catch (JMSException e) {
+      discardConnection(conn);
+      throw e;
+    }
+  }
+
+  /**
+   * Put a session back in the pool, if its connection is still current.
+   */
+  private void returnSession(int clientAcknowledgeMode, ProducerSession producerSession) {
+    synchronized (connectionLock) {
+      if (producerSession.getConnection() != connection) {
+        producerSession.close();
+        return;
       }
-      try {
-        if (clientSession != null) {
-          clientSession.close();
-        }
-      } catch (Exception e) {
-        LOGGER.error(e.getMessage(), e);
+    }
+    ConcurrentLinkedQueue<ProducerSession> pool = sessionPool
+        .get(clientAcknowledgeMode);
+    if (pool == null) {
+      ConcurrentLinkedQueue<ProducerSession> newPool = new ConcurrentLinkedQueue<ProducerSession>();
+      pool = sessionPool.putIfAbsent(clientAcknowledgeMode, newPool);
+      if (pool == null) {
+        pool = newPool;
+      }
+    }
+    pool.offer(producerSession);
+  }
+
+  private Connection getConnection() throws JMSException {
+    synchronized (connectionLock) {
+      if (connection == null) {
+        connection = connFactoryService.getDefaultPooledConnectionFactory()
+            .createConnection();
+        // connection.setClientID(connectionClientId);
+      }
+      return connection;
+    }
+  }
+
+  private void discardConnection(ProducerSession producerSession) {
+    if (producerSession != null) {
+      discardConnection(producerSession.getConnection());
+    }
+  }
+
+  /**
+   * After a failure close the connection, so that the next event creates a new one.
+   * Pooled sessions on the old connection are closed as they are found.
+   */
+  private void discardConnection(Connection conn) {
+    synchronized (connectionLock) {
+      if (conn != null && conn == connection) {
+        connection = null;
+        closeConnection(conn);
+      }
+    }
+  }
+
+  private void closeConnection(Connection conn) {
+    try {
+      if (conn != null) {
+        conn.close();
+      }
+    } catch (Exception e) {
+      LOGGER.error(e.getMessage(), e);
+    }
+  }
+
+  private void logJmsException(JMSException e) {
+    Throwable t = e.getCause();
+    if ( t != null && t.getClass().getName().equals("org.apache.activemq.transport.TransportDisposedIOException") ) {
+      if ( (System.currentTimeMillis() - lastMessage) > 15000L ) {
+        lastMessage = System.currentTimeMillis();
+        LOGGER.info("Transport disposed, probably on shutdown, use debug level logging to see more :{} ", e.getMessage());
       }
+      LOGGER.debug(e.getMessage(), e);
+    } else {
+      LOGGER.error(e.getMessage(), e);
     }
   }
 
@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.events;
+
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventDeliveryMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.jms.Connection;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+/**
+ * A JMS session with the producers it has created, keyed by destination. Sessions are
+ * not thread safe so a ProducerSession must only be used by one thread at a time.
+ */
+class ProducerSession {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ProducerSession.class);
+
+  /**
+   * The number of producers kept open per session, the least recently used is closed
+   * when there are more.
+   */
+  static final int MAX_PRODUCERS = 64;
+
+  private final Connection connection;
+  private final Session session;
+  private final Map<String, MessageProducer> producers;
+
+  ProducerSession(Connection connection, Session session) {
+    this.connection = connection;
+    this.session = session;
+    this.producers = new LinkedHashMap<String, MessageProducer>(16, 0.75f, true) {
+      private static final long serialVersionUID = 2946245217343745236L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String, MessageProducer> eldest) {
+        if (size() > MAX_PRODUCERS) {
+          closeProducer(eldest.getValue());
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * @return the connection the session was created on.
+   */
+  Connection getConnection() {
+    return connection;
+  }
+
+  /**
+   * @return the JMS session.
+   */
+  Session getSession() {
+    return session;
+  }
+
+  /**
+   * Get a producer for a topic, creating it if this session does not already have one.
+   * 
+   * @param deliveryMode
+   *          P2P sends to a queue, anything else to a topic.
+   * @param topic
+   *          the name of the destination.
+   * @return the producer.
+   * @throws JMSException
+   */
+  MessageProducer getProducer(EventDeliveryMode deliveryMode, String topic)
+      throws JMSException {
+    boolean queue = deliveryMode == EventDeliveryMode.P2P;
+    String key = (queue ? "queue:" : "topic:") + topic;
+    MessageProducer producer = producers.get(key);
+    if (producer == null) {
+      Destination destination = null;
+      if (queue) {
+        destination = session.createQueue(topic);
+      } else {
+        destination = session.createTopic(topic);
+      }
+      producer = session.createProducer(destination);
+      producers.put(key, producer);
+    }
+    return producer;
+  }
+
+  /**
+   * Close the producers and the session, logging any failures.
+   */
+  void close() {
+    for (MessageProducer producer : producers.values()) {
+      closeProducer(producer);
+    }
+    producers.clear();
+    try {
+      session.close();
+    } catch (Exception e) {
+      LOGGER.error(e.getMessage(), e);
+    }
+  }
+
+  private void closeProducer(MessageProducer producer) {
+    try {
+      producer.close();
+    } catch (Exception e) {
+      LOGGER.error(e.getMessage(), e);
+    }
+  }
+}
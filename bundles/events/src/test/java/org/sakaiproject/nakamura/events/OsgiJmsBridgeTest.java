@@ -41,6 +41,7 @@ import java.util.Hashtable;
 
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageProducer;
@@ -167,6 +168,31 @@ public class OsgiJmsBridgeTest {
     assertEquals(props.size() + 2, namesCount);
   }
 
+  /**
+   * Test that the session and producer are reused for a second event on the same topic.
+   *
+   * @throws JMSException
+   */
+  @Test
+  public void testSessionReused() throws Exception {
+    setUpFullProcess(true);
+    Message secondMessage = new ActiveMQMessage();
+    expect(sess.createMessage()).andReturn(secondMessage);
+    prod.send(secondMessage, DeliveryMode.PERSISTENT, Message.DEFAULT_PRIORITY,
+        Message.DEFAULT_TIME_TO_LIVE);
+
+    clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
+    replay(ctx, connFactory, connFactoryService, conn, sess, topic, prod, clusterTrackingService);
+
+    sendMessage(buildEventProperties());
+    bridge.handleEvent(new Event("test-event", buildEventProperties()));
+    bridge.deactivate(ctx);
+
+    // one connection, session and producer for both events.
+    verify(ctx, connFactory, conn, sess, topic, prod, clusterTrackingService);
+  }
+
   @Test
   public void testJmsExceptionWhenCreatingConnection() throws Exception {
     // expect the connection factory to thrown an exception. this is the
@@ -320,8 +346,11 @@ public class OsgiJmsBridgeTest {
       expect(sess.createMessage()).andReturn(message);
 
       // expect the message to be sent
-      prod.send(message);
-      
+      prod.send(message, DeliveryMode.PERSISTENT, Message.DEFAULT_PRIORITY,
+          Message.DEFAULT_TIME_TO_LIVE);
+
+      // the pooled producer and session are closed on deactivate
+      prod.close();
 
       sess.close();
     } catch (JMSException e) {
@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.events;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants;
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventMessageMode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.Connection;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Session;
+
+/**
+ * Sends events through the bridge into an embedded broker and checks they all arrive. The
+ * throughput runs send thousands of events, so only run when the bridge.throughput system
+ * property is true.
+ */
+public class OsgiJmsBridgeThroughputTest {
+  private static final String BROKER_URL = "vm://bridgetest?broker.persistent=false&broker.useJmx=false";
+  private static final String TOPIC = "org/sakaiproject/nakamura/activity";
+  private static final int EVENTS = 2000;
+  private static final int THREADS = 4;
+  private static final boolean THROUGHPUT = Boolean.getBoolean("bridge.throughput");
+
+  private ActiveMQConnectionFactory connectionFactory;
+  private Connection consumerConnection;
+  private CountDownLatch received;
+  private AtomicInteger receivedCount;
+
+  @Before
+  public void setUp() throws Exception {
+    connectionFactory = new ActiveMQConnectionFactory(BROKER_URL);
+    consumerConnection = connectionFactory.createConnection();
+    Session session = consumerConnection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    MessageConsumer consumer = session.createConsumer(session.createTopic(TOPIC));
+    receivedCount = new AtomicInteger();
+    consumer.setMessageListener(new MessageListener() {
+      public void onMessage(Message message) {
+        receivedCount.incrementAndGet();
+        received.countDown();
+      }
+    });
+    consumerConnection.start();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    consumerConnection.close();
+  }
+
+  @Test
+  public void testServerPingTopic() throws Exception {
+    String pingTopic = ClusterTrackingService.EVENT_PING_CLUSTER_USER + "/otherServerId";
+    Session session = consumerConnection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    MessageConsumer consumer = session.createConsumer(session.createTopic(pingTopic));
+    OsgiJmsBridge bridge = createBridge(false);
+    Hashtable<Object, Object> props = new Hashtable<Object, Object>();
+    props.put("tracking-cookie", "cookie");
+    bridge.handleEvent(new Event(pingTopic, props));
+    Message message = consumer.receive(10000);
+    bridge.deactivate(null);
+
+    assertNotNull("Ping for another server was not bridged", message);
+    assertEquals("cookie", message.getStringProperty("tracking-cookie"));
+  }
+
+  @Test
+  public void testBatchedServerPingTopic() throws Exception {
+    String pingTopic = ClusterTrackingService.EVENT_PING_CLUSTER_USER + "/otherServerId";
+    Session session = consumerConnection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    MessageConsumer consumer = session.createConsumer(session.createTopic(pingTopic));
+    OsgiJmsBridge bridge = createBridge(false);
+    Hashtable<Object, Object> props = new Hashtable<Object, Object>();
+    props.put(ClusterTrackingService.EVENT_FROM_SERVER, "CurrentServerID");
+    props.put(ClusterTrackingService.EVENT_TO_SERVER, "otherServerId");
+    props.put(ClusterTrackingService.EVENT_TRACKING_COOKIES, new ArrayList<String>(Arrays
+        .asList("cookie1", "cookie2")));
+    props.put(ClusterTrackingService.EVENT_USERS, new ArrayList<String>(Arrays.asList(
+        "ieb", "")));
+    bridge.handleEvent(new Event(pingTopic, props));
+    Message message = consumer.receive(10000);
+    bridge.deactivate(null);
+
+    assertNotNull("Batched ping for another server was not bridged", message);
+    assertEquals(Arrays.asList("cookie1", "cookie2"), message
+        .getObjectProperty(ClusterTrackingService.EVENT_TRACKING_COOKIES));
+    assertEquals(Arrays.asList("ieb", ""), message
+        .getObjectProperty(ClusterTrackingService.EVENT_USERS));
+  }
+
+  @Test
+  public void testSynchronousThroughput() throws Exception {
+    if (THROUGHPUT) {
+      sendEvents(false);
+    }
+  }
+
+  @Test
+  public void testBatchedThroughput() throws Exception {
+    if (THROUGHPUT) {
+      sendEvents(true);
+    }
+  }
+
+  private void sendEvents(boolean async) throws Exception {
+    received = new CountDownLatch(EVENTS * THREADS);
+    final OsgiJmsBridge bridge = createBridge(async);
+    Thread[] threads = new Thread[THREADS];
+    for (int i = 0; i < THREADS; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < EVENTS; j++) {
+            Hashtable<Object, Object> props = new Hashtable<Object, Object>();
+            props.put("sequence", j);
+            props.put(EventDeliveryConstants.MESSAGE_MODE, EventMessageMode.NON_PERSISTENT);
+            bridge.handleEvent(new Event(TOPIC, props));
+          }
+        }
+      };
+    }
+    for (Thread t : threads) {
+      t.start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    boolean all = received.await(60, TimeUnit.SECONDS);
+    bridge.deactivate(null);
+
+    assertTrue("Received " + receivedCount.get() + " of " + (EVENTS * THREADS)
+        + " events", all);
+    assertEquals(EVENTS * THREADS, receivedCount.get());
+  }
+
+  private OsgiJmsBridge createBridge(boolean async) {
+    ConnectionFactoryService connFactoryService = createMock(ConnectionFactoryService.class);
+    expect(connFactoryService.getDefaultPooledConnectionFactory()).andReturn(
+        connectionFactory).anyTimes();
+    ClusterTrackingService clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
+    Hashtable<Object, Object> compProps = new Hashtable<Object, Object>();
+    compProps.put(OsgiJmsBridge.ACKNOWLEDGE_MODE, Session.AUTO_ACKNOWLEDGE);
+    compProps.put(OsgiJmsBridge.CONNECTION_CLIENT_ID, "sakai.event.bridge");
+    compProps.put(OsgiJmsBridge.SESSION_TRANSACTED, false);
+    compProps.put(OsgiJmsBridge.ASYNC_NON_PERSISTENT, async);
+    compProps.put(OsgiJmsBridge.BATCH_SIZE, 100);
+    ComponentContext ctx = createMock(ComponentContext.class);
+    expect(ctx.getProperties()).andReturn(compProps);
+    replay(connFactoryService, clusterTrackingService, ctx);
+
+    OsgiJmsBridge bridge = new OsgiJmsBridge(connFactoryService);
+    bridge.clusterTrackingService = clusterTrackingService;
+    bridge.activate(ctx);
+    return bridge;
+  }
+}
@@ -29,9 +29,9 @@ import org.apache.jackrabbit.JcrConstants;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.apache.sling.jcr.api.SlingRepository;
-import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.sakaiproject.nakamura.api.site.SiteService;
+import org.sakaiproject.nakamura.api.site.SiteSummary;
 import org.sakaiproject.nakamura.util.DateUtils;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
@@ -42,7 +42,10 @@ import org.slf4j.LoggerFactory;
 import java.security.AccessControlException;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.Map.Entry;
 
 import javax.jcr.AccessDeniedException;
 import javax.jcr.ItemNotFoundException;
@@ -52,8 +55,6 @@ import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.Value;
-import javax.jcr.security.AccessControlManager;
-import javax.jcr.security.Privilege;
 
 /**
  * Some utility function regarding file management.
@@ -144,6 +145,81 @@ public class FileUtils {
     return linkNode;
   }
 
+  /**
+   * Create links to a batch of files, as {@link #createLink(Node, String, String,
+   * SlingRepository)} does for one file. The files are made referenceable and added to
+   * the site with a single administrative save, and the links are created with a single
+   * save of the session of the files.
+   * 
+   * @param fileNodes
+   *          The saved nodes that represent the files, all retrieved via the same normal
+   *          user {@link Session session}.
+   * @param linkPaths
+   *          The absolute path in JCR of the link of each file.
+   * @param sitePath
+   *          An optional absolute path in JCR to a site. If this parameter is null, it
+   *          will be ignored.
+   * @param slingRepository
+   *          The {@link SlingRepository} to use to login as an administrative.
+   * @return The newly created nodes.
+   * @throws AccessDeniedException
+   *           When the user is anonymous.
+   * @throws RepositoryException
+   *           Something else went wrong.
+   */
+  public static List<Node> createLinks(List<Node> fileNodes, List<String> linkPaths,
+      String sitePath, SlingRepository slingRepository) throws AccessDeniedException,
+      RepositoryException {
+    List<Node> linkNodes = new ArrayList<Node>(fileNodes.size());
+    if (fileNodes.isEmpty()) {
+      return linkNodes;
+    }
+    Session session = fileNodes.get(0).getSession();
+    if (UserConstants.ANON_USERID.equals(session.getUserID())) {
+      throw new AccessDeniedException();
+    }
+
+    String site = null;
+    if (sitePath != null) {
+      site = ((Node) session.getItem(sitePath)).getIdentifier();
+    }
+    Session adminSession = null;
+    try {
+      adminSession = slingRepository.loginAdministrative(null);
+      for (Node fileNode : fileNodes) {
+        Node adminFileNode = (Node) adminSession.getItem(fileNode.getPath());
+        if (!JcrUtils.hasMixin(adminFileNode, REQUIRED_MIXIN)) {
+          adminFileNode.addMixin(REQUIRED_MIXIN);
+        }
+        if (site != null) {
+          JcrUtils.addUniqueValue(adminSession, adminFileNode, "sakai:sites", site,
+              PropertyType.STRING);
+        }
+      }
+      if (adminSession.hasPendingChanges()) {
+        adminSession.save();
+      }
+    } finally {
+      if (adminSession != null) {
+        adminSession.logout();
+      }
+    }
+
+    for (int i = 0; i < fileNodes.size(); i++) {
+      Node fileNode = (Node) session.getItem(fileNodes.get(i).getPath());
+      Node linkNode = JcrUtils.deepGetOrCreateNode(session, linkPaths.get(i));
+      linkNode.addMixin(REQUIRED_MIXIN);
+      linkNode.setProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
+          RT_SAKAI_LINK);
+      linkNode.setProperty(SAKAI_LINK, fileNode.getIdentifier());
+      linkNodes.add(linkNode);
+    }
+    if (session.hasPendingChanges()) {
+      session.save();
+    }
+    return linkNodes;
+  }
+
   /**
    * Writes all the properties of a sakai/file node. Also checks what the permissions are
    * for a session and where the links are.
@@ -277,19 +353,14 @@ public class FileUtils {
 
     int total = 0;
     try {
-      List<String> handledSites = new ArrayList<String>();
-      AccessControlManager acm = AccessControlUtil.getAccessControlManager(session);
-      Privilege read = acm.privilegeFromName(Privilege.JCR_READ);
-      Privilege[] privs = new Privilege[] { read };
+      Set<String> handledSites = new HashSet<String>();
       for (Value v : sites) {
-        String path = v.getString();
-        if (!handledSites.contains(path)) {
-          handledSites.add(path);
-          Node siteNode = (Node) session.getNodeByIdentifier(v.getString());
-
-          boolean hasAccess = acm.hasPrivileges(path, privs);
-          if (siteService.isSite(siteNode) && hasAccess) {
-            writeSiteInfo(siteNode, write, siteService);
+        String id = v.getString();
+        if (handledSites.add(id)) {
+          // The summary is null if this is not a site or if the user can't read it.
+          SiteSummary site = siteService.getSiteSummary(session, id);
+          if (site != null) {
+            writeSiteInfo(site, write);
             total++;
           }
         }
@@ -322,6 +393,38 @@ public class FileUtils {
     write.endObject();
   }
 
+  /**
+   * Parses the info for a site from its summary, this writes the same as
+   * {@link #writeSiteInfo(Node, JSONWriter, SiteService)} without reading the site.
+   * 
+   * @param site
+   * @param write
+   * @throws JSONException
+   */
+  protected static void writeSiteInfo(SiteSummary site, JSONWriter write)
+      throws JSONException {
+    write.object();
+    write.key("member-count");
+    write.value(String.valueOf(site.getMemberCount()));
+    write.key("jcr:path");
+    write.value(site.getPath());
+    write.key("jcr:name");
+    write.value(site.getName());
+    for (Entry<String, Object> property : site.getProperties().entrySet()) {
+      write.key(property.getKey());
+      if (property.getValue() instanceof Object[]) {
+        write.array();
+        for (Object value : (Object[]) property.getValue()) {
+          write.value(value);
+        }
+        write.endArray();
+      } else {
+        write.value(property.getValue());
+      }
+    }
+    write.endObject();
+  }
+
   /**
    * Check if a node is a proper sakai tag.
    * 
@@ -25,7 +25,6 @@ import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.jackrabbit.api.security.user.Authorizable;
-import org.apache.jackrabbit.api.security.user.Group;
 import org.apache.jackrabbit.util.ISO9075;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.request.RequestParameter;
@@ -38,7 +37,6 @@ import org.sakaiproject.nakamura.api.site.SiteService;
 
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
@@ -198,9 +196,8 @@ public class FileSearchPropertyProvider implements SearchPropertyProvider {
   protected String getMySites(Session session, String user) {
     try {
       StringBuilder sb = new StringBuilder();
-      Map<String, List<Group>> membership = siteService.getMembership(session, user);
-      for (Entry<String, List<Group>> site : membership.entrySet()) {
-        sb.append("@sakai:sites=\"").append(site.getKey()).append("\" or ");
+      for (String site : siteService.getMembershipSiteIds(session, user)) {
+        sb.append("@sakai:sites=\"").append(site).append("\" or ");
       }
       String sites = sb.toString();
       int i = sites.lastIndexOf(" or ");
@@ -22,6 +22,7 @@ import static org.mockito.Mockito.verify;
 import static org.apache.sling.jcr.resource.JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY;
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.when;
 
 import org.apache.jackrabbit.JcrConstants;
@@ -31,9 +32,11 @@ import org.apache.sling.commons.json.io.JSONWriter;
 import org.apache.sling.commons.testing.jcr.MockNode;
 import org.apache.sling.commons.testing.jcr.MockProperty;
 import org.apache.sling.commons.testing.jcr.MockPropertyIterator;
+import org.apache.sling.commons.testing.jcr.MockValue;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.junit.Test;
 import org.sakaiproject.nakamura.api.site.SiteService;
+import org.sakaiproject.nakamura.api.site.SiteSummary;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -42,15 +45,19 @@ import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.jcr.AccessDeniedException;
 import javax.jcr.Node;
 import javax.jcr.Property;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.Value;
 import javax.jcr.ValueFormatException;
 import javax.jcr.nodetype.NodeType;
+import javax.jcr.nodetype.PropertyDefinition;
 
 /**
  *
@@ -77,6 +84,48 @@ public class FilesUtilsTest {
     assertFileNodeInfo(j);
   }
 
+  @Test
+  public void testWriteFileNodeUsedInSites() throws JSONException, RepositoryException,
+      IOException {
+    Session session = mock(Session.class);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    Writer w = new PrintWriter(baos);
+    JSONWriter write = new JSONWriter(w);
+    SiteService siteService = mock(SiteService.class);
+
+    Node node = createFileNode();
+    when(node.getSession()).thenReturn(session);
+    PropertyDefinition multiple = mock(PropertyDefinition.class);
+    when(multiple.isMultiple()).thenReturn(true);
+    Property sitesProp = mock(Property.class);
+    when(sitesProp.getDefinition()).thenReturn(multiple);
+    when(sitesProp.getValues()).thenReturn(
+        new Value[] { new MockValue("site-a"), new MockValue("site-b"),
+            new MockValue("site-a") });
+    when(node.hasProperty("sakai:sites")).thenReturn(true);
+    when(node.getProperty("sakai:sites")).thenReturn(sitesProp);
+
+    Map<String, Object> properties = new LinkedHashMap<String, Object>();
+    properties.put("name", "Site A");
+    properties.put("sakai:authorizables", new Object[] { "g-a-collaborators" });
+    when(siteService.getSiteSummary(session, "site-a")).thenReturn(
+        new SiteSummary("site-a", "/sites/a", "a", 11, properties));
+    // site-b can not be read by the session.
+
+    FileUtils.writeFileNode(node, session, write, siteService);
+    w.flush();
+
+    JSONObject usedIn = new JSONObject(baos.toString("UTF-8")).getJSONObject("usedIn");
+    assertEquals(1, usedIn.getInt("total"));
+    JSONObject site = usedIn.getJSONArray("sites").getJSONObject(0);
+    assertEquals("11", site.get("member-count"));
+    assertEquals("/sites/a", site.get("jcr:path"));
+    assertEquals("a", site.get("jcr:name"));
+    assertEquals("Site A", site.get("name"));
+    assertEquals("g-a-collaborators", site.getJSONArray("sakai:authorizables").get(0));
+    verify(siteService, times(1)).getSiteSummary(session, "site-a");
+  }
+
   /**
    * @throws JSONException
    * 
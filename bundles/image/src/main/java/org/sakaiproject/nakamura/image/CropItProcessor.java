@@ -21,7 +21,6 @@ package org.sakaiproject.nakamura.image;
 import org.apache.sanselan.ImageFormat;
 import org.apache.sanselan.ImageInfo;
 import org.apache.sanselan.ImageReadException;
-import org.apache.sanselan.ImageWriteException;
 import org.apache.sanselan.Sanselan;
 import org.apache.sanselan.util.IOUtils;
 import org.sakaiproject.nakamura.api.jcr.JCRConstants;
@@ -32,16 +31,30 @@ import org.slf4j.LoggerFactory;
 
 import java.awt.Dimension;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.jcr.Binary;
 import javax.jcr.Node;
 import javax.jcr.PathNotFoundException;
@@ -53,6 +66,27 @@ public class CropItProcessor {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CropItProcessor.class);
 
+  /**
+   * The number of bytes at the start of an image that are used to guess its format.
+   */
+  protected static final int HEADER_SIZE = 8192;
+
+  /**
+   * Images that ImageIO can't read are decoded in memory by Sanselan, which needs the
+   * entire file.
+   */
+  protected static final long MAX_BUFFERED_SIZE = 100L * 1024L * 1024L;
+
+  /**
+   * Decoding and scaling an image takes a lot of memory, so only this many images are
+   * processed at the same time: one permit per available CPU, shared by every caller of
+   * this class. Other requests queue up, in order, for a permit.
+   */
+  protected static final Semaphore DECODE_PERMITS = new Semaphore(Math.max(1, Runtime
+      .getRuntime().availableProcessors()), true);
+
+  private static final long DECODE_PERMIT_TIMEOUT = 60;
+
   /**
    * 
    * @param session
@@ -81,6 +115,7 @@ public class CropItProcessor {
       List<Dimension> dimensions, String img, String save) throws ImageException {
 
     InputStream in = null;
+    Rendition[] renditions = null;
 
     // The array that will contain all the cropped and resized images.
     String[] arrFiles = new String[dimensions.size()];
@@ -109,70 +144,22 @@ public class CropItProcessor {
 
         // Read the image
         Binary content = imgNode.getProperty(JCRConstants.JCR_DATA).getBinary();
-        if ( content.getSize() > 100L*1024L*1024L ) {
-          throw new ImageException(406, "Image too large to crop > 100MB "+content.getSize());
-          
-        }
         in = content.getStream();
-        try {
-
-          // NOTE: I'd prefer to use the InputStream, but I don't see a way to get the
-          // ImageInfo _and_ the BufferedImage.
-          // I've tried using a BufferedInputStream which allows you to reset, but for BMP
-          // this doesn't help.
-          byte[] bytes = IOUtils.getInputStreamBytes(in);
-          ImageInfo info = Sanselan.getImageInfo(bytes);
-          BufferedImage imgBuf = getBufferedImage(bytes, info);
-
-          // Set the correct width & height.
-          width = (width <= 0) ? info.getWidth() : width;
-          height = (height <= 0) ? info.getHeight() : height;
-
-          if (x + width > info.getWidth()) {
-            width = info.getWidth() - x;
+        renditions = scale(in, content.getSize(), x, y, width, height, dimensions);
+
+        // Save every size that could be created.
+        for (int i = 0; i < renditions.length; i++) {
+          Rendition rendition = renditions[i];
+          if (rendition.file != null) {
+            String sPath = save + rendition.width + "x" + rendition.height + "_"
+                + imgName;
+            saveImageToJCR(sPath, rendition.mimeType, rendition.file, imgNode, session);
+            arrFiles[i] = sPath;
+          } else {
+            LOGGER.warn("Failed to scale image " + img + " to " + rendition.width + " by "
+                + rendition.height + " defaulting to full size");
+            arrFiles[i] = img;
           }
-          if (y + height > info.getHeight()) {
-            height = info.getHeight() - y;
-          }
-
-          // Cut the desired piece out of the image.
-          BufferedImage subImage = imgBuf.getSubimage(x, y, width, height);
-
-          // Loop the dimensions and create and save an image for each
-          // one.
-          for (int i = 0; i < dimensions.size(); i++) {
-
-            Dimension d = dimensions.get(i);
-
-            // get dimension size
-            int iWidth = d.width;
-            int iHeight = d.height;
-
-            iWidth = (iWidth <= 0) ? info.getWidth() : iWidth;
-            iHeight = (iHeight <= 0) ? info.getHeight() : iHeight;
-
-            // Create the image.
-            byte[] image = scaleAndWriteToByteArray(iWidth, iHeight, subImage, imgName, info);
-            
-            if ( image != null ) {
-
-              String sPath = save + iWidth + "x" + iHeight + "_" + imgName;
-              // Save new image to JCR.
-              saveImageToJCR(sPath, info.getMimeType(), image, imgNode, session);
-  
-              arrFiles[i] = sPath;
-            } else {
-              LOGGER.warn("Failed to scale image "+img+" to "+iWidth+" by "+iHeight+" defaulting to full size");
-              arrFiles[i] = img;
-            }
-          }
-        } catch (ImageReadException e) {
-          // This is not a valid image.
-          LOGGER.error("Can't parse this format.", e);
-          throw new ImageException(406, "Can't parse this format.");
-        } catch (ImageWriteException e) {
-          LOGGER.error("Can't crop this image.", e);
-          throw new ImageException(406, "Can't crop this image.");
         }
       } else {
         throw new ImageException(400, "No image file found.");
@@ -195,56 +182,253 @@ public class CropItProcessor {
           LOGGER.debug("Exception closing inputstream.");
         }
       }
+      if (renditions != null) {
+        for (Rendition rendition : renditions) {
+          rendition.delete();
+        }
+      }
     }
     return arrFiles;
   }
 
   /**
-   * @param bytes
-   * @param info
-   * @return
+   * Cuts a piece out of an image and scales it to all the requested dimensions.
+   * <p>
+   * The format is guessed from the first {@link #HEADER_SIZE} bytes of the stream. If
+   * ImageIO can read the format, only the crop rectangle is decoded, subsampled as far as
+   * the largest dimension allows, so the memory used depends on the requested sizes and
+   * not on the size of the image. Other formats are read in memory by Sanselan. All
+   * dimensions are scaled down from the largest one, and each one is encoded straight
+   * into a temporary file. Each decode holds one of the {@link #DECODE_PERMITS}, so at
+   * most one image per available CPU is decoded at the same time across all requests.
+   *
+   * @param in
+   *          The image.
+   * @param size
+   *          The length of the image stream.
+   * @param x
+   *          Where to start cutting on the x-axis.
+   * @param y
+   *          Where to start cutting on the y-axis.
+   * @param width
+   *          The width of the image to cut out. If <=0 then the entire image width will
+   *          be used.
+   * @param height
+   *          The height of the image to cut out. If <=0 then the entire image width will
+   *          be used.
+   * @param dimensions
+   *          The sizes the cut out piece should be scaled to.
+   * @return A rendition for each dimension, in the same order. The caller has to
+   *         {@link Rendition#delete() delete} them.
+   * @throws ImageException
    * @throws IOException
-   * @throws ImageReadException
-   * @throws ImageException 
    */
-  protected static BufferedImage getBufferedImage(byte[] bytes, ImageInfo info)
-      throws ImageReadException, IOException, ImageException {
-    BufferedImage imgBuf;
-    // Guess the format and check if it is a valid one.
-    if (info.getFormat() == ImageFormat.IMAGE_FORMAT_UNKNOWN) {
+  protected static Rendition[] scale(InputStream in, long size, int x, int y, int width,
+      int height, List<Dimension> dimensions) throws ImageException, IOException {
+    BufferedInputStream bin = new BufferedInputStream(in, HEADER_SIZE);
+    ImageFormat format = guessFormat(bin);
+
+    acquireDecodePermit();
+    try {
+      Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName(format.name);
+      if (readers.hasNext()) {
+        return scale(readers.next(), bin, format, x, y, width, height, dimensions);
+      }
+
+      if (size > MAX_BUFFERED_SIZE) {
+        throw new ImageException(406, "Image too large to crop > 100MB " + size);
+      }
+      byte[] bytes = IOUtils.getInputStreamBytes(bin);
+      ImageInfo info = Sanselan.getImageInfo(bytes);
+      BufferedImage imgBuf = Sanselan.getBufferedImage(bytes);
+      Rectangle rect = getCropArea(info.getWidth(), info.getHeight(), x, y, width, height);
+      BufferedImage subImage = imgBuf.getSubimage(rect.x, rect.y, rect.width, rect.height);
+      return scale(subImage, format, info.getMimeType(), info.getWidth(), info
+          .getHeight(), dimensions);
+    } catch (ImageReadException e) {
+      // This is not a valid image.
+      LOGGER.error("Can't parse this format.", e);
+      throw new ImageException(406, "Can't parse this format.");
+    } finally {
+      DECODE_PERMITS.release();
+    }
+  }
+
+  private static Rendition[] scale(ImageReader reader, InputStream in, ImageFormat format,
+      int x, int y, int width, int height, List<Dimension> dimensions)
+      throws ImageException, IOException {
+    ImageInputStream iis = ImageIO.createImageInputStream(in);
+    try {
+      reader.setInput(iis, true, true);
+      int imageWidth = reader.getWidth(0);
+      int imageHeight = reader.getHeight(0);
+      Rectangle rect = getCropArea(imageWidth, imageHeight, x, y, width, height);
+
+      // Skip pixels while decoding, but always keep at least twice the largest size so
+      // the final scaling steps still have something to interpolate.
+      int subsampling = Integer.MAX_VALUE;
+      for (Dimension d : dimensions) {
+        int w = (d.width <= 0) ? imageWidth : d.width;
+        int h = (d.height <= 0) ? imageHeight : d.height;
+        subsampling = Math.min(subsampling, Math.min(rect.width / (2 * w), rect.height
+            / (2 * h)));
+      }
+      subsampling = Math.max(1, subsampling);
+
+      ImageReadParam param = reader.getDefaultReadParam();
+      param.setSourceRegion(rect);
+      param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+      BufferedImage subImage = reader.read(0, param);
+
+      String mimeType = reader.getOriginatingProvider().getMIMETypes()[0];
+      return scale(subImage, format, mimeType, imageWidth, imageHeight, dimensions);
+    } finally {
+      reader.dispose();
+      iis.close();
+    }
+  }
+
+  private static Rendition[] scale(BufferedImage subImage, ImageFormat format,
+      String mimeType, int imageWidth, int imageHeight, List<Dimension> dimensions)
+      throws IOException {
+    Rendition[] renditions = new Rendition[dimensions.size()];
+    for (int i = 0; i < renditions.length; i++) {
+      Dimension d = dimensions.get(i);
+      int w = (d.width <= 0) ? imageWidth : d.width;
+      int h = (d.height <= 0) ? imageHeight : d.height;
+      renditions[i] = new Rendition(w, h, mimeType);
+    }
+
+    // Go from the largest to the smallest size, so every size can be scaled down from
+    // the previous one instead of from the full piece.
+    List<Rendition> bySize = new ArrayList<Rendition>();
+    Collections.addAll(bySize, renditions);
+    Collections.sort(bySize, new Comparator<Rendition>() {
+      public int compare(Rendition o1, Rendition o2) {
+        long a1 = (long) o1.width * o1.height;
+        long a2 = (long) o2.width * o2.height;
+        return (a1 > a2) ? -1 : ((a1 == a2) ? 0 : 1);
+      }
+    });
+
+    BufferedImage source = subImage;
+    try {
+      for (Rendition rendition : bySize) {
+        if (source.getWidth() < rendition.width || source.getHeight() < rendition.height) {
+          source = subImage;
+        }
+        BufferedImage scaled = getScaledInstance(source, rendition.width,
+            rendition.height);
+        rendition.file = File.createTempFile("cropit", ".tmp");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(rendition.file));
+        boolean written;
+        try {
+          written = writeImage(scaled, format, out);
+        } finally {
+          out.close();
+        }
+        if (!written) {
+          rendition.delete();
+        }
+        source = scaled;
+      }
+    } catch (IOException e) {
+      for (Rendition rendition : renditions) {
+        rendition.delete();
+      }
+      throw e;
+    }
+    return renditions;
+  }
+
+  private static ImageFormat guessFormat(BufferedInputStream in) throws IOException,
+      ImageException {
+    in.mark(HEADER_SIZE);
+    byte[] header = new byte[HEADER_SIZE];
+    int read = 0;
+    int n;
+    while (read < header.length && (n = in.read(header, read, header.length - read)) > 0) {
+      read += n;
+    }
+    in.reset();
+    if (read < header.length) {
+      byte[] b = new byte[read];
+      System.arraycopy(header, 0, b, 0, read);
+      header = b;
+    }
+
+    ImageFormat format;
+    try {
+      format = Sanselan.guessFormat(header);
+    } catch (ImageReadException e) {
+      format = ImageFormat.IMAGE_FORMAT_UNKNOWN;
+    } catch (IOException e) {
+      // Too short to be an image.
+      format = ImageFormat.IMAGE_FORMAT_UNKNOWN;
+    }
+    if (format == ImageFormat.IMAGE_FORMAT_UNKNOWN) {
       // This is not a valid image.
       LOGGER.error("Can't parse this format.");
       throw new ImageException(406, "Can't parse this format.");
-    } else if (info.getFormat() == ImageFormat.IMAGE_FORMAT_JPEG) {
-      imgBuf = ImageIO.read(new ByteArrayInputStream(bytes));
-    } else {
-      imgBuf = Sanselan.getBufferedImage(bytes);
     }
-    return imgBuf;
+    return format;
+  }
+
+  private static void acquireDecodePermit() throws ImageException {
+    try {
+      if (!DECODE_PERMITS.tryAcquire(DECODE_PERMIT_TIMEOUT, TimeUnit.SECONDS)) {
+        throw new ImageException(503, "Too many images are being cropped, try again later.");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ImageException(500, "Interrupted while waiting to crop the image.");
+    }
+  }
+
+  /**
+   * @return The area of the image to cut out.
+   * @throws ImageException
+   *           The area is outside of the image.
+   */
+  protected static Rectangle getCropArea(int imageWidth, int imageHeight, int x, int y,
+      int width, int height) throws ImageException {
+    // Set the correct width & height.
+    width = (width <= 0) ? imageWidth : width;
+    height = (height <= 0) ? imageHeight : height;
+
+    if (x + width > imageWidth) {
+      width = imageWidth - x;
+    }
+    if (y + height > imageHeight) {
+      height = imageHeight - y;
+    }
+    if (width <= 0 || height <= 0) {
+      throw new ImageException(400, "The area to crop is outside of the image.");
+    }
+    return new Rectangle(x, y, width, height);
   }
 
   /**
-   * Will save a stream of an image to the JCR.
+   * Will save an image to the JCR.
    * 
    * @param path
    *          The JCR path to save the image in.
    * @param mimetype
    *          The Mime type of the node that will be saved.
-   * @param out
-   *          The stream you wish to save.
+   * @param image
+   *          The file holding the image.
    * @throws ImageException
    */
   protected static void saveImageToJCR(String path, String mimetype,
-      byte[] image, Node baseNode, Session session) throws ImageException {
+      File image, Node baseNode, Session session) throws ImageException {
 
     // Save image into the jcr
-    ByteArrayInputStream bais = null;
+    InputStream in = null;
     try {
       path = PathUtils.normalizePath(path);
       Node node = JcrUtils.deepGetOrCreateNode(session, path, "nt:file");
 
-      // convert stream to inputstream
-      bais = new ByteArrayInputStream(image);
+      in = new FileInputStream(image);
       Node contentNode = null;
       if (node.hasNode(JCRConstants.JCR_CONTENT)) {
         contentNode = node.getNode(JCRConstants.JCR_CONTENT);
@@ -252,20 +436,23 @@ public class CropItProcessor {
         contentNode = node.addNode(JCRConstants.JCR_CONTENT, JCRConstants.NT_RESOURCE);
       }
       ValueFactory vf = session.getValueFactory();
-      contentNode.setProperty(JCRConstants.JCR_DATA, vf.createBinary(bais));
+      contentNode.setProperty(JCRConstants.JCR_DATA, vf.createBinary(in));
       contentNode.setProperty(JCRConstants.JCR_MIMETYPE, mimetype);
       contentNode.setProperty(JCRConstants.JCR_LASTMODIFIED, Calendar.getInstance());
 
       if (session.hasPendingChanges()) {
         session.save();
       }
+    } catch (IOException e) {
+      LOGGER.warn("Unable to read the scaled image: " + e.getMessage());
+      throw new ImageException(500, "Unable to save image to JCR.");
     } catch (RepositoryException e) {
       LOGGER.warn("Repository exception: " + e.getMessage());
       throw new ImageException(500, "Unable to save image to JCR.");
     } finally {
-      if (bais != null) {
+      if (in != null) {
         try {
-          bais.close();
+          in.close();
         } catch (IOException e) {
           LOGGER.warn("Unable to close inputstream.");
         }
@@ -274,50 +461,32 @@ public class CropItProcessor {
   }
 
   /**
-   * This method will scale an image to a desired width and height and shall output the
-   * stream of that scaled image.
+   * Encodes an image in the given format.
    * 
-   * @param width
-   *          The desired width of the scaled image.
-   * @param height
-   *          The desired height of the scaled image.
    * @param img
-   *          The image that you want to scale
-   * @param imgName
-   *          Filename of the image
-   * @param info
-   *          The {@link ImageInfo info} for this image.
-   * @return Returns an {@link ByteArrayOutputStream ByteArrayOutputStream} of the scaled
-   *         image.
-   * @throws IOException
-   * @throws ImageWriteException
-   *           Failed to write the cropped image to the stream.
+   *          The image to write.
+   * @param format
+   *          The format of the original image, JPEG images are written with ImageIO,
+   *          everything else with Sanselan.
+   * @param out
+   *          The stream to write the image to.
+   * @return true if the image was written, false if it could not be encoded.
    */
-  protected static byte[] scaleAndWriteToByteArray(int width, int height,
-      BufferedImage img, String imgName, ImageInfo info) throws IOException,
-      ImageWriteException {
+  protected static boolean writeImage(BufferedImage img, ImageFormat format,
+      OutputStream out) {
     try {
-      // Get a scaled image.
-      BufferedImage imgScaled = getScaledInstance(img, width, height);
-
-      // Convert image to a stream
-      ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-      // Write to stream.
-      if (info.getFormat() == ImageFormat.IMAGE_FORMAT_JPEG) {
-        ImageIO.write(imgScaled, "jpg", out);
+      if (format == ImageFormat.IMAGE_FORMAT_JPEG) {
+        return ImageIO.write(img, "jpg", out);
       } else {
-        Sanselan.writeImage(imgScaled, out, info.getFormat(), null);
+        Sanselan.writeImage(img, out, format, null);
+        return true;
       }
-      out.close();
-      return out.toByteArray();
     } catch (Exception e) {
       LOGGER.error("Failed to process image "+e.getMessage(), e);
     }
-    return null;
+    return false;
   }
 
-
   /**
    * Image scaling routine as prescribed by
    * http://today.java.net/pub/a/today/2007/04/03/perils-of-image-getscaledinstance.html.
@@ -339,6 +508,15 @@ public class CropItProcessor {
     int w = img.getWidth();
     int h = img.getHeight();
 
+    // Decoders can return images with a custom or indexed layout, which can't be
+    // created again or scale badly.
+    int type = img.getType();
+    if (type == BufferedImage.TYPE_CUSTOM || type == BufferedImage.TYPE_BYTE_INDEXED
+        || type == BufferedImage.TYPE_BYTE_BINARY) {
+      type = img.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB
+          : BufferedImage.TYPE_INT_RGB;
+    }
+
     while (w > targetWidth || h > targetHeight) {
       // Bit shifting by one is faster than dividing by 2.
       w >>= 1;
@@ -352,7 +530,7 @@ public class CropItProcessor {
         h = targetHeight;
       }
 
-      BufferedImage tmp = new BufferedImage(w, h, img.getType());
+      BufferedImage tmp = new BufferedImage(w, h, type);
       Graphics2D g2 = tmp.createGraphics();
       g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
           RenderingHints.VALUE_INTERPOLATION_BILINEAR);
@@ -368,4 +546,32 @@ public class CropItProcessor {
 
     return ret;
   }
+
+  /**
+   * A scaled image, written to a temporary file.
+   */
+  protected static class Rendition {
+    protected final int width;
+    protected final int height;
+    protected final String mimeType;
+    /**
+     * The encoded image, or null if the image could not be encoded.
+     */
+    protected File file;
+
+    protected Rendition(int width, int height, String mimeType) {
+      this.width = width;
+      this.height = height;
+      this.mimeType = mimeType;
+    }
+
+    protected void delete() {
+      if (file != null) {
+        if (!file.delete()) {
+          file.deleteOnExit();
+        }
+        file = null;
+      }
+    }
+  }
 }
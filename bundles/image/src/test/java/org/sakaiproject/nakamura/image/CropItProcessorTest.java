@@ -19,23 +19,30 @@ package org.sakaiproject.nakamura.image;
 
 import static org.easymock.EasyMock.expect;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import org.apache.sanselan.ImageFormat;
-import org.apache.sanselan.ImageInfo;
 import org.apache.sanselan.ImageReadException;
-import org.apache.sanselan.ImageWriteException;
 import org.apache.sanselan.Sanselan;
 import org.junit.Before;
 import org.junit.Test;
 import org.sakaiproject.nakamura.api.jcr.JCRConstants;
+import org.sakaiproject.nakamura.image.CropItProcessor.Rendition;
 import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
 
+import java.awt.Color;
 import java.awt.Dimension;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -52,6 +59,12 @@ import javax.jcr.ValueFormatException;
  */
 public class CropItProcessorTest extends AbstractEasyMockTest {
 
+  /**
+   * Decoding a large image takes seconds and a lot of heap, so the time and heap used per
+   * crop are only reported when the image.benchmark system property is true.
+   */
+  private static final boolean BENCHMARK = Boolean.getBoolean("image.benchmark");
+
   private Session session;
   private String img = "/foo/people.png";
   private int x = 0;
@@ -141,19 +154,150 @@ public class CropItProcessorTest extends AbstractEasyMockTest {
   }
 
   @Test
-  public void testscaleAndWriteToStream() throws IOException, ImageWriteException,
-      ImageReadException {
+  public void testscaleAndWriteToStream() throws IOException, ImageReadException {
     InputStream is = getClass().getResourceAsStream("people.png");
     BufferedImage imgBuf = Sanselan.getBufferedImage(is);
     BufferedImage subImage = imgBuf.getSubimage(0, 0, 100, 100);
-    ImageInfo info = new ImageInfo("PNG", 8, null, ImageFormat.IMAGE_FORMAT_PNG, "PNG",
-        256, "image/png", 1, 76, 76, 76, 76, 256, true, true, false, 2, "ZIP");
-    byte[] image = CropItProcessor.scaleAndWriteToByteArray(50, 50, subImage,
-        "people.png", info);
-    InputStream scaledIs = new ByteArrayInputStream(image);
+    BufferedImage scaled = CropItProcessor.getScaledInstance(subImage, 50, 50);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertTrue(CropItProcessor.writeImage(scaled, ImageFormat.IMAGE_FORMAT_PNG, out));
+    InputStream scaledIs = new ByteArrayInputStream(out.toByteArray());
     BufferedImage scaledImage = ImageIO.read(scaledIs);
     assertEquals(scaledImage.getWidth(), 50);
     assertEquals(scaledImage.getHeight(), 50);
   }
 
+  @Test
+  public void testScale() throws IOException, ImageException {
+    List<Dimension> sizes = new ArrayList<Dimension>();
+    sizes.add(new Dimension(20, 20));
+    sizes.add(new Dimension(0, 0));
+    sizes.add(new Dimension(50, 40));
+    InputStream is = getClass().getResourceAsStream("people.png");
+    Rendition[] renditions = CropItProcessor.scale(is, 0, 0, 0, 100, 100, sizes);
+    try {
+      assertEquals(3, renditions.length);
+      assertImage(renditions[0], 20, 20);
+      assertImage(renditions[2], 50, 40);
+      // Full size is the size of the entire image, but never larger than the cut out
+      // piece.
+      assertImage(renditions[1], 100, 100);
+      assertEquals("image/png", renditions[0].mimeType);
+    } finally {
+      for (Rendition rendition : renditions) {
+        rendition.delete();
+      }
+    }
+    assertEquals(CropItProcessor.DECODE_PERMITS.availablePermits(), Math.max(1, Runtime
+        .getRuntime().availableProcessors()));
+  }
+
+  @Test
+  public void testCropOutsideImage() throws IOException {
+    InputStream is = getClass().getResourceAsStream("people.png");
+    try {
+      CropItProcessor.scale(is, 0, 1000, 1000, 10, 10, dimensions);
+      fail("The crop area is outside of the image.");
+    } catch (ImageException e) {
+      assertEquals(400, e.getCode());
+    }
+  }
+
+  /**
+   * Crops a piece out of a JPEG that is larger than any of the renditions.
+   */
+  @Test
+  public void testScaleLargeImage() throws IOException, ImageException {
+    BufferedImage large = new BufferedImage(1600, 1200, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = large.createGraphics();
+    g.setPaint(new GradientPaint(0, 0, Color.RED, 1600, 1200, Color.BLUE));
+    g.fillRect(0, 0, 1600, 1200);
+    g.dispose();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(large, "jpg", out);
+    byte[] jpeg = out.toByteArray();
+
+    List<Dimension> sizes = new ArrayList<Dimension>();
+    sizes.add(new Dimension(256, 256));
+    sizes.add(new Dimension(128, 128));
+    sizes.add(new Dimension(32, 32));
+    Rendition[] renditions = CropItProcessor.scale(new ByteArrayInputStream(jpeg),
+        jpeg.length, 200, 200, 800, 800, sizes);
+    try {
+      assertImage(renditions[0], 256, 256);
+      assertImage(renditions[1], 128, 128);
+      assertImage(renditions[2], 32, 32);
+    } finally {
+      for (Rendition rendition : renditions) {
+        rendition.delete();
+      }
+    }
+  }
+
+  /**
+   * Crops a piece out of a 4000x3000 JPEG and reports the time and heap used per crop.
+   */
+  @Test
+  public void testScaleLargeImageBenchmark() throws IOException, ImageException {
+    if (!BENCHMARK) {
+      return;
+    }
+    BufferedImage large = new BufferedImage(4000, 3000, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = large.createGraphics();
+    g.setPaint(new GradientPaint(0, 0, Color.RED, 4000, 3000, Color.BLUE));
+    g.fillRect(0, 0, 4000, 3000);
+    g.dispose();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(large, "jpg", out);
+    large = null;
+    byte[] jpeg = out.toByteArray();
+
+    List<Dimension> sizes = new ArrayList<Dimension>();
+    sizes.add(new Dimension(256, 256));
+    sizes.add(new Dimension(128, 128));
+    sizes.add(new Dimension(32, 32));
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      resetPeakHeap();
+      long heap = getPeakHeap();
+      long start = System.currentTimeMillis();
+      Rendition[] renditions = CropItProcessor.scale(new ByteArrayInputStream(jpeg),
+          jpeg.length, 500, 500, 2000, 2000, sizes);
+      long time = System.currentTimeMillis() - start;
+      heap = getPeakHeap() - heap;
+      try {
+        assertImage(renditions[0], 256, 256);
+        assertImage(renditions[2], 32, 32);
+      } finally {
+        for (Rendition rendition : renditions) {
+          rendition.delete();
+        }
+      }
+      System.out.println("Cropped a 4000x3000 JPEG in " + time + "ms using "
+          + (heap / 1024) + "KB of heap");
+    }
+  }
+
+  private void assertImage(Rendition rendition, int width, int height) throws IOException {
+    BufferedImage image = ImageIO.read(rendition.file);
+    assertEquals(width, image.getWidth());
+    assertEquals(height, image.getHeight());
+  }
+
+  private void resetPeakHeap() {
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      pool.resetPeakUsage();
+    }
+  }
+
+  private long getPeakHeap() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+
 }
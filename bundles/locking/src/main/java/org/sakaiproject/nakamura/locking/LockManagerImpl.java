@@ -35,6 +35,7 @@ import org.slf4j.LoggerFactory;
 
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A lock manager that uses a cluster replicated cache to manage the locks
@@ -62,6 +63,18 @@ public class LockManagerImpl implements LockManager {
    * debug flag set at service creation.
    */
   private static final boolean debug = LOGGER.isDebugEnabled();
+  /**
+   * The number of stripes in the lock table, must be a power of 2.
+   */
+  private static final int STRIPES = 64;
+  /**
+   * The time to wait for a lock before giving up (ms).
+   */
+  private static final long LOCK_TIMEOUT = 30000L;
+  /**
+   * The longest a waiting thread will park before re-checking the lock map (ms).
+   */
+  private static final long MAX_PARK = 500L;
 
   @Property(value = "The Sakai Foundation")
   static final String SERVICE_VENDOR = "service.vendor";
@@ -100,7 +113,10 @@ public class LockManagerImpl implements LockManager {
       return random.nextLong();
     }
   };
-  private Object monitor = new Object();
+  /**
+   * The lock table stripes, locks are assigned to a stripe by the hash of their id.
+   */
+  private LockStripe[] stripes;
 
   /**
    * @throws NoSuchAlgorithmException
@@ -110,6 +126,10 @@ public class LockManagerImpl implements LockManager {
       throws NoSuchAlgorithmException {
     random = SecureRandom.getInstance("SHA1PRNG");
     instanceId = random.nextLong();
+    stripes = new LockStripe[STRIPES];
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new LockStripe();
+    }
   }
 
   public Lock getLock(String id) {
@@ -117,21 +137,30 @@ public class LockManagerImpl implements LockManager {
   }
 
   /**
+   * Get the lock on an object, without waiting. When create is true and the object is not
+   * locked the current thread is given the lock, unless other threads are queued in
+   * {@link #waitForLock(String)} for it, they are granted the lock first and the lock
+   * returned is not owned by the current thread, or is null if the first of them has not
+   * taken it yet.
+   *
    * @param id
-   * @return
+   * @param create
+   * @return the current lock on the object, or null.
    */
   public Lock getLock(String id, boolean create) {
     LockImpl lock = lockMap.get(id);
     if (create) {
       if (lock == null || !lock.isLocked()) {
-        synchronized (monitor) {
-          lock = lockMap.get(id);
-          if (lock == null || !lock.isLocked()) {
-            Cache<LockImpl> requestLocks = getRequestLocks();
-            lock = new LockImpl(id, random.nextLong(), threadId.get(), instanceId);
-            lockMap.put(id, lock);
-            requestLocks.put(id, lock);
+        LockStripe stripe = getStripe(id);
+        stripe.lock();
+        try {
+          if (stripe.getWaiting(id) == 0) {
+            lock = acquire(id);
+          } else {
+            lock = lockMap.get(id);
           }
+        } finally {
+          stripe.unlock();
         }
       }
     }
@@ -141,6 +170,36 @@ public class LockManagerImpl implements LockManager {
     return lock;
   }
 
+  /**
+   * Get the current lock for the id, creating a new one owned by the current thread if
+   * the object is not locked. Must be called inside the stripe for the id.
+   *
+   * @param id
+   * @return the current lock, which may be owned by another thread.
+   */
+  private LockImpl acquire(String id) {
+    LockImpl lock = lockMap.get(id);
+    if (lock == null || !lock.isLocked()) {
+      Cache<LockImpl> requestLocks = getRequestLocks();
+      lock = new LockImpl(id, random.nextLong(), threadId.get(), instanceId);
+      lockMap.put(id, lock);
+      requestLocks.put(id, lock);
+    }
+    lock.bind(this);
+    return lock;
+  }
+
+  /**
+   * @param id
+   * @return the stripe that guards the lock on id.
+   */
+  private LockStripe getStripe(String id) {
+    int h = id.hashCode();
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return stripes[h & (STRIPES - 1)];
+  }
+
   /**
    * @return
    */
@@ -158,13 +217,35 @@ public class LockManagerImpl implements LockManager {
       if (debug) {
         LOGGER.debug(Thread.currentThread() + " unlocked " + lock.getLocked());
       }
-      lock.setLocked(false);
-      synchronized (monitor) {
-        lockMap.remove(lock.getLocked());
+      LockStripe stripe = getStripe(lock.getLocked());
+      stripe.lock();
+      try {
+        lock.setLocked(false);
+        LockImpl current = lockMap.get(lock.getLocked());
+        if (current == null || current.getLockId() == lock.getLockId()) {
+          lockMap.remove(lock.getLocked());
+        }
+        stripe.signalFirst(lock.getLocked());
+      } finally {
+        stripe.unlock();
       }
     }
   }
 
+  /**
+   * @param id
+   * @return the number of threads waiting for the lock on id.
+   */
+  int getWaiting(String id) {
+    LockStripe stripe = getStripe(id);
+    stripe.lock();
+    try {
+      return stripe.getWaiting(id);
+    } finally {
+      stripe.unlock();
+    }
+  }
+
   /**
    * @return
    */
@@ -180,40 +261,65 @@ public class LockManagerImpl implements LockManager {
   }
 
   /**
-   * {@inheritDoc}
+   * {@inheritDoc} Waiting threads are parked on the stripe for the id and granted the
+   * lock in arrival order as it is released, only the head of the queue being woken. The
+   * wait is re-checked at least every {@link #MAX_PARK} ms so that locks that expire out
+   * of the lock map, or are released on another node, are noticed.
    *
    * @see org.sakaiproject.nakamura.api.locking.LockManager#lock(java.lang.String)
    */
   public Lock waitForLock(String id) throws LockTimeoutException {
-    long sleepTime = 100;
-    int tries = 0;
     if (debug) {
       LOGGER.debug(Thread.currentThread() + " locking " + id);
     }
-    while (tries++ < 300) {
-      Lock lock = getLock(id);
-      if (lock != null && lock.isOwner()) {
-        if (debug) {
-          LOGGER.debug(Thread.currentThread() + " lock Granted " + lock.getLocked());
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LOCK_TIMEOUT);
+    long maxPark = TimeUnit.MILLISECONDS.toNanos(MAX_PARK);
+    boolean interrupted = false;
+    LockStripe stripe = getStripe(id);
+    stripe.lock();
+    try {
+      LockImpl lock = lockMap.get(id);
+      if (lock != null && lock.isLocked()) {
+        lock.bind(this);
+        if (lock.isOwner()) {
+          return lock;
         }
-        return lock;
-      }
-      if (sleepTime < 500) {
-        sleepTime = sleepTime + 10;
       }
+      LockStripe.Waiter waiter = stripe.enqueue(id);
+      boolean granted = false;
       try {
-       
-        if (debug && tries % 5 == 0) {
-          LOGGER.debug(Thread.currentThread() + " locking " + id);
-        }
-        if (tries % 100 == 0) {
-          LOGGER.warn(Thread.currentThread() + " Waiting for " + sleepTime
-              + " ms " + tries);
+        while (true) {
+          if (stripe.isFirst(id, waiter)) {
+            lock = acquire(id);
+            if (lock.isOwner()) {
+              if (debug) {
+                LOGGER.debug(Thread.currentThread() + " lock Granted " + lock.getLocked());
+              }
+              granted = true;
+              return lock;
+            }
+          }
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            break;
+          }
+          try {
+            stripe.await(waiter, Math.min(remaining, maxPark));
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
         }
-        Thread.sleep(sleepTime);
-      } catch (InterruptedException e) {
+      } finally {
+        stripe.dequeue(id, waiter, granted);
+      }
+    } finally {
+      stripe.unlock();
+      if (interrupted) {
+        Thread.currentThread().interrupt();
       }
     }
+    LOGGER.warn(Thread.currentThread() + " Failed to lock " + id + " after "
+        + LOCK_TIMEOUT + " ms");
     throw new LockTimeoutException("Failed to lock node " + id);
   }
 
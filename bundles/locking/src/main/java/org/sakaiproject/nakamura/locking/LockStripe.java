@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One stripe of the lock table. Creation and release of all locks whose ids hash to this
+ * stripe are serialized on the stripe. Threads waiting for a lock are queued per lock id in
+ * arrival order, each parked on its own condition, and only the head of the queue is woken
+ * when the lock is released so that the lock is granted fairly and without a thundering
+ * herd.
+ */
+class LockStripe {
+
+  /**
+   * A thread waiting for a lock.
+   */
+  static class Waiter {
+    /**
+     * The condition the waiting thread is parked on.
+     */
+    private final Condition condition;
+
+    Waiter(Condition condition) {
+      this.condition = condition;
+    }
+  }
+
+  /**
+   * Guards the lock map entries and waiter queues of this stripe.
+   */
+  private final ReentrantLock stripeLock = new ReentrantLock();
+  /**
+   * Waiters, by lock id, in arrival order.
+   */
+  private final Map<String, LinkedList<Waiter>> waiters = new HashMap<String, LinkedList<Waiter>>();
+
+  /**
+   * Enter the stripe.
+   */
+  void lock() {
+    stripeLock.lock();
+  }
+
+  /**
+   * Leave the stripe.
+   */
+  void unlock() {
+    stripeLock.unlock();
+  }
+
+  /**
+   * Queue the current thread as waiting for a lock, must be called inside the stripe.
+   *
+   * @param id
+   *          the id of the object being locked.
+   * @return the queued waiter.
+   */
+  Waiter enqueue(String id) {
+    LinkedList<Waiter> queue = waiters.get(id);
+    if (queue == null) {
+      queue = new LinkedList<Waiter>();
+      waiters.put(id, queue);
+    }
+    Waiter waiter = new Waiter(stripeLock.newCondition());
+    queue.addLast(waiter);
+    return waiter;
+  }
+
+  /**
+   * Remove a waiter from the queue for a lock, must be called inside the stripe. If the
+   * waiter was at the head of the queue and did not get the lock, the next waiter is
+   * woken.
+   *
+   * @param id
+   *          the id of the object being locked.
+   * @param waiter
+   *          the waiter that is no longer waiting.
+   * @param granted
+   *          true if the waiter was granted the lock.
+   */
+  void dequeue(String id, Waiter waiter, boolean granted) {
+    LinkedList<Waiter> queue = waiters.get(id);
+    if (queue != null) {
+      boolean first = queue.getFirst() == waiter;
+      queue.remove(waiter);
+      if (queue.isEmpty()) {
+        waiters.remove(id);
+      } else if (first && !granted) {
+        queue.getFirst().condition.signal();
+      }
+    }
+  }
+
+  /**
+   * @param id
+   *          the id of the object being locked.
+   * @param waiter
+   *          the waiter.
+   * @return true if there is nobody queued ahead of the waiter for the lock.
+   */
+  boolean isFirst(String id, Waiter waiter) {
+    LinkedList<Waiter> queue = waiters.get(id);
+    return queue == null || queue.isEmpty() || queue.getFirst() == waiter;
+  }
+
+  /**
+   * @param id
+   *          the id of the object being locked.
+   * @return the number of threads queued waiting for the lock, must be called inside the
+   *         stripe.
+   */
+  int getWaiting(String id) {
+    LinkedList<Waiter> queue = waiters.get(id);
+    return queue == null ? 0 : queue.size();
+  }
+
+  /**
+   * Park the waiting thread until it is signalled or the timeout elapses, must be called
+   * inside the stripe.
+   *
+   * @param waiter
+   *          the waiter to park.
+   * @param nanos
+   *          the maximum time to wait.
+   * @throws InterruptedException
+   */
+  void await(Waiter waiter, long nanos) throws InterruptedException {
+    waiter.condition.await(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Wake the first thread waiting for a lock, must be called inside the stripe.
+   *
+   * @param id
+   *          the id of the object that was released.
+   */
+  void signalFirst(String id) {
+    LinkedList<Waiter> queue = waiters.get(id);
+    if (queue != null && !queue.isEmpty()) {
+      queue.getFirst().condition.signal();
+    }
+  }
+}
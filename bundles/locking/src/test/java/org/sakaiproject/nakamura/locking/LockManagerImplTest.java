@@ -22,21 +22,42 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.sakaiproject.nakamura.api.locking.Lock;
+import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.CacheManagerServiceImpl;
 import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  *
  */
 public class LockManagerImplTest {
 
+  /**
+   * The throughput runs take several seconds, so they only run when the locking.benchmark
+   * system property is true. They only use the LockManager API, so the same runs can be
+   * made against another implementation to compare them.
+   */
+  private static final boolean BENCHMARK = Boolean.getBoolean("locking.benchmark");
+
+  private static final int BENCHMARK_ACQUISITIONS = 2000;
+
   private Cache<Object> lockCache;
   private Cache<Object> requestCache;
   private CacheManagerService cacheManagerService;
@@ -97,4 +118,211 @@ public class LockManagerImplTest {
     assertEquals(null, lock);
   }
 
+  @Test
+  public void testWaitForLockIsReentrant() throws Exception {
+    Lock l = lockManager.waitForLock("foo");
+    assertEquals(true, l.isOwner());
+    assertEquals(l.getLockId(), lockManager.waitForLock("foo").getLockId());
+    lockManager.clearLocks();
+  }
+
+  @Test
+  public void testWaitForLockContention() throws Exception {
+    final CacheManagerServiceImpl realCacheManager = new CacheManagerServiceImpl();
+    final LockManagerImpl contendedManager = new LockManagerImpl();
+    contendedManager.bindCacheManagerService(realCacheManager);
+    for (int nthreads : new int[] { 1, 4, 16, 64 }) {
+      final AtomicInteger holders = new AtomicInteger();
+      final AtomicInteger overlaps = new AtomicInteger();
+      final AtomicInteger acquired = new AtomicInteger();
+      Thread[] threads = new Thread[nthreads];
+      for (int i = 0; i < nthreads; i++) {
+        threads[i] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              for (int j = 0; j < 100; j++) {
+                contendedManager.waitForLock("contended");
+                if (holders.incrementAndGet() != 1) {
+                  overlaps.incrementAndGet();
+                }
+                holders.decrementAndGet();
+                acquired.incrementAndGet();
+                contendedManager.clearLocks();
+              }
+            } catch (LockTimeoutException e) {
+              // counted as a missing acquisition
+            } finally {
+              realCacheManager.unbind(CacheScope.REQUEST);
+            }
+          }
+        };
+        threads[i].start();
+      }
+      for (Thread t : threads) {
+        t.join();
+      }
+      assertEquals("Lock held by more than one thread", 0, overlaps.get());
+      assertEquals(nthreads * 100, acquired.get());
+    }
+    contendedManager.unbindCacheManagerService(realCacheManager);
+  }
+
+  @Test
+  public void testWaitersGrantedInArrivalOrder() throws Exception {
+    final CacheManagerServiceImpl realCacheManager = new CacheManagerServiceImpl();
+    final LockManagerImpl queuedManager = new LockManagerImpl();
+    queuedManager.bindCacheManagerService(realCacheManager);
+    queuedManager.waitForLock("queued");
+    final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+    final CountDownLatch release = new CountDownLatch(1);
+    Thread[] threads = new Thread[3];
+    for (int i = 0; i < threads.length; i++) {
+      final String name = "waiter" + i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            queuedManager.waitForLock("queued");
+            order.add(name);
+            release.await();
+            queuedManager.clearLocks();
+          } catch (InterruptedException e) {
+            order.add("interrupted");
+          } catch (LockTimeoutException e) {
+            order.add("timeout");
+          } finally {
+            realCacheManager.unbind(CacheScope.REQUEST);
+          }
+        }
+      };
+      threads[i].start();
+      // queue the waiters one at a time so that their arrival order is known.
+      waitForWaiting(queuedManager, "queued", i + 1);
+    }
+
+    // a thread that does not wait must not take the lock ahead of the queue.
+    queuedManager.clearLocks();
+    Lock lock = queuedManager.getLock("queued", true);
+    assertTrue(lock == null || !lock.isOwner());
+    release.countDown();
+
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals(Arrays.asList("waiter0", "waiter1", "waiter2"), order);
+    assertEquals(0, queuedManager.getWaiting("queued"));
+    assertNull(queuedManager.getLock("queued", false));
+    realCacheManager.unbind(CacheScope.REQUEST);
+    queuedManager.unbindCacheManagerService(realCacheManager);
+  }
+
+  @Test
+  public void testReleaseWakesWaiter() throws Exception {
+    final CacheManagerServiceImpl realCacheManager = new CacheManagerServiceImpl();
+    final LockManagerImpl queuedManager = new LockManagerImpl();
+    queuedManager.bindCacheManagerService(realCacheManager);
+    Lock held = queuedManager.waitForLock("released");
+    final Lock[] granted = new Lock[1];
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        try {
+          granted[0] = queuedManager.waitForLock("released");
+        } catch (LockTimeoutException e) {
+          // granted stays null
+        } finally {
+          realCacheManager.unbind(CacheScope.REQUEST);
+        }
+      }
+    };
+    waiter.start();
+    waitForWaiting(queuedManager, "released", 1);
+    queuedManager.unlock((LockImpl) held);
+    waiter.join();
+
+    assertNotNull(granted[0]);
+    assertTrue(granted[0].getLockId() != held.getLockId());
+    assertEquals(0, queuedManager.getWaiting("released"));
+    realCacheManager.unbind(CacheScope.REQUEST);
+    queuedManager.unbindCacheManagerService(realCacheManager);
+  }
+
+  /**
+   * Reports the acquire/release throughput of 1 to 64 threads, all on one lock and each on
+   * a lock of its own. The figures are for comparing implementations, not pass/fail
+   * thresholds.
+   */
+  @Test
+  public void testThroughput() throws Exception {
+    if (!BENCHMARK) {
+      return;
+    }
+    final CacheManagerServiceImpl realCacheManager = new CacheManagerServiceImpl();
+    final LockManagerImpl benchmarkManager = new LockManagerImpl();
+    benchmarkManager.bindCacheManagerService(realCacheManager);
+    for (boolean contended : new boolean[] { true, false }) {
+      for (int nthreads : new int[] { 1, 4, 16, 64 }) {
+        long nanos = acquireAndRelease(benchmarkManager, realCacheManager, nthreads,
+            contended);
+        System.err.println("LockManager " + (contended ? "one lock" : "a lock per thread")
+            + ", " + nthreads + " threads: "
+            + (nthreads * BENCHMARK_ACQUISITIONS * 1000000000L / Math.max(1, nanos))
+            + " acquisitions/s");
+      }
+    }
+    benchmarkManager.unbindCacheManagerService(realCacheManager);
+  }
+
+  /**
+   * @return the time (ns) the threads took to each acquire and release a lock
+   *         {@link #BENCHMARK_ACQUISITIONS} times.
+   */
+  private long acquireAndRelease(final LockManagerImpl manager,
+      final CacheManagerServiceImpl realCacheManager, int nthreads,
+      final boolean contended) throws InterruptedException {
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicInteger acquired = new AtomicInteger();
+    Thread[] threads = new Thread[nthreads];
+    for (int i = 0; i < nthreads; i++) {
+      final String id = contended ? "benchmark" : "benchmark" + i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int j = 0; j < BENCHMARK_ACQUISITIONS; j++) {
+              manager.waitForLock(id);
+              acquired.incrementAndGet();
+              manager.clearLocks();
+            }
+          } catch (InterruptedException e) {
+            // counted as missing acquisitions
+          } catch (LockTimeoutException e) {
+            // counted as missing acquisitions
+          } finally {
+            realCacheManager.unbind(CacheScope.REQUEST);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    long begin = System.nanoTime();
+    start.countDown();
+    for (Thread t : threads) {
+      t.join();
+    }
+    long nanos = System.nanoTime() - begin;
+    assertEquals(nthreads * BENCHMARK_ACQUISITIONS, acquired.get());
+    return nanos;
+  }
+
+  private void waitForWaiting(LockManagerImpl manager, String id, int waiting)
+      throws InterruptedException {
+    for (int i = 0; i < 1000 && manager.getWaiting(id) < waiting; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(waiting, manager.getWaiting(id));
+  }
+
 }
@@ -43,4 +43,13 @@ public interface CacheManagerService {
    * @param scope
    */
   void unbind(CacheScope scope);
+
+  /**
+   * Get the usage statistics for a named cache.
+   *
+   * @param name the name of the cache.
+   * @param scope the scope of the cache.
+   * @return the statistics, or null if no cache of that name and scope has been used.
+   */
+  CacheStatistics getStatistics(String name, CacheScope scope);
 }
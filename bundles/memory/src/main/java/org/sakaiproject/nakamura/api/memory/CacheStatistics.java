@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.memory;
+
+/**
+ * Usage statistics for a named cache. Statistics for REQUEST and THREAD scoped caches are
+ * aggregated over all the requests or threads that used a cache of that name, and include
+ * a request or thread once its scope has been unbound.
+ */
+public interface CacheStatistics {
+
+  /**
+   * The upper bounds (microseconds) of the get latency histogram buckets, the final
+   * bucket holds everything slower than the last bound.
+   */
+  long[] LATENCY_BUCKETS = { 1, 10, 100, 1000, 10000, 100000 };
+
+  /**
+   * @return the name of the cache.
+   */
+  String getName();
+
+  /**
+   * @return the scope of the cache.
+   */
+  CacheScope getScope();
+
+  /**
+   * @return the number of gets that found a value.
+   */
+  long getHits();
+
+  /**
+   * @return the number of gets that did not find a value.
+   */
+  long getMisses();
+
+  /**
+   * @return the number of puts.
+   */
+  long getPuts();
+
+  /**
+   * @return the number of explicit removes.
+   */
+  long getRemoves();
+
+  /**
+   * @return the number of entries evicted or expired by the cache itself, always 0 for
+   *         REQUEST and THREAD scoped caches which are discarded rather than evicted.
+   */
+  long getEvictions();
+
+  /**
+   * @return the number of sampled gets in each latency bucket, see
+   *         {@link #LATENCY_BUCKETS}. Only a sample of the gets is timed.
+   */
+  long[] getGetLatencyHistogram();
+
+  /**
+   * Reset all the counters to 0.
+   */
+  void reset();
+}
@@ -43,6 +43,10 @@ public class CacheImpl<V> implements Cache<V> {
     } else {
       cacheName = name;
     }
+    cache = cacheManager.getCache(cacheName);
+    if (cache != null) {
+      return;
+    }
     synchronized (cacheManager) {
       cache = cacheManager.getCache(cacheName);
       if (cache == null) {
@@ -62,6 +66,7 @@ public class CacheImpl<V> implements Cache<V> {
    */
   public void clear() {
     cache.removeAll();
+    afterClear();
   }
 
   /**
@@ -102,6 +107,7 @@ public class CacheImpl<V> implements Cache<V> {
       }
     }
     cache.put(new Element(key, payload));
+    afterPut(key, payload);
     return previous;
   }
 
@@ -112,6 +118,7 @@ public class CacheImpl<V> implements Cache<V> {
    */
   public void remove(String key) {
     cache.remove(key);
+    afterRemove(key);
   }
 
   /**
@@ -121,6 +128,7 @@ public class CacheImpl<V> implements Cache<V> {
    */
   public void removeChildren(String key) {
     cache.remove(key);
+    afterRemove(key);
     if (!key.endsWith("/")) {
       key = key + "/";
     }
@@ -128,6 +136,7 @@ public class CacheImpl<V> implements Cache<V> {
     for (Object k : keys) {
       if (((String) k).startsWith(key)) {
         cache.remove(k);
+        afterRemove((String) k);
       }
     }
   }
@@ -150,4 +159,44 @@ public class CacheImpl<V> implements Cache<V> {
     return values;
   }
 
+  /**
+   * @return the name of the underlying ehcache.
+   */
+  protected String getName() {
+    return cacheName;
+  }
+
+  /**
+   * @return the underlying ehcache.
+   */
+  protected net.sf.ehcache.Cache getEhcache() {
+    return cache;
+  }
+
+  /**
+   * Invoked after a key has been put into the cache, subclasses may override to propagate
+   * the change.
+   *
+   * @param key
+   * @param payload
+   */
+  protected void afterPut(String key, V payload) {
+  }
+
+  /**
+   * Invoked after a key has been removed from the cache, subclasses may override to
+   * propagate the change.
+   *
+   * @param key
+   */
+  protected void afterRemove(String key) {
+  }
+
+  /**
+   * Invoked after the cache has been cleared, subclasses may override to propagate the
+   * change.
+   */
+  protected void afterClear() {
+  }
+
 }
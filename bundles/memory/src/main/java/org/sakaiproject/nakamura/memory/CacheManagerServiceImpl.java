@@ -22,10 +22,15 @@ import net.sf.ehcache.management.ManagementService;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.memory.CacheStatistics;
 import org.sakaiproject.nakamura.util.ResourceLoader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,16 +38,27 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.management.ManagementFactory;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
+import javax.jms.JMSException;
+import javax.management.JMException;
 import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * The <code>CacheManagerServiceImpl</code>
  */
 @Component(immediate = true, label = "CacheManagerServiceImpl", description = "Implementation of the Cache Manager Service")
 @Service
+@Reference(name = "connectionFactoryService", referenceInterface = ConnectionFactoryService.class, cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC, bind = "bindConnectionFactoryService", unbind = "unbindConnectionFactoryService")
 public class CacheManagerServiceImpl implements CacheManagerService {
 
   @Property(value = "The Sakai Foundation")
@@ -52,11 +68,39 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   static final String SERVICE_DESCRIPTION = "service.description";
 
   private static final String CONFIG_PATH = "res://org/sakaiproject/nakamura/memory/ehcacheConfig.xml";
+  /**
+   * The interval between sends of batched changes to cluster scoped caches (ms).
+   */
+  private static final long CLUSTER_FLUSH_INTERVAL = 100L;
   private static final Logger logger = LoggerFactory.getLogger(CacheManagerServiceImpl.class);
   private CacheManager cacheManager;
-  private Map<String, Cache<?>> caches = new HashMap<String, Cache<?>>();
+  private static final String MBEAN_DOMAIN = "org.sakaiproject.nakamura.memory";
+  private ConcurrentMap<String, Future<Cache<?>>> caches = new ConcurrentHashMap<String, Future<Cache<?>>>();
+  private ConcurrentMap<String, CacheMetrics> metrics = new ConcurrentHashMap<String, CacheMetrics>();
+  private List<ObjectName> registeredMBeans = new CopyOnWriteArrayList<ObjectName>();
   private ThreadLocalCacheMap requestCacheMapHolder = new ThreadLocalCacheMap();
   private ThreadLocalCacheMap threadCacheMapHolder = new ThreadLocalCacheMap();
+  private ClusterCacheTransport clusterTransport;
+
+  /**
+   * Finds the classloader of the code asking for a cache from the calling stack.
+   */
+  private static class CallerClassLoader extends SecurityManager {
+    /**
+     * @return the classloader of the first class on the stack that was not loaded by this
+     *         bundle, or null if there is none.
+     */
+    ClassLoader get() {
+      ClassLoader own = CacheManagerServiceImpl.class.getClassLoader();
+      for (Class<?> c : getClassContext()) {
+        ClassLoader cl = c.getClassLoader();
+        if (cl != null && cl != own) {
+          return cl;
+        }
+      }
+      return null;
+    }
+  }
 
   public CacheManagerServiceImpl() throws IOException {
     create();
@@ -68,6 +112,8 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     InputStream in = ResourceLoader.openResource(CONFIG_PATH, this.getClass().getClassLoader());
     cacheManager = new CacheManager(in);
     in.close();
+    clusterTransport = new ClusterCacheTransport(cacheManager, UUID.randomUUID().toString(),
+        CLUSTER_FLUSH_INTERVAL);
 
     /*
      * Add in a shutdown hook, for safety
@@ -101,6 +147,16 @@ public class CacheManagerServiceImpl implements CacheManagerService {
    * perform a shutdown
    */
   public void stop() {
+    clusterTransport.stop();
+    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    for (ObjectName objectName : registeredMBeans) {
+      try {
+        mBeanServer.unregisterMBean(objectName);
+      } catch (JMException e) {
+        logger.debug(e.getMessage(), e);
+      }
+    }
+    registeredMBeans.clear();
     cacheManager.shutdown();
     // we really want to notify all threads that have maps
   }
@@ -112,18 +168,12 @@ public class CacheManagerServiceImpl implements CacheManagerService {
    */
   public <V> Cache<V> getCache(String name, CacheScope scope) {
     switch (scope) {
-    case INSTANCE:
-      return getInstanceCache(name);
-    case CLUSTERINVALIDATED:
-      return getInstanceCache(name);
-    case CLUSTERREPLICATED:
-      return getInstanceCache(name);
     case REQUEST:
       return getRequestCache(name);
     case THREAD:
       return getThreadCache(name);
     default:
-      return getInstanceCache(name);
+      return getSharedCache(name, scope);
     }
   }
 
@@ -133,13 +183,14 @@ public class CacheManagerServiceImpl implements CacheManagerService {
    * @param name
    * @return
    */
-  @SuppressWarnings("unchecked")
   private <V> Cache<V> getThreadCache(String name) {
-    Map<String, Cache<?>> threadCacheMap = threadCacheMapHolder.get();
-    Cache<V> threadCache = (Cache<V>) threadCacheMap.get(name);
+    ScopedCacheSet threadCacheSet = threadCacheMapHolder.get();
+    Cache<V> threadCache = threadCacheSet.get(name);
     if (threadCache == null) {
-      threadCache = new MapCacheImpl<V>();
-      threadCacheMap.put(name, threadCache);
+      MeasuredCache<V> c = new MeasuredCache<V>(new MapCacheImpl<V>(), getMetrics(name,
+          CacheScope.THREAD, null), true);
+      threadCacheSet.put(name, c);
+      threadCache = c;
     }
     return threadCache;
   }
@@ -150,35 +201,174 @@ public class CacheManagerServiceImpl implements CacheManagerService {
    * @param name
    * @return
    */
-  @SuppressWarnings("unchecked")
   private <V> Cache<V> getRequestCache(String name) {
-    Map<String, Cache<?>> requestCacheMap = requestCacheMapHolder.get();
-    Cache<V> requestCache = (Cache<V>) requestCacheMap.get(name);
+    ScopedCacheSet requestCacheSet = requestCacheMapHolder.get();
+    Cache<V> requestCache = requestCacheSet.get(name);
     if (requestCache == null) {
-      requestCache = new MapCacheImpl<V>();
-      requestCacheMap.put(name, requestCache);
+      MeasuredCache<V> c = new MeasuredCache<V>(new MapCacheImpl<V>(), getMetrics(name,
+          CacheScope.REQUEST, null), true);
+      requestCacheSet.put(name, c);
+      requestCache = c;
     }
     return requestCache;
   }
 
   /**
+   * Get a cache bound to the instance, creating it at most once. Caches bound to the
+   * instance are shared by name, whatever the scope, so the scope of the first request
+   * for a name determines the type of cache.
+   *
    * @param name
+   * @param scope
+   *          INSTANCE, CLUSTERINVALIDATED or CLUSTERREPLICATED
    * @return
    */
   @SuppressWarnings("unchecked")
-  private <V> Cache<V> getInstanceCache(String name) {
+  private <V> Cache<V> getSharedCache(final String name, final CacheScope scope) {
     if (name == null) {
-      return new CacheImpl<V>(cacheManager, null);
+      return newSharedCache(null, scope);
+    }
+    Future<Cache<?>> f = caches.get(name);
+    if (f == null) {
+      FutureTask<Cache<?>> create = new FutureTask<Cache<?>>(new Callable<Cache<?>>() {
+        public Cache<?> call() throws Exception {
+          return newSharedCache(name, scope);
+        }
+      });
+      f = caches.putIfAbsent(name, create);
+      if (f == null) {
+        f = create;
+        create.run();
+      }
+    }
+    try {
+      return (Cache<V>) f.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted waiting for Cache " + name, e);
+    } catch (ExecutionException e) {
+      // let the next caller try again.
+      caches.remove(name, f);
+      throw new RuntimeException("Failed to create Cache " + name, e.getCause());
+    }
+  }
+
+  /**
+   * @param name
+   * @param scope
+   * @return a new cache wrapper of the type required by the scope, recording metrics.
+   */
+  private <V> Cache<V> newSharedCache(String name, CacheScope scope) {
+    CacheImpl<V> c;
+    if (scope == CacheScope.CLUSTERREPLICATED) {
+      c = new ClusterReplicatedCacheImpl<V>(cacheManager, name, clusterTransport);
+      // values from other nodes may arrive before anything is put here.
+      clusterTransport.registerClassLoader(c.getName(), new CallerClassLoader().get());
+    } else if (scope == CacheScope.CLUSTERINVALIDATED) {
+      c = new ClusterInvalidatedCacheImpl<V>(cacheManager, name, clusterTransport);
     } else {
-      Cache<V> c = (Cache<V>) caches.get(name);
-      if (c == null) {
-        c = new CacheImpl<V>(cacheManager, name);
-        caches.put(name, c);
+      c = new CacheImpl<V>(cacheManager, name);
+    }
+    return new MeasuredCache<V>(c, getMetrics(c.getName(), scope, c.getEhcache()));
+  }
+
+  /**
+   * Get the shared metrics for a cache, registering them with JMX on first use.
+   *
+   * @param name
+   * @param scope
+   * @param ehcache
+   *          the backing ehcache, null for request and thread scoped caches.
+   * @return
+   */
+  private CacheMetrics getMetrics(String name, CacheScope scope, net.sf.ehcache.Cache ehcache) {
+    if (name == null) {
+      name = "default";
+    }
+    String key = getMetricsKey(name, scope);
+    CacheMetrics m = metrics.get(key);
+    if (m == null) {
+      CacheMetrics newMetrics = new CacheMetrics(name, scope, ehcache);
+      m = metrics.putIfAbsent(key, newMetrics);
+      if (m == null) {
+        m = newMetrics;
+        registerMetrics(m);
       }
-      return c;
+    }
+    return m;
+  }
+
+  /**
+   * Instance and cluster caches share metrics by name as they share the cache.
+   */
+  private String getMetricsKey(String name, CacheScope scope) {
+    switch (scope) {
+    case REQUEST:
+    case THREAD:
+      return scope.toString() + ":" + name;
+    default:
+      return name;
+    }
+  }
+
+  private void registerMetrics(CacheMetrics m) {
+    try {
+      ObjectName objectName = new ObjectName(MBEAN_DOMAIN + ":type=CacheStatistics,scope="
+          + m.getScopeName() + ",name=" + ObjectName.quote(m.getName()));
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      if (!mBeanServer.isRegistered(objectName)) {
+        mBeanServer.registerMBean(m, objectName);
+        registeredMBeans.add(objectName);
+      }
+    } catch (JMException e) {
+      logger.warn("Unable to register statistics for cache {} with JMX: {} ", m.getName(),
+          e.getMessage());
     }
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheManagerService#getStatistics(java.lang.String,
+   *      org.sakaiproject.nakamura.api.memory.CacheScope)
+   */
+  public CacheStatistics getStatistics(String name, CacheScope scope) {
+    if (name == null) {
+      name = "default";
+    }
+    return metrics.get(getMetricsKey(name, scope));
+  }
+
+  /**
+   * @return the transport used by cluster scoped caches.
+   */
+  ClusterCacheTransport getClusterTransport() {
+    return clusterTransport;
+  }
+
+  /**
+   * Start propagating cluster scoped cache changes over JMS.
+   *
+   * @param connectionFactoryService
+   */
+  protected void bindConnectionFactoryService(
+      ConnectionFactoryService connectionFactoryService) {
+    try {
+      clusterTransport.start(connectionFactoryService.getDefaultConnectionFactory());
+    } catch (JMSException e) {
+      logger.error("Unable to connect cluster caches, they will behave as instance caches: "
+          + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * @param connectionFactoryService
+   */
+  protected void unbindConnectionFactoryService(
+      ConnectionFactoryService connectionFactoryService) {
+    clusterTransport.stop();
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -196,25 +386,18 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   }
 
   /**
-   *
+   * Thread caches are dropped, as the thread is going away.
    */
   private void unbindThread() {
-    Map<String, Cache<?>> threadCache = threadCacheMapHolder.get();
-    for (Cache<?> cache : threadCache.values()) {
-      cache.clear();
-    }
+    threadCacheMapHolder.get().clear();
     threadCacheMapHolder.remove();
   }
 
   /**
-   *
+   * Request caches are cleared in place and kept on the thread for the next request.
    */
   private void unbindRequest() {
-    Map<String, Cache<?>> requestCache = requestCacheMapHolder.get();
-    for (Cache<?> cache : requestCache.values()) {
-      cache.clear();
-    }
-    requestCacheMapHolder.remove();
+    requestCacheMapHolder.get().clear();
   }
 
 }
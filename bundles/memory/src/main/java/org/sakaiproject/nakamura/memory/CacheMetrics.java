@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.memory.CacheStatistics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters for a named cache, shared by every {@link MeasuredCache} of that name and
+ * scope.
+ */
+public class CacheMetrics implements CacheStatistics, CacheMetricsMBean {
+
+  private final String name;
+  private final CacheScope scope;
+  /**
+   * The ehcache backing the cache, if any, which counts its own evictions.
+   */
+  private final net.sf.ehcache.Cache ehcache;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong puts = new AtomicLong();
+  private final AtomicLong removes = new AtomicLong();
+  private final AtomicLongArray latency = new AtomicLongArray(LATENCY_BUCKETS.length + 1);
+  private volatile long evictionsAtReset;
+
+  /**
+   * @param name
+   * @param scope
+   * @param ehcache
+   *          the backing ehcache, or null if the cache is not backed by ehcache.
+   */
+  public CacheMetrics(String name, CacheScope scope, net.sf.ehcache.Cache ehcache) {
+    this.name = name;
+    this.scope = scope;
+    this.ehcache = ehcache;
+  }
+
+  /**
+   * Record a get.
+   *
+   * @param hit
+   *          true if a value was found.
+   */
+  void recordGet(boolean hit) {
+    if (hit) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+    }
+  }
+
+  /**
+   * Record the time taken by a sampled get.
+   *
+   * @param nanos
+   *          the time the get took.
+   */
+  void recordLatency(long nanos) {
+    long micros = nanos / 1000L;
+    int bucket = 0;
+    while (bucket < LATENCY_BUCKETS.length && micros >= LATENCY_BUCKETS[bucket]) {
+      bucket++;
+    }
+    latency.incrementAndGet(bucket);
+  }
+
+  /**
+   * Record the use counted by a cache confined to one thread.
+   */
+  void recordCounts(long hitCount, long missCount, long putCount, long removeCount) {
+    hits.addAndGet(hitCount);
+    misses.addAndGet(missCount);
+    puts.addAndGet(putCount);
+    removes.addAndGet(removeCount);
+  }
+
+  void recordPut() {
+    puts.incrementAndGet();
+  }
+
+  void recordRemove() {
+    removes.incrementAndGet();
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public CacheScope getScope() {
+    return scope;
+  }
+
+  public String getScopeName() {
+    return scope.toString();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public double getHitRatio() {
+    long h = hits.get();
+    long total = h + misses.get();
+    if (total == 0) {
+      return 0.0;
+    }
+    return (double) h / (double) total;
+  }
+
+  public long getPuts() {
+    return puts.get();
+  }
+
+  public long getRemoves() {
+    return removes.get();
+  }
+
+  public long getEvictions() {
+    if (ehcache == null) {
+      return 0;
+    }
+    return ehcache.getStatistics().getEvictionCount() - evictionsAtReset;
+  }
+
+  public long[] getGetLatencyHistogram() {
+    long[] histogram = new long[latency.length()];
+    for (int i = 0; i < histogram.length; i++) {
+      histogram[i] = latency.get(i);
+    }
+    return histogram;
+  }
+
+  public long[] getGetLatencyBucketsMicros() {
+    long[] buckets = new long[LATENCY_BUCKETS.length];
+    System.arraycopy(LATENCY_BUCKETS, 0, buckets, 0, buckets.length);
+    return buckets;
+  }
+
+  public void reset() {
+    hits.set(0);
+    misses.set(0);
+    puts.set(0);
+    removes.set(0);
+    for (int i = 0; i < latency.length(); i++) {
+      latency.set(i, 0);
+    }
+    if (ehcache != null) {
+      evictionsAtReset = ehcache.getStatistics().getEvictionCount();
+    }
+  }
+}
@@ -15,37 +15,41 @@
  * KIND, either express or implied. See the License for the
  * specific language governing permissions and limitations under the License.
  */
-package org.sakaiproject.nakamura.site;
-
-import java.util.Map;
+package org.sakaiproject.nakamura.memory;
 
 /**
- * 
+ * JMX view of the statistics of a named cache.
  */
-public class MembershipTree {
+public interface CacheMetricsMBean {
+
+  String getName();
+
+  String getScopeName();
 
-  private Map<GroupKey, Membership> groups;
-  private Map<UserKey, Membership> users;
+  long getHits();
+
+  long getMisses();
 
   /**
-   * @param groups
-   * @param users
+   * @return hits / (hits + misses), 0 if there have been no gets.
    */
-  public MembershipTree(Map<GroupKey, Membership> groups, Map<UserKey, Membership> users) {
-    this.groups = groups;
-    this.users = users;
-  }
+  double getHitRatio();
+
+  long getPuts();
+
+  long getRemoves();
+
+  long getEvictions();
+
   /**
-   * @return the groups
+   * @return the number of sampled gets in each latency bucket, one get in 16 is timed.
    */
-  public Map<GroupKey, Membership> getGroups() {
-    return groups;
-  }
+  long[] getGetLatencyHistogram();
+
   /**
-   * @return the users
+   * @return the upper bounds of the latency buckets in microseconds.
    */
-  public Map<UserKey, Membership> getUsers() {
-    return users;
-  }
+  long[] getGetLatencyBucketsMicros();
 
+  void reset();
 }
@@ -0,0 +1,757 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.Topic;
+
+/**
+ * Propagates changes to cluster scoped caches between nodes over a JMS topic. Changes are
+ * queued and coalesced per cache, and flushed by a single background thread at a fixed
+ * interval, so a burst of changes to a cache becomes one message per cache per interval.
+ * Messages from other nodes are applied directly to the local ehcache, bypassing the
+ * {@link CacheImpl} wrappers so that they are not re-broadcast.
+ *
+ * If sending fails, the changes that were not sent are kept for the next flush and the
+ * connection is reopened before it, so a broker restart delays changes rather than losing
+ * them.
+ *
+ * When not started, all operations are discarded and the cluster scoped caches behave as
+ * instance caches.
+ */
+public class ClusterCacheTransport implements MessageListener {
+
+  /**
+   * The topic that cache changes are published on.
+   */
+  public static final String TOPIC = "org/sakaiproject/nakamura/memory/cluster";
+  /**
+   * The message property holding the node that sent the message.
+   */
+  static final String ORIGIN = "origin";
+  /**
+   * Remove the keys in the message.
+   */
+  static final byte OP_INVALIDATE = 1;
+  /**
+   * Remove everything in the cache.
+   */
+  static final byte OP_CLEAR = 2;
+  /**
+   * Put or remove the versioned entries in the message.
+   */
+  static final byte OP_REPLICATE = 3;
+  /**
+   * The maximum number of keys sent in a single message.
+   */
+  private static final int MAX_BATCH = 500;
+  /**
+   * The maximum number of keys held for a single cache while they can't be sent, beyond
+   * which the changes are replaced by a clear of the cache.
+   */
+  private static final int MAX_PENDING = 10000;
+  /**
+   * The maximum number of removals remembered, so that a put older than the removal that
+   * arrives after it is dropped.
+   */
+  private static final int MAX_TOMBSTONES = 10000;
+  /**
+   * The packages that replicated values, and everything they reference, may come from.
+   * Anything else in a message is refused rather than instantiated.
+   */
+  private static final String[] ALLOWED_PACKAGES = new String[] { "java.lang.",
+      "java.util.", "java.math.", "org.sakaiproject.nakamura." };
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ClusterCacheTransport.class);
+
+  /**
+   * Changes to a single cache waiting to be sent.
+   */
+  private static class PendingBatch {
+    private boolean clear;
+    private Set<String> invalidations = new LinkedHashSet<String>();
+    /**
+     * Replicated entries by key, a null value is a replicated removal.
+     */
+    private Map<String, VersionedValue> replications = new LinkedHashMap<String, VersionedValue>();
+  }
+
+  private final CacheManager cacheManager;
+  private final String nodeId;
+  private final long flushInterval;
+  /**
+   * The low bits of every version generated by this node, to break ties between nodes.
+   */
+  private final long versionSalt;
+  private final Object clockLock = new Object();
+  private long clock;
+
+  private final Object pendingLock = new Object();
+  private Map<String, PendingBatch> pending = new HashMap<String, PendingBatch>();
+  /**
+   * The classloaders that can resolve the values of each replicated cache, registered when
+   * the cache is created and updated from the values put locally.
+   */
+  private final Map<String, ClassLoader> loaders = new ConcurrentHashMap<String, ClassLoader>();
+  /**
+   * The version of the last removal of each key, by cache name and key, least recently
+   * removed first.
+   */
+  private final Map<String, Long> tombstones = new LinkedHashMap<String, Long>() {
+    private static final long serialVersionUID = -3781466227327263541L;
+
+    @Override
+    protected boolean removeEldestEntry(Entry<String, Long> eldest) {
+      return size() > MAX_TOMBSTONES;
+    }
+  };
+
+  private volatile boolean started;
+  /**
+   * Set when the connection has failed, the flusher reconnects before sending.
+   */
+  private volatile boolean connectionFailed;
+  private final Object connectionLock = new Object();
+  private ConnectionFactory connectionFactory;
+  private Connection connection;
+  private Session publishSession;
+  private MessageProducer producer;
+  private Session consumerSession;
+  private ScheduledExecutorService flusher;
+
+  private final AtomicLong messagesSent = new AtomicLong();
+  private final AtomicLong messagesReceived = new AtomicLong();
+
+  /**
+   * @param cacheManager
+   *          the cache manager holding the local caches.
+   * @param nodeId
+   *          the unique id of this node.
+   * @param flushInterval
+   *          the interval between flushes of pending changes (ms).
+   */
+  public ClusterCacheTransport(CacheManager cacheManager, String nodeId, long flushInterval) {
+    this.cacheManager = cacheManager;
+    this.nodeId = nodeId;
+    this.flushInterval = flushInterval;
+    this.versionSalt = nodeId.hashCode() & 0xff;
+  }
+
+  /**
+   * Connect to the JMS topic and start flushing changes.
+   *
+   * @param connectionFactory
+   * @throws JMSException
+   */
+  public synchronized void start(ConnectionFactory connectionFactory) throws JMSException {
+    if (started) {
+      return;
+    }
+    synchronized (connectionLock) {
+      this.connectionFactory = connectionFactory;
+      connect();
+    }
+
+    flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Cluster Cache Flusher " + nodeId);
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    flusher.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        flush();
+      }
+    }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    started = true;
+    LOGGER.info("Cluster cache transport started for node {} ", nodeId);
+  }
+
+  /**
+   * Open the connection, the publisher and the consumer. must be called holding the
+   * connectionLock.
+   *
+   * @throws JMSException
+   */
+  private void connect() throws JMSException {
+    connection = connectionFactory.createConnection();
+    try {
+      connection.setExceptionListener(new ExceptionListener() {
+        public void onException(JMSException e) {
+          LOGGER.warn("Cluster cache connection failed, reconnecting: {} ", e.getMessage());
+          LOGGER.debug(e.getMessage(), e);
+          connectionFailed = true;
+        }
+      });
+      publishSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      Topic topic = publishSession.createTopic(TOPIC);
+      producer = publishSession.createProducer(topic);
+      producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+
+      consumerSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      MessageConsumer consumer = consumerSession.createConsumer(consumerSession
+          .createTopic(TOPIC), ORIGIN + " <> '" + nodeId + "'");
+      consumer.setMessageListener(this);
+      connection.start();
+      connectionFailed = false;
+    } catch (JMSException e) {
+      closeConnection();
+      throw e;
+    }
+  }
+
+  /**
+   * Replace a failed connection.
+   *
+   * @return true if connected.
+   */
+  private boolean reconnect() {
+    synchronized (connectionLock) {
+      closeConnection();
+      try {
+        connect();
+        LOGGER.info("Cluster cache transport reconnected for node {} ", nodeId);
+        return true;
+      } catch (JMSException e) {
+        LOGGER.debug("Unable to reconnect cluster caches: {} ", e.getMessage());
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Flush any pending changes and disconnect.
+   */
+  public synchronized void stop() {
+    if (!started) {
+      return;
+    }
+    started = false;
+    flusher.shutdown();
+    try {
+      flusher.awaitTermination(flushInterval * 10, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+    synchronized (connectionLock) {
+      closeConnection();
+      connectionFactory = null;
+    }
+    LOGGER.info("Cluster cache transport stopped for node {}, sent {} received {} ",
+        new Object[] { nodeId, messagesSent, messagesReceived });
+  }
+
+  /**
+   * @return true if changes are being propagated.
+   */
+  public boolean isStarted() {
+    return started;
+  }
+
+  /**
+   * @return the number of messages sent by this node.
+   */
+  public long getMessagesSent() {
+    return messagesSent.get();
+  }
+
+  /**
+   * @return the number of messages received from other nodes.
+   */
+  public long getMessagesReceived() {
+    return messagesReceived.get();
+  }
+
+  /**
+   * Register the classloader that can resolve the values of a replicated cache, so that
+   * values replicated from other nodes can be read before anything has been put locally.
+   *
+   * @param cacheName
+   * @param classLoader
+   *          the classloader of the code using the cache, ignored if null.
+   */
+  public void registerClassLoader(String cacheName, ClassLoader classLoader) {
+    if (classLoader != null) {
+      loaders.put(cacheName, classLoader);
+    }
+  }
+
+  /**
+   * @return the next version for a replicated entry, greater than any version seen by this
+   *         node.
+   */
+  public long nextVersion() {
+    synchronized (clockLock) {
+      clock = Math.max(clock + 1, System.currentTimeMillis());
+      return (clock << 8) | versionSalt;
+    }
+  }
+
+  /**
+   * @param version
+   *          a version received from another node.
+   */
+  private void observeVersion(long version) {
+    synchronized (clockLock) {
+      clock = Math.max(clock, version >>> 8);
+    }
+  }
+
+  /**
+   * Queue the invalidation of a key on other nodes.
+   *
+   * @param cacheName
+   * @param key
+   */
+  public void invalidate(String cacheName, String key) {
+    if (started) {
+      synchronized (pendingLock) {
+        limit(getBatch(cacheName)).invalidations.add(key);
+      }
+    }
+  }
+
+  /**
+   * Queue the clearing of a cache on other nodes.
+   *
+   * @param cacheName
+   */
+  public void clear(String cacheName) {
+    if (started) {
+      synchronized (pendingLock) {
+        PendingBatch batch = getBatch(cacheName);
+        batch.invalidations.clear();
+        batch.replications.clear();
+        batch.clear = true;
+      }
+    }
+  }
+
+  /**
+   * Queue the replication of a value to other nodes, if a later change to the same key is
+   * queued before the next flush only the later change is sent.
+   *
+   * @param cacheName
+   * @param key
+   * @param value
+   *          the value, or null to replicate a removal.
+   * @param version
+   *          the version from {@link #nextVersion()}
+   */
+  public void replicate(String cacheName, String key, Object value, long version) {
+    if (started) {
+      if (value == null) {
+        recordRemoval(cacheName, key, version);
+      } else {
+        ClassLoader classLoader = value.getClass().getClassLoader();
+        if (classLoader != null && loaders.get(cacheName) != classLoader) {
+          loaders.put(cacheName, classLoader);
+        }
+      }
+      synchronized (pendingLock) {
+        limit(getBatch(cacheName)).replications.put(key, new VersionedValue(value, version));
+      }
+    }
+  }
+
+  /**
+   * Remember the version of a removal, keeping the latest if the key has been removed
+   * before.
+   */
+  private void recordRemoval(String cacheName, String key, long version) {
+    String tombstone = cacheName + '\n' + key;
+    synchronized (tombstones) {
+      Long removed = tombstones.remove(tombstone);
+      tombstones.put(tombstone, removed == null ? version : Math.max(removed, version));
+    }
+  }
+
+  /**
+   * @return true if the key has been removed at a version later than the one given.
+   */
+  private boolean isRemovedAfter(String cacheName, String key, long version) {
+    synchronized (tombstones) {
+      Long removed = tombstones.get(cacheName + '\n' + key);
+      return removed != null && removed > version;
+    }
+  }
+
+  /**
+   * must be called holding the pendingLock.
+   */
+  private PendingBatch getBatch(String cacheName) {
+    PendingBatch batch = pending.get(cacheName);
+    if (batch == null) {
+      batch = new PendingBatch();
+      pending.put(cacheName, batch);
+    }
+    return batch;
+  }
+
+  /**
+   * Replace the changes in a batch that has reached {@link #MAX_PENDING} keys by a clear,
+   * which only happens when changes can't be sent. must be called holding the pendingLock.
+   */
+  private PendingBatch limit(PendingBatch batch) {
+    if (batch.invalidations.size() + batch.replications.size() >= MAX_PENDING) {
+      batch.invalidations.clear();
+      batch.replications.clear();
+      batch.clear = true;
+    }
+    return batch;
+  }
+
+  /**
+   * Put changes that could not be sent back in front of the changes queued since, a
+   * change queued since replaces an unsent change to the same key and a clear queued since
+   * replaces all of them.
+   */
+  private void requeue(Map<String, PendingBatch> unsent) {
+    synchronized (pendingLock) {
+      for (Entry<String, PendingBatch> e : unsent.entrySet()) {
+        PendingBatch batch = e.getValue();
+        PendingBatch later = pending.get(e.getKey());
+        if (later != null) {
+          if (later.clear) {
+            continue;
+          }
+          batch.invalidations.addAll(later.invalidations);
+          batch.replications.putAll(later.replications);
+        }
+        pending.put(e.getKey(), limit(batch));
+      }
+    }
+  }
+
+  /**
+   * Send all pending changes, one message per cache per operation (split into batches of
+   * at most {@link #MAX_BATCH} keys). Only ever called from the flusher thread, or once
+   * the flusher thread has stopped, so the publish session is not shared.
+   */
+  void flush() {
+    if (connectionFailed && !reconnect()) {
+      // keep the changes until the connection is back.
+      return;
+    }
+    Map<String, PendingBatch> toSend;
+    synchronized (pendingLock) {
+      if (pending.isEmpty()) {
+        return;
+      }
+      toSend = pending;
+      pending = new HashMap<String, PendingBatch>();
+    }
+    Iterator<Entry<String, PendingBatch>> batches = toSend.entrySet().iterator();
+    try {
+      while (batches.hasNext()) {
+        Entry<String, PendingBatch> e = batches.next();
+        String cacheName = e.getKey();
+        PendingBatch batch = e.getValue();
+        if (batch.clear) {
+          send(OP_CLEAR, cacheName, new ArrayList<String>(), null);
+        }
+        List<String> keys = new ArrayList<String>(batch.invalidations);
+        for (int i = 0; i < keys.size(); i += MAX_BATCH) {
+          send(OP_INVALIDATE, cacheName, keys.subList(i, Math.min(keys.size(), i
+              + MAX_BATCH)), null);
+        }
+        keys = new ArrayList<String>(batch.replications.keySet());
+        for (int i = 0; i < keys.size(); i += MAX_BATCH) {
+          send(OP_REPLICATE, cacheName, keys.subList(i, Math.min(keys.size(), i
+              + MAX_BATCH)), batch.replications);
+        }
+        batches.remove();
+      }
+    } catch (JMSException e) {
+      // the batch that failed is sent again in full, which is safe as invalidations can be
+      // repeated and replications are versioned.
+      LOGGER.warn("Failed to send cache changes to the cluster, {} caches will be "
+          + "sent again: {} ", toSend.size(), e.getMessage());
+      LOGGER.debug(e.getMessage(), e);
+      connectionFailed = true;
+      requeue(toSend);
+    }
+  }
+
+  /**
+   * Encode and send one message. Values that can't be serialized are sent as removals so
+   * that other nodes at least drop their stale copy.
+   */
+  private void send(byte op, String cacheName, List<String> keys,
+      Map<String, VersionedValue> values) throws JMSException {
+    BytesMessage message = publishSession.createBytesMessage();
+    message.setStringProperty(ORIGIN, nodeId);
+    message.writeByte(op);
+    message.writeUTF(cacheName);
+    message.writeInt(keys.size());
+    for (String key : keys) {
+      message.writeUTF(key);
+      if (values != null) {
+        VersionedValue value = values.get(key);
+        message.writeLong(value.getVersion());
+        byte[] bytes = null;
+        try {
+          bytes = serialize(cacheName, key, value.getValue());
+        } catch (IOException e) {
+          LOGGER.warn("Failed to encode {} in cache {}, replicating as a removal: {} ",
+              new Object[] { key, cacheName, e.getMessage() });
+        }
+        if (bytes == null) {
+          message.writeInt(-1);
+        } else {
+          message.writeInt(bytes.length);
+          message.writeBytes(bytes);
+        }
+      }
+    }
+    producer.send(message);
+    messagesSent.incrementAndGet();
+  }
+
+  private byte[] serialize(String cacheName, String key, Object value) throws IOException {
+    if (value == null) {
+      return null;
+    }
+    if (!(value instanceof Serializable)) {
+      LOGGER.warn("Value for {} in cache {} is not serializable, replicating as a removal",
+          key, cacheName);
+      return null;
+    }
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(baos);
+    oos.writeObject(value);
+    oos.close();
+    return baos.toByteArray();
+  }
+
+  /**
+   * {@inheritDoc} Apply a batch of changes from another node to the local caches.
+   *
+   * @see javax.jms.MessageListener#onMessage(javax.jms.Message)
+   */
+  public void onMessage(Message message) {
+    if (!(message instanceof BytesMessage)) {
+      return;
+    }
+    try {
+      BytesMessage bytesMessage = (BytesMessage) message;
+      byte op = bytesMessage.readByte();
+      String cacheName = bytesMessage.readUTF();
+      int n = bytesMessage.readInt();
+      messagesReceived.incrementAndGet();
+      net.sf.ehcache.Cache cache = cacheManager.getCache(cacheName);
+      if (cache == null) {
+        // not in use on this node.
+        return;
+      }
+      switch (op) {
+      case OP_CLEAR:
+        cache.removeAll();
+        break;
+      case OP_INVALIDATE:
+        for (int i = 0; i < n; i++) {
+          cache.remove(bytesMessage.readUTF());
+        }
+        break;
+      case OP_REPLICATE:
+        for (int i = 0; i < n; i++) {
+          String key = bytesMessage.readUTF();
+          long version = bytesMessage.readLong();
+          int len = bytesMessage.readInt();
+          byte[] bytes = null;
+          if (len >= 0) {
+            bytes = new byte[len];
+            bytesMessage.readBytes(bytes);
+          }
+          applyReplication(cache, cacheName, key, version, bytes);
+        }
+        break;
+      default:
+        LOGGER.warn("Unknown cache operation {} from {} ", op, message
+            .getStringProperty(ORIGIN));
+      }
+    } catch (JMSException e) {
+      LOGGER.warn("Failed to apply cache changes from the cluster: {} ", e.getMessage());
+      LOGGER.debug(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Apply a replicated entry if it is newer than the local one and than any removal of the
+   * key seen here. Removals are remembered so that an older put arriving late does not
+   * bring the entry back. If the value can't be deserialized here the local entry is
+   * removed instead.
+   */
+  private void applyReplication(net.sf.ehcache.Cache cache, String cacheName, String key,
+      long version, byte[] bytes) {
+    observeVersion(version);
+    Element current = cache.getQuiet(key);
+    if (current != null && current.getObjectValue() instanceof VersionedValue
+        && ((VersionedValue) current.getObjectValue()).getVersion() > version) {
+      return;
+    }
+    if (isRemovedAfter(cacheName, key, version)) {
+      return;
+    }
+    Object value = null;
+    if (bytes == null) {
+      recordRemoval(cacheName, key, version);
+    } else {
+      try {
+        value = deserialize(cacheName, bytes);
+      } catch (IOException e) {
+        LOGGER.debug("Unable to deserialize replicated value for {} in {}: {} ",
+            new Object[] { key, cacheName, e.getMessage() });
+      } catch (ClassNotFoundException e) {
+        LOGGER.debug("Unable to deserialize replicated value for {} in {}: {} ",
+            new Object[] { key, cacheName, e.getMessage() });
+      }
+    }
+    if (value == null) {
+      cache.remove(key);
+    } else {
+      cache.put(new Element(key, new VersionedValue(value, version)));
+    }
+  }
+
+  /**
+   * Read a replicated value, refusing any class outside {@link #ALLOWED_PACKAGES} and any
+   * proxy class before it is loaded.
+   */
+  private Object deserialize(String cacheName, byte[] bytes) throws IOException,
+      ClassNotFoundException {
+    final ClassLoader classLoader = loaders.get(cacheName);
+    InputStream in = new ByteArrayInputStream(bytes);
+    ObjectInputStream ois = new ObjectInputStream(in) {
+      @Override
+      protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException,
+          ClassNotFoundException {
+        if (!isAllowed(desc.getName())) {
+          throw new InvalidClassException(desc.getName(), "not allowed in a replicated cache");
+        }
+        if (classLoader != null) {
+          try {
+            return Class.forName(desc.getName(), false, classLoader);
+          } catch (ClassNotFoundException e) {
+            LOGGER.debug("Falling back to default resolution for {} ", desc.getName());
+          }
+        }
+        return super.resolveClass(desc);
+      }
+
+      @Override
+      protected Class<?> resolveProxyClass(String[] interfaces) throws IOException,
+          ClassNotFoundException {
+        throw new InvalidClassException("proxy", "not allowed in a replicated cache");
+      }
+    };
+    try {
+      return ois.readObject();
+    } finally {
+      ois.close();
+    }
+  }
+
+  /**
+   * @param className
+   *          a class name as written in a serialized stream.
+   * @return true if instances of the class may be read from another node.
+   */
+  static boolean isAllowed(String className) {
+    String name = className;
+    if (name.startsWith("[")) {
+      while (name.startsWith("[")) {
+        name = name.substring(1);
+      }
+      if (name.length() == 1) {
+        // an array of primitives.
+        return true;
+      }
+      if (name.startsWith("L") && name.endsWith(";")) {
+        name = name.substring(1, name.length() - 1);
+      }
+    }
+    for (String allowed : ALLOWED_PACKAGES) {
+      if (name.startsWith(allowed)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * must be called holding the connectionLock.
+   */
+  private void closeConnection() {
+    try {
+      if (connection != null) {
+        connection.close();
+      }
+    } catch (JMSException e) {
+      LOGGER.debug(e.getMessage(), e);
+    }
+    connection = null;
+    publishSession = null;
+    consumerSession = null;
+    producer = null;
+  }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import net.sf.ehcache.CacheManager;
+
+/**
+ * A cache local to this node whose changes invalidate the same keys on the other nodes in
+ * the cluster. Values are never sent, other nodes reload them on their next miss.
+ */
+public class ClusterInvalidatedCacheImpl<V> extends CacheImpl<V> {
+
+  private ClusterCacheTransport transport;
+
+  /**
+   * @param cacheManager
+   * @param name
+   * @param transport
+   */
+  public ClusterInvalidatedCacheImpl(CacheManager cacheManager, String name,
+      ClusterCacheTransport transport) {
+    super(cacheManager, name);
+    this.transport = transport;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#afterPut(java.lang.String,
+   *      java.lang.Object)
+   */
+  @Override
+  protected void afterPut(String key, V payload) {
+    transport.invalidate(getName(), key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#afterRemove(java.lang.String)
+   */
+  @Override
+  protected void afterRemove(String key) {
+    transport.invalidate(getName(), key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#afterClear()
+   */
+  @Override
+  protected void afterClear() {
+    transport.clear(getName());
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A cache whose values are replicated to all the nodes in the cluster. Each value is held
+ * as a {@link VersionedValue} so that a replicated change only replaces an older local
+ * value.
+ */
+public class ClusterReplicatedCacheImpl<V> extends CacheImpl<V> {
+
+  private ClusterCacheTransport transport;
+
+  /**
+   * @param cacheManager
+   * @param name
+   * @param transport
+   */
+  public ClusterReplicatedCacheImpl(CacheManager cacheManager, String name,
+      ClusterCacheTransport transport) {
+    super(cacheManager, name);
+    this.transport = transport;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#get(java.lang.String)
+   */
+  @Override
+  public V get(String key) {
+    return unwrap(getEhcache().get(key));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#put(java.lang.String,
+   *      java.lang.Object)
+   */
+  @Override
+  public V put(String key, V payload) {
+    long version = transport.nextVersion();
+    V previous = unwrap(getEhcache().get(key));
+    getEhcache().put(new Element(key, new VersionedValue(payload, version)));
+    transport.replicate(getName(), key, payload, version);
+    return previous;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#list()
+   */
+  @SuppressWarnings("unchecked")
+  @Override
+  public List<V> list() {
+    List<String> keys = getEhcache().getKeys();
+    List<V> values = new ArrayList<V>();
+    for (String k : keys) {
+      Element e = getEhcache().get(k);
+      if (e != null) {
+        values.add(unwrap(e));
+      }
+    }
+    return values;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#afterRemove(java.lang.String)
+   */
+  @Override
+  protected void afterRemove(String key) {
+    transport.replicate(getName(), key, null, transport.nextVersion());
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.memory.CacheImpl#afterClear()
+   */
+  @Override
+  protected void afterClear() {
+    transport.clear(getName());
+  }
+
+  @SuppressWarnings("unchecked")
+  private V unwrap(Element e) {
+    if (e == null) {
+      return null;
+    }
+    Object o = e.getObjectValue();
+    if (o instanceof VersionedValue) {
+      return (V) ((VersionedValue) o).getValue();
+    }
+    return (V) o;
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+
+import java.util.List;
+
+/**
+ * Wraps a cache, recording its use in the {@link CacheMetrics} for its name and scope.
+ * Only one get in {@link #TIMING_SAMPLE} is timed. A cache confined to one thread counts
+ * its use in plain fields and adds them to the shared metrics when {@link #flushMetrics()}
+ * is called at the end of the scope, so that REQUEST and THREAD caches do not contend on
+ * the shared counters.
+ */
+public class MeasuredCache<V> implements Cache<V> {
+
+  /**
+   * Time one get in this many, must be a power of 2.
+   */
+  static final int TIMING_SAMPLE = 16;
+
+  private final Cache<V> delegate;
+  private final CacheMetrics metrics;
+  private final boolean confined;
+  /**
+   * Gets since creation, only used to pick the gets to time, so an occasional lost update
+   * on a shared cache does not matter.
+   */
+  private int gets;
+  private long hits;
+  private long misses;
+  private long puts;
+  private long removes;
+
+  /**
+   * @param delegate
+   *          the cache holding the values.
+   * @param metrics
+   *          the metrics to record use in.
+   */
+  public MeasuredCache(Cache<V> delegate, CacheMetrics metrics) {
+    this(delegate, metrics, false);
+  }
+
+  /**
+   * @param delegate
+   *          the cache holding the values.
+   * @param metrics
+   *          the metrics to record use in.
+   * @param confined
+   *          true if the cache is only used by one thread, in which case use is only
+   *          recorded in the metrics by {@link #flushMetrics()}.
+   */
+  public MeasuredCache(Cache<V> delegate, CacheMetrics metrics, boolean confined) {
+    this.delegate = delegate;
+    this.metrics = metrics;
+    this.confined = confined;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#get(java.lang.String)
+   */
+  public V get(String key) {
+    V value;
+    if ((++gets & (TIMING_SAMPLE - 1)) == 0) {
+      long start = System.nanoTime();
+      value = delegate.get(key);
+      metrics.recordLatency(System.nanoTime() - start);
+    } else {
+      value = delegate.get(key);
+    }
+    if (!confined) {
+      metrics.recordGet(value != null);
+    } else if (value != null) {
+      hits++;
+    } else {
+      misses++;
+    }
+    return value;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#put(java.lang.String, java.lang.Object)
+   */
+  public V put(String key, V payload) {
+    if (confined) {
+      puts++;
+    } else {
+      metrics.recordPut();
+    }
+    return delegate.put(key, payload);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#containsKey(java.lang.String)
+   */
+  public boolean containsKey(String key) {
+    return delegate.containsKey(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#remove(java.lang.String)
+   */
+  public void remove(String key) {
+    if (confined) {
+      removes++;
+    } else {
+      metrics.recordRemove();
+    }
+    delegate.remove(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#removeChildren(java.lang.String)
+   */
+  public void removeChildren(String key) {
+    if (confined) {
+      removes++;
+    } else {
+      metrics.recordRemove();
+    }
+    delegate.removeChildren(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#clear()
+   */
+  public void clear() {
+    delegate.clear();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#list()
+   */
+  public List<V> list() {
+    return delegate.list();
+  }
+
+  /**
+   * Add the use counted by a confined cache to the shared metrics, and start counting
+   * again. Must be called by the thread using the cache.
+   */
+  public void flushMetrics() {
+    if (confined && (hits | misses | puts | removes) != 0) {
+      metrics.recordCounts(hits, misses, puts, removes);
+      hits = 0;
+      misses = 0;
+      puts = 0;
+      removes = 0;
+    }
+  }
+
+  /**
+   * @return the cache holding the values.
+   */
+  public Cache<V> getDelegate() {
+    return delegate;
+  }
+
+  /**
+   * @return the metrics for this cache.
+   */
+  public CacheMetrics getMetrics() {
+    return metrics;
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The REQUEST or THREAD scoped caches of one thread. The set is kept for the life of the
+ * thread. The handful of well known caches are held in fixed slots and cleared in place
+ * when the scope is unbound, so that a thread serving many requests reuses them rather
+ * than allocating new ones per request. Any other cache goes into an overflow map which is
+ * emptied when the scope is unbound, so that caches with arbitrary names do not pile up on
+ * pooled threads.
+ */
+public class ScopedCacheSet {
+
+  /**
+   * Names of caches that are used on most requests, and get a fixed slot.
+   */
+  static final String[] WELL_KNOWN = { "lockmanager.requestmap", "jpa.cache" };
+  /**
+   * A cache that has grown beyond this many entries is dropped on unbind rather than
+   * cleared, so that one large request does not pin a large table to the thread.
+   */
+  static final int MAX_RETAINED_SIZE = 256;
+
+  private final MeasuredCache<?>[] slots = new MeasuredCache<?>[WELL_KNOWN.length];
+  private Map<String, MeasuredCache<?>> others;
+
+  /**
+   * @param name
+   * @return the cache of that name in this set, or null if there is none.
+   */
+  @SuppressWarnings("unchecked")
+  public <V> Cache<V> get(String name) {
+    int slot = getSlot(name);
+    if (slot >= 0) {
+      return (Cache<V>) slots[slot];
+    }
+    if (others == null) {
+      return null;
+    }
+    return (Cache<V>) others.get(name);
+  }
+
+  /**
+   * @param name
+   * @param cache
+   *          the cache to hold under the name.
+   */
+  public void put(String name, MeasuredCache<?> cache) {
+    int slot = getSlot(name);
+    if (slot >= 0) {
+      slots[slot] = cache;
+    } else {
+      if (others == null) {
+        others = new HashMap<String, MeasuredCache<?>>();
+      }
+      others.put(name, cache);
+    }
+  }
+
+  /**
+   * Clear every cache in the set, retaining the well known caches for reuse unless they
+   * have grown too large, and dropping the rest.
+   */
+  public void clear() {
+    for (int i = 0; i < slots.length; i++) {
+      if (slots[i] != null && !clearForReuse(slots[i])) {
+        slots[i] = null;
+      }
+    }
+    if (others != null) {
+      for (MeasuredCache<?> cache : others.values()) {
+        // anything still holding the cache sees it empty.
+        clearForReuse(cache);
+      }
+      others = null;
+    }
+  }
+
+  /**
+   * @return true if the cache was cleared and can be reused.
+   */
+  private boolean clearForReuse(MeasuredCache<?> cache) {
+    cache.flushMetrics();
+    Cache<?> delegate = cache.getDelegate();
+    if (delegate instanceof MapCacheImpl<?>) {
+      MapCacheImpl<?> map = (MapCacheImpl<?>) delegate;
+      if (map.isEmpty()) {
+        return true;
+      }
+      boolean reuse = map.size() <= MAX_RETAINED_SIZE;
+      map.clear();
+      return reuse;
+    }
+    cache.clear();
+    return true;
+  }
+
+  /**
+   * Well known names are compile time constants, so are normally found by identity.
+   *
+   * @param name
+   * @return the slot for the name or -1 if it does not have one.
+   */
+  private static int getSlot(String name) {
+    if (name == null) {
+      return -1;
+    }
+    for (int i = 0; i < WELL_KNOWN.length; i++) {
+      if (WELL_KNOWN[i] == name) {
+        return i;
+      }
+    }
+    for (int i = 0; i < WELL_KNOWN.length; i++) {
+      if (WELL_KNOWN[i].equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
@@ -17,24 +17,19 @@
  */
 package org.sakaiproject.nakamura.memory;
 
-import org.sakaiproject.nakamura.api.memory.Cache;
-
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * Represents a Cache stored on the thread, used in the request thread and in other threads.
  * When used in Threads there is a potential for memory leaks as perm space is not cleaned up.
  * This will be caused by references to classloaders being in the Map, and keeping the classloaders
  * open.
  */
-public class ThreadLocalCacheMap extends ThreadLocal<Map<String,Cache<?>>> {
+public class ThreadLocalCacheMap extends ThreadLocal<ScopedCacheSet> {
   /**
    * {@inheritDoc}
    * @see java.lang.ThreadLocal#initialValue()
    */
   @Override
-  protected Map<String, Cache<?>> initialValue() {
-    return new HashMap<String, Cache<?>>();
+  protected ScopedCacheSet initialValue() {
+    return new ScopedCacheSet();
   }
 }
@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import java.io.Serializable;
+
+/**
+ * A value in a replicated cache, tagged with the version of the change that produced it.
+ */
+public class VersionedValue implements Serializable {
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = 2855133290427346802L;
+  private Object value;
+  private long version;
+
+  /**
+   * @param value
+   * @param version
+   */
+  public VersionedValue(Object value, long version) {
+    this.value = value;
+    this.version = version;
+  }
+
+  /**
+   * @return the value, null if the change was a removal.
+   */
+  public Object getValue() {
+    return value;
+  }
+
+  /**
+   * @return the version of the change.
+   */
+  public long getVersion() {
+    return version;
+  }
+}
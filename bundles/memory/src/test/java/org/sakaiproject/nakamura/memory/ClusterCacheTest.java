@@ -0,0 +1,248 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+/**
+ * Two cache managers connected through an embedded broker.
+ */
+public class ClusterCacheTest {
+
+  private static final String BROKER_URL = "vm://clustercachetest?broker.persistent=false&broker.useJmx=false";
+  private ConnectionFactoryService connectionFactoryService;
+  private CacheManagerServiceImpl nodeA;
+  private CacheManagerServiceImpl nodeB;
+  private final AtomicBoolean failing = new AtomicBoolean();
+  private final AtomicInteger connections = new AtomicInteger();
+
+  @Before
+  public void setUp() throws Exception {
+    connectionFactoryService = createMock(ConnectionFactoryService.class);
+    expect(connectionFactoryService.getDefaultConnectionFactory()).andReturn(
+        new ActiveMQConnectionFactory(BROKER_URL)).anyTimes();
+    replay(connectionFactoryService);
+    nodeA = new CacheManagerServiceImpl();
+    nodeB = new CacheManagerServiceImpl();
+    nodeA.bindConnectionFactoryService(connectionFactoryService);
+    nodeB.bindConnectionFactoryService(connectionFactoryService);
+  }
+
+  @After
+  public void tearDown() {
+    nodeA.unbindConnectionFactoryService(connectionFactoryService);
+    nodeB.unbindConnectionFactoryService(connectionFactoryService);
+  }
+
+  @Test
+  public void testInvalidation() throws Exception {
+    Cache<String> a = nodeA.getCache("invalidated", CacheScope.CLUSTERINVALIDATED);
+    Cache<String> b = nodeB.getCache("invalidated", CacheScope.CLUSTERINVALIDATED);
+    b.put("fish", "cat");
+    // let b's own invalidation go past before a changes the key.
+    Thread.sleep(500);
+    assertEquals("cat", b.get("fish"));
+    a.put("fish", "dog");
+    waitFor(b, "fish", null);
+    assertEquals("dog", a.get("fish"));
+  }
+
+  @Test
+  public void testReplication() throws Exception {
+    Cache<String> a = nodeA.getCache("replicated", CacheScope.CLUSTERREPLICATED);
+    Cache<String> b = nodeB.getCache("replicated", CacheScope.CLUSTERREPLICATED);
+    a.put("fish", "cat");
+    waitFor(b, "fish", "cat");
+    b.put("fish", "dog");
+    waitFor(a, "fish", "dog");
+    a.remove("fish");
+    waitFor(b, "fish", null);
+    a.put("foo", "bar");
+    waitFor(b, "foo", "bar");
+    b.clear();
+    waitFor(a, "foo", null);
+  }
+
+  @Test
+  public void testCoalescing() throws Exception {
+    Cache<String> a = nodeA.getCache("coalesced", CacheScope.CLUSTERREPLICATED);
+    Cache<String> b = nodeB.getCache("coalesced", CacheScope.CLUSTERREPLICATED);
+    for (int i = 0; i < 1000; i++) {
+      a.put("counter", String.valueOf(i));
+    }
+    waitFor(b, "counter", "999");
+    assertNull(b.get("nothere"));
+    long sent = nodeA.getClusterTransport().getMessagesSent();
+    assertTrue("1000 puts were sent as " + sent + " messages", sent >= 1 && sent < 20);
+  }
+
+  @Test
+  public void testLatePutAfterRemoval() throws Exception {
+    ClusterCacheTransport transport = nodeA.getClusterTransport();
+    Cache<String> a = nodeA.getCache("tombstone", CacheScope.CLUSTERREPLICATED);
+    Cache<String> b = nodeB.getCache("tombstone", CacheScope.CLUSTERREPLICATED);
+    a.put("fish", "cat");
+    waitFor(b, "fish", "cat");
+    long before = transport.nextVersion();
+    a.remove("fish");
+    waitFor(b, "fish", null);
+    // a put made before the removal that arrives after it.
+    transport.replicate("tombstone", "fish", "dog", before);
+    a.put("marker", "done");
+    waitFor(b, "marker", "done");
+    assertNull(b.get("fish"));
+    // a later put is applied.
+    a.put("fish", "cow");
+    waitFor(b, "fish", "cow");
+  }
+
+  @Test
+  public void testRefusesClassesOutsideAllowedPackages() throws Exception {
+    ClusterCacheTransport transport = nodeA.getClusterTransport();
+    Cache<Object> b = nodeB.getCache("filtered", CacheScope.CLUSTERREPLICATED);
+    nodeA.getCache("filtered", CacheScope.CLUSTERREPLICATED);
+    transport.replicate("filtered", "uri", URI.create("http://example.com/"), transport
+        .nextVersion());
+    transport.replicate("filtered", "marker", "done", transport.nextVersion());
+    for (int i = 0; i < 50 && b.get("marker") == null; i++) {
+      Thread.sleep(100);
+    }
+    assertEquals("done", b.get("marker"));
+    assertNull(b.get("uri"));
+  }
+
+  @Test
+  public void testResendAfterFailure() throws Exception {
+    ConnectionFactory connectionFactory = (ConnectionFactory) wrap(ConnectionFactory.class,
+        new ActiveMQConnectionFactory(BROKER_URL));
+    ConnectionFactoryService failingService = createMock(ConnectionFactoryService.class);
+    expect(failingService.getDefaultConnectionFactory()).andReturn(connectionFactory)
+        .anyTimes();
+    replay(failingService);
+    CacheManagerServiceImpl nodeC = new CacheManagerServiceImpl();
+    nodeC.bindConnectionFactoryService(failingService);
+    try {
+      Cache<String> c = nodeC.getCache("resent", CacheScope.CLUSTERREPLICATED);
+      Cache<String> b = nodeB.getCache("resent", CacheScope.CLUSTERREPLICATED);
+      failing.set(true);
+      c.put("fish", "cat");
+      c.put("foo", "bar");
+      // let several flushes fail.
+      Thread.sleep(1000);
+      assertNull(b.get("fish"));
+      c.put("fish", "dog");
+      failing.set(false);
+      waitFor(b, "fish", "dog");
+      waitFor(b, "foo", "bar");
+      assertTrue(connections.get() > 1);
+    } finally {
+      nodeC.unbindConnectionFactoryService(failingService);
+    }
+  }
+
+  @Test
+  public void testAllowedClassNames() {
+    assertTrue(ClusterCacheTransport.isAllowed("java.lang.String"));
+    assertTrue(ClusterCacheTransport.isAllowed("java.util.HashMap"));
+    assertTrue(ClusterCacheTransport.isAllowed("[B"));
+    assertTrue(ClusterCacheTransport.isAllowed("[[Ljava.lang.Long;"));
+    assertTrue(ClusterCacheTransport.isAllowed(VersionedValue.class.getName()));
+    assertFalse(ClusterCacheTransport
+        .isAllowed("org.apache.commons.collections.functors.InvokerTransformer"));
+    assertFalse(ClusterCacheTransport.isAllowed("[Lorg.apache.xalan.Foo;"));
+    assertFalse(ClusterCacheTransport.isAllowed("java.net.URI"));
+  }
+
+  /**
+   * @return a proxy for a JMS object, whose producers fail to send while failing is set.
+   */
+  private Object wrap(Class<?> type, Object target) {
+    return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { type },
+        new FailingHandler(target));
+  }
+
+  private class FailingHandler implements InvocationHandler {
+    private final Object target;
+
+    FailingHandler(Object target) {
+      this.target = target;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if (failing.get() && target instanceof MessageProducer
+          && "send".equals(method.getName())) {
+        throw new JMSException("broker unavailable");
+      }
+      Object result;
+      try {
+        result = method.invoke(target, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+      if (result instanceof Connection) {
+        connections.incrementAndGet();
+        return wrap(Connection.class, result);
+      } else if (result instanceof Session) {
+        return wrap(Session.class, result);
+      } else if (result instanceof MessageProducer) {
+        return wrap(MessageProducer.class, result);
+      }
+      return result;
+    }
+  }
+
+  private void waitFor(Cache<String> cache, String key, String expected)
+      throws InterruptedException {
+    for (int i = 0; i < 50; i++) {
+      String value = cache.get(key);
+      if (expected == null ? value == null : expected.equals(value)) {
+        return;
+      }
+      Thread.sleep(100);
+    }
+    assertEquals(expected, cache.get(key));
+  }
+}
@@ -21,20 +21,37 @@ import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.memory.CacheStatistics;
 import org.sakaiproject.nakamura.api.memory.ThreadBound;
 import org.sakaiproject.nakamura.memory.CacheManagerServiceImpl;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class TestCache {
 
+  /**
+   * Set -Dmemory.benchmark=true to compare pooled request caches with a map per request.
+   */
+  private static final boolean BENCHMARK = Boolean.getBoolean("memory.benchmark");
+  private static final int WARMUP_REQUESTS = 20000;
+  private static final int REQUESTS = 200000;
+
   private CacheManagerServiceImpl cacheManagerService;
 
   @Before
@@ -107,4 +124,143 @@ public class TestCache {
     verify(testItem);
   }
 
+  @Test
+  public void testStatistics() {
+    for (CacheScope scope : CacheScope.values()) {
+      String cacheName = "StatisticsTestCache" + scope;
+      Cache<String> cache = cacheManagerService.getCache(cacheName, scope);
+      cache.put("fish", "cat");
+      for (int i = 0; i < 16; i++) {
+        cache.get("fish");
+        cache.get("dog");
+      }
+      cache.remove("fish");
+      // request and thread caches report when their scope ends.
+      cacheManagerService.unbind(scope);
+      CacheStatistics statistics = cacheManagerService.getStatistics(cacheName, scope);
+      assertEquals(16, statistics.getHits());
+      assertEquals(16, statistics.getMisses());
+      assertEquals(1, statistics.getPuts());
+      assertEquals(1, statistics.getRemoves());
+      long timed = 0;
+      for (long n : statistics.getGetLatencyHistogram()) {
+        timed += n;
+      }
+      // one get in 16 is timed.
+      assertEquals(2, timed);
+      statistics.reset();
+      assertEquals(0, statistics.getHits());
+    }
+  }
+
+  @Test
+  public void testConcurrentCacheCreation() throws Exception {
+    final List<Cache<String>> seen = new ArrayList<Cache<String>>();
+    Thread[] threads = new Thread[16];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          Cache<String> cache = cacheManagerService.getCache("ConcurrentTestCache",
+              CacheScope.INSTANCE);
+          synchronized (seen) {
+            seen.add(cache);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals(threads.length, seen.size());
+    for (Cache<String> cache : seen) {
+      assertSame(seen.get(0), cache);
+    }
+  }
+
+  @Test
+  public void testWellKnownRequestCacheReusedAfterUnbind() {
+    ThreadBound testItem = createMock(ThreadBound.class);
+    testItem.unbind();
+    replay(testItem);
+    Cache<ThreadBound> requestCache = cacheManagerService.getCache(
+        "lockmanager.requestmap", CacheScope.REQUEST);
+    requestCache.put("testItem", testItem);
+    Cache<String> otherCache = cacheManagerService.getCache("someRequestCache",
+        CacheScope.REQUEST);
+    otherCache.put("fish", "cat");
+    cacheManagerService.unbind(CacheScope.REQUEST);
+    verify(testItem);
+    assertSame(requestCache, cacheManagerService.getCache("lockmanager.requestmap",
+        CacheScope.REQUEST));
+    assertNotSame(otherCache, cacheManagerService.getCache("someRequestCache",
+        CacheScope.REQUEST));
+    assertNull(requestCache.get("testItem"));
+    assertNull(otherCache.get("fish"));
+  }
+
+  /**
+   * Allocation and p50/p99 overhead of one simulated request against the request scoped
+   * caches, pooled through the cache manager and with a new map per request. Prints the
+   * figures for comparison rather than asserting thresholds.
+   */
+  @Test
+  public void testRequestCacheBenchmark() throws Exception {
+    if (!BENCHMARK) {
+      return;
+    }
+    runRequests(true, WARMUP_REQUESTS, null);
+    runRequests(false, WARMUP_REQUESTS, null);
+    report("pooled", true);
+    report("map per request", false);
+  }
+
+  private void report(String label, boolean pooled) throws Exception {
+    long[] times = new long[REQUESTS];
+    long before = getAllocatedBytes();
+    runRequests(pooled, REQUESTS, times);
+    long after = getAllocatedBytes();
+    Arrays.sort(times);
+    System.err.println("Request caches (" + label + "): p50 " + times[REQUESTS / 2]
+        + "ns p99 " + times[REQUESTS * 99 / 100] + "ns, "
+        + (before < 0 ? "allocation n/a" : ((after - before) / REQUESTS) + " bytes/request"));
+  }
+
+  private void runRequests(boolean pooled, int requests, long[] times) {
+    for (int i = 0; i < requests; i++) {
+      long start = System.nanoTime();
+      Cache<String> cache;
+      if (pooled) {
+        cache = cacheManagerService.getCache("lockmanager.requestmap", CacheScope.REQUEST);
+      } else {
+        cache = new MapCacheImpl<String>();
+      }
+      cache.put("lock", "held");
+      cache.get("lock");
+      if (pooled) {
+        cacheManagerService.unbind(CacheScope.REQUEST);
+      } else {
+        cache.clear();
+      }
+      if (times != null) {
+        times[i] = System.nanoTime() - start;
+      }
+    }
+  }
+
+  /**
+   * @return bytes allocated by the current thread, or -1 where the JVM does not report it.
+   */
+  private long getAllocatedBytes() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    try {
+      Method m = threads.getClass().getMethod("getThreadAllocatedBytes", long.class);
+      m.setAccessible(true);
+      return (Long) m.invoke(threads, Thread.currentThread().getId());
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
 }
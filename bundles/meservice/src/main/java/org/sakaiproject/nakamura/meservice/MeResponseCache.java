@@ -0,0 +1,226 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import static org.sakaiproject.nakamura.api.personal.PersonalConstants._USER;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.Services;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.sling.api.SlingConstants;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.user.AuthorizableEvent;
+import org.sakaiproject.nakamura.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+
+import javax.jcr.RepositoryException;
+
+/**
+ * Holds the serialized /system/me response of each user, so that the authorizable, the
+ * group membership and the profile tree do not have to be read on every page load. A
+ * response is dropped when the user, one of the user's groups or anything in the user's
+ * profile changes, and the caches are cluster invalidated so the other nodes drop it too.
+ */
+@Component(immediate = true, metatype = false)
+@Services(value = { @Service(value = MeResponseCache.class),
+    @Service(value = EventHandler.class) })
+public class MeResponseCache implements EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MeResponseCache.class);
+
+  /**
+   * Authorizable changes drop users and the members of groups, resource changes drop
+   * profiles.
+   */
+  @Property(value = { AuthorizableEvent.TOPIC + "*", SlingConstants.TOPIC_RESOURCE_ADDED,
+      SlingConstants.TOPIC_RESOURCE_CHANGED, SlingConstants.TOPIC_RESOURCE_REMOVED },
+      propertyPrivate = true)
+  static final String EVENT_TOPICS = EventConstants.EVENT_TOPIC;
+
+  /**
+   * The responses by user id.
+   */
+  static final String RESPONSE_CACHE = "meservice.responses";
+
+  /**
+   * The user ids by profile path.
+   */
+  static final String PROFILE_CACHE = "meservice.profiles";
+
+  /**
+   * A serialized response.
+   */
+  static class Response implements Serializable {
+    private static final long serialVersionUID = 2960207245839514826L;
+    final String user;
+    /**
+     * The UTF-8 encoded JSON object.
+     */
+    final byte[] body;
+    /**
+     * The quoted entity tag of the body.
+     */
+    final String etag;
+    final String profilePath;
+    /**
+     * The ids of the groups of the user.
+     */
+    final Set<String> subjects;
+
+    Response(String user, byte[] body, String profilePath, Set<String> subjects) {
+      this.user = user;
+      this.body = body;
+      this.etag = getEntityTag(body);
+      this.profilePath = profilePath;
+      this.subjects = subjects;
+    }
+  }
+
+  @Reference
+  protected transient CacheManagerService cacheManagerService;
+
+  /**
+   * @param user
+   *          the id of the user.
+   * @return the response of the user, or null if it is not held.
+   */
+  Response get(String user) {
+    return getResponses().get(user);
+  }
+
+  /**
+   * Hold the response of a user.
+   *
+   * @return the response.
+   */
+  Response put(String user, byte[] body, String profilePath, Set<String> subjects) {
+    Response response = new Response(user, body, profilePath, subjects);
+    getProfiles().put(profilePath, user);
+    getResponses().put(user, response);
+    return response;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String topic = event.getTopic();
+    if (topic.startsWith(AuthorizableEvent.TOPIC)) {
+      String principalName = (String) event.getProperty(AuthorizableEvent.PRINCIPAL_NAME);
+      if (principalName != null) {
+        invalidate(principalName);
+      }
+      Object user = event.getProperty(AuthorizableEvent.USER);
+      if (user instanceof Authorizable) {
+        try {
+          invalidate(((Authorizable) user).getID());
+        } catch (RepositoryException e) {
+          LOGGER.warn("Unable to read the changed authorizable, dropping all responses: {}",
+              e.getMessage());
+          invalidateAll();
+        }
+      }
+    } else {
+      String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+      if (path != null && path.startsWith(_USER)) {
+        changed(path, SlingConstants.TOPIC_RESOURCE_REMOVED.equals(topic));
+      }
+    }
+  }
+
+  /**
+   * An authorizable has changed, drop it if it is a user and every user in it if it is a
+   * group.
+   */
+  void invalidate(String id) {
+    Cache<Response> responses = getResponses();
+    responses.remove(id);
+    for (Response response : responses.list()) {
+      if (response.subjects.contains(id)) {
+        responses.remove(response.user);
+      }
+    }
+  }
+
+  /**
+   * An item under the user tree has changed, drop the profile it belongs to. When an item
+   * is removed, the profiles below it are dropped as well.
+   */
+  void changed(String path, boolean removed) {
+    Cache<Response> responses = getResponses();
+    Cache<String> profiles = getProfiles();
+    for (String p = path; p.length() > 0; p = p.substring(0, Math.max(0, p
+        .lastIndexOf('/')))) {
+      String user = profiles.get(p);
+      if (user != null) {
+        responses.remove(user);
+      }
+    }
+    if (removed) {
+      String prefix = path.endsWith("/") ? path : path + "/";
+      for (Response response : responses.list()) {
+        if (response.profilePath.startsWith(prefix)) {
+          responses.remove(response.user);
+        }
+      }
+    }
+  }
+
+  /**
+   * Drop every user.
+   */
+  void invalidateAll() {
+    getResponses().clear();
+  }
+
+  private Cache<Response> getResponses() {
+    return cacheManagerService.getCache(RESPONSE_CACHE, CacheScope.CLUSTERINVALIDATED);
+  }
+
+  private Cache<String> getProfiles() {
+    return cacheManagerService.getCache(PROFILE_CACHE, CacheScope.CLUSTERINVALIDATED);
+  }
+
+  /**
+   * @return a strong entity tag derived from the content of the body.
+   */
+  static String getEntityTag(byte[] body) {
+    try {
+      MessageDigest sha1 = MessageDigest.getInstance("SHA");
+      return "\"" + StringUtils.byteToHex(sha1.digest(body)) + "\"";
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e.getMessage(), e);
+    }
+  }
+}
@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.meservice;
 
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.jackrabbit.api.security.principal.PrincipalIterator;
 import org.apache.jackrabbit.api.security.principal.PrincipalManager;
@@ -31,19 +32,26 @@ import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.sakaiproject.nakamura.api.doc.BindingType;
+import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
 import org.sakaiproject.nakamura.api.doc.ServiceMethod;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.personal.PersonalUtils;
+import org.sakaiproject.nakamura.api.presence.PresenceService;
+import org.sakaiproject.nakamura.api.presence.PresenceUtils;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.PathUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.security.Principal;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -70,7 +78,14 @@ import javax.servlet.http.HttpServletResponse;
     ),
     methods = @ServiceMethod(
         name = "GET",
-        description = "Get information about current user.",
+        description = {"Get information about current user.",
+            "The response carries an ETag, a request with a matching If-None-Match header " +
+            "gets a 304 without a body."},
+        parameters = @ServiceParameter(
+            name = "presence",
+            description = "If true, the presence of the user is added to the response as " +
+                "\"presence\"."
+        ),
         response = {@ServiceResponse(
             code = 200,
             description = "Request for information was successful. <br />" +
@@ -88,6 +103,10 @@ import javax.servlet.http.HttpServletResponse;
                 "\"jcr:primaryType\":\"nt:unstructured\"}\n" +
                 "}<pre>"
           ),
+          @ServiceResponse(
+            code = 304,
+            description = "The response has not changed since the one with the ETag in If-None-Match."
+          ),
           @ServiceResponse(
             code = 401,
             description = "Unauthorized: credentials provided were not acceptable to return information for."
@@ -106,6 +125,13 @@ public class MeServlet extends SlingSafeMethodsServlet {
   private static final Logger LOG = LoggerFactory.getLogger(MeServlet.class);
   private static final String LOCALE_FIELD = "locale";
   private static final String TIMEZONE_FIELD = "timezone";
+  private static final String PRESENCE_PARAM = "presence";
+
+  @Reference
+  protected transient MeResponseCache meResponseCache;
+
+  @Reference
+  protected transient PresenceService presenceService;
 
   /**
    * {@inheritDoc}
@@ -117,25 +143,48 @@ public class MeServlet extends SlingSafeMethodsServlet {
   protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
       throws ServletException, IOException {
     try {
-      response.setContentType("application/json");
-      response.setCharacterEncoding("UTF-8");
       Session session = request.getResourceResolver().adaptTo(Session.class);
-      UserManager um = AccessControlUtil.getUserManager(session);
-      Authorizable au = um.getAuthorizable(session.getUserID());
-      PrintWriter w = response.getWriter();
-      ExtendedJSONWriter writer = new ExtendedJSONWriter(w);
-      writer.object();
-      // User info
-      writer.key("user");
-      writeUserJSON(writer, session, au);
+      String userId = session.getUserID();
+      MeResponseCache.Response me = meResponseCache.get(userId);
+      if (me == null) {
+        UserManager um = AccessControlUtil.getUserManager(session);
+        Authorizable au = um.getAuthorizable(userId);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        Writer w = new OutputStreamWriter(body, "UTF-8");
+        ExtendedJSONWriter writer = new ExtendedJSONWriter(w);
+        writer.object();
+        // User info
+        writer.key("user");
+        Set<String> subjects = writeUserJSON(writer, session, au);
+
+        // Dump this user his info
+        writer.key("profile");
+        String profilePath = PersonalUtils.getProfilePath(au);
+        Node profileNode = (Node) session.getItem(profilePath);
+        ExtendedJSONWriter.writeNodeTreeToWriter(writer, profileNode);
 
-      // Dump this user his info
-      writer.key("profile");
-      String profilePath = PersonalUtils.getProfilePath(au);
-      Node profileNode = (Node) session.getItem(profilePath);
-      ExtendedJSONWriter.writeNodeTreeToWriter(writer, profileNode);
+        writer.endObject();
+        w.flush();
+        me = meResponseCache.put(userId, body.toByteArray(), profilePath, subjects);
+      }
 
-      writer.endObject();
+      response.setContentType("application/json");
+      response.setCharacterEncoding("UTF-8");
+      response.setHeader("Cache-Control", "private, no-cache");
+      if ("true".equals(request.getParameter(PRESENCE_PARAM))
+          && !UserConstants.ANON_USERID.equals(userId)) {
+        // presence changes all the time, merge it into the cached response on every
+        // request rather than tagging it.
+        writeWithPresence(response.getOutputStream(), me.body, userId);
+        return;
+      }
+      response.setHeader("ETag", me.etag);
+      if (matches(request.getHeader("If-None-Match"), me.etag)) {
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return;
+      }
+      response.setContentLength(me.body.length);
+      response.getOutputStream().write(me.body);
     } catch (JSONException e) {
       LOG.error("Failed to create proper JSON response in /system/me", e);
       response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
@@ -148,15 +197,63 @@ public class MeServlet extends SlingSafeMethodsServlet {
 
   }
 
+  /**
+   * Writes a cached response with the presence of the user added to it as "presence".
+   * 
+   * @param out
+   * @param body
+   *          the cached JSON object.
+   * @param userId
+   * @throws JSONException
+   * @throws IOException
+   */
+  protected void writeWithPresence(OutputStream out, byte[] body, String userId)
+      throws JSONException, IOException {
+    StringWriter presence = new StringWriter();
+    presence.write(",\"presence\":");
+    PresenceUtils.makePresenceJSON(presence, userId, presenceService);
+    presence.write("}");
+    // the body is a JSON object, drop its closing brace and append the presence.
+    int end = body.length - 1;
+    while (end > 0 && body[end] != '}') {
+      end--;
+    }
+    out.write(body, 0, end);
+    out.write(presence.toString().getBytes("UTF-8"));
+  }
+
+  /**
+   * @param ifNoneMatch
+   *          the If-None-Match header of the request, may be null.
+   * @param etag
+   * @return true if the header lists the entity tag.
+   */
+  protected boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String tag : ifNoneMatch.split(",")) {
+      tag = tag.trim();
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if (tag.equals(etag) || tag.equals("*")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /**
    * 
    * @param write
    * @param session
    * @param authorizable
+   * @return the names of the groups the user is a member of.
    * @throws RepositoryException
    * @throws JSONException
    */
-  protected void writeUserJSON(ExtendedJSONWriter write, Session session,
+  protected Set<String> writeUserJSON(ExtendedJSONWriter write, Session session,
       Authorizable authorizable) throws RepositoryException, JSONException {
 
     String user = session.getUserID();
@@ -171,6 +268,7 @@ public class MeServlet extends SlingSafeMethodsServlet {
       write.key("superUser");
       write.value(false);
       write.endObject();
+      return new HashSet<String>();
     } else {
       PrincipalManager principalManager = AccessControlUtil.getPrincipalManager(session);
       Set<String> subjects = getSubjects(authorizable, principalManager);
@@ -180,6 +278,7 @@ public class MeServlet extends SlingSafeMethodsServlet {
       writeGeneralInfo(write, authorizable, subjects, properties);
       writeLocale(write, properties);
       write.endObject();
+      return subjects;
     }
 
   }
@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.apache.sling.api.SlingConstants;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.memory.CacheStatistics;
+import org.sakaiproject.nakamura.api.user.AuthorizableEvent;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Map;
+
+/**
+ * Checks responses are dropped when the user, one of the user's groups or the user's
+ * profile changes.
+ */
+public class MeResponseCacheTest {
+
+  private static final String ALICE_PROFILE = "/_user/a/al/alice/public/authprofile";
+  private static final String BOB_PROFILE = "/_user/b/bo/bob/public/authprofile";
+
+  private MeResponseCache cache;
+
+  @Before
+  public void setUp() throws Exception {
+    cache = newCache();
+    put("alice", ALICE_PROFILE, "{\"user\":\"alice\"}", "g-students");
+    put("bob", BOB_PROFILE, "{\"user\":\"bob\"}", "g-staff");
+  }
+
+  @Test
+  public void testGet() throws Exception {
+    MeResponseCache.Response response = cache.get("alice");
+    assertNotNull(response);
+    assertEquals("{\"user\":\"alice\"}", new String(response.body, "UTF-8"));
+    assertEquals(MeResponseCache.getEntityTag(response.body), response.etag);
+    assertFalse(response.etag.equals(cache.get("bob").etag));
+  }
+
+  @Test
+  public void testProfileChanged() {
+    cache.handleEvent(resourceEvent(SlingConstants.TOPIC_RESOURCE_CHANGED, ALICE_PROFILE
+        + "/aboutme"));
+    assertNull(cache.get("alice"));
+    assertNotNull(cache.get("bob"));
+  }
+
+  @Test
+  public void testHomeRemoved() {
+    cache.handleEvent(resourceEvent(SlingConstants.TOPIC_RESOURCE_REMOVED,
+        "/_user/b/bo/bob"));
+    assertNull(cache.get("bob"));
+    assertNotNull(cache.get("alice"));
+  }
+
+  @Test
+  public void testOtherResourcesIgnored() {
+    cache.handleEvent(resourceEvent(SlingConstants.TOPIC_RESOURCE_CHANGED,
+        "/_user/a/al/alice/public/files/x"));
+    cache.handleEvent(resourceEvent(SlingConstants.TOPIC_RESOURCE_REMOVED, "/sites/physics"));
+    assertNotNull(cache.get("alice"));
+    assertNotNull(cache.get("bob"));
+  }
+
+  @Test
+  public void testGroupChanged() {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(AuthorizableEvent.PRINCIPAL_NAME, "g-staff");
+    cache.handleEvent(new Event(AuthorizableEvent.Operation.update.getTopic(), properties));
+    assertNull(cache.get("bob"));
+    assertNotNull(cache.get("alice"));
+  }
+
+  @Test
+  public void testHeldByCacheManager() {
+    MeResponseCache other = new MeResponseCache();
+    other.cacheManagerService = cache.cacheManagerService;
+    assertNotNull(other.get("alice"));
+    other.invalidate("g-students");
+    assertNull(cache.get("alice"));
+  }
+
+  /**
+   * @return a cache whose cache manager holds each named cache in a map.
+   */
+  static MeResponseCache newCache() {
+    MeResponseCache cache = new MeResponseCache();
+    cache.cacheManagerService = new CacheManagerService() {
+      private final Map<String, Cache<?>> caches = new HashMap<String, Cache<?>>();
+
+      @SuppressWarnings("unchecked")
+      public synchronized <T> Cache<T> getCache(String name, CacheScope scope) {
+        assertEquals(CacheScope.CLUSTERINVALIDATED, scope);
+        Cache<T> cache = (Cache<T>) caches.get(name);
+        if (cache == null) {
+          cache = new MapCacheImpl<T>();
+          caches.put(name, cache);
+        }
+        return cache;
+      }
+
+      public void unbind(CacheScope scope) {
+      }
+
+      public CacheStatistics getStatistics(String name, CacheScope scope) {
+        return null;
+      }
+    };
+    return cache;
+  }
+
+  private Event resourceEvent(String topic, String path) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(SlingConstants.PROPERTY_PATH, path);
+    return new Event(topic, properties);
+  }
+
+  private void put(String user, String profilePath, String body, String group)
+      throws UnsupportedEncodingException {
+    cache.put(user, body.getBytes("UTF-8"), profilePath, new HashSet<String>(Arrays
+        .asList(group)));
+  }
+}
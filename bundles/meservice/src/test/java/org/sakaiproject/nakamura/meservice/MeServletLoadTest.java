@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.meservice;
+
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.junit.Assert.assertEquals;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.easymock.IAnswer;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.personal.PersonalUtils;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.jcr.Item;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PropertyIterator;
+import javax.jcr.Session;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves /system/me repeatedly and counts how often the profile is rendered and how often
+ * a 304 is sent, with the cache dropped before every request, with the response cached
+ * and with a matching If-None-Match. When the meservice.benchmark system property is true
+ * it also reports the p50 and p99 latency of each mode, the figures are for comparing the
+ * modes, not pass/fail thresholds.
+ */
+public class MeServletLoadTest extends AbstractEasyMockTest {
+
+  private static final int REQUESTS = 500;
+  private static final int BENCHMARK_REQUESTS = 5000;
+  private static final boolean BENCHMARK = Boolean.getBoolean("meservice.benchmark");
+
+  private MeServlet servlet;
+  private SlingHttpServletRequest request;
+  private SlingHttpServletResponse response;
+  private String ifNoneMatch;
+  private int renders;
+  private int notModified;
+
+  @Test
+  public void testRenderAndNotModifiedCounts() throws Exception {
+    servlet = new MeServlet();
+    servlet.meResponseCache = MeResponseCacheTest.newCache();
+    createMocks();
+    replay();
+
+    serve(true);
+    assertEquals(REQUESTS, renders);
+    assertEquals(0, notModified);
+
+    renders = 0;
+    servlet.meResponseCache.invalidateAll();
+    serve(false);
+    assertEquals("Only the first request renders", 1, renders);
+    assertEquals(0, notModified);
+
+    renders = 0;
+    ifNoneMatch = servlet.meResponseCache.get(UserConstants.ANON_USERID).etag;
+    serve(false);
+    assertEquals(0, renders);
+    assertEquals(REQUESTS, notModified);
+  }
+
+  @Test
+  public void testLatency() throws Exception {
+    if (!BENCHMARK) {
+      return;
+    }
+    servlet = new MeServlet();
+    servlet.meResponseCache = MeResponseCacheTest.newCache();
+    createMocks();
+    replay();
+
+    report("rendered", time(true));
+    report("cached", time(false));
+    ifNoneMatch = servlet.meResponseCache.get(UserConstants.ANON_USERID).etag;
+    report("not modified", time(false));
+  }
+
+  private void serve(boolean invalidate) throws Exception {
+    for (int i = 0; i < REQUESTS; i++) {
+      if (invalidate) {
+        servlet.meResponseCache.invalidateAll();
+      }
+      servlet.doGet(request, response);
+    }
+  }
+
+  private long[] time(boolean invalidate) throws Exception {
+    // warm up before measuring.
+    for (int i = 0; i < BENCHMARK_REQUESTS / 10; i++) {
+      servlet.doGet(request, response);
+    }
+    long[] latencies = new long[BENCHMARK_REQUESTS];
+    for (int i = 0; i < BENCHMARK_REQUESTS; i++) {
+      if (invalidate) {
+        servlet.meResponseCache.invalidateAll();
+      }
+      long start = System.nanoTime();
+      servlet.doGet(request, response);
+      latencies[i] = System.nanoTime() - start;
+    }
+    return latencies;
+  }
+
+  private void report(String mode, long[] latencies) {
+    Arrays.sort(latencies);
+    System.err.println("MeServlet " + mode + ": p50 "
+        + (latencies[latencies.length / 2] / 1000) + "us, p99 "
+        + (latencies[latencies.length * 99 / 100] / 1000) + "us");
+  }
+
+  private void createMocks() throws Exception {
+    Authorizable au = createAuthorizable(UserConstants.ANON_USERID, false, true);
+    UserManager um = createUserManager(null, true, au);
+
+    final Node profileNode = createMock(Node.class);
+    PropertyIterator propIterator = createMock(PropertyIterator.class);
+    NodeIterator nodeIterator = createMock(NodeIterator.class);
+    expect(propIterator.hasNext()).andReturn(false).anyTimes();
+    expect(nodeIterator.hasNext()).andReturn(false).anyTimes();
+    expect(profileNode.getNodes()).andReturn(nodeIterator).anyTimes();
+    expect(profileNode.getProperties()).andReturn(propIterator).anyTimes();
+    expect(profileNode.getName()).andReturn("authprofile").anyTimes();
+    expect(profileNode.getPath()).andReturn("/path/to/authprofile").anyTimes();
+
+    JackrabbitSession session = createMock(JackrabbitSession.class);
+    expect(session.getItem(PersonalUtils.getProfilePath(au))).andAnswer(
+        new IAnswer<Item>() {
+          public Item answer() throws Throwable {
+            renders++;
+            return profileNode;
+          }
+        }).anyTimes();
+    expect(session.getUserID()).andReturn(UserConstants.ANON_USERID).anyTimes();
+    expect(session.getUserManager()).andReturn(um).anyTimes();
+
+    ResourceResolver resolver = createMock(ResourceResolver.class);
+    expect(resolver.adaptTo(Session.class)).andReturn(session).anyTimes();
+    request = createNiceMock(SlingHttpServletRequest.class);
+    expect(request.getResourceResolver()).andReturn(resolver).anyTimes();
+    expect(request.getHeader("If-None-Match")).andAnswer(new IAnswer<String>() {
+      public String answer() throws Throwable {
+        return ifNoneMatch;
+      }
+    }).anyTimes();
+
+    response = createNiceMock(SlingHttpServletResponse.class);
+    response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    expectLastCall().andAnswer(new IAnswer<Object>() {
+      public Object answer() throws Throwable {
+        notModified++;
+        return null;
+      }
+    }).anyTimes();
+    expect(response.getOutputStream()).andReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+      }
+    }).anyTimes();
+  }
+}
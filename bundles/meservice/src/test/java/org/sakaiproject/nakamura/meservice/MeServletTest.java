@@ -17,8 +17,15 @@
  */
 package org.sakaiproject.nakamura.meservice;
 
+import static org.easymock.EasyMock.anyInt;
+import static org.easymock.EasyMock.capture;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.isA;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import org.apache.jackrabbit.api.JackrabbitSession;
 import org.apache.jackrabbit.api.security.user.Authorizable;
@@ -28,14 +35,18 @@ import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
+import org.easymock.Capture;
+import org.easymock.IAnswer;
 import org.junit.Test;
 import org.sakaiproject.nakamura.api.personal.PersonalUtils;
+import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.util.HashMap;
@@ -50,6 +61,7 @@ import javax.jcr.PropertyIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
 
 /**
@@ -119,57 +131,101 @@ public class MeServletTest extends AbstractEasyMockTest {
       IOException {
 
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    PrintWriter w = new PrintWriter(baos);
-
-    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
-    SlingHttpServletResponse response = createMock(SlingHttpServletResponse.class);
-    ResourceResolver resolver = createMock(ResourceResolver.class);
-    Node profileNode = createMock(Node.class);
-    
-    Authorizable au = createAuthorizable(UserConstants.ANON_USERID, false, true);
-    UserManager um = createUserManager(null, true, au);
-    
-    String profilePath = PersonalUtils.getProfilePath(au);
-    PropertyIterator propIterator = createMock(PropertyIterator.class);
-    NodeIterator nodeIterator = createMock(NodeIterator.class);
-    expect(propIterator.hasNext()).andReturn(false);
-    expect(nodeIterator.hasNext()).andReturn(false);
-    expect(profileNode.getNodes()).andReturn(nodeIterator);
-    expect(profileNode.getProperties()).andReturn(propIterator);
-    expect(profileNode.getName()).andReturn("authprofile").anyTimes();
-    expect(profileNode.getPath()).andReturn("/path/to/authprofile").anyTimes();
-
-    JackrabbitSession session = createMock(JackrabbitSession.class);
-    expect(session.getItem(profilePath)).andReturn(profileNode).anyTimes();
-    expect(session.getUserID()).andReturn(UserConstants.ANON_USERID).anyTimes();
-    expect(session.getUserManager()).andReturn(um).anyTimes();
+    MeServlet servlet = new MeServlet();
+    servlet.meResponseCache = MeResponseCacheTest.newCache();
 
-    expect(resolver.adaptTo(Session.class)).andReturn(session);
-    expect(request.getResourceResolver()).andReturn(resolver).anyTimes();
-    expect(response.getWriter()).andReturn(w);
-    response.setContentType("application/json");
-    response.setCharacterEncoding("UTF-8");
+    JackrabbitSession session = createAnonSession(createProfileNode());
+    SlingHttpServletRequest request = createAnonRequest(session);
+    expect(request.getHeader("If-None-Match")).andReturn(null);
+    SlingHttpServletResponse response = createResponse();
+    expect(response.getOutputStream()).andReturn(createOutputStream(baos));
+    response.setHeader(eq("ETag"), isA(String.class));
+    response.setContentLength(anyInt());
 
     replay();
 
-    MeServlet servlet = new MeServlet();
-
     servlet.doGet(request, response);
-    w.flush();
     String s = baos.toString("UTF-8");
     JSONObject j = new JSONObject(s).getJSONObject("user");
 
     assertEquals(true, j.getBoolean("anon"));
     assertEquals(false, j.getBoolean("superUser"));
     assertEquals(0, j.getJSONArray("subjects").length());
+    verify();
+  }
+
+  @Test
+  public void testNotModified() throws RepositoryException, ServletException, IOException {
+    MeServlet servlet = new MeServlet();
+    servlet.meResponseCache = MeResponseCacheTest.newCache();
+
+    // the profile is only read by the first request.
+    JackrabbitSession session = createAnonSession(createProfileNode());
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    SlingHttpServletRequest request = createAnonRequest(session);
+    expect(request.getHeader("If-None-Match")).andReturn(null);
+    SlingHttpServletResponse response = createResponse();
+    expect(response.getOutputStream()).andReturn(createOutputStream(baos));
+    final Capture<String> etag = new Capture<String>();
+    response.setHeader(eq("ETag"), capture(etag));
+    response.setContentLength(anyInt());
+
+    SlingHttpServletRequest conditional = createAnonRequest(session);
+    expect(conditional.getHeader("If-None-Match")).andAnswer(new IAnswer<String>() {
+      public String answer() throws Throwable {
+        return etag.getValue();
+      }
+    });
+    SlingHttpServletResponse notModified = createResponse();
+    notModified.setHeader(eq("ETag"), isA(String.class));
+    notModified.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+
+    replay();
+
+    servlet.doGet(request, response);
+    assertEquals(etag.getValue(), MeResponseCache.getEntityTag(baos.toByteArray()));
+    servlet.doGet(conditional, notModified);
+    verify();
+  }
+
+  @Test
+  public void testWriteWithPresence() throws JSONException, IOException {
+    MeServlet servlet = new MeServlet();
+    PresenceService presenceService = createMock(PresenceService.class);
+    expect(presenceService.getStatus("alice")).andReturn("online");
+    expect(presenceService.getLocation("alice")).andReturn("At Home");
+    servlet.presenceService = presenceService;
+    replay();
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    servlet.writeWithPresence(baos, "{\"user\":{\"userid\":\"alice\"}}".getBytes("UTF-8"),
+        "alice");
+    JSONObject j = new JSONObject(baos.toString("UTF-8"));
+
+    assertEquals("alice", j.getJSONObject("user").getString("userid"));
+    assertEquals("online", j.getJSONObject("presence").getString(
+        PresenceService.PRESENCE_STATUS_PROP));
+    assertEquals("At Home", j.getJSONObject("presence").getString(
+        PresenceService.PRESENCE_LOCATION_PROP));
+  }
+
+  @Test
+  public void testMatches() {
+    MeServlet servlet = new MeServlet();
+    assertTrue(servlet.matches("\"a\", \"b\"", "\"b\""));
+    assertTrue(servlet.matches("W/\"b\"", "\"b\""));
+    assertTrue(servlet.matches("*", "\"b\""));
+    assertFalse(servlet.matches("\"a\"", "\"b\""));
+    assertFalse(servlet.matches(null, "\"b\""));
   }
 
   @Test
   public void testExceptions() throws IOException, ServletException,
       PathNotFoundException, RepositoryException {
 
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    PrintWriter w = new PrintWriter(baos);
+    MeServlet servlet = new MeServlet();
+    servlet.meResponseCache = MeResponseCacheTest.newCache();
 
     SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
     Session session = createMock(Session.class);
@@ -182,16 +238,63 @@ public class MeServletTest extends AbstractEasyMockTest {
     expect(session.getItem(profilePath)).andThrow(new RepositoryException());
 
     SlingHttpServletResponse response = createMock(SlingHttpServletResponse.class);
-    expect(response.getWriter()).andReturn(w);
-    response.setContentType("application/json");
-    response.setCharacterEncoding("UTF-8");
 
     response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
         "Failed to get the profile node.");
     replay();
 
-    MeServlet servlet = new MeServlet();
-
     servlet.doGet(request, response);
+    assertNull("Failures are not cached", servlet.meResponseCache
+        .get(UserConstants.ANON_USERID));
+  }
+
+  private SlingHttpServletRequest createAnonRequest(Session session) {
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    ResourceResolver resolver = createMock(ResourceResolver.class);
+    expect(resolver.adaptTo(Session.class)).andReturn(session);
+    expect(request.getResourceResolver()).andReturn(resolver);
+    expect(request.getParameter("presence")).andReturn(null);
+    return request;
+  }
+
+  private SlingHttpServletResponse createResponse() {
+    SlingHttpServletResponse response = createMock(SlingHttpServletResponse.class);
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    response.setHeader("Cache-Control", "private, no-cache");
+    return response;
+  }
+
+  private Node createProfileNode() throws RepositoryException {
+    Node profileNode = createMock(Node.class);
+    PropertyIterator propIterator = createMock(PropertyIterator.class);
+    NodeIterator nodeIterator = createMock(NodeIterator.class);
+    expect(propIterator.hasNext()).andReturn(false);
+    expect(nodeIterator.hasNext()).andReturn(false);
+    expect(profileNode.getNodes()).andReturn(nodeIterator);
+    expect(profileNode.getProperties()).andReturn(propIterator);
+    expect(profileNode.getName()).andReturn("authprofile").anyTimes();
+    expect(profileNode.getPath()).andReturn("/path/to/authprofile").anyTimes();
+    return profileNode;
+  }
+
+  private JackrabbitSession createAnonSession(Node profileNode) throws RepositoryException {
+    Authorizable au = createAuthorizable(UserConstants.ANON_USERID, false, true);
+    UserManager um = createUserManager(null, true, au);
+    String profilePath = PersonalUtils.getProfilePath(au);
+    JackrabbitSession session = createMock(JackrabbitSession.class);
+    expect(session.getItem(profilePath)).andReturn(profileNode).anyTimes();
+    expect(session.getUserID()).andReturn(UserConstants.ANON_USERID).anyTimes();
+    expect(session.getUserManager()).andReturn(um).anyTimes();
+    return session;
+  }
+
+  private ServletOutputStream createOutputStream(final OutputStream out) {
+    return new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+      }
+    };
   }
 }
@@ -150,6 +150,7 @@ public class ScopedEntityManager implements EntityManager {
    * @return
    */
   private EntityManager getEntityManager() {
+    TransactionManagerFilter.enlist();
     Cache<EntityManagerHolder> cache = cacheManagerService.getCache(JPA_CACHE, scope);
     EntityManagerHolder entityManagerHolder = cache.get(ENTITY_MANAGER);
     if (entityManagerHolder == null) {
@@ -23,17 +23,24 @@ import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Dictionary;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.transaction.HeuristicMixedException;
 import javax.transaction.HeuristicRollbackException;
@@ -46,9 +53,17 @@ import javax.transaction.TransactionManager;
 /**
  * The <code>SakaiRequestFilter</code> class is a request level filter, which manages the
  * Sakai Cache and Transaction services..
+ * <p>
+ * Most requests only read from JCR and never touch the database, so by default a
+ * transaction is only begun for requests that match the configured methods or path
+ * prefixes. Every other request begins its transaction lazily, the first time it asks
+ * {@link ScopedEntityManager} or the
+ * {@link org.sakaiproject.nakamura.api.persistence.DataSourceService} data source for a
+ * connection, see {@link #enlist()}.
+ * </p>
  */
 @Service(value=Filter.class)
-@Component(immediate=true, metatype=false)
+@Component(immediate=true, metatype=true)
 @Properties(value={@Property(name="service.description", value="Transaction Support Filter"),
     @Property(name="service.vendor",value="The Sakai Foundation"),
     @Property(name="filter.scope",value="request", propertyPrivate=true),
@@ -58,10 +73,45 @@ public class TransactionManagerFilter implements Filter {
 
   private static final boolean debug = LOGGER.isDebugEnabled();
 
+  @Property(boolValue = true)
+  static final String LAZY_TRANSACTIONS = "transaction.lazy";
+  @Property(value = { "POST", "PUT", "DELETE" })
+  static final String EAGER_METHODS = "transaction.eager.methods";
+  @Property(value = "")
+  static final String EAGER_PATHS = "transaction.eager.paths";
+
+  static final String MBEAN_NAME = "org.sakaiproject.nakamura.persistence:type=Transactions";
+
+  /**
+   * The filter that will begin a transaction for the request on this thread if it needs
+   * one, null if there is no request or its transaction has been begun already.
+   */
+  private static final ThreadLocal<TransactionManagerFilter> pending = new ThreadLocal<TransactionManagerFilter>();
+
 
   @Reference
   private TransactionManager transactionManager;
 
+  private boolean lazy = true;
+  private String[] eagerMethods = { "POST", "PUT", "DELETE" };
+  private String[] eagerPaths = {};
+  private TransactionMetrics metrics = new TransactionMetrics();
+
+  protected void activate(ComponentContext componentContext) {
+    @SuppressWarnings("unchecked")
+    Dictionary props = componentContext.getProperties();
+    Object lazyValue = props.get(LAZY_TRANSACTIONS);
+    if (lazyValue != null) {
+      lazy = Boolean.valueOf(String.valueOf(lazyValue));
+    }
+    eagerMethods = getStrings(props.get(EAGER_METHODS), eagerMethods);
+    eagerPaths = getStrings(props.get(EAGER_PATHS), eagerPaths);
+    registerMetrics();
+  }
+
+  protected void deactivate(ComponentContext componentContext) {
+    unregisterMetrics();
+  }
 
   /**
    * {@inheritDoc}
@@ -90,8 +140,16 @@ public class TransactionManagerFilter implements Filter {
   public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
       throws IOException, ServletException {
     HttpServletResponse hresponse = (HttpServletResponse) response;
+    TransactionManagerFilter outer = pending.get();
+    metrics.recordRequest();
     try {
-      begin();
+      if (isEager((HttpServletRequest) request)) {
+        pending.remove();
+        begin();
+        metrics.recordEagerBegin();
+      } else {
+        pending.set(this);
+      }
       chain.doFilter(request, response);
       commit();
     } catch (SecurityException se) {
@@ -111,7 +169,69 @@ public class TransactionManagerFilter implements Filter {
     } catch (Throwable t) {
       rollback();
       throw new ServletException(t.getMessage(), t);
+    } finally {
+      if (outer == null) {
+        pending.remove();
+      } else {
+        pending.set(outer);
+      }
+    }
+  }
+
+  /**
+   * Begins the transaction for the request being served on the current thread, if it
+   * was deferred and has not been begun yet. Anything that hands out a database
+   * connection calls this before doing so; outside a request it does nothing.
+   */
+  public static void enlist() {
+    TransactionManagerFilter filter = pending.get();
+    if (filter != null) {
+      pending.remove();
+      try {
+        filter.begin();
+        filter.metrics.recordLazyBegin();
+      } catch (NotSupportedException e) {
+        // a transaction is already active on this thread, join that one.
+        if (debug) {
+          LOGGER.debug(e.getMessage(), e);
+        }
+      } catch (SystemException e) {
+        throw new IllegalStateException("Unable to begin a transaction: "
+            + e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * @param request
+   * @return true if a transaction should be begun before the request is processed.
+   */
+  protected boolean isEager(HttpServletRequest request) {
+    if (!lazy) {
+      return true;
     }
+    String method = request.getMethod();
+    for (String eagerMethod : eagerMethods) {
+      if (eagerMethod.equalsIgnoreCase(method)) {
+        return true;
+      }
+    }
+    String path = request.getRequestURI();
+    if (path != null) {
+      for (String eagerPath : eagerPaths) {
+        if (eagerPath.length() > 0 && path.startsWith(eagerPath)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the counters of requests served and transactions begun.
+   */
+  protected TransactionMetrics getMetrics() {
+    return metrics;
   }
 
   /**
@@ -153,7 +273,9 @@ public class TransactionManagerFilter implements Filter {
    */
   protected void rollback() {
     try {
-      transactionManager.rollback();
+      if (Status.STATUS_NO_TRANSACTION != transactionManager.getStatus()) {
+        transactionManager.rollback();
+      }
     } catch (IllegalStateException e) {
       if (debug) {
         LOGGER.debug(e.getMessage(), e);
@@ -163,4 +285,38 @@ public class TransactionManagerFilter implements Filter {
     }
   }
 
+  private String[] getStrings(Object value, String[] defaultValue) {
+    if (value instanceof String[]) {
+      return (String[]) value;
+    } else if (value instanceof String) {
+      String v = ((String) value).trim();
+      return v.length() == 0 ? new String[0] : v.split("\\s*,\\s*");
+    }
+    return defaultValue;
+  }
+
+  private void registerMetrics() {
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(MBEAN_NAME);
+      if (!mBeanServer.isRegistered(objectName)) {
+        mBeanServer.registerMBean(metrics, objectName);
+      }
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register transaction metrics with JMX: {}", e.getMessage());
+    }
+  }
+
+  private void unregisterMetrics() {
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(MBEAN_NAME);
+      if (mBeanServer.isRegistered(objectName)) {
+        mBeanServer.unregisterMBean(objectName);
+      }
+    } catch (JMException e) {
+      LOGGER.debug(e.getMessage(), e);
+    }
+  }
+
 }
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.persistence;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of requests served and transactions begun by the
+ * {@link TransactionManagerFilter}.
+ */
+public class TransactionMetrics implements TransactionMetricsMBean {
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong eagerBegun = new AtomicLong();
+  private final AtomicLong lazyBegun = new AtomicLong();
+
+  void recordRequest() {
+    requests.incrementAndGet();
+  }
+
+  void recordEagerBegin() {
+    eagerBegun.incrementAndGet();
+  }
+
+  void recordLazyBegin() {
+    lazyBegun.incrementAndGet();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.persistence.TransactionMetricsMBean#getRequestsServed()
+   */
+  public long getRequestsServed() {
+    return requests.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.persistence.TransactionMetricsMBean#getEagerTransactionsBegun()
+   */
+  public long getEagerTransactionsBegun() {
+    return eagerBegun.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.persistence.TransactionMetricsMBean#getLazyTransactionsBegun()
+   */
+  public long getLazyTransactionsBegun() {
+    return lazyBegun.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.persistence.TransactionMetricsMBean#getTransactionsBegun()
+   */
+  public long getTransactionsBegun() {
+    return eagerBegun.get() + lazyBegun.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.persistence.TransactionMetricsMBean#getRequestsWithoutTransaction()
+   */
+  public long getRequestsWithoutTransaction() {
+    return Math.max(0, getRequestsServed() - getTransactionsBegun());
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.persistence.TransactionMetricsMBean#reset()
+   */
+  public void reset() {
+    requests.set(0);
+    eagerBegun.set(0);
+    lazyBegun.set(0);
+  }
+}
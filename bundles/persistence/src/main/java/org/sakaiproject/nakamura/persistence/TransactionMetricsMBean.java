@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.persistence;
+
+/**
+ * JMX view of the transactions begun by the {@link TransactionManagerFilter}.
+ */
+public interface TransactionMetricsMBean {
+
+  /**
+   * @return the number of requests that passed through the filter.
+   */
+  long getRequestsServed();
+
+  /**
+   * @return the number of transactions begun before the request was processed, because
+   *         the request matched the eager method or path rules.
+   */
+  long getEagerTransactionsBegun();
+
+  /**
+   * @return the number of transactions begun part way through a request, when it first
+   *         asked for a database connection.
+   */
+  long getLazyTransactionsBegun();
+
+  /**
+   * @return all the transactions begun, eager and lazy.
+   */
+  long getTransactionsBegun();
+
+  /**
+   * @return the number of requests served without beginning a transaction.
+   */
+  long getRequestsWithoutTransaction();
+
+  void reset();
+}
@@ -73,7 +73,7 @@ import javax.sql.DataSource;
 @Service
 public class DataSourceServiceImpl implements DataSourceService {
 
-  private PoolingDataSource dataSource;
+  private DataSource dataSource;
   @SuppressWarnings("unused")
   private PoolableConnectionFactory poolableConnectionFactory;
 
@@ -135,7 +135,8 @@ public class DataSourceServiceImpl implements DataSourceService {
     poolableConnectionFactory = new PoolableConnectionFactory(connectionFactory,
         connectionPool, statementPoolFactory, validationQuery, defaultReadOnly,
         defaultAutoCommit);
-    dataSource = new PoolingDataSource(connectionPool);
+    // connections begin the deferred request transaction, see TransactionManagerFilter.
+    dataSource = EnlistingDataSource.wrap(new PoolingDataSource(connectionPool));
   }
 
   protected void deactivate(ComponentContext componentContext) {
@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.persistence.dbcp;
+
+import org.sakaiproject.nakamura.persistence.TransactionManagerFilter;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.sql.DataSource;
+
+/**
+ * Wraps a data source so that the deferred request transaction is begun before a
+ * connection is handed out. A proxy is used rather than implementing
+ * {@link DataSource} so that the wrapper does not depend on the JDBC version of the
+ * JVM.
+ */
+class EnlistingDataSource implements InvocationHandler {
+
+  private DataSource dataSource;
+
+  private EnlistingDataSource(DataSource dataSource) {
+    this.dataSource = dataSource;
+  }
+
+  /**
+   * @param dataSource
+   *          the data source to wrap.
+   * @return a data source that enlists the current request before each connection.
+   */
+  static DataSource wrap(DataSource dataSource) {
+    return (DataSource) Proxy.newProxyInstance(DataSource.class.getClassLoader(),
+        new Class<?>[] { DataSource.class }, new EnlistingDataSource(dataSource));
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object,
+   *      java.lang.reflect.Method, java.lang.Object[])
+   */
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    if ("getConnection".equals(method.getName())) {
+      TransactionManagerFilter.enlist();
+    }
+    try {
+      return method.invoke(dataSource, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.persistence;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+public class TransactionManagerFilterTest {
+
+  private int begun;
+  private int committed;
+  private TransactionManagerFilter filter;
+
+  @Before
+  public void setUp() {
+    begun = 0;
+    committed = 0;
+    filter = new TransactionManagerFilter() {
+      @Override
+      protected void begin() {
+        begun++;
+      }
+
+      @Override
+      protected void commit() {
+        committed++;
+      }
+    };
+  }
+
+  @Test
+  public void testReadOnlyGetBeginsNothing() throws Exception {
+    doFilter("GET", "/var/search/sites.json", 0);
+    assertEquals(0, begun);
+    assertEquals(1, filter.getMetrics().getRequestsServed());
+    assertEquals(0, filter.getMetrics().getTransactionsBegun());
+    assertEquals(1, filter.getMetrics().getRequestsWithoutTransaction());
+  }
+
+  @Test
+  public void testGetBeginsOnFirstConnection() throws Exception {
+    doFilter("GET", "/var/search/sites.json", 2);
+    assertEquals(1, begun);
+    assertEquals(1, committed);
+    assertEquals(1, filter.getMetrics().getLazyTransactionsBegun());
+    assertEquals(0, filter.getMetrics().getEagerTransactionsBegun());
+  }
+
+  @Test
+  public void testPostBeginsEagerly() throws Exception {
+    doFilter("POST", "/system/batch", 1);
+    assertEquals(1, begun);
+    assertEquals(1, filter.getMetrics().getEagerTransactionsBegun());
+    assertEquals(0, filter.getMetrics().getLazyTransactionsBegun());
+  }
+
+  @Test
+  public void testNoEnlistmentOutsideRequest() throws Exception {
+    doFilter("GET", "/", 0);
+    TransactionManagerFilter.enlist();
+    assertEquals(0, begun);
+  }
+
+  private void doFilter(String method, String uri, final int connections)
+      throws Exception {
+    HttpServletRequest request = createMock(HttpServletRequest.class);
+    expect(request.getMethod()).andReturn(method).anyTimes();
+    expect(request.getRequestURI()).andReturn(uri).anyTimes();
+    HttpServletResponse response = createMock(HttpServletResponse.class);
+    FilterChain chain = createMock(FilterChain.class);
+    chain.doFilter((ServletRequest) request, (ServletResponse) response);
+    expectLastCall().andAnswer(new IAnswer<Object>() {
+      public Object answer() throws Throwable {
+        for (int i = 0; i < connections; i++) {
+          TransactionManagerFilter.enlist();
+        }
+        return null;
+      }
+    });
+    replay(request, response, chain);
+    filter.doFilter(request, response, chain);
+    verify(request, response, chain);
+  }
+}
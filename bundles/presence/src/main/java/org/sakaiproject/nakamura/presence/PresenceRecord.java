@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.presence;
+
+import java.io.Serializable;
+
+/**
+ * The presence of one user, held in the presence status cache. The location and status
+ * are canonical instances shared between records, so a record is three fields and needs
+ * no parsing to read.
+ */
+public class PresenceRecord implements Serializable {
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = -3386734389318094424L;
+  private final long timestamp;
+  private final String location;
+  private final String status;
+
+  /**
+   * @param timestamp
+   *          the time of the last update, in presence time units.
+   * @param location
+   *          the location of the user, "none" if there is none.
+   * @param status
+   *          the status of the user.
+   */
+  public PresenceRecord(long timestamp, String location, String status) {
+    this.timestamp = timestamp;
+    this.location = location;
+    this.status = status;
+  }
+
+  /**
+   * @return the time of the last update, in presence time units.
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * @return the location of the user, "none" if there is none.
+   */
+  public String getLocation() {
+    return location;
+  }
+
+  /**
+   * @return the status of the user.
+   */
+  public String getStatus() {
+    return status;
+  }
+}
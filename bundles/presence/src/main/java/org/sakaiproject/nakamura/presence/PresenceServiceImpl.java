@@ -17,10 +17,19 @@
  */
 package org.sakaiproject.nakamura.presence;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Component;
@@ -28,6 +37,7 @@ import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
@@ -50,15 +60,31 @@ public class PresenceServiceImpl implements PresenceService {
 
   private static final String LOCATION_CACHE = "presence.location";
   private static final String USER_STATUS_CACHE = "presence.status";
-  private static final long PRESENCE_TTL = 5L * 60L * 1000L; // 5 minutes
-  // private static final int USER_ELEMENT = 0;
-  private static final int TIMESTAMP_ELEMENT = 1;
-  private static final int LOCATION_ELEMENT = 2;
-  private static final int STATUS_ELEMENT = 3;
-  private static final int STATUS_SIZE = 4;
+  /**
+   * The resolution of presence timestamps (ms).
+   */
+  private static final long TIMESTAMP_RESOLUTION = 20000L;
+  /**
+   * How long presence lasts without a ping, in timestamp units (5 minutes).
+   */
+  private static final long PRESENCE_TTL = 5L * 60L * 1000L / TIMESTAMP_RESOLUTION;
+  /**
+   * The interval between sweeps of expired presence (ms).
+   */
+  private static final long SWEEP_INTERVAL = 60000L;
+  /**
+   * The maximum number of canonical location and status strings held.
+   */
+  private static final int MAX_CANONICAL = 10000;
+  private static final String NONE = "none";
 
-  private Cache<String> userStatusCache;
+  private Cache<PresenceRecord> userStatusCache;
+  /**
+   * Users by location, each location map holds userid to location.
+   */
   private Cache<Map<String, String>> locationCache;
+  private ConcurrentMap<String, String> canonical = new ConcurrentHashMap<String, String>();
+  private ScheduledExecutorService sweeper;
 
   @Reference
   protected transient CacheManagerService cacheManagerService;
@@ -81,13 +107,40 @@ public class PresenceServiceImpl implements PresenceService {
     }
   }
 
+  protected void activate(ComponentContext context) {
+    sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Presence Sweeper");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    sweeper.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          sweep();
+        } catch (RuntimeException e) {
+          LOGGER.warn("Presence sweep failed: {} ", e.getMessage());
+          LOGGER.debug(e.getMessage(), e);
+        }
+      }
+    }, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+  }
+
+  protected void deactivate(ComponentContext context) {
+    if (sweeper != null) {
+      sweeper.shutdownNow();
+      sweeper = null;
+    }
+  }
+
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.nakamura.api.presence.PresenceService#setStatus(java.lang.String,
    *      java.lang.String)
    */
   public void setStatus(String uuid, String status) {
-    updateLocationCache(uuid, getTimeStamp(), null, status);
+    updateLocationCache(uuid, getRecord(uuid), getTimeStamp(), null, status);
   }
 
   /**
@@ -96,7 +149,7 @@ public class PresenceServiceImpl implements PresenceService {
    */
   public void clear(String uuid) {
     // see if there is a current status to clear
-    String[] currentStatus = getCurrentStatus(uuid);
+    PresenceRecord currentStatus = getCurrentStatus(uuid, getTimeout());
     if (currentStatus != null) {
       if (userStatusCache != null) {
         // clear the user from the status cache
@@ -105,20 +158,7 @@ public class PresenceServiceImpl implements PresenceService {
         }
       }
       // try to find the location and clear the user from that
-      String location = null;
-      if (currentStatus.length > LOCATION_ELEMENT) {
-        location = currentStatus[LOCATION_ELEMENT];
-      }
-      if (location != null && locationCache != null) {
-        // found the location so clear the user from within this cache
-        Map<String, String> locationInstanceCache = locationCache.get(location);
-        if (locationInstanceCache != null) {
-          if (locationInstanceCache.containsKey(uuid)) {
-            locationInstanceCache.remove(uuid);
-            locationCache.put(location, locationInstanceCache);
-          }
-        }
-      }
+      removeFromLocation(uuid, currentStatus.getLocation());
     }
   }
 
@@ -127,17 +167,22 @@ public class PresenceServiceImpl implements PresenceService {
    * @see org.sakaiproject.nakamura.api.presence.PresenceService#getStatus(java.lang.String)
    */
   public String getStatus(String uuid) {
+    return getStatus(uuid, getTimeout());
+  }
+
+  /**
+   * @param uuid
+   * @param timeout
+   *          the timestamp at or before which presence has expired.
+   * @return the status of the user
+   */
+  private String getStatus(String uuid, long timeout) {
     // TODO should the default status really be offline if not set? -AZ
-    String result = PresenceStatus.offline.name();
-    String[] currentStatus = getCurrentStatus(uuid);
+    PresenceRecord currentStatus = getCurrentStatus(uuid, timeout);
     if (currentStatus != null) {
-      if (currentStatus.length > STATUS_ELEMENT) {
-        result = currentStatus[STATUS_ELEMENT];
-      } else {
-        result = PresenceStatus.online.name();
-      }
+      return currentStatus.getStatus();
     }
-    return result;
+    return PresenceStatus.offline.name();
   }
 
   /**
@@ -145,37 +190,37 @@ public class PresenceServiceImpl implements PresenceService {
    * @see org.sakaiproject.nakamura.api.presence.PresenceService#getLocation(java.lang.String)
    */
   public String getLocation(String uuid) {
-    String location = "none";
-    String[] currentStatus = getCurrentStatus(uuid);
+    PresenceRecord currentStatus = getCurrentStatus(uuid, getTimeout());
     if (currentStatus != null) {
-      if (currentStatus.length > LOCATION_ELEMENT) {
-        location = currentStatus[LOCATION_ELEMENT];
-      }
+      return currentStatus.getLocation();
     }
-    return location;
+    return NONE;
   }
 
-  private String[] getCurrentStatus(String uuid) {
-    String[] result = null;
+  /**
+   * @param uuid
+   * @return the presence record of the user, whether or not it has expired.
+   */
+  private PresenceRecord getRecord(String uuid) {
     if (userStatusCache != null) {
-      String currentStatus = userStatusCache.get(uuid);
-      long timeout = getTimeStamp() - PRESENCE_TTL;
-      // load the current status or the defaults.
-      if (currentStatus != null) {
-        String[] locationStatus = StringUtils.split(currentStatus, ":",
-            STATUS_SIZE);
-        if (locationStatus.length > TIMESTAMP_ELEMENT) {
-          // timed out ?
-          long lastTs = Long.parseLong(locationStatus[TIMESTAMP_ELEMENT]);
-          if (lastTs > timeout) {
-            result = locationStatus;
-          }
-        }
-      }
-    } else {
-      LOGGER.warn("User status cache is null, check the cacheManager");
+      return userStatusCache.get(uuid);
+    }
+    LOGGER.warn("User status cache is null, check the cacheManager");
+    return null;
+  }
+
+  /**
+   * @param uuid
+   * @param timeout
+   *          the timestamp at or before which presence has expired.
+   * @return the presence record of the user, or null if there is none or it has expired.
+   */
+  private PresenceRecord getCurrentStatus(String uuid, long timeout) {
+    PresenceRecord record = getRecord(uuid);
+    if (record != null && record.getTimestamp() > timeout) {
+      return record;
     }
-    return result;
+    return null;
   }
 
   /**
@@ -186,8 +231,9 @@ public class PresenceServiceImpl implements PresenceService {
    */
   public Map<String, String> online(List<String> connections) {
     Map<String, String> online = Maps.newHashMap();
+    long timeout = getTimeout();
     for (String uuid : connections) {
-      online.put(uuid, getStatus(uuid));
+      online.put(uuid, getStatus(uuid, timeout));
     }
     return online;
   }
@@ -202,11 +248,11 @@ public class PresenceServiceImpl implements PresenceService {
       Map<String, String> locationInstanceCache = locationCache.get(location);
       if (locationInstanceCache != null) {
         Map<String, String> onlineMap = Maps.newHashMap();
-        for (Entry<String, String> e : locationInstanceCache.entrySet()) {
-          String[] currentStatus = getCurrentStatus(e.getKey());
-          if (currentStatus != null
-              && location.equals(currentStatus[LOCATION_ELEMENT])) {
-            onlineMap.put(e.getKey(), currentStatus[STATUS_ELEMENT]);
+        long timeout = getTimeout();
+        for (String uuid : locationInstanceCache.keySet()) {
+          PresenceRecord currentStatus = getCurrentStatus(uuid, timeout);
+          if (currentStatus != null && location.equals(currentStatus.getLocation())) {
+            onlineMap.put(uuid, currentStatus.getStatus());
           }
         }
         return onlineMap;
@@ -226,30 +272,116 @@ public class PresenceServiceImpl implements PresenceService {
   public void ping(String uuid, String location) {
     long now = getTimeStamp();
     if (StringUtils.isEmpty(location)) {
-      location = "none";
+      location = NONE;
     }
     if (StringUtils.isEmpty(uuid)) {
-      uuid = "none";
+      uuid = NONE;
     }
-    if (updateLocationCache(uuid, now, location, null)) {
+    PresenceRecord previous = getRecord(uuid);
+    if (updateLocationCache(uuid, previous, now, location, null)) {
       // need to update
-      if (!"none".equals(location) && locationCache != null) {
+      if (previous != null && !location.equals(previous.getLocation())) {
+        // the user has moved.
+        removeFromLocation(uuid, previous.getLocation());
+      }
+      if (!NONE.equals(location) && locationCache != null) {
         Map<String, String> locationInstanceCache = locationCache.get(location);
-        if (locationInstanceCache == null) {
-          synchronized (locationCache) {
-            locationInstanceCache = locationCache.get(location);
-            if (locationInstanceCache == null) {
-              locationInstanceCache = new ConcurrentHashMap<String, String>();
-              locationCache.put(location, locationInstanceCache);
-            }
+        if (locationInstanceCache == null || !locationInstanceCache.containsKey(uuid)) {
+          addToLocation(uuid, location);
+        }
+      }
+    }
+  }
+
+  /**
+   * Add a user to the map of users at a location. The location cache is replicated, so
+   * a map is never changed once it is in the cache: a copy is changed and put back, which
+   * is what sends the change to the other nodes.
+   *
+   * @param uuid
+   * @param location
+   */
+  private void addToLocation(String uuid, String location) {
+    synchronized (locationCache) {
+      Map<String, String> locationInstanceCache = locationCache.get(location);
+      Map<String, String> updated = (locationInstanceCache == null)
+          ? new HashMap<String, String>()
+          : new HashMap<String, String>(locationInstanceCache);
+      updated.put(uuid, canonical(location));
+      locationCache.put(location, updated);
+    }
+  }
+
+  /**
+   * Remove a user from the map of users at a location.
+   *
+   * @param uuid
+   * @param location
+   */
+  private void removeFromLocation(String uuid, String location) {
+    if (location != null && !NONE.equals(location) && locationCache != null) {
+      removeFromLocation(Collections.singleton(uuid), location);
+    }
+  }
+
+  /**
+   * Remove users from the map of users at a location, working on the map as it is in the
+   * cache now so that users added since it was read, here or on another node, are kept.
+   *
+   * @param uuids
+   * @param location
+   */
+  private void removeFromLocation(Collection<String> uuids, String location) {
+    synchronized (locationCache) {
+      Map<String, String> locationInstanceCache = locationCache.get(location);
+      if (locationInstanceCache != null) {
+        Map<String, String> updated = new HashMap<String, String>(locationInstanceCache);
+        if (updated.keySet().removeAll(uuids)) {
+          if (updated.isEmpty()) {
+            locationCache.remove(location);
+          } else {
+            locationCache.put(location, updated);
           }
         }
+      }
+    }
+  }
 
-        String userKey = getLocationKey(uuid, location);
-        if (!locationInstanceCache.containsKey(uuid)) {
-          locationInstanceCache.put(uuid, userKey);
+  /**
+   * Remove expired presence, and users that have moved, from the location maps, and
+   * expired records from the status cache. The users to remove are found from a snapshot
+   * of each location map, and are then removed from the map as it is in the cache, once
+   * per location rather than once per user.
+   */
+  protected void sweep() {
+    if (locationCache == null || userStatusCache == null) {
+      return;
+    }
+    long timeout = getTimeout();
+    int expired = 0;
+    for (Map<String, String> locationInstanceCache : locationCache.list()) {
+      String location = null;
+      List<String> gone = new ArrayList<String>();
+      for (Entry<String, String> e : locationInstanceCache.entrySet()) {
+        location = e.getValue();
+        String uuid = e.getKey();
+        PresenceRecord record = userStatusCache.get(uuid);
+        if (record == null || record.getTimestamp() <= timeout) {
+          gone.add(uuid);
+          if (record != null) {
+            userStatusCache.remove(uuid);
+            expired++;
+          }
+        } else if (!location.equals(record.getLocation())) {
+          gone.add(uuid);
         }
       }
+      if (!gone.isEmpty()) {
+        removeFromLocation(gone, location);
+      }
+    }
+    if (expired > 0) {
+      LOGGER.debug("Expired presence of {} users ", expired);
     }
   }
 
@@ -259,7 +391,14 @@ public class PresenceServiceImpl implements PresenceService {
   private long getTimeStamp() {
     long now = System.currentTimeMillis();
     // make now slow changing, 20s resolution
-    return now / 20000;
+    return now / TIMESTAMP_RESOLUTION;
+  }
+
+  /**
+   * @return the timestamp at or before which presence has expired.
+   */
+  private long getTimeout() {
+    return getTimeStamp() - PRESENCE_TTL;
   }
 
   /**
@@ -267,6 +406,8 @@ public class PresenceServiceImpl implements PresenceService {
    * 
    * @param uuid
    *          the user id
+   * @param current
+   *          the current record for the user, may be null
    * @param now
    *          the timestamp
    * @param location
@@ -275,56 +416,51 @@ public class PresenceServiceImpl implements PresenceService {
    *          the status, null if not provided in this update
    * @return true if an update was performed.
    */
-  private boolean updateLocationCache(String uuid, long now, String location,
-      String status) {
-    boolean update = false;
-    if (userStatusCache != null) {
-      String currentStatus = userStatusCache.get(uuid);
-      // load the current status or the defaults.
-      String[] locationStatus = new String[] { uuid, String.valueOf(now - 1),
-          "none", "online" };
-      if (currentStatus != null) {
-        locationStatus = StringUtils.split(currentStatus, ":", STATUS_SIZE);
-
-      }
-      // compare with non null current versions.
-      String[] ls = new String[] { uuid, String.valueOf(now), location, status };
-
-      for (int i = 0; i < locationStatus.length; i++) {
-        if (ls[i] != null) {
-          if (!locationStatus[i].equals(ls[i])) {
-            update = true;
-          }
-        }
-      }
-
-      if (update) {
-        // set any null values to what they were previously
-        for (int i = 0; i < locationStatus.length; i++) {
-          if (ls[i] == null) {
-            ls[i] = locationStatus[i];
-          }
-        }
-        String newStatus = ':' + StringUtils.join(ls, ':');
-        if (!newStatus.equals(currentStatus)) {
-          userStatusCache.put(uuid, newStatus);
-        } else {
-          update = false;
-        }
-      }
-    } else {
+  private boolean updateLocationCache(String uuid, PresenceRecord current, long now,
+      String location, String status) {
+    if (userStatusCache == null) {
       LOGGER.warn("User status cache is null, check the cacheManager");
+      return false;
+    }
+    // load the current status or the defaults.
+    long currentTimestamp = now - 1;
+    String currentLocation = NONE;
+    String currentStatus = PresenceStatus.online.name();
+    if (current != null) {
+      currentTimestamp = current.getTimestamp();
+      currentLocation = current.getLocation();
+      currentStatus = current.getStatus();
+    }
+    // compare with non null current versions.
+    boolean update = (now != currentTimestamp)
+        || (location != null && !location.equals(currentLocation))
+        || (status != null && !status.equals(currentStatus));
+    if (update) {
+      // set any null values to what they were previously
+      userStatusCache.put(uuid, new PresenceRecord(now,
+          location == null ? currentLocation : canonical(location),
+          status == null ? currentStatus : canonical(status)));
     }
     return update;
   }
 
   /**
-   * @param uuid
-   * @param location
-   * @return
+   * @param value
+   * @return a shared instance equal to value, so that records for users with the same
+   *         location or status share the string.
    */
-  private String getLocationKey(String uuid, String location) {
-    return uuid + ":" + location;
+  private String canonical(String value) {
+    String c = canonical.get(value);
+    if (c == null) {
+      if (canonical.size() >= MAX_CANONICAL) {
+        return value;
+      }
+      c = canonical.putIfAbsent(value, value);
+      if (c == null) {
+        c = value;
+      }
+    }
+    return c;
   }
 
 }
@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.presence;
+
+import static org.sakaiproject.nakamura.api.personal.PersonalConstants.AUTH_PROFILE;
+import static org.sakaiproject.nakamura.api.personal.PersonalConstants._USER;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.Services;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.commons.json.JSONException;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.personal.PersonalUtils;
+import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Holds the serialized public profile of users, so that listing the profiles of all the
+ * contacts of a user does not read every profile node from the repository. A profile is
+ * held once for every reader, since only the properties of the profile node are written
+ * and they can all be seen by anyone who can read the node. Each reader is checked with
+ * one {@link Session#itemExists(String)} on the profile node. A profile is dropped when
+ * anything under it, including its access control, changes. Profiles are held in cluster
+ * invalidated caches, so a profile dropped on one node is dropped on the others.
+ */
+@Component(immediate = true, metatype = false)
+@Services(value = { @Service(value = ProfileCache.class),
+    @Service(value = EventHandler.class) })
+public class ProfileCache implements EventHandler {
+
+  @Property(value = { SlingConstants.TOPIC_RESOURCE_ADDED,
+      SlingConstants.TOPIC_RESOURCE_CHANGED, SlingConstants.TOPIC_RESOURCE_REMOVED },
+      propertyPrivate = true)
+  static final String EVENT_TOPICS = EventConstants.EVENT_TOPIC;
+
+  /**
+   * Only changes to profile nodes, and removals under the user tree that may take a
+   * profile with them, are delivered.
+   */
+  @Property(value = "(|(" + SlingConstants.PROPERTY_PATH + "=" + _USER + "/*/"
+      + AUTH_PROFILE + ")(&(" + EventConstants.EVENT_TOPIC + "="
+      + SlingConstants.TOPIC_RESOURCE_REMOVED + ")(" + SlingConstants.PROPERTY_PATH + "="
+      + _USER + "/*)))", propertyPrivate = true)
+  static final String EVENT_FILTER = EventConstants.EVENT_FILTER;
+
+  /**
+   * The profiles by user id.
+   */
+  static final String PROFILE_CACHE = "presence.profiles";
+
+  /**
+   * The user ids by profile path.
+   */
+  static final String PATH_CACHE = "presence.profiles.paths";
+
+  /**
+   * A serialized profile.
+   */
+  static class Profile {
+    final String user;
+    final String profilePath;
+    /**
+     * The JSON object of the profile node.
+     */
+    final String json;
+
+    Profile(String user, String profilePath, String json) {
+      this.user = user;
+      this.profilePath = profilePath;
+      this.json = json;
+    }
+  }
+
+  @Reference
+  protected transient CacheManagerService cacheManagerService;
+
+  /**
+   * Get the serialized profiles of a list of users as the session sees them, reading
+   * only those that are not held, or that are held but can not be seen by the session.
+   * 
+   * @param session
+   *          the session of the reader, missing profiles are read with it.
+   * @param userIds
+   *          the ids of the users.
+   * @return the JSON object of the profile of each user, in the same order, or null for a
+   *         user that does not exist.
+   * @throws RepositoryException
+   * @throws JSONException
+   */
+  public List<String> getProfiles(Session session, List<String> userIds)
+      throws RepositoryException, JSONException {
+    List<String> result = new ArrayList<String>(userIds.size());
+    for (String userId : userIds) {
+      Profile profile = get(userId);
+      if (profile != null && session.itemExists(profile.profilePath)) {
+        result.add(profile.json);
+        continue;
+      }
+      Authorizable au = PersonalUtils.getAuthorizable(session, userId);
+      if (au == null) {
+        result.add(null);
+        continue;
+      }
+      String profilePath = PersonalUtils.getProfilePath(au);
+      Node profileNode = (Node) session.getItem(profilePath);
+      StringWriter writer = new StringWriter();
+      ExtendedJSONWriter.writeNodeToWriter(new ExtendedJSONWriter(writer), profileNode);
+      String json = writer.toString();
+      put(userId, profilePath, json);
+      result.add(json);
+    }
+    return result;
+  }
+
+  /**
+   * @param user
+   *          the id of the user.
+   * @return the profile of the user, or null if it is not held.
+   */
+  Profile get(String user) {
+    return getProfiles().get(user);
+  }
+
+  /**
+   * Hold the profile of a user.
+   */
+  void put(String user, String profilePath, String json) {
+    getPaths().put(profilePath, user);
+    getProfiles().put(user, new Profile(user, profilePath, json));
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    if (path != null && path.startsWith(_USER)) {
+      changed(path, SlingConstants.TOPIC_RESOURCE_REMOVED.equals(event.getTopic()));
+    }
+  }
+
+  /**
+   * An item under the user tree has changed, drop the profile it belongs to. When an item
+   * is removed, the profiles below it are dropped as well.
+   */
+  void changed(String path, boolean removed) {
+    Cache<Profile> profiles = getProfiles();
+    Cache<String> paths = getPaths();
+    for (String p = path; p.length() > 0; p = p.substring(0, Math.max(0, p
+        .lastIndexOf('/')))) {
+      String user = paths.get(p);
+      if (user != null) {
+        profiles.remove(user);
+      }
+    }
+    if (removed) {
+      String prefix = path.endsWith("/") ? path : path + "/";
+      for (Profile profile : profiles.list()) {
+        if (profile.profilePath.startsWith(prefix)) {
+          profiles.remove(profile.user);
+        }
+      }
+    }
+  }
+
+  /**
+   * Drop every profile.
+   */
+  public void invalidateAll() {
+    getProfiles().clear();
+  }
+
+  private Cache<Profile> getProfiles() {
+    return cacheManagerService.getCache(PROFILE_CACHE, CacheScope.CLUSTERINVALIDATED);
+  }
+
+  private Cache<String> getPaths() {
+    return cacheManagerService.getCache(PATH_CACHE, CacheScope.CLUSTERINVALIDATED);
+  }
+}
@@ -22,7 +22,6 @@ import java.io.IOException;
 import java.io.Writer;
 import java.util.List;
 
-import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.servlet.ServletException;
@@ -32,11 +31,11 @@ import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
-import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONString;
 import org.sakaiproject.nakamura.api.connections.ConnectionManager;
 import org.sakaiproject.nakamura.api.connections.ConnectionState;
 import org.sakaiproject.nakamura.api.doc.BindingType;
@@ -46,9 +45,9 @@ import org.sakaiproject.nakamura.api.doc.ServiceExtension;
 import org.sakaiproject.nakamura.api.doc.ServiceMethod;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.doc.ServiceSelector;
-import org.sakaiproject.nakamura.api.personal.PersonalUtils;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.presence.PresenceUtils;
+import org.sakaiproject.nakamura.presence.ProfileCache;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -123,6 +122,9 @@ public class PresenceContactsServlet extends SlingSafeMethodsServlet {
   @Reference
   protected transient ConnectionManager connectionManager;
 
+  @Reference
+  protected transient ProfileCache profileCache;
+
   @Override
   protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
       throws ServletException, IOException {
@@ -148,17 +150,27 @@ public class PresenceContactsServlet extends SlingSafeMethodsServlet {
       Session session = request.getResourceResolver().adaptTo(Session.class);
       List<String> userIds = connectionManager.getConnectedUsers(user,
           ConnectionState.ACCEPTED);
+      // the profiles are read in one go, most of them will be held already
+      List<String> profiles = profileCache.getProfiles(session, userIds);
       output.key("contacts");
       output.array();
-      for (String userId : userIds) {
+      for (int i = 0; i < userIds.size(); i++) {
         output.object();
         // put in the basics
-        PresenceUtils.makePresenceJSON(output, userId, presenceService, true);
+        PresenceUtils.makePresenceJSON(output, userIds.get(i), presenceService, true);
         // add in the profile
         output.key("profile");
-        Authorizable au = PersonalUtils.getAuthorizable(session, userId);
-        Node profileNode = (Node) session.getItem(PersonalUtils.getProfilePath(au));
-        ExtendedJSONWriter.writeNodeToWriter(output, profileNode);
+        final String profile = profiles.get(i);
+        if (profile == null) {
+          output.object();
+          output.endObject();
+        } else {
+          output.value(new JSONString() {
+            public String toJSONString() {
+              return profile;
+            }
+          });
+        }
         output.endObject();
       }
       output.endArray();
@@ -34,6 +34,7 @@ import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.presence.PresenceStatus;
 import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -165,6 +166,77 @@ public class PresenceServiceImplTest {
     }
   }
   
+  @Test
+  public void testSweep() {
+    presenceService.ping("current", "locationA");
+    presenceService.ping("stale", "locationA");
+    // age the stale user beyond the presence TTL.
+    presenceStatusCache.put("stale", new PresenceRecord(0L, "locationA", "online"));
+    assertEquals(1, presenceService.online("locationA").size());
+    assertEquals(PresenceStatus.offline.name(), presenceService.getStatus("stale"));
+
+    presenceService.sweep();
+    assertNull(presenceStatusCache.get("stale"));
+    @SuppressWarnings("unchecked")
+    Map<String, String> atLocation = (Map<String, String>) presenceLocationCache
+        .get("locationA");
+    assertEquals(1, atLocation.size());
+    assertTrue(atLocation.containsKey("current"));
+  }
+
+  @Test
+  public void testMoveLocation() {
+    presenceService.ping("mover", "locationA");
+    presenceService.ping("mover", "locationB");
+    assertEquals("locationB", presenceService.getLocation("mover"));
+    assertEquals(0, presenceService.online("locationA").size());
+    assertNull(presenceLocationCache.get("locationA"));
+    assertEquals(1, presenceService.online("locationB").size());
+  }
+
+  @Test
+  public void testLocationReplicated() {
+    // a replicated cache holds copies, so a map read from it is not the map in it.
+    Cache<Object> replicatedLocationCache = new MapCacheImpl<Object>() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      @SuppressWarnings("unchecked")
+      public Object get(String key) {
+        Object value = super.get(key);
+        return (value == null) ? null : new HashMap<String, String>(
+            (Map<String, String>) value);
+      }
+    };
+    CacheManagerService replicatedCacheManager = createMock(CacheManagerService.class);
+    expect(
+        replicatedCacheManager.getCache("presence.location",
+            CacheScope.CLUSTERREPLICATED)).andReturn(replicatedLocationCache)
+        .anyTimes();
+    expect(
+        replicatedCacheManager.getCache("presence.status",
+            CacheScope.CLUSTERREPLICATED)).andReturn(presenceStatusCache)
+        .anyTimes();
+    replay(replicatedCacheManager);
+    PresenceServiceImpl replicated = new PresenceServiceImpl();
+    replicated.bindCacheManagerService(replicatedCacheManager);
+
+    replicated.ping("jack", "locationA");
+    replicated.ping("jill", "locationA");
+    replicated.ping("joe", "locationA");
+    assertEquals(3, replicated.online("locationA").size());
+
+    presenceStatusCache.put("jill", new PresenceRecord(0L, "locationA", "online"));
+    replicated.sweep();
+    replicated.clear("joe");
+    @SuppressWarnings("unchecked")
+    Map<String, String> atLocation = (Map<String, String>) replicatedLocationCache
+        .get("locationA");
+    assertEquals(1, atLocation.size());
+    assertTrue(atLocation.containsKey("jack"));
+    verify(replicatedCacheManager);
+  }
+
   public PresenceService getPresenceService() {
     return this.presenceService;
   }
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.presence;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.memory.CacheStatistics;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.Session;
+
+/**
+ * Checks profiles are shared by readers that can see them and dropped when anything under
+ * them changes.
+ */
+public class ProfileCacheTest {
+
+  private static final String ALICE = "/_user/a/al/alice/public/authprofile";
+  private static final String BOB = "/_user/b/bo/bob/public/authprofile";
+
+  private ProfileCache cache;
+
+  @Before
+  public void setUp() {
+    cache = newCache();
+    cache.put("alice", ALICE, "{\"firstName\":\"Alice\"}");
+    cache.put("bob", BOB, "{\"firstName\":\"Bob\"}");
+  }
+
+  @Test
+  public void testGet() {
+    assertEquals("{\"firstName\":\"Alice\"}", cache.get("alice").json);
+    assertNull(cache.get("carol"));
+  }
+
+  @Test
+  public void testReadersChecked() throws Exception {
+    Session jack = createMock(Session.class);
+    expect(jack.itemExists(ALICE)).andReturn(true);
+    expect(jack.itemExists(BOB)).andReturn(true);
+    replay(jack);
+    assertEquals(Arrays.asList("{\"firstName\":\"Alice\"}", "{\"firstName\":\"Bob\"}"),
+        cache.getProfiles(jack, Arrays.asList("alice", "bob")));
+    verify(jack);
+  }
+
+  @Test
+  public void testChanged() {
+    cache.changed(ALICE + "/basic/elements/firstName", false);
+    assertNull(cache.get("alice"));
+    assertNotNull(cache.get("bob"));
+    cache.changed("/_user/b/bo/bob/private", false);
+    assertNotNull(cache.get("bob"));
+    cache.changed(BOB + "/rep:policy", false);
+    assertNull(cache.get("bob"));
+  }
+
+  @Test
+  public void testRemoved() {
+    cache.changed("/_user/b", true);
+    assertNull(cache.get("bob"));
+    assertNotNull(cache.get("alice"));
+  }
+
+  /**
+   * @return a profile cache on a cache manager holding each cache in a map.
+   */
+  public static ProfileCache newCache() {
+    ProfileCache cache = new ProfileCache();
+    cache.cacheManagerService = new CacheManagerService() {
+      private final Map<String, Cache<?>> caches = new HashMap<String, Cache<?>>();
+
+      @SuppressWarnings("unchecked")
+      public synchronized <T> Cache<T> getCache(String name, CacheScope scope) {
+        assertEquals(CacheScope.CLUSTERINVALIDATED, scope);
+        Cache<T> cache = (Cache<T>) caches.get(name);
+        if (cache == null) {
+          cache = new MapCacheImpl<T>();
+          caches.put(name, cache);
+        }
+        return cache;
+      }
+
+      public void unbind(CacheScope scope) {
+      }
+
+      public CacheStatistics getStatistics(String name, CacheScope scope) {
+        return null;
+      }
+    };
+    return cache;
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.presence.servlets;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.assertEquals;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.easymock.IAnswer;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.connections.ConnectionManager;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+import org.sakaiproject.nakamura.api.personal.PersonalUtils;
+import org.sakaiproject.nakamura.presence.PresenceServiceImplTest;
+import org.sakaiproject.nakamura.presence.ProfileCacheTest;
+import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.jcr.Item;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PropertyIterator;
+import javax.jcr.Session;
+
+/**
+ * Lists the presence and profiles of 500 contacts repeatedly and counts how often a
+ * profile is read from the repository, with the profiles dropped before every request,
+ * with them held, for a second reader and after one of them changes. When the
+ * presence.benchmark system property is true it also reports the p50 and p99 latency with
+ * the profiles read and with them held, the figures are for comparing the modes, not
+ * pass/fail thresholds.
+ */
+public class PresenceContactsServletLoadTest extends AbstractEasyMockTest {
+
+  private static final int CONTACTS = 500;
+
+  private static final int REQUESTS = 200;
+
+  private static final int BENCHMARK_REQUESTS = 1000;
+
+  private static final boolean BENCHMARK = Boolean.getBoolean("presence.benchmark");
+
+  private PresenceContactsServlet servlet;
+  private SlingHttpServletRequest request;
+  private SlingHttpServletResponse response;
+  private List<String> profilePaths = new ArrayList<String>();
+  private String reader = "jack";
+  private int renders;
+
+  @Test
+  public void testRenderCounts() throws Exception {
+    PresenceServiceImplTest test = new PresenceServiceImplTest();
+    test.setUp();
+    servlet = new PresenceContactsServlet();
+    servlet.presenceService = test.getPresenceService();
+    servlet.profileCache = ProfileCacheTest.newCache();
+    createMocks();
+    replay();
+
+    serve(true);
+    assertEquals(REQUESTS * CONTACTS, renders);
+
+    renders = 0;
+    servlet.profileCache.invalidateAll();
+    serve(false);
+    assertEquals("Only the first request reads the profiles", CONTACTS, renders);
+
+    renders = 0;
+    reader = "jill";
+    serve(false);
+    assertEquals("Profiles are shared between readers that can see them", 0, renders);
+
+    renders = 0;
+    servlet.profileCache.changed(profilePaths.get(0) + "/basic", false);
+    serve(false);
+    assertEquals("Only the changed profile is read again", 1, renders);
+  }
+
+  @Test
+  public void testLatency() throws Exception {
+    if (!BENCHMARK) {
+      return;
+    }
+    PresenceServiceImplTest test = new PresenceServiceImplTest();
+    test.setUp();
+    servlet = new PresenceContactsServlet();
+    servlet.presenceService = test.getPresenceService();
+    servlet.profileCache = ProfileCacheTest.newCache();
+    createMocks();
+    replay();
+
+    report("read", time(true));
+    report("held", time(false));
+  }
+
+  private void serve(boolean invalidate) throws Exception {
+    for (int i = 0; i < REQUESTS; i++) {
+      if (invalidate) {
+        servlet.profileCache.invalidateAll();
+      }
+      servlet.doGet(request, response);
+    }
+  }
+
+  private long[] time(boolean invalidate) throws Exception {
+    // warm up before measuring.
+    for (int i = 0; i < BENCHMARK_REQUESTS / 10; i++) {
+      servlet.doGet(request, response);
+    }
+    long[] latencies = new long[BENCHMARK_REQUESTS];
+    for (int i = 0; i < BENCHMARK_REQUESTS; i++) {
+      if (invalidate) {
+        servlet.profileCache.invalidateAll();
+      }
+      long start = System.nanoTime();
+      servlet.doGet(request, response);
+      latencies[i] = System.nanoTime() - start;
+    }
+    return latencies;
+  }
+
+  private void report(String mode, long[] latencies) {
+    Arrays.sort(latencies);
+    System.err.println("PresenceContactsServlet " + CONTACTS + " contacts " + mode
+        + ": p50 " + (latencies[latencies.length / 2] / 1000) + "us, p99 "
+        + (latencies[latencies.length * 99 / 100] / 1000) + "us");
+  }
+
+  private void createMocks() throws Exception {
+    JackrabbitSession session = createMock(JackrabbitSession.class);
+    List<String> contacts = new ArrayList<String>();
+    Authorizable[] authorizables = new Authorizable[CONTACTS];
+    for (int i = 0; i < CONTACTS; i++) {
+      String uuid = "user-" + i;
+      contacts.add(uuid);
+      servlet.presenceService.setStatus(uuid, "online");
+      final Node profileNode = createMock(Node.class);
+      PropertyIterator propIterator = createMock(PropertyIterator.class);
+      NodeIterator nodeIterator = createMock(NodeIterator.class);
+      expect(propIterator.hasNext()).andReturn(false).anyTimes();
+      expect(nodeIterator.hasNext()).andReturn(false).anyTimes();
+      expect(profileNode.getNodes()).andReturn(nodeIterator).anyTimes();
+      expect(profileNode.getProperties()).andReturn(propIterator).anyTimes();
+      expect(profileNode.getName()).andReturn("authprofile").anyTimes();
+      expect(profileNode.getPath()).andReturn("/path/to/" + uuid + "/authprofile")
+          .anyTimes();
+      authorizables[i] = createAuthorizable(uuid, false, true);
+      String profilePath = PersonalUtils.getProfilePath(authorizables[i]);
+      profilePaths.add(profilePath);
+      expect(session.itemExists(profilePath)).andReturn(true).anyTimes();
+      expect(session.getItem(profilePath)).andAnswer(new IAnswer<Item>() {
+        public Item answer() throws Throwable {
+          renders++;
+          return profileNode;
+        }
+      }).anyTimes();
+    }
+    expect(session.getUserID()).andAnswer(new IAnswer<String>() {
+      public String answer() throws Throwable {
+        return reader;
+      }
+    }).anyTimes();
+    UserManager um = createUserManager(null, true, authorizables);
+    expect(session.getUserManager()).andReturn(um).anyTimes();
+
+    ConnectionManager connectionManager = createMock(ConnectionManager.class);
+    expect(connectionManager.getConnectedUsers("jack", ConnectionState.ACCEPTED))
+        .andReturn(contacts).anyTimes();
+    expect(connectionManager.getConnectedUsers("jill", ConnectionState.ACCEPTED))
+        .andReturn(contacts).anyTimes();
+    servlet.connectionManager = connectionManager;
+
+    ResourceResolver resolver = createMock(ResourceResolver.class);
+    expect(resolver.adaptTo(Session.class)).andReturn(session).anyTimes();
+    request = createNiceMock(SlingHttpServletRequest.class);
+    expect(request.getRemoteUser()).andAnswer(new IAnswer<String>() {
+      public String answer() throws Throwable {
+        return reader;
+      }
+    }).anyTimes();
+    expect(request.getResourceResolver()).andReturn(resolver).anyTimes();
+
+    response = createNiceMock(SlingHttpServletResponse.class);
+    expect(response.getWriter()).andReturn(new PrintWriter(new Writer() {
+      @Override
+      public void write(char[] cbuf, int off, int len) {
+      }
+
+      @Override
+      public void flush() {
+      }
+
+      @Override
+      public void close() {
+      }
+    })).anyTimes();
+  }
+}
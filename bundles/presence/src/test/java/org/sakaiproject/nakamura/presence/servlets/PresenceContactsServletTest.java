@@ -36,6 +36,7 @@ import org.sakaiproject.nakamura.api.connections.ConnectionState;
 import org.sakaiproject.nakamura.api.personal.PersonalUtils;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.presence.PresenceServiceImplTest;
+import org.sakaiproject.nakamura.presence.ProfileCacheTest;
 import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
 
 import java.io.ByteArrayOutputStream;
@@ -69,12 +70,14 @@ public class PresenceContactsServletTest extends AbstractEasyMockTest {
 
     servlet = new PresenceContactsServlet();
     servlet.presenceService = presenceService;
+    servlet.profileCache = ProfileCacheTest.newCache();
   }
 
   @After
   public void tearDown() throws Exception {
     servlet.presenceService = null;
     servlet.connectionManager = null;
+    servlet.profileCache = null;
   }
 
   @Test
@@ -125,6 +128,7 @@ public class PresenceContactsServletTest extends AbstractEasyMockTest {
     Authorizable[] auths = new Authorizable[authorizables.size()];
     UserManager um = createUserManager(null, true, authorizables.toArray(auths));
     expect(session.getUserManager()).andReturn(um).anyTimes();
+    expect(session.getUserID()).andReturn(CURRENT_USER).anyTimes();
     expect(
         connectionManager.getConnectedUsers(CURRENT_USER,
             ConnectionState.ACCEPTED)).andReturn(contacts);
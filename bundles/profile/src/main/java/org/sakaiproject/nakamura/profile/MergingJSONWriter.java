@@ -21,7 +21,10 @@ import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.apache.sling.commons.json.jcr.JsonItemWriter;
 
+import java.io.IOException;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
@@ -39,6 +42,8 @@ import javax.jcr.ValueFormatException;
  */
 public class MergingJSONWriter extends JsonItemWriter {
 
+  private Writer writer;
+
   /**
    * @param propertyNamesToIgnore
    */
@@ -59,40 +64,71 @@ public class MergingJSONWriter extends JsonItemWriter {
   public void dump(Node baseNode,
       Map<Node, Future<Map<String, Object>>> providedNodeData, Writer w)
       throws JSONException, RepositoryException, InterruptedException, ExecutionException {
+    writer = w;
     JSONWriter jw = new JSONWriter(w);
     dump(jw, baseNode, providedNodeData);
   }
 
+  /**
+   * Writes the properties and the child nodes held in the repository first, then the
+   * provided child nodes, those that are ready before those that are not, so that only
+   * what is left has to wait for providers.
+   */
   protected void dump(JSONWriter jw, Node baseNode,
       Map<Node, Future<Map<String, Object>>> providedNodeData) throws JSONException,
       RepositoryException, InterruptedException, ExecutionException {
     jw.object();
     if (providedNodeData.containsKey(baseNode)) {
       jw.key(baseNode.getName());
-      dump(jw, providedNodeData.get(baseNode).get());
+      dump(jw, get(providedNodeData.get(baseNode)));
     } else {
-      System.err.println("Base Node is "+baseNode);
       PropertyIterator pi = baseNode.getProperties();
-      System.err.println("Property Iterator is  "+pi);
-      
       for (; pi.hasNext();) {
         writeProperty(jw, pi.nextProperty());
       }
+      List<Node> provided = new ArrayList<Node>();
       NodeIterator ni = baseNode.getNodes();
       for (; ni.hasNext();) {
         Node node = ni.nextNode();
         if (providedNodeData.containsKey(node)) {
-          jw.key(node.getName());
-          dump(jw, providedNodeData.get(node).get());
+          provided.add(node);
         } else {
           jw.key(node.getName());
           dump(jw, node, providedNodeData);
         }
       }
+      while (!provided.isEmpty()) {
+        Node node = provided.get(0);
+        for (Node n : provided) {
+          if (providedNodeData.get(n).isDone()) {
+            node = n;
+            break;
+          }
+        }
+        provided.remove(node);
+        jw.key(node.getName());
+        dump(jw, get(providedNodeData.get(node)));
+      }
     }
     jw.endObject();
   }
 
+  /**
+   * @return the provided map, sending what has been written so far to the client first if
+   *         it is not ready.
+   */
+  private Map<String, Object> get(Future<Map<String, Object>> future)
+      throws InterruptedException, ExecutionException {
+    if (writer != null && !future.isDone()) {
+      try {
+        writer.flush();
+      } catch (IOException e) {
+        // the client is gone, writing the rest will fail in the same way.
+      }
+    }
+    return future.get();
+  }
+
   /**
    * @param map
    * @param w
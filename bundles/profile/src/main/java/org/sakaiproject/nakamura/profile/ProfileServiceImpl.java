@@ -18,37 +18,119 @@
 package org.sakaiproject.nakamura.profile;
 
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.profile.ProfileProvider;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
 import org.sakaiproject.nakamura.api.profile.ProviderSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 
 /**
- *
+ * Writes profiles, running the external providers of a profile concurrently on a bounded
+ * pool while the parts of the profile held in the repository are written. A provider call
+ * may outlive the request, so it reads the nodes of the profile with a session of its
+ * own and never with the session of the request. Nothing waits for a provider past its
+ * timeout: a call still queued at its deadline is skipped, a running one is cancelled, and
+ * when the pool is full the held or error maps are used at once.
  */
 @Component(immediate=true)
 @Service
 public class ProfileServiceImpl implements ProfileService {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(ProfileServiceImpl.class);
+
+  @Property(intValue = 10)
+  static final String PROVIDER_THREADS = "sakai.profile.provider.threads";
+
+  /**
+   * Provider calls waiting for a thread, when it is full providers are not called and the
+   * last map held for each node is used.
+   */
+  @Property(intValue = 100)
+  static final String PROVIDER_QUEUE_SIZE = "sakai.profile.provider.queueSize";
+
+  /**
+   * The time (ms) to wait for a provider before falling back, unless the provider
+   * configuration sets {@link #PROVIDER_TIMEOUT_PROPERTY}.
+   */
+  @Property(intValue = 5000)
+  static final String PROVIDER_TIMEOUT = "sakai.profile.provider.timeout";
+
+  /**
+   * The time (s) a provided map is used again, 0 to call the provider every time.
+   */
+  @Property(intValue = 300)
+  static final String PROVIDER_CACHE_TTL = "sakai.profile.provider.cacheTtl";
+
+  /**
+   * Property of the provider configuration node overriding {@link #PROVIDER_TIMEOUT}.
+   */
+  static final String PROVIDER_TIMEOUT_PROPERTY = "sakai:provider-timeout";
+
   protected Map<String, ProfileProvider> providers;
 
+  @Reference
+  protected SlingRepository slingRepository;
+
+  @Reference
+  protected CacheManagerService cacheManagerService;
+
   private ProviderSettingsFactory providerSettingsFactory = new ProviderSettingsFactory();
 
+  private ExecutorService executor = newExecutor(10, 100);
+
+  private long timeout = 5000;
+
+  /**
+   * The time (ms) a provided map is used again.
+   */
+  private long resultTtl = 300000;
+
+  protected void activate(ComponentContext context) {
+    Dictionary<?, ?> properties = context.getProperties();
+    ExecutorService old = executor;
+    executor = newExecutor(Math.max(1, OsgiUtil.toInteger(properties.get(PROVIDER_THREADS),
+        10)), Math.max(1, OsgiUtil.toInteger(properties.get(PROVIDER_QUEUE_SIZE), 100)));
+    old.shutdown();
+    timeout = OsgiUtil.toInteger(properties.get(PROVIDER_TIMEOUT), 5000);
+    resultTtl = OsgiUtil.toInteger(properties.get(PROVIDER_CACHE_TTL), 300) * 1000L;
+  }
+
+  protected void deactivate(ComponentContext context) {
+    executor.shutdown();
+  }
+
   public void writeProfileMap(Node baseNode, Writer w) throws JSONException,
       RepositoryException, InterruptedException, ExecutionException {
     Map<String, List<ProviderSettings>> providersMap = scanForProviders(baseNode);
@@ -56,7 +138,7 @@ public class ProfileServiceImpl implements ProfileService {
     for (Entry<String, List<ProviderSettings>> e : providersMap.entrySet()) {
       ProfileProvider pp = providers.get(e.getKey());
       if (pp != null) {
-        providedNodeData.putAll(pp.getProvidedMap(e.getValue()));
+        provide(baseNode.getPath(), e.getKey(), pp, e.getValue(), providedNodeData);
       }
     }
 
@@ -64,6 +146,178 @@ public class ProfileServiceImpl implements ProfileService {
     jsonWriter.dump(baseNode, providedNodeData, w);
   }
 
+  /**
+   * Use the maps held for the nodes of a provider, and start a call to the provider for
+   * the rest.
+   *
+   * @param basePath
+   *          the path of the profile.
+   * @param name
+   *          the name of the provider.
+   * @param pp
+   * @param settings
+   *          the settings of each node of the provider.
+   * @param providedNodeData
+   *          filled with a future of the map of each node.
+   * @throws RepositoryException
+   */
+  private void provide(String basePath, String name, ProfileProvider pp,
+      List<ProviderSettings> settings,
+      Map<Node, Future<Map<String, Object>>> providedNodeData) throws RepositoryException {
+    ProviderResultCache resultCache = getResultCache();
+    List<ProviderSettings> missing = new ArrayList<ProviderSettings>();
+    List<String> paths = new ArrayList<String>();
+    List<String> keys = new ArrayList<String>();
+    for (ProviderSettings s : settings) {
+      String path = s.getNode().getPath();
+      String key = name + ":" + path;
+      Map<String, Object> held = resultCache.get(key);
+      if (held == null) {
+        missing.add(s);
+        paths.add(path);
+        keys.add(key);
+      } else {
+        providedNodeData.put(s.getNode(), new ProviderFuture(held));
+      }
+    }
+    if (missing.isEmpty()) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    long[] deadlines = new long[missing.size()];
+    long callDeadline = now;
+    for (int i = 0; i < missing.size(); i++) {
+      deadlines[i] = now + getTimeout(missing.get(i));
+      callDeadline = Math.max(callDeadline, deadlines[i]);
+    }
+    Future<Map<String, Map<String, Object>>> call;
+    try {
+      call = executor.submit(new ProviderCall(pp, providerSettingsFactory, slingRepository,
+          basePath, paths, keys, resultCache, callDeadline));
+    } catch (RejectedExecutionException e) {
+      LOGGER.warn("Too many profile provider calls waiting, not calling {} for {}", name,
+          basePath);
+      for (int i = 0; i < missing.size(); i++) {
+        providedNodeData.put(missing.get(i).getNode(), new ProviderFuture(keys.get(i),
+            resultCache, "Too many provider calls waiting"));
+      }
+      return;
+    }
+    for (int i = 0; i < missing.size(); i++) {
+      providedNodeData.put(missing.get(i).getNode(), new ProviderFuture(call, keys.get(i),
+          deadlines[i], deadlines[i] == callDeadline, resultCache));
+    }
+  }
+
+  /**
+   * @return the time (ms) to wait for the provider of the settings.
+   */
+  private long getTimeout(ProviderSettings settings) {
+    try {
+      String[] configured = settings.getProviderConfigProperty(PROVIDER_TIMEOUT_PROPERTY);
+      if (configured.length > 0) {
+        return Long.parseLong(configured[0].trim());
+      }
+    } catch (RepositoryException e) {
+      LOGGER.warn("Unable to read the timeout of provider {}: {}", settings.getProvider(),
+          e.getMessage());
+    } catch (NumberFormatException e) {
+      LOGGER.warn("Invalid timeout for provider {}: {}", settings.getProvider(), e
+          .getMessage());
+    }
+    return timeout;
+  }
+
+  /**
+   * @return the maps held for the providers, in the cache manager.
+   */
+  private ProviderResultCache getResultCache() {
+    return new ProviderResultCache(resultTtl, cacheManagerService);
+  }
+
+  /**
+   * Calls a provider for a batch of nodes and waits for the maps it provides until the
+   * deadline of the batch, holding each map for the next time. The nodes are read again
+   * with an administrative session that is logged out when the call is done, the nodes
+   * were found with the session of the request, so only nodes the user can read are
+   * provided.
+   */
+  private static class ProviderCall implements
+      Callable<Map<String, Map<String, Object>>> {
+    private final ProfileProvider provider;
+    private final ProviderSettingsFactory providerSettingsFactory;
+    private final SlingRepository slingRepository;
+    private final String basePath;
+    private final List<String> paths;
+    private final List<String> keys;
+    private final ProviderResultCache resultCache;
+    private final long deadline;
+
+    ProviderCall(ProfileProvider provider, ProviderSettingsFactory providerSettingsFactory,
+        SlingRepository slingRepository, String basePath, List<String> paths,
+        List<String> keys, ProviderResultCache resultCache, long deadline) {
+      this.provider = provider;
+      this.providerSettingsFactory = providerSettingsFactory;
+      this.slingRepository = slingRepository;
+      this.basePath = basePath;
+      this.paths = paths;
+      this.keys = keys;
+      this.resultCache = resultCache;
+      this.deadline = deadline;
+    }
+
+    public Map<String, Map<String, Object>> call() throws Exception {
+      Map<String, Map<String, Object>> maps = new HashMap<String, Map<String, Object>>();
+      if (System.currentTimeMillis() >= deadline) {
+        // waited in the queue past the deadline, every node has fallen back already.
+        return maps;
+      }
+      Session session = slingRepository.loginAdministrative(null);
+      try {
+        List<ProviderSettings> settings = new ArrayList<ProviderSettings>();
+        List<String> settingsKeys = new ArrayList<String>();
+        for (int i = 0; i < paths.size(); i++) {
+          String path = paths.get(i);
+          ProviderSettings s = providerSettingsFactory.newProviderSettings(path
+              .substring(basePath.length()), session.getNode(path));
+          if (s != null) {
+            settings.add(s);
+            settingsKeys.add(keys.get(i));
+          }
+        }
+        Map<? extends Node, ? extends Future<Map<String, Object>>> provided = provider
+            .getProvidedMap(settings);
+        for (int i = 0; i < settings.size(); i++) {
+          Future<Map<String, Object>> future = provided.get(settings.get(i).getNode());
+          if (future != null) {
+            try {
+              Map<String, Object> map = future.get(Math.max(0, deadline
+                  - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+              maps.put(settingsKeys.get(i), map);
+              resultCache.put(settingsKeys.get(i), map);
+            } catch (TimeoutException e) {
+              future.cancel(true);
+            }
+          }
+        }
+        return maps;
+      } finally {
+        session.logout();
+      }
+    }
+  }
+
+  private static ExecutorService newExecutor(int threads, int queueSize) {
+    return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Profile Provider");
+            t.setDaemon(true);
+            return t;
+          }
+        }, new ThreadPoolExecutor.AbortPolicy());
+  }
+
   /**
    * @param baseNode
    * @return
@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.profile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The map provided for one node, either held already or from a provider call that may
+ * still be running. The call is waited for no later than a deadline, when it fails or is
+ * late the last map held for the node stands in, or an error map if there is none. The
+ * node with the latest deadline of the call cancels it when that deadline passes.
+ */
+public class ProviderFuture implements Future<Map<String, Object>> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ProviderFuture.class);
+
+  private final Future<Map<String, Map<String, Object>>> call;
+  private final String key;
+  private final long deadline;
+  private final boolean last;
+  private final ProviderResultCache resultCache;
+  private Map<String, Object> map;
+
+  /**
+   * @param map
+   *          a map that is held already.
+   */
+  public ProviderFuture(Map<String, Object> map) {
+    this(null, null, 0, false, null);
+    this.map = map;
+  }
+
+  /**
+   * @param key
+   *          the key of the node in the result cache.
+   * @param resultCache
+   * @param error
+   *          why the provider was not called.
+   */
+  public ProviderFuture(String key, ProviderResultCache resultCache, String error) {
+    this(null, key, 0, false, resultCache);
+    this.map = fallback(error);
+  }
+
+  /**
+   * @param call
+   *          the provider call for a batch of nodes including the node, giving the map
+   *          of each node by key.
+   * @param key
+   *          the key of the node in the result cache.
+   * @param deadline
+   *          the time (ms) to stop waiting for the call.
+   * @param last
+   *          true if no other node of the call has a later deadline, so the call is
+   *          cancelled when this one passes.
+   * @param resultCache
+   */
+  public ProviderFuture(Future<Map<String, Map<String, Object>>> call, String key,
+      long deadline, boolean last, ProviderResultCache resultCache) {
+    this.call = call;
+    this.key = key;
+    this.deadline = deadline;
+    this.last = last;
+    this.resultCache = resultCache;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * The call is shared with other nodes, so it is only cancelled by the node with the
+   * latest deadline, once that deadline has passed.
+   *
+   * @see java.util.concurrent.Future#cancel(boolean)
+   */
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    return false;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.util.concurrent.Future#isCancelled()
+   */
+  public boolean isCancelled() {
+    return false;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.util.concurrent.Future#isDone()
+   */
+  public synchronized boolean isDone() {
+    return map != null || call.isDone() || System.currentTimeMillis() >= deadline;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Waits no later than the deadline.
+   *
+   * @see java.util.concurrent.Future#get()
+   */
+  public Map<String, Object> get() throws InterruptedException {
+    return get(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.util.concurrent.Future#get(long, java.util.concurrent.TimeUnit)
+   */
+  public synchronized Map<String, Object> get(long timeout, TimeUnit unit)
+      throws InterruptedException {
+    if (map == null) {
+      try {
+        Map<String, Map<String, Object>> provided = call.get(Math.max(0, timeout), unit);
+        map = provided.get(key);
+        if (map == null) {
+          map = fallback("Nothing was provided");
+        }
+      } catch (TimeoutException e) {
+        if (last) {
+          call.cancel(true);
+        }
+        map = fallback("Timed out waiting for the provider");
+      } catch (CancellationException e) {
+        map = fallback("Timed out waiting for the provider");
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause() == null ? e : e.getCause();
+        LOGGER.warn("Profile provider failed for {}: {}", key, cause.getMessage());
+        map = fallback(String.valueOf(cause.getMessage()));
+      }
+    }
+    return map;
+  }
+
+  /**
+   * @return the last map held for the node, or a map of the error.
+   */
+  private Map<String, Object> fallback(String error) {
+    Map<String, Object> held = resultCache.getStale(key);
+    if (held != null) {
+      return held;
+    }
+    Map<String, Object> profileError = new HashMap<String, Object>();
+    profileError.put("error", error);
+    return profileError;
+  }
+}
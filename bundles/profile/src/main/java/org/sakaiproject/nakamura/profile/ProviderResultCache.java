@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.profile;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.util.Map;
+
+/**
+ * Holds the maps external providers produced for profile nodes, so that a profile viewed
+ * again within {@link #ttl} does not go back to the provider. An expired map is kept
+ * until the cache drops it, to stand in for a provider that fails or does not answer in
+ * time. Maps are held in a cluster invalidated cache, so a map provided again on one node
+ * replaces the one held on the others.
+ */
+public class ProviderResultCache {
+
+  /**
+   * The provided maps, by provider and node.
+   */
+  static final String RESULT_CACHE = "profile.providerresults";
+
+  /**
+   * A provided map and the time (ms) it expires.
+   */
+  static class Result {
+    final Map<String, Object> map;
+    final long expires;
+
+    Result(Map<String, Object> map, long expires) {
+      this.map = map;
+      this.expires = expires;
+    }
+  }
+
+  /**
+   * The time (ms) a map is fresh, nothing is held if 0.
+   */
+  private final long ttl;
+
+  private final CacheManagerService cacheManagerService;
+
+  /**
+   * @param ttl
+   *          the time (ms) a map is fresh, nothing is held if 0.
+   * @param cacheManagerService
+   *          the cache manager the maps are held in, not used if the ttl is 0.
+   */
+  public ProviderResultCache(long ttl, CacheManagerService cacheManagerService) {
+    this.ttl = ttl;
+    this.cacheManagerService = cacheManagerService;
+  }
+
+  /**
+   * @param key
+   *          the provider and the node the map was provided for.
+   * @return the map, or null if it is not held or is no longer fresh.
+   */
+  public Map<String, Object> get(String key) {
+    Result result = getResult(key);
+    if (result != null && result.expires > System.currentTimeMillis()) {
+      return result.map;
+    }
+    return null;
+  }
+
+  /**
+   * @param key
+   *          the provider and the node the map was provided for.
+   * @return the map, fresh or not, or null if it is not held.
+   */
+  public Map<String, Object> getStale(String key) {
+    Result result = getResult(key);
+    return result == null ? null : result.map;
+  }
+
+  public void put(String key, Map<String, Object> map) {
+    if (ttl > 0) {
+      getResults().put(key, new Result(map, System.currentTimeMillis() + ttl));
+    }
+  }
+
+  private Result getResult(String key) {
+    return ttl > 0 ? getResults().get(key) : null;
+  }
+
+  private Cache<Result> getResults() {
+    return cacheManagerService.getCache(RESULT_CACHE, CacheScope.CLUSTERINVALIDATED);
+  }
+}
@@ -21,30 +21,38 @@ import junit.framework.Assert;
 
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.jcr.api.SlingRepository;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
+import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.profile.ProfileProvider;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
 
 import java.io.StringWriter;
 import java.util.HashMap;
+import java.util.Hashtable;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 
 /**
  *
  */
 public class ProfileServiceImplTest {
 
+  private static final String EXTERNAL_PATH = "/_user/i/ie/ieb/profile/externalNode";
+
   @Mock
   private Node baseNode;
   @Mock
@@ -61,6 +69,10 @@ public class ProfileServiceImplTest {
   protected Future<Map<String, Object>> future;
   @Mock
   private Node normal2;
+  @Mock
+  private SlingRepository slingRepository;
+  @Mock
+  private Session adminSession;
 
   public ProfileServiceImplTest() {
     MockitoAnnotations.initMocks(this);
@@ -77,6 +89,116 @@ public class ProfileServiceImplTest {
     checkResponse(w);
   }
 
+  @Test
+  public void testProvidedMapIsHeld() throws Exception {
+    ProfileService ps = setupProfileService();
+    ps.writeProfileMap(getBaseNode(), new StringWriter());
+    // walk the same tree again.
+    Mockito.when(nodeIterator.hasNext()).thenReturn(true, true, true, false, true, true,
+        true, false);
+    Mockito.when(nodeIterator.nextNode()).thenReturn(normal, external, normal2, normal,
+        external, normal2);
+    StringWriter w = new StringWriter();
+    ps.writeProfileMap(getBaseNode(), w);
+
+    checkResponse(w);
+    Mockito.verify(profileProvider, Mockito.times(1)).getProvidedMap(Mockito.anyList());
+  }
+
+  @Test
+  public void testSlowProviderTimesOut() throws Exception {
+    ProfileServiceImpl ps = (ProfileServiceImpl) setupProfileService();
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(ProfileServiceImpl.PROVIDER_TIMEOUT, 50);
+    ComponentContext context = Mockito.mock(ComponentContext.class);
+    Mockito.when(context.getProperties()).thenReturn(properties);
+    ps.activate(context);
+    final CountDownLatch provided = new CountDownLatch(1);
+    Mockito.when(profileProvider.getProvidedMap(Mockito.anyList())).thenAnswer(
+        new Answer<Map<Node, Future<Map<String, Object>>>>() {
+
+          public Map<Node, Future<Map<String, Object>>> answer(InvocationOnMock invocation)
+              throws Throwable {
+            provided.await(5, TimeUnit.SECONDS);
+            return new HashMap<Node, Future<Map<String, Object>>>();
+          }
+        });
+    final CountDownLatch loggedOut = new CountDownLatch(1);
+    Mockito.doAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        loggedOut.countDown();
+        return null;
+      }
+    }).when(adminSession).logout();
+
+    StringWriter w = new StringWriter();
+    ps.writeProfileMap(getBaseNode(), w);
+
+    JSONObject jo = new JSONObject(w.toString());
+    Assert.assertEquals("baseNodePropertyValue", jo.get("baseNodePropertyName"));
+    Assert.assertTrue(jo.getJSONObject("externalNode").has("error"));
+
+    // the late call is cancelled and logs out without waiting for the provider.
+    Assert.assertTrue(loggedOut.await(5, TimeUnit.SECONDS));
+    Assert.assertEquals(1, provided.getCount());
+    ps.deactivate(context);
+  }
+
+  @Test
+  public void testFullPoolFallsBack() throws Exception {
+    ProfileServiceImpl ps = (ProfileServiceImpl) setupProfileService();
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(ProfileServiceImpl.PROVIDER_TIMEOUT, 50);
+    properties.put(ProfileServiceImpl.PROVIDER_THREADS, 1);
+    properties.put(ProfileServiceImpl.PROVIDER_QUEUE_SIZE, 1);
+    ComponentContext context = Mockito.mock(ComponentContext.class);
+    Mockito.when(context.getProperties()).thenReturn(properties);
+    ps.activate(context);
+    final CountDownLatch provided = new CountDownLatch(1);
+    Mockito.when(profileProvider.getProvidedMap(Mockito.anyList())).thenAnswer(
+        new Answer<Map<Node, Future<Map<String, Object>>>>() {
+
+          public Map<Node, Future<Map<String, Object>>> answer(InvocationOnMock invocation)
+              throws Throwable {
+            // a provider that ignores being cancelled, and holds the only thread.
+            while (provided.getCount() > 0) {
+              try {
+                provided.await(5, TimeUnit.SECONDS);
+              } catch (InterruptedException e) {
+                continue;
+              }
+            }
+            return new HashMap<Node, Future<Map<String, Object>>>();
+          }
+        });
+    Mockito.when(nodeIterator.hasNext()).thenReturn(true, true, true, false, true, true,
+        true, false, true, true, true, false);
+    Mockito.when(nodeIterator.nextNode()).thenReturn(normal, external, normal2, normal,
+        external, normal2, normal, external, normal2);
+
+    // the first call holds the thread, the second waits in the queue.
+    ps.writeProfileMap(getBaseNode(), new StringWriter());
+    ps.writeProfileMap(getBaseNode(), new StringWriter());
+    StringWriter w = new StringWriter();
+    ps.writeProfileMap(getBaseNode(), w);
+
+    JSONObject jo = new JSONObject(w.toString());
+    Assert.assertEquals("Too many provider calls waiting", jo.getJSONObject("externalNode")
+        .get("error"));
+    provided.countDown();
+    ps.deactivate(context);
+    Mockito.verify(profileProvider, Mockito.times(1)).getProvidedMap(Mockito.anyList());
+  }
+
+  @Test
+  public void testProviderUsesOwnSession() throws Exception {
+    ProfileService ps = setupProfileService();
+    ps.writeProfileMap(getBaseNode(), new StringWriter());
+
+    Mockito.verify(adminSession).getNode(EXTERNAL_PATH);
+    Mockito.verify(adminSession).logout();
+  }
+
   /**
    * @return
    */
@@ -122,6 +244,10 @@ public class ProfileServiceImplTest {
     ProfileServiceImpl ps = new ProfileServiceImpl();
     ps.providers = new HashMap<String, ProfileProvider>();
     ps.providers.put("externalNodeProvider", profileProvider);
+    ps.slingRepository = slingRepository;
+    ps.cacheManagerService = ProviderResultCacheTest.newCacheManagerService();
+    Mockito.when(slingRepository.loginAdministrative(null)).thenReturn(adminSession);
+    Mockito.when(adminSession.getNode(EXTERNAL_PATH)).thenReturn(external);
 
     Mockito.when(baseNode.getNodes()).thenReturn(nodeIterator);
     Mockito.when(nodeIterator.hasNext()).thenReturn(true, true, true, false, true, true,
@@ -132,6 +258,7 @@ public class ProfileServiceImplTest {
     ExternalNodeConfig externalNodeConfig = ExternalNodeConfig.configExternal(external,
         "externalNode", "", "externalNodeProvider", "/var/profile/config/ldap");
     Mockito.when(baseNode.getPath()).thenReturn("/_user/i/ie/ieb/profile");
+    Mockito.when(external.getPath()).thenReturn(EXTERNAL_PATH);
     Mockito.when(baseNode.getName()).thenReturn("profile");
     Mockito.when(normal.getName()).thenReturn("normal");
     Mockito.when(normal2.getName()).thenReturn("normal2");
@@ -154,7 +281,8 @@ public class ProfileServiceImplTest {
     Map<String, Object> externalMap = new HashMap<String, Object>();
     externalMap.put("subtreeprop", "subtreevalue");
     externalNodeMap.put("externalObject", externalMap);
-    Mockito.when(future.get()).thenReturn(externalNodeMap);
+    Mockito.when(future.get(Mockito.anyLong(), Mockito.any(TimeUnit.class))).thenReturn(
+        externalNodeMap);
 
     Mockito.when(profileProvider.getProvidedMap(Mockito.anyList())).thenAnswer(
         new Answer<Map<Node, Future<Map<String, Object>>>>() {
@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.profile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Checks provided maps are held while fresh and kept afterwards as a fallback.
+ */
+public class ProviderResultCacheTest {
+
+  @Test
+  public void testGet() {
+    ProviderResultCache cache = new ProviderResultCache(60000, newCacheManagerService());
+    Map<String, Object> map = newMap();
+    cache.put("ldap:/_user/i/ie/ieb/public/authprofile/ldap", map);
+    assertEquals(map, cache.get("ldap:/_user/i/ie/ieb/public/authprofile/ldap"));
+    assertNull(cache.get("ldap:/_user/n/ni/nico/public/authprofile/ldap"));
+  }
+
+  @Test
+  public void testExpired() throws Exception {
+    ProviderResultCache cache = new ProviderResultCache(1, newCacheManagerService());
+    Map<String, Object> map = newMap();
+    cache.put("ldap:/a", map);
+    Thread.sleep(10);
+    assertNull(cache.get("ldap:/a"));
+    assertEquals(map, cache.getStale("ldap:/a"));
+  }
+
+  @Test
+  public void testDisabled() {
+    ProviderResultCache cache = new ProviderResultCache(0, newCacheManagerService());
+    cache.put("ldap:/a", newMap());
+    assertNull(cache.get("ldap:/a"));
+    assertNull(cache.getStale("ldap:/a"));
+  }
+
+  @Test
+  public void testSharedThroughCacheManager() {
+    CacheManagerService cacheManagerService = newCacheManagerService();
+    Map<String, Object> map = newMap();
+    new ProviderResultCache(60000, cacheManagerService).put("ldap:/a", map);
+    assertEquals(map, new ProviderResultCache(60000, cacheManagerService).get("ldap:/a"));
+  }
+
+  /**
+   * @return a cache manager holding the maps in a map.
+   */
+  static CacheManagerService newCacheManagerService() {
+    Cache<Object> results = new MapCacheImpl<Object>();
+    CacheManagerService cacheManagerService = Mockito.mock(CacheManagerService.class);
+    Mockito.when(cacheManagerService.getCache(ProviderResultCache.RESULT_CACHE,
+        CacheScope.CLUSTERINVALIDATED)).thenReturn(results);
+    return cacheManagerService;
+  }
+
+  private Map<String, Object> newMap() {
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("mail", "ieb@example.com");
+    return map;
+  }
+}
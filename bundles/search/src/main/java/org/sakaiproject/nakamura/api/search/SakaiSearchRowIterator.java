@@ -39,6 +39,14 @@ public class SakaiSearchRowIterator implements RowIterator {
   private long position;
   private Row nextRow;
   private String[] blacklistedPaths;
+  /**
+   * The number of rows read from the wrapped iterator, including the prefetched row.
+   */
+  private long read;
+  private long nextRowOffset;
+  private Row lastRow;
+  private long lastRowOffset;
+  private boolean resumed;
 
   /**
    * @param iterator
@@ -58,8 +66,25 @@ public class SakaiSearchRowIterator implements RowIterator {
    *          An array of paths that should be ignored.
    */
   public SakaiSearchRowIterator(RowIterator iterator, String[] blacklistedPaths) {
+    this(iterator, blacklistedPaths, 0);
+  }
+
+  /**
+   * 
+   * @param iterator
+   *          The iterator that should be wrapped.
+   * @param blacklistedPaths
+   *          An array of paths that should be ignored.
+   * @param offset
+   *          The number of rows that have already been read from the wrapped iterator,
+   *          when resuming from a {@link SearchCursor}.
+   */
+  public SakaiSearchRowIterator(RowIterator iterator, String[] blacklistedPaths,
+      long offset) {
     this.iterator = iterator;
     this.position = -1;
+    this.read = offset;
+    this.resumed = offset > 0;
     if (blacklistedPaths != null) {
       Arrays.sort(blacklistedPaths);
       this.blacklistedPaths = blacklistedPaths;
@@ -77,10 +102,39 @@ public class SakaiSearchRowIterator implements RowIterator {
       throw new NoSuchElementException();
     }
     Row r = nextRow;
+    lastRow = r;
+    lastRowOffset = nextRowOffset;
     loadNextRow();
     return r;
   }
 
+  /**
+   * @return true if this iterator continues a result from a {@link SearchCursor}, rather
+   *         than starting at the first row.
+   */
+  public boolean isResumed() {
+    return resumed;
+  }
+
+  /**
+   * Get a cursor to continue from the last row returned by this iterator.
+   * 
+   * @param fingerprint
+   *          the fingerprint of the query, see {@link SearchCursor#fingerprint(javax.jcr.query.Query)}.
+   * @return the cursor, or null if no row has been returned.
+   */
+  public SearchCursor getCursor(String fingerprint) {
+    if (lastRow == null) {
+      return null;
+    }
+    try {
+      return new SearchCursor(fingerprint, lastRowOffset, lastRow.getScore(), lastRow
+          .getPath());
+    } catch (RepositoryException e) {
+      return null;
+    }
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -188,9 +242,11 @@ public class SakaiSearchRowIterator implements RowIterator {
     nextRow = null;
     while (iterator.hasNext()) {
       Row row = iterator.nextRow();
+      read++;
       if (isValid(row)) {
         position++;
         nextRow = row;
+        nextRowOffset = read;
         break;
       }
     }
@@ -50,6 +50,11 @@ public interface SearchConstants {
   *
   */
   public static final String PARAMS_PAGE = "page";
+  /**
+   * The request parameter holding a continuation cursor from a previous page, and the
+   * key of the cursor for the next page in the response.
+   */
+  public static final String PARAMS_CURSOR = "cursor";
   /**
   *
   */
@@ -0,0 +1,210 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.search;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.jcr.query.Query;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A continuation cursor for a search. It records how many rows of the underlying query
+ * result had been read when a page was written, and the score and path of the last row
+ * read, so that the next page can skip straight to that position without checking each
+ * skipped row again. The cursor carries a fingerprint of the query so it can not be used
+ * to continue a different search.
+ * 
+ * The string form is opaque to clients, and is signed so that a client can not make up a
+ * cursor to skip further into a result than it has paged. The key is random per instance
+ * unless set with {@link #setSecret(String)}, so that cursors can be followed on any node
+ * of a cluster.
+ */
+public class SearchCursor {
+
+  private static final String UTF8 = "UTF-8";
+  private static final char SEPARATOR = '\n';
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  private static final String MAC_ALGORITHM = "HmacSHA1";
+  /**
+   * The length of the signature in bytes.
+   */
+  private static final int MAC_LENGTH = 20;
+
+  private static volatile SecretKeySpec key;
+  static {
+    byte[] secret = new byte[MAC_LENGTH];
+    new SecureRandom().nextBytes(secret);
+    key = new SecretKeySpec(secret, MAC_ALGORITHM);
+  }
+
+  private String fingerprint;
+  private long offset;
+  private double score;
+  private String path;
+
+  /**
+   * @param fingerprint
+   *          the fingerprint of the query, see {@link #fingerprint(Query)}.
+   * @param offset
+   *          the number of rows of the query result that have been read.
+   * @param score
+   *          the score of the last row read.
+   * @param path
+   *          the path of the last row read.
+   */
+  public SearchCursor(String fingerprint, long offset, double score, String path) {
+    this.fingerprint = fingerprint;
+    this.offset = offset;
+    this.score = score;
+    this.path = path;
+  }
+
+  /**
+   * @param query
+   * @return a fingerprint of the statement and language of a query.
+   */
+  public static String fingerprint(Query query) {
+    String statement = query.getLanguage() + SEPARATOR + query.getStatement();
+    return Integer.toHexString(statement.hashCode()) + Integer.toHexString(statement.length());
+  }
+
+  /**
+   * Set the key cursors are signed with, so that every node of a cluster accepts the
+   * cursors of the others.
+   * 
+   * @param secret
+   *          the shared secret, if null or empty a random key is kept.
+   */
+  public static void setSecret(String secret) {
+    if (secret != null && secret.length() > 0) {
+      try {
+        key = new SecretKeySpec(secret.getBytes(UTF8), MAC_ALGORITHM);
+      } catch (UnsupportedEncodingException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  /**
+   * Parse the string form of a cursor.
+   * 
+   * @param cursor
+   *          the cursor sent by the client.
+   * @return the cursor.
+   * @throws SearchException
+   *           with a 400 code if the cursor can not be read or was not signed here.
+   */
+  public static SearchCursor parse(String cursor) throws SearchException {
+    try {
+      if (cursor.length() % 2 != 0 || cursor.length() <= MAC_LENGTH * 2) {
+        throw new IllegalArgumentException();
+      }
+      byte[] signed = new byte[cursor.length() / 2];
+      for (int i = 0; i < signed.length; i++) {
+        signed[i] = (byte) Integer.parseInt(cursor.substring(i * 2, i * 2 + 2), 16);
+      }
+      byte[] bytes = new byte[signed.length - MAC_LENGTH];
+      byte[] signature = new byte[MAC_LENGTH];
+      System.arraycopy(signed, 0, bytes, 0, bytes.length);
+      System.arraycopy(signed, bytes.length, signature, 0, MAC_LENGTH);
+      if (!MessageDigest.isEqual(signature, sign(bytes))) {
+        throw new IllegalArgumentException();
+      }
+      String[] parts = new String(bytes, UTF8).split(String.valueOf(SEPARATOR), 4);
+      if (parts.length != 4) {
+        throw new IllegalArgumentException();
+      }
+      return new SearchCursor(parts[0], Long.parseLong(parts[1]), Double
+          .parseDouble(parts[2]), parts[3]);
+    } catch (IllegalArgumentException e) {
+      throw new SearchException(HttpServletResponse.SC_BAD_REQUEST, "Invalid cursor.");
+    } catch (UnsupportedEncodingException e) {
+      throw new SearchException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e
+          .getMessage());
+    }
+  }
+
+  /**
+   * @return the signature of the bytes of a cursor.
+   */
+  private static byte[] sign(byte[] bytes) {
+    try {
+      Mac mac = Mac.getInstance(MAC_ALGORITHM);
+      mac.init(key);
+      return mac.doFinal(bytes);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return the fingerprint of the query the cursor belongs to.
+   */
+  public String getFingerprint() {
+    return fingerprint;
+  }
+
+  /**
+   * @return the number of rows of the query result that have been read.
+   */
+  public long getOffset() {
+    return offset;
+  }
+
+  /**
+   * @return the score of the last row read.
+   */
+  public double getScore() {
+    return score;
+  }
+
+  /**
+   * @return the path of the last row read.
+   */
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    String cursor = fingerprint + SEPARATOR + offset + SEPARATOR + score + SEPARATOR + path;
+    try {
+      byte[] bytes = cursor.getBytes(UTF8);
+      StringBuilder sb = new StringBuilder((bytes.length + MAC_LENGTH) * 2);
+      for (byte b : bytes) {
+        sb.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+      }
+      for (byte b : sign(bytes)) {
+        sb.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+      }
+      return sb.toString();
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
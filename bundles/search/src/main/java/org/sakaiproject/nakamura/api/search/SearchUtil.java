@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.api.search;
 
+import static org.sakaiproject.nakamura.api.search.SearchConstants.PARAMS_CURSOR;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.PARAMS_ITEMS_PER_PAGE;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.PARAMS_PAGE;
 
@@ -26,9 +27,13 @@ import org.apache.sling.jcr.jackrabbit.server.index.QueryHitsExtractor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.NoSuchElementException;
+
 import javax.jcr.RepositoryException;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryResult;
+import javax.jcr.query.RowIterator;
+import javax.servlet.http.HttpServletResponse;
 
 /**
  *
@@ -37,9 +42,16 @@ public class SearchUtil {
 
   public static final Logger LOGGER = LoggerFactory.getLogger(SearchUtil.class);
 
+  /**
+   * When the row a cursor points at has moved, it is looked for this many rows either
+   * side of where it was.
+   */
+  static final long RESUME_WINDOW = 100;
+
   /**
    * This method will return a SearchResultSet that contains a paged rowIterator and the
-   * total hit count from Lucene.
+   * total hit count from Lucene. If the request has a cursor the rowIterator continues
+   * from it, otherwise the page parameter is used.
    * 
    * @param request
    * @param query
@@ -49,6 +61,8 @@ public class SearchUtil {
   public static SearchResultSet getSearchResultSet(SlingHttpServletRequest request,
       Query query) throws SearchException {
     try {
+      SearchCursor cursor = getCursor(request, query);
+
       // Get the query result.
       QueryResult rs = query.execute();
 
@@ -56,9 +70,14 @@ public class SearchUtil {
       long hits = getHits(rs);
 
       // Do the paging on the iterator.
-      SakaiSearchRowIterator iterator = new SakaiSearchRowIterator(rs.getRows());
-      long start = getPaging(request, hits);
-      iterator.skip(start);
+      SakaiSearchRowIterator iterator;
+      if (cursor != null) {
+        iterator = resume(query, rs, cursor);
+      } else {
+        iterator = new SakaiSearchRowIterator(rs.getRows());
+        long start = getPaging(request, hits);
+        iterator.skip(start);
+      }
 
       // Return the result set.
       SearchResultSet srs = new AbstractSearchResultSet(iterator, hits);
@@ -69,6 +88,79 @@ public class SearchUtil {
 
   }
 
+  /**
+   * Get the cursor sent with a request.
+   * 
+   * @param request
+   * @param query
+   *          the query the cursor should continue.
+   * @return the cursor, or null if the request does not have one.
+   * @throws SearchException
+   *           if the cursor is invalid or belongs to a different query.
+   */
+  public static SearchCursor getCursor(SlingHttpServletRequest request, Query query)
+      throws SearchException {
+    RequestParameter param = request.getRequestParameter(PARAMS_CURSOR);
+    if (param == null || param.getString().length() == 0) {
+      return null;
+    }
+    SearchCursor cursor = SearchCursor.parse(param.getString());
+    if (!cursor.getFingerprint().equals(SearchCursor.fingerprint(query))) {
+      throw new SearchException(HttpServletResponse.SC_BAD_REQUEST,
+          "The cursor does not belong to this search.");
+    }
+    return cursor;
+  }
+
+  /**
+   * Continue a query result from a cursor. The rows before the cursor are skipped on the
+   * underlying iterator, so they are not loaded or checked. If the last row of the
+   * previous page is no longer where the cursor says, because the index has changed, the
+   * rows within {@link #RESUME_WINDOW} of it are searched for that row. If it is not
+   * found the result continues from the same offset.
+   * 
+   * @param query
+   * @param rs
+   *          the result of the query.
+   * @param cursor
+   * @return an iterator positioned after the row the cursor points at.
+   * @throws RepositoryException
+   */
+  public static SakaiSearchRowIterator resume(Query query, QueryResult rs,
+      SearchCursor cursor) throws RepositoryException {
+    RowIterator rows = rs.getRows();
+    if (skip(rows, cursor.getOffset() - 1) && rows.hasNext()
+        && cursor.getPath().equals(rows.nextRow().getPath())) {
+      return new SakaiSearchRowIterator(rows, null, cursor.getOffset());
+    }
+    LOGGER.debug("Search results have moved, looking for {} ", cursor.getPath());
+    rows = query.execute().getRows();
+    long offset = Math.max(0, cursor.getOffset() - RESUME_WINDOW);
+    long end = cursor.getOffset() + RESUME_WINDOW;
+    if (skip(rows, offset)) {
+      while (offset < end && rows.hasNext()) {
+        offset++;
+        if (cursor.getPath().equals(rows.nextRow().getPath())) {
+          return new SakaiSearchRowIterator(rows, null, offset);
+        }
+      }
+    }
+    rows = query.execute().getRows();
+    skip(rows, cursor.getOffset());
+    return new SakaiSearchRowIterator(rows, null, cursor.getOffset());
+  }
+
+  private static boolean skip(RowIterator rows, long skipNum) {
+    try {
+      if (skipNum > 0) {
+        rows.skip(skipNum);
+      }
+      return true;
+    } catch (NoSuchElementException e) {
+      return false;
+    }
+  }
+
   /**
    * Get the hits from a Lucene queryResult.
    * 
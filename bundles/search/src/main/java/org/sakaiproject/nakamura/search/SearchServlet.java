@@ -22,6 +22,7 @@ import static org.sakaiproject.nakamura.api.search.SearchConstants.JSON_COUNT;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.JSON_NAME;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.JSON_RESULTS;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.JSON_TOTALS;
+import static org.sakaiproject.nakamura.api.search.SearchConstants.PARAMS_CURSOR;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.PARAMS_ITEMS_PER_PAGE;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.PARAMS_PAGE;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.REG_BATCH_PROCESSOR_NAMES;
@@ -68,8 +69,10 @@ import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.personal.PersonalUtils;
 import org.sakaiproject.nakamura.api.search.Aggregator;
+import org.sakaiproject.nakamura.api.search.SakaiSearchRowIterator;
 import org.sakaiproject.nakamura.api.search.SearchBatchResultProcessor;
 import org.sakaiproject.nakamura.api.search.SearchConstants;
+import org.sakaiproject.nakamura.api.search.SearchCursor;
 import org.sakaiproject.nakamura.api.search.SearchException;
 import org.sakaiproject.nakamura.api.search.SearchPropertyProvider;
 import org.sakaiproject.nakamura.api.search.SearchResultProcessor;
@@ -160,8 +163,13 @@ import javax.servlet.http.HttpServletResponse;
         + "  ]\n" + "}\n" + "</pre>" }, parameters = {
     @ServiceParameter(name = "items", description = { "The number of items per page in the result set." }),
     @ServiceParameter(name = "page", description = { "The page number to start listing the results on." }),
+    @ServiceParameter(name = "cursor", description = { "The cursor from the previous page of results. "
+        + "When present the results continue after that page and page is ignored. Responses include "
+        + "a cursor for the next page when there may be more results, clients that follow cursors "
+        + "are not limited in how far they can page." }),
     @ServiceParameter(name = "*", description = { "Any other parameters may be used by the template." }) }, response = {
     @ServiceResponse(code = 200, description = "A search response simular to the above will be emitted "),
+    @ServiceResponse(code = 400, description = "The cursor is invalid or belongs to a different search. "),
     @ServiceResponse(code = 403, description = "The search template is not located under /var "),
     @ServiceResponse(code = 406, description = "There are too many results that need to be paged. "),
     @ServiceResponse(code = 500, description = "Any error with the html containing the error")
@@ -209,6 +217,13 @@ public class SearchServlet extends SlingSafeMethodsServlet {
   @Property(name = "maximumResults", longValue = 2500L)
   protected long maximumResults;
 
+  /**
+   * The secret search cursors are signed with, which must be the same on every node of a
+   * cluster. If empty each node uses a random key.
+   */
+  @Property(value = "")
+  static final String CURSOR_SECRET = "cursorSecret";
+
   // Default processors
   protected transient SearchBatchResultProcessor defaultSearchBatchProcessor;
   protected transient SearchResultProcessor defaultSearchProcessor;
@@ -267,11 +282,15 @@ public class SearchServlet extends SlingSafeMethodsServlet {
         // If we wouldn't do this, the user could ask for the 1000th page
         // This would result in iterating over (at least) 25.000 lucene indexes and
         // checking if the user has READ access on it.
+        // Requests that continue from a cursor skip straight to their position, so they
+        // are not limited if the result set really was continued from the cursor.
         long nitems = SearchUtil.intRequestParameter(request, PARAMS_ITEMS_PER_PAGE,
             DEFAULT_PAGED_ITEMS);
         long page = SearchUtil.intRequestParameter(request, PARAMS_PAGE, 0);
         long offset = page * nitems;
-        if (limitResults && offset > maximumResults) {
+        RequestParameter cursorParam = request.getRequestParameter(PARAMS_CURSOR);
+        boolean hasCursor = cursorParam != null && cursorParam.getString().length() > 0;
+        if (limitResults && !hasCursor && offset > maximumResults) {
           response.sendError(HttpServletResponse.SC_NOT_ACCEPTABLE,
               "There are too many results.");
           return;
@@ -320,6 +339,16 @@ public class SearchServlet extends SlingSafeMethodsServlet {
           return;
         }
 
+        RowIterator iterator = rs.getRowIterator();
+        if (limitResults && offset > maximumResults
+            && !(iterator instanceof SakaiSearchRowIterator && ((SakaiSearchRowIterator) iterator)
+                .isResumed())) {
+          // the processor paged from the start rather than continuing from the cursor.
+          response.sendError(HttpServletResponse.SC_NOT_ACCEPTABLE,
+              "There are too many results.");
+          return;
+        }
+
         response.setContentType("application/json");
         response.setCharacterEncoding("UTF-8");
 
@@ -333,7 +362,6 @@ public class SearchServlet extends SlingSafeMethodsServlet {
 
         write.array();
 
-        RowIterator iterator = rs.getRowIterator();
         if (useBatch) {
           LOGGER.info("Using batch processor for results");
           searchBatchProcessor.writeNodes(request, write, aggregator, iterator);
@@ -350,6 +378,14 @@ public class SearchServlet extends SlingSafeMethodsServlet {
           }
         }
         write.endArray();
+        if (iterator instanceof SakaiSearchRowIterator && iterator.hasNext()) {
+          SearchCursor cursor = ((SakaiSearchRowIterator) iterator).getCursor(SearchCursor
+              .fingerprint(query));
+          if (cursor != null) {
+            write.key(PARAMS_CURSOR);
+            write.value(cursor.toString());
+          }
+        }
         if (aggregator != null) {
           Map<String, Map<String, Integer>> aggregate = aggregator.getAggregate();
           write.key(JSON_TOTALS);
@@ -687,6 +723,8 @@ public class SearchServlet extends SlingSafeMethodsServlet {
     }
 
     maximumResults = (Long) componentContext.getProperties().get("maximumResults");
+    SearchCursor.setSecret(OsgiUtil.toString(componentContext.getProperties().get(
+        CURSOR_SECRET), null));
   }
 
 }
@@ -20,6 +20,7 @@ package org.sakaiproject.nakamura.api.search;
 import static org.junit.Assert.fail;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_EXCLUDE_TREE;
 
 import org.apache.sling.commons.testing.jcr.MockNode;
@@ -121,6 +122,25 @@ public class SakaiSearchRowIteratorTest extends AbstractEasyMockTest {
     }
   }
 
+  @Test
+  public void testCursor() throws Exception {
+    List<Node> nodes = new ArrayList<Node>();
+    nodes.add(createNode("/path/to/nodeA", false));
+    nodes.add(createNode("/path/to/nodeB", true));
+    nodes.add(createNode("/path/to/nodeC", false));
+    nodes.add(createNode("/path/to/nodeD", false));
+
+    sakaiIterator = new SakaiSearchRowIterator(new MockRowIterator(nodes));
+    assertNull(sakaiIterator.getCursor("fp"));
+    sakaiIterator.nextRow();
+    sakaiIterator.nextRow();
+    SearchCursor cursor = sakaiIterator.getCursor("fp");
+    // nodeB was read and skipped, so nodeC is the third row.
+    assertEquals(3, cursor.getOffset());
+    assertEquals("/path/to/nodeC", cursor.getPath());
+    assertEquals("fp", cursor.getFingerprint());
+  }
+
   protected Node createNode(String path, boolean excludeTree) throws RepositoryException {
     MockNode node = new MockNode(path);
     node.setProperty(SAKAI_EXCLUDE_TREE, excludeTree);
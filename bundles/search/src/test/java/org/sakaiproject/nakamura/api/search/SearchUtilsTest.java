@@ -17,17 +17,160 @@
  */
 package org.sakaiproject.nakamura.api.search;
 
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.commons.testing.jcr.MockNode;
 import org.junit.Test;
+import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
+import org.sakaiproject.nakamura.testutils.easymock.MockRowIterator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryResult;
 
 /**
  *
  */
-public class SearchUtilsTest {
+public class SearchUtilsTest extends AbstractEasyMockTest {
 
   @Test
   public void testEscaping() {
     @SuppressWarnings("unused")
     String foo = "@bla";
   }
-  
+
+  @Test
+  public void testCursorRoundTrip() throws Exception {
+    SearchCursor cursor = new SearchCursor("fp", 75, 0.5, "/path/to/n\u00f6de");
+    SearchCursor parsed = SearchCursor.parse(cursor.toString());
+    assertEquals("fp", parsed.getFingerprint());
+    assertEquals(75, parsed.getOffset());
+    assertEquals(0.5, parsed.getScore(), 0);
+    assertEquals("/path/to/n\u00f6de", parsed.getPath());
+
+    try {
+      SearchCursor.parse("not a cursor");
+      fail("Invalid cursors should be rejected");
+    } catch (SearchException e) {
+      assertEquals(400, e.getCode());
+    }
+  }
+
+  @Test
+  public void testForgedCursor() throws Exception {
+    String cursor = new SearchCursor("fp", 75, 0.5, "/a").toString();
+    // change the offset from 75 to 95.
+    String forged = cursor.replace("0a37350a", "0a39350a");
+    assertFalse(cursor.equals(forged));
+    try {
+      SearchCursor.parse(forged);
+      fail("A changed cursor should be rejected");
+    } catch (SearchException e) {
+      assertEquals(400, e.getCode());
+    }
+  }
+
+  @Test
+  public void testCursorForOtherQuery() throws Exception {
+    Query query = createQuery("//*[@a='b']");
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    addStringRequestParameter(request, SearchConstants.PARAMS_CURSOR, new SearchCursor(
+        "other", 25, 0, "/a").toString());
+    replay();
+    try {
+      SearchUtil.getCursor(request, query);
+      fail("A cursor from another search should be rejected");
+    } catch (SearchException e) {
+      assertEquals(400, e.getCode());
+    }
+  }
+
+  @Test
+  public void testResume() throws Exception {
+    List<Node> nodes = createNodes(6);
+    Query query = createQuery("//*[@a='b']");
+    QueryResult rs = createMock(QueryResult.class);
+    expect(rs.getRows()).andReturn(new MockRowIterator(nodes));
+    replay();
+
+    SearchCursor cursor = new SearchCursor(SearchCursor.fingerprint(query), 3, 0,
+        "/path/node2");
+    SakaiSearchRowIterator iterator = SearchUtil.resume(query, rs, cursor);
+    assertEquals("/path/node3", iterator.nextRow().getPath());
+    assertEquals(4, iterator.getCursor("fp").getOffset());
+    verify();
+  }
+
+  @Test
+  public void testResumeAfterResultsMoved() throws Exception {
+    List<Node> nodes = createNodes(6);
+    List<Node> moved = new ArrayList<Node>(nodes);
+    moved.add(0, moved.remove(4));
+    Query query = createQuery("//*[@a='b']");
+    QueryResult rs = createMock(QueryResult.class);
+    expect(rs.getRows()).andReturn(new MockRowIterator(moved));
+    QueryResult again = createMock(QueryResult.class);
+    expect(again.getRows()).andReturn(new MockRowIterator(moved));
+    expect(query.execute()).andReturn(again);
+    replay();
+
+    // node4 moved to the front, so node2 is now the fourth row.
+    SearchCursor cursor = new SearchCursor(SearchCursor.fingerprint(query), 3, 0,
+        "/path/node2");
+    SakaiSearchRowIterator iterator = SearchUtil.resume(query, rs, cursor);
+    assertEquals("/path/node3", iterator.nextRow().getPath());
+    assertEquals("/path/node5", iterator.nextRow().getPath());
+    assertFalse(iterator.hasNext());
+    verify();
+  }
+
+  @Test
+  public void testResumeOnlySearchesNearTheCursor() throws Exception {
+    List<Node> nodes = createNodes(300);
+    List<Node> moved = new ArrayList<Node>(nodes);
+    // the row the cursor points at has moved far from where it was.
+    moved.add(moved.remove(2));
+    Query query = createQuery("//*[@a='b']");
+    QueryResult rs = createMock(QueryResult.class);
+    expect(rs.getRows()).andReturn(new MockRowIterator(moved));
+    QueryResult again = createMock(QueryResult.class);
+    expect(again.getRows()).andReturn(new MockRowIterator(moved));
+    QueryResult fallback = createMock(QueryResult.class);
+    expect(fallback.getRows()).andReturn(new MockRowIterator(moved));
+    expect(query.execute()).andReturn(again);
+    expect(query.execute()).andReturn(fallback);
+    replay();
+
+    SearchCursor cursor = new SearchCursor(SearchCursor.fingerprint(query), 3, 0,
+        "/path/node2");
+    SakaiSearchRowIterator iterator = SearchUtil.resume(query, rs, cursor);
+    // not found within the window, so the result continues from the same offset.
+    assertEquals("/path/node4", iterator.nextRow().getPath());
+    verify();
+  }
+
+  private Query createQuery(String statement) {
+    Query query = createMock(Query.class);
+    expect(query.getStatement()).andReturn(statement).anyTimes();
+    expect(query.getLanguage()).andReturn(Query.XPATH).anyTimes();
+    return query;
+  }
+
+  private List<Node> createNodes(int count) throws RepositoryException {
+    List<Node> nodes = new ArrayList<Node>();
+    for (int i = 0; i < count; i++) {
+      MockNode node = new MockNode("/path/node" + i);
+      node.setProperty(SearchConstants.SAKAI_EXCLUDE_TREE, false);
+      nodes.add(node);
+    }
+    return nodes;
+  }
 }
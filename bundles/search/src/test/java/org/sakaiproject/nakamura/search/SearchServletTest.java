@@ -2,6 +2,7 @@ package org.sakaiproject.nakamura.search;
 
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
+import static org.sakaiproject.nakamura.api.search.SearchConstants.PARAMS_CURSOR;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.PARAMS_PAGE;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_AGGREGATE;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_BATCHRESULTPROCESSOR;
@@ -131,6 +132,7 @@ public class SearchServletTest extends AbstractEasyMockTest {
     expect(request.getRemoteUser()).andReturn("admin");
     expect(request.getResource()).andReturn(resource);
     expect(request.getRequestParameter(PARAMS_PAGE)).andReturn(null).anyTimes();
+    expect(request.getRequestParameter(PARAMS_CURSOR)).andReturn(null).anyTimes();
     addStringRequestParameter(request, "items", "25");
     addStringRequestParameter(request, "q", "foo");
     
@@ -191,6 +193,96 @@ public class SearchServletTest extends AbstractEasyMockTest {
     verify();
   }
 
+  @Test
+  public void testEmptyCursorIsLimited() throws Exception {
+    Node queryNode = createMock(Node.class);
+    addStringPropertyToNode(queryNode, SAKAI_QUERY_TEMPLATE, SQL_QUERY);
+    expect(queryNode.hasProperty(SAKAI_QUERY_LANGUAGE)).andReturn(false);
+    expect(queryNode.hasProperty(SAKAI_PROPERTY_PROVIDER)).andReturn(false).anyTimes();
+    expect(queryNode.hasProperty(SAKAI_AGGREGATE)).andReturn(false).anyTimes();
+    expect(queryNode.hasProperty(SAKAI_LIMIT_RESULTS)).andReturn(false).anyTimes();
+
+    Resource resource = createMock(Resource.class);
+    expect(resource.getPath()).andReturn("/var/dummy");
+    expect(resource.adaptTo(Node.class)).andReturn(queryNode);
+
+    request = createMock(SlingHttpServletRequest.class);
+    expect(request.getResource()).andReturn(resource);
+    addStringRequestParameter(request, "items", "25");
+    addStringRequestParameter(request, PARAMS_PAGE, "1000");
+    addStringRequestParameter(request, PARAMS_CURSOR, "");
+
+    response = createMock(SlingHttpServletResponse.class);
+    response.sendError(HttpServletResponse.SC_NOT_ACCEPTABLE, "There are too many results.");
+    replay();
+
+    searchServlet.maximumResults = 2500;
+    searchServlet.doGet(request, response);
+
+    verify();
+  }
+
+  @Test
+  public void testCursorIgnoredByProcessorIsLimited() throws Exception {
+    Query query = createMock(Query.class);
+    QueryManager queryManager = createMock(QueryManager.class);
+    expect(queryManager.createQuery("select * from y where x = 'foo'", Query.SQL))
+        .andReturn(query);
+    Workspace workspace = createMock(Workspace.class);
+    expect(workspace.getQueryManager()).andReturn(queryManager);
+    Session querySession = createMock(Session.class);
+    expect(querySession.getWorkspace()).andReturn(workspace);
+    Node queryNode = createMock(Node.class);
+    expect(queryNode.getSession()).andReturn(querySession);
+    addStringPropertyToNode(queryNode, SAKAI_QUERY_TEMPLATE, SQL_QUERY);
+    expect(queryNode.hasProperty(SAKAI_QUERY_LANGUAGE)).andReturn(false);
+    expect(queryNode.hasProperty(SAKAI_PROPERTY_PROVIDER)).andReturn(false).anyTimes();
+    expect(queryNode.hasProperty(SAKAI_BATCHRESULTPROCESSOR)).andReturn(false).anyTimes();
+    expect(queryNode.hasProperty(SAKAI_AGGREGATE)).andReturn(false).anyTimes();
+    expect(queryNode.hasProperty(SAKAI_LIMIT_RESULTS)).andReturn(false).anyTimes();
+    expect(queryNode.hasProperty(SAKAI_RESULTPROCESSOR)).andReturn(false).anyTimes();
+
+    Resource resource = createMock(Resource.class);
+    expect(resource.getPath()).andReturn("/var/dummy");
+    expect(resource.adaptTo(Node.class)).andReturn(queryNode);
+
+    ResourceResolver resourceResolver = createMock(ResourceResolver.class);
+    Session session = createMock(Session.class);
+    request = createMock(SlingHttpServletRequest.class);
+    expect(request.getResource()).andReturn(resource);
+    expect(request.getRemoteUser()).andReturn("bob").anyTimes();
+    expect(resourceResolver.adaptTo(Session.class)).andReturn(session).anyTimes();
+    expect(request.getResourceResolver()).andReturn(resourceResolver).anyTimes();
+    addStringRequestParameter(request, "items", "25");
+    addStringRequestParameter(request, "q", "foo");
+    addStringRequestParameter(request, PARAMS_PAGE, "1000");
+    addStringRequestParameter(request, PARAMS_CURSOR, "abcd");
+
+    // a processor that pages without looking at the cursor.
+    final RowIterator rows = createNiceMock(RowIterator.class);
+    SearchResultProcessor pagingProcessor = new SearchResultProcessor() {
+      public void writeNode(SlingHttpServletRequest request, JSONWriter write,
+          Aggregator aggregator, Row row) throws JSONException, RepositoryException {
+      }
+
+      public SearchResultSet getSearchResultSet(SlingHttpServletRequest request,
+          Query query) throws SearchException {
+        return new AbstractSearchResultSet(rows, 0);
+      }
+    };
+
+    response = createMock(SlingHttpServletResponse.class);
+    response.sendError(HttpServletResponse.SC_NOT_ACCEPTABLE, "There are too many results.");
+    replay();
+
+    searchServlet = new SearchServlet();
+    searchServlet.defaultSearchProcessor = pagingProcessor;
+    searchServlet.maximumResults = 2500;
+    searchServlet.doGet(request, response);
+
+    verify();
+  }
+
   private void executeSimpleQueryWithNoResults(String queryParameter,
       String itemCount, String expectedSqlQuery) throws RepositoryException,
       IOException, ServletException {
@@ -214,6 +306,7 @@ public class SearchServletTest extends AbstractEasyMockTest {
     expect(request.getResource()).andReturn(resource);
     expect(request.getRemoteUser()).andReturn("bob").anyTimes();
     expect(request.getRequestParameter(PARAMS_PAGE)).andReturn(null).anyTimes();
+    expect(request.getRequestParameter(PARAMS_CURSOR)).andReturn(null).anyTimes();
     expect(resourceResolver.adaptTo(Session.class)).andReturn(session).anyTimes();
     expect(request.getResourceResolver()).andReturn(resourceResolver).anyTimes();
     addStringRequestParameter(request, "items", itemCount);
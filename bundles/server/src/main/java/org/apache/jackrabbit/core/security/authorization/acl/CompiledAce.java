@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.jackrabbit.core.security.authorization.acl;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.sling.jcr.jackrabbit.server.security.dynamic.ISO8601Date;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The active periods of a rules based ACE, parsed once. The result of a check is kept
+ * until the next instant at which it can change, so most checks are a comparison.
+ */
+class CompiledAce {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CompiledAce.class);
+
+  private static final long ONE_DAY = 24L * 3600L * 1000L;
+
+  /**
+   * An ACE that is always active, used where the ACE can not be compiled.
+   */
+  static final CompiledAce ALWAYS_ACTIVE = new CompiledAce(null);
+
+  /**
+   * The result of a check and the period (ms) it holds for.
+   */
+  private static class State {
+    private final boolean active;
+    private final long from;
+    private final long until;
+
+    private State(boolean active, long from, long until) {
+      this.active = active;
+      this.from = from;
+      this.until = until;
+    }
+  }
+
+  /**
+   * Pairs of exclusive start and end times, null if always active.
+   */
+  private final long[] ranges;
+  private volatile State state;
+
+  private CompiledAce(long[] ranges) {
+    this.ranges = ranges;
+  }
+
+  /**
+   * @param activeRanges
+   *          the active ranges of the ACE in the form start/end, where start and end are
+   *          ISO8601 dates or times.
+   * @return the compiled ACE, which is always active if the ranges can not be parsed.
+   */
+  static CompiledAce compile(String[] activeRanges) {
+    try {
+      long[] ranges = new long[activeRanges.length * 2];
+      for (int i = 0; i < activeRanges.length; i++) {
+        String[] range = StringUtils.split(activeRanges[i], '/');
+        ISO8601Date from = new ISO8601Date(range[0]);
+        ISO8601Date to = new ISO8601Date(range[1]);
+        // a date covers the whole day, so it has not started until the day has ended.
+        ranges[i * 2] = from.isDate() ? from.getTimeInMillis() + ONE_DAY : from
+            .getTimeInMillis();
+        ranges[i * 2 + 1] = to.getTimeInMillis();
+      }
+      return new CompiledAce(ranges);
+    } catch (Exception e) {
+      LOG.debug("Unable to parse active ranges, the ACE is always active {} ", e
+          .getMessage());
+      return ALWAYS_ACTIVE;
+    }
+  }
+
+  /**
+   * @param now
+   *          the current time (ms).
+   * @return true if the ACE is active at that time.
+   */
+  boolean isActive(long now) {
+    if (ranges == null) {
+      return true;
+    }
+    State s = state;
+    if (s == null || now < s.from || now >= s.until) {
+      s = evaluate(now);
+      state = s;
+    }
+    return s.active;
+  }
+
+  /**
+   * Work out if the ACE is active, and when that may next change. A range is active
+   * after its start and before its end.
+   */
+  private State evaluate(long now) {
+    boolean active = false;
+    long until = Long.MAX_VALUE;
+    for (int i = 0; i < ranges.length; i += 2) {
+      long start = ranges[i];
+      long end = ranges[i + 1];
+      if (start < now && end > now) {
+        active = true;
+      }
+      if (start + 1 > now) {
+        until = Math.min(until, start + 1);
+      }
+      if (end > now) {
+        until = Math.min(until, end);
+      }
+    }
+    return new State(active, now, until);
+  }
+}
@@ -19,7 +19,6 @@ package org.apache.jackrabbit.core.security.authorization.acl;
 
 import org.apache.commons.collections.iterators.IteratorChain;
 import org.apache.commons.collections.map.LRUMap;
-import org.apache.commons.lang.StringUtils;
 import org.apache.jackrabbit.api.JackrabbitSession;
 import org.apache.jackrabbit.api.security.principal.PrincipalManager;
 import org.apache.jackrabbit.api.security.user.Authorizable;
@@ -28,12 +27,13 @@ import org.apache.jackrabbit.core.DynamicSecurityManager;
 import org.apache.jackrabbit.core.NodeImpl;
 import org.apache.jackrabbit.core.SessionImpl;
 import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.observation.SynchronousEventListener;
 import org.apache.jackrabbit.core.security.authorization.AccessControlConstants;
 import org.apache.jackrabbit.core.security.authorization.CompiledPermissions;
 import org.apache.jackrabbit.core.security.principal.EveryonePrincipal;
+import org.apache.jackrabbit.core.security.user.UserConstants;
 import org.apache.sling.jcr.jackrabbit.server.impl.security.dynamic.RuleProcessorManager;
 import org.apache.sling.jcr.jackrabbit.server.security.dynamic.DynamicPrincipalManager;
-import org.apache.sling.jcr.jackrabbit.server.security.dynamic.ISO8601Date;
 import org.apache.sling.jcr.jackrabbit.server.security.dynamic.RuleProcessor;
 import org.apache.sling.jcr.jackrabbit.server.security.dynamic.RulesBasedAce;
 import org.slf4j.Logger;
@@ -43,10 +43,15 @@ import java.security.Principal;
 import java.security.acl.Group;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jcr.AccessDeniedException;
 import javax.jcr.ItemNotFoundException;
@@ -56,6 +61,9 @@ import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.UnsupportedRepositoryOperationException;
 import javax.jcr.Value;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.ObservationManager;
 import javax.jcr.security.AccessControlEntry;
 import javax.jcr.security.AccessControlManager;
 import javax.jcr.security.Privilege;
@@ -66,12 +74,90 @@ import javax.jcr.security.Privilege;
 public class DynamicACLProvider extends ACLProvider {
 
   private static final Logger LOG = LoggerFactory.getLogger(DynamicACLProvider.class);
+
+  /**
+   * Configuration parameter, the time (ms) the result of resolving a dynamic principal
+   * is kept.
+   */
+  public static final String PARAM_DYNAMIC_PRINCIPAL_TTL = "dynamicPrincipalTTL";
+  private static final long DEFAULT_DYNAMIC_PRINCIPAL_TTL = 5000L;
+  private static final int MAX_COMPILED_ACES = 10000;
+  private static final int MAX_DYNAMIC_PRINCIPALS = 10000;
+  private static final int EVENTS = Event.NODE_ADDED | Event.NODE_REMOVED
+      | Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED;
+
   private String userId;
   private DynamicPrincipalManager dynamicPrincipalManager;
-  private LRUMap staticPrincipals = new LRUMap(1000);
+  @SuppressWarnings("unchecked")
+  private Map<String, Boolean> staticPrincipals = Collections.synchronizedMap(new LRUMap(1000));
   private NodeId rootNodeId;
   private RuleProcessorManager ruleProccesorManager;
 
+  /**
+   * The rules based ACEs that have been checked, by the identifier of the ACE node.
+   */
+  private final ConcurrentMap<String, CompiledAce> compiledAces = new ConcurrentHashMap<String, CompiledAce>();
+  /**
+   * Counts ACL changes, so that an ACE read while it changed is not kept.
+   */
+  private final AtomicLong aclModifications = new AtomicLong();
+  /**
+   * Recent results of resolving dynamic principals, by principal, ACL, context and user.
+   * Reads take no lock; when the map grows past its bound one thread sweeps it.
+   */
+  private final ConcurrentMap<String, DynamicPrincipalResult> dynamicPrincipals = new ConcurrentHashMap<String, DynamicPrincipalResult>();
+  private final AtomicBoolean trimmingDynamicPrincipals = new AtomicBoolean();
+  private long dynamicPrincipalTTL = DEFAULT_DYNAMIC_PRINCIPAL_TTL;
+  private ObservationManager observationManager;
+  private CacheInvalidator aclInvalidator;
+  private CacheInvalidator authorizableInvalidator;
+
+  /**
+   * The result of resolving a dynamic principal, and when it expires.
+   */
+  private static class DynamicPrincipalResult {
+    private final boolean has;
+    private final long expires;
+
+    private DynamicPrincipalResult(boolean has, long expires) {
+      this.has = has;
+      this.expires = expires;
+    }
+  }
+
+  /**
+   * Drops cached ACEs and principals when ACLs or authorizables change. This listener is
+   * synchronous so the caches are cleared before the save that made the change returns.
+   */
+  private class CacheInvalidator implements SynchronousEventListener {
+    private final boolean acl;
+
+    private CacheInvalidator(boolean acl) {
+      this.acl = acl;
+    }
+
+    public void onEvent(EventIterator events) {
+      if (acl) {
+        aclModifications.incrementAndGet();
+        while (events.hasNext()) {
+          Event event = events.nextEvent();
+          try {
+            String identifier = event.getIdentifier();
+            if (identifier == null) {
+              compiledAces.clear();
+            } else {
+              compiledAces.remove(identifier);
+            }
+          } catch (RepositoryException e) {
+            compiledAces.clear();
+          }
+        }
+      } else {
+        staticPrincipals.clear();
+      }
+      dynamicPrincipals.clear();
+    }
+  }
 
 
   /**
@@ -94,6 +180,39 @@ public class DynamicACLProvider extends ACLProvider {
     super.init(systemSession, configuration);
     NodeImpl node = (NodeImpl) systemSession.getRootNode();
     rootNodeId = node.getNodeId();
+    if (configuration != null && configuration.containsKey(PARAM_DYNAMIC_PRINCIPAL_TTL)) {
+      dynamicPrincipalTTL = Long.parseLong(String.valueOf(configuration
+          .get(PARAM_DYNAMIC_PRINCIPAL_TTL)));
+    }
+
+    SessionImpl sImpl = (SessionImpl) systemSession;
+    observationManager = systemSession.getWorkspace().getObservationManager();
+    aclInvalidator = new CacheInvalidator(true);
+    authorizableInvalidator = new CacheInvalidator(false);
+    observationManager.addEventListener(aclInvalidator, EVENTS, "/", true, null,
+        new String[] { sImpl.getJCRName(AccessControlConstants.NT_REP_ACL),
+            sImpl.getJCRName(AccessControlConstants.NT_REP_ACE) }, false);
+    observationManager.addEventListener(authorizableInvalidator, EVENTS, "/", true, null,
+        new String[] { sImpl.getJCRName(UserConstants.NT_REP_AUTHORIZABLE) }, false);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.apache.jackrabbit.core.security.authorization.acl.ACLProvider#close()
+   */
+  @Override
+  public void close() {
+    if (observationManager != null) {
+      try {
+        observationManager.removeEventListener(aclInvalidator);
+        observationManager.removeEventListener(authorizableInvalidator);
+      } catch (RepositoryException e) {
+        LOG.warn("Unable to remove ACL cache listeners {} ", e.getMessage());
+      }
+      observationManager = null;
+    }
+    super.close();
   }
 
   /**
@@ -300,44 +419,49 @@ public class DynamicACLProvider extends ACLProvider {
   protected boolean isAceActiveCheap(NodeImpl aceNode) throws ItemNotFoundException, RepositoryException {
     // should only be here if the principal is a RulesPrincipal
     try {
-      RulesPrincipal.checkValid(aceNode.getProperty(AccessControlConstants.P_PRINCIPAL_NAME).getString());
-      long now = System.currentTimeMillis();
-
-      Value[] activeRanges = getValues(RulesBasedAce.P_ACTIVE_RANGE, aceNode);
-      if ( activeRanges != null ) {
-        for ( Value r : activeRanges) {
-          String[] range = StringUtils.split(r.getString(),'/');
-          ISO8601Date from = new ISO8601Date(range[0]);
-          ISO8601Date to = new ISO8601Date(range[1]);
-          if ( from.before(now) && to.after(now) ) {
-            return true;
-
-          }
+      String identifier = aceNode.getIdentifier();
+      CompiledAce ace = compiledAces.get(identifier);
+      if (ace == null) {
+        long modifications = aclModifications.get();
+        ace = compileAce(aceNode);
+        if (compiledAces.size() >= MAX_COMPILED_ACES) {
+          compiledAces.clear();
         }
-        return false; // it had active times but none matched
-      }
-      
-      Value[] inactiveRanges = getValues(RulesBasedAce.P_INACTIVE_RANGE,aceNode);
-      if ( inactiveRanges != null ) {
-        for ( Value r : inactiveRanges) {
-          String[] range = StringUtils.split(r.getString(),'/');
-          ISO8601Date from = new ISO8601Date(range[0]);
-          ISO8601Date to = new ISO8601Date(range[1]);
-          if ( from.before(now) && to.after(now) ) {
-            return false;
-          }
+        if (modifications == aclModifications.get()) {
+          compiledAces.put(identifier, ace);
         }
       }
-      return true;
-    } catch ( IllegalArgumentException e ) {
-      LOG.debug("Was not a rules based acl {} ", e.getMessage());
-      return true; // its not a rules based ACL so it must be active.
+      return ace.isActive(System.currentTimeMillis());
     } catch ( Exception e ) {
       LOG.debug("Was not a rules based acl {} ", e.getMessage());
       return true; // an error in processing has to default to active
     }
   }
 
+  /**
+   * Parse the active ranges of a rules based ACE.
+   *
+   * Only the active ranges decide if the ACE is active, if there are none it is never
+   * active.
+   * @param aceNode
+   * @return the compiled ACE
+   * @throws RepositoryException
+   */
+  private CompiledAce compileAce(NodeImpl aceNode) throws RepositoryException {
+    try {
+      RulesPrincipal.checkValid(aceNode.getProperty(AccessControlConstants.P_PRINCIPAL_NAME).getString());
+    } catch ( IllegalArgumentException e ) {
+      LOG.debug("Was not a rules based acl {} ", e.getMessage());
+      return CompiledAce.ALWAYS_ACTIVE; // its not a rules based ACL so it must be active.
+    }
+    Value[] activeRanges = getValues(RulesBasedAce.P_ACTIVE_RANGE, aceNode);
+    String[] ranges = new String[activeRanges.length];
+    for ( int i = 0; i < activeRanges.length; i++ ) {
+      ranges[i] = activeRanges[i].getString();
+    }
+    return CompiledAce.compile(ranges);
+  }
+
   /**
    * Get the range of ACLs taking into account multiple property nameing, required by the ACL node schema. (it cant hold array properties)
    * @param property
@@ -371,10 +495,9 @@ public class DynamicACLProvider extends ACLProvider {
        String userId) {
     /*
      * Principals that don't have a 'dynamic=true' property will not be resolved
-     * dynamically. We cache principals that are found not to be dynamic. The
-     * cache is never invalidated because it is assumed that principals will not
-     * be included in ACLs until their dynamic/static status has been set, and
-     * that setting will not be modified subsequently.
+     * dynamically. We cache principals that are found not to be dynamic, until
+     * an authorizable changes. The result of resolving a dynamic principal is
+     * kept for a short time, since it may depend on more than the authorizable.
      */
     if ( LOG.isDebugEnabled()) {
       try {
@@ -387,6 +510,63 @@ public class DynamicACLProvider extends ACLProvider {
       LOG.debug("Principal {} is cached static - not resolving dynamically",principalName );
       return false;
     }
+    String key = null;
+    try {
+      key = principalName + "\n" + aclNode.getIdentifier() + "\n"
+          + contextNode.getIdentifier() + "\n" + userId;
+    } catch (RepositoryException e) {
+      LOG.debug("Unable to cache dynamic principal {} ", e.getMessage());
+    }
+    if (key != null) {
+      DynamicPrincipalResult result = dynamicPrincipals.get(key);
+      if (result != null) {
+        if (result.expires > System.currentTimeMillis()) {
+          return result.has;
+        }
+        dynamicPrincipals.remove(key, result);
+      }
+    }
+    boolean has = resolvePrincipal(principalName, aclNode, contextNode, userId);
+    if (key != null) {
+      dynamicPrincipals.put(key, new DynamicPrincipalResult(has, System
+          .currentTimeMillis()
+          + dynamicPrincipalTTL));
+      if (dynamicPrincipals.size() > MAX_DYNAMIC_PRINCIPALS) {
+        trimDynamicPrincipals();
+      }
+    }
+    return has;
+  }
+
+  /**
+   * Removes expired dynamic principal results, and if the map is still over its bound,
+   * enough of the others to bring it back under. Only one thread trims at a time, the
+   * rest carry on without waiting.
+   */
+  private void trimDynamicPrincipals() {
+    if (!trimmingDynamicPrincipals.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      long now = System.currentTimeMillis();
+      for (Iterator<DynamicPrincipalResult> i = dynamicPrincipals.values().iterator(); i
+          .hasNext();) {
+        if (i.next().expires <= now) {
+          i.remove();
+        }
+      }
+      for (Iterator<String> i = dynamicPrincipals.keySet().iterator(); i.hasNext()
+          && dynamicPrincipals.size() > MAX_DYNAMIC_PRINCIPALS;) {
+        i.next();
+        i.remove();
+      }
+    } finally {
+      trimmingDynamicPrincipals.set(false);
+    }
+  }
+
+  private boolean resolvePrincipal(String principalName, NodeImpl aclNode,
+      NodeImpl contextNode, String userId) {
     Session session = aclNode.getSession();
     if (session instanceof JackrabbitSession) {
       JackrabbitSession jcrSession = (JackrabbitSession) session;
@@ -0,0 +1,287 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.sling.jcr.jackrabbit.server.impl.index;
+
+import org.apache.sling.jcr.jackrabbit.server.index.CloudTerm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A term cloud that counts terms in an open addressed hash table, so adding a term costs
+ * the same however many terms are already in the cloud. Counts are held in a primitive
+ * array alongside the term names, no object is created per occurrence. The most
+ * significant terms are selected with a min heap bounded to the size of the cloud, rather
+ * than sorting every term.
+ * <p>
+ * By default every distinct term is held, so counts are exact and only the listing is
+ * bounded. A cloud created with <code>maxTerms</code> is approximate: when it holds more
+ * than <code>maxTerms</code> distinct terms the less significant half is dropped, along
+ * with their counts. This bounds memory while letting frequent terms that arrive late
+ * accumulate counts, make <code>maxTerms</code> several times <code>maxSize</code> for
+ * that to work.
+ * </p>
+ * <p>
+ * A cloud is not thread safe, each extractor owns one and clouds from several extractors
+ * are combined with {@link #merge(HashedTermCloud)}.
+ * </p>
+ */
+public class HashedTermCloud {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private final int maxSize;
+    private final int maxTerms;
+    private String[] names;
+    private int[] hashes;
+    private int[] counts;
+    private int size;
+
+    /**
+     * Create a cloud with exact counts.
+     *
+     * @param maxSize
+     *            the number of terms listed by the cloud.
+     */
+    public HashedTermCloud(int maxSize) {
+        this(maxSize, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Create an approximate cloud.
+     *
+     * @param maxSize
+     *            the number of terms listed by the cloud.
+     * @param maxTerms
+     *            the number of distinct terms counted before the cloud is pruned.
+     */
+    public HashedTermCloud(int maxSize, int maxTerms) {
+        this.maxSize = maxSize;
+        this.maxTerms = Math.max(maxTerms, maxSize);
+        allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * Add a term to the cloud, merging with the term of the same name if it exists.
+     *
+     * @param term
+     */
+    public void add(CloudTermImpl term) {
+        add(term.getName(), term.getCount());
+    }
+
+    /**
+     * Add occurrences of a term to the cloud.
+     *
+     * @param name
+     *            the term.
+     * @param count
+     *            the number of occurrences.
+     */
+    public void add(String name, int count) {
+        if (name == null) {
+            return;
+        }
+        int hash = spread(name.hashCode());
+        int mask = names.length - 1;
+        int slot = hash & mask;
+        while (names[slot] != null) {
+            if (hashes[slot] == hash && names[slot].equals(name)) {
+                counts[slot] += count;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        names[slot] = name;
+        hashes[slot] = hash;
+        counts[slot] = count;
+        size++;
+        if (size > maxTerms) {
+            prune();
+        } else if (size * 4 > names.length * 3) {
+            rehash(names.length * 2);
+        }
+    }
+
+    /**
+     * Add all the terms of another cloud to this one, one term at a time, without copying
+     * the other cloud. If either cloud is approximate so is the result.
+     *
+     * @param other
+     */
+    public void merge(HashedTermCloud other) {
+        for (int i = 0; i < other.names.length; i++) {
+            if (other.names[i] != null) {
+                add(other.names[i], other.counts[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the number of distinct terms held.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The most significant terms, in order of count and then name, stopping at the first
+     * term with a count below limit.
+     *
+     * @param limit
+     *            the lowest count listed.
+     * @return
+     */
+    public Iterator<CloudTerm> iterator(int limit) {
+        int[] top = top(maxSize);
+        List<CloudTerm> terms = new ArrayList<CloudTerm>(top.length);
+        for (int slot : top) {
+            if (counts[slot] < limit) {
+                break;
+            }
+            terms.add(new CloudTermImpl(names[slot], counts[slot]));
+        }
+        return Collections.unmodifiableList(terms).iterator();
+    }
+
+    /**
+     * Selects the most significant slots with a min heap whose root is the least
+     * significant term kept so far.
+     *
+     * @return the selected slots, most significant first.
+     */
+    private int[] top(int maxSize) {
+        int k = Math.min(maxSize, size);
+        int[] heap = new int[k];
+        int heapSize = 0;
+        for (int slot = 0; slot < names.length && k > 0; slot++) {
+            if (names[slot] == null) {
+                continue;
+            }
+            if (heapSize < k) {
+                heap[heapSize] = slot;
+                siftUp(heap, heapSize++);
+            } else if (weaker(heap[0], slot)) {
+                heap[0] = slot;
+                siftDown(heap, 0, heapSize);
+            }
+        }
+        // sort in place by moving the least significant term to the end each time.
+        for (int end = heapSize - 1; end > 0; end--) {
+            int root = heap[0];
+            heap[0] = heap[end];
+            heap[end] = root;
+            siftDown(heap, 0, end);
+        }
+        return heap;
+    }
+
+    /**
+     * @return true if the term in slot a is less significant than the term in slot b.
+     */
+    private boolean weaker(int a, int b) {
+        if (counts[a] != counts[b]) {
+            return counts[a] < counts[b];
+        }
+        return names[a].compareTo(names[b]) > 0;
+    }
+
+    private void siftUp(int[] heap, int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!weaker(heap[i], heap[parent])) {
+                return;
+            }
+            int t = heap[i];
+            heap[i] = heap[parent];
+            heap[parent] = t;
+            i = parent;
+        }
+    }
+
+    private void siftDown(int[] heap, int i, int heapSize) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) {
+                return;
+            }
+            if (child + 1 < heapSize && weaker(heap[child + 1], heap[child])) {
+                child++;
+            }
+            if (!weaker(heap[child], heap[i])) {
+                return;
+            }
+            int t = heap[i];
+            heap[i] = heap[child];
+            heap[child] = t;
+            i = child;
+        }
+    }
+
+    /**
+     * Drops the less significant half of the terms.
+     */
+    private void prune() {
+        int[] top = top(Math.max(maxSize, maxTerms / 2));
+        String[] oldNames = names;
+        int[] oldHashes = hashes;
+        int[] oldCounts = counts;
+        allocate(names.length);
+        for (int slot : top) {
+            insert(oldNames[slot], oldHashes[slot], oldCounts[slot]);
+        }
+    }
+
+    private void rehash(int capacity) {
+        String[] oldNames = names;
+        int[] oldHashes = hashes;
+        int[] oldCounts = counts;
+        allocate(capacity);
+        for (int i = 0; i < oldNames.length; i++) {
+            if (oldNames[i] != null) {
+                insert(oldNames[i], oldHashes[i], oldCounts[i]);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        names = new String[capacity];
+        hashes = new int[capacity];
+        counts = new int[capacity];
+        size = 0;
+    }
+
+    private void insert(String name, int hash, int count) {
+        int mask = names.length - 1;
+        int slot = hash & mask;
+        while (names[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        names[slot] = name;
+        hashes[slot] = hash;
+        counts[slot] = count;
+        size++;
+    }
+
+    private static int spread(int h) {
+        h ^= (h >>> 20) ^ (h >>> 12);
+        return h ^ (h >>> 7) ^ (h >>> 4);
+    }
+}
@@ -26,21 +26,35 @@ import org.slf4j.LoggerFactory;
 import java.util.Iterator;
 
 /**
- *
+ * Maps the term vectors of documents into a {@link HashedTermCloud}.
  */
 public class TermCloudVectorMapper extends TermVectorMapper {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(TermCloudVectorMapper.class);
-    private TermCloud termCloud;
-    private int maxSize;
+    private HashedTermCloud termCloud;
+    private int maxTerms;
 
     /**
+     * A mapper with exact counts.
+     *
      * @param maxSize
      */
     public TermCloudVectorMapper(int maxSize) {
         super(true,true);
-        termCloud = new TermCloud(maxSize);
-        this.maxSize = maxSize;
+        termCloud = new HashedTermCloud(maxSize);
+        this.maxTerms = Integer.MAX_VALUE;
+    }
+
+    /**
+     * An approximate mapper, see {@link HashedTermCloud#HashedTermCloud(int, int)}.
+     *
+     * @param maxSize
+     * @param maxTerms
+     */
+    public TermCloudVectorMapper(int maxSize, int maxTerms) {
+        super(true,true);
+        termCloud = new HashedTermCloud(maxSize, maxTerms);
+        this.maxTerms = maxTerms;
     }
 
     /**
@@ -49,7 +63,7 @@ public class TermCloudVectorMapper extends TermVectorMapper {
      */
     @Override
     public void map(String term, int frequency, TermVectorOffsetInfo[] offsets, int[] positions) {
-        termCloud.add(new CloudTermImpl(term, frequency));
+        termCloud.add(term, frequency);
     }
 
     /**
@@ -59,8 +73,8 @@ public class TermCloudVectorMapper extends TermVectorMapper {
     @Override
     public void setExpectations(String field, int numTerms, boolean storeOffsets,
             boolean storePositions) {
-        if ( numTerms > maxSize*2 ) {
-            LOGGER.warn("There are many more terms than there is space for in the cloud, this could loose critical terms.");
+        if ( numTerms > maxTerms ) {
+            LOGGER.warn("There are more terms than there is space for in the cloud, this could loose critical terms.");
         }
     }
 
@@ -72,4 +86,13 @@ public class TermCloudVectorMapper extends TermVectorMapper {
         return termCloud.iterator(limit);
     }
 
+    /**
+     * Adds the terms mapped by another mapper to this one.
+     *
+     * @param other
+     */
+    public void merge(TermCloudVectorMapper other) {
+        termCloud.merge(other.termCloud);
+    }
+
 }
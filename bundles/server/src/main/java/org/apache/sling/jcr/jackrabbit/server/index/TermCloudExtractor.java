@@ -34,21 +34,53 @@ import javax.jcr.RepositoryException;
 import javax.jcr.query.QueryManager;
 
 /**
- *
+ * Extracts a cloud of the most frequent terms in a set of nodes from the full text index.
+ * Counts are exact unless the extractor is created with <code>maxTerms</code>, in which
+ * case at most that many distinct terms are held and terms dropped to make room lose
+ * their counts, see {@link #TermCloudExtractor(QueryManager, int, int)}. Result sets can
+ * be extracted in parallel, each by its own extractor, and combined with
+ * {@link #merge(TermCloudExtractor)}.
  */
 public class TermCloudExtractor {
     private static final Logger LOGGER = LoggerFactory.getLogger(TermCloudExtractor.class);
     private IndexReader indexReader;
     private TermCloudVectorMapper cloudTermVectorMapper;
 
+    /**
+     * An extractor with exact counts.
+     *
+     * @param queryManager
+     * @param maxSize
+     *            the number of terms listed.
+     */
     public TermCloudExtractor(QueryManager queryManager, int maxSize) {
+        this(queryManager, new TermCloudVectorMapper(maxSize));
+    }
+
+    /**
+     * An approximate extractor holding at most maxTerms distinct terms, for result sets
+     * whose vocabulary is too large to count exactly. The most frequent terms keep close
+     * to exact counts, terms dropped to make room lose theirs.
+     *
+     * @param queryManager
+     * @param maxSize
+     *            the number of terms listed.
+     * @param maxTerms
+     *            the number of distinct terms held, several times maxSize.
+     */
+    public TermCloudExtractor(QueryManager queryManager, int maxSize, int maxTerms) {
+        this(queryManager, new TermCloudVectorMapper(maxSize, maxTerms));
+    }
+
+    private TermCloudExtractor(QueryManager queryManager,
+            TermCloudVectorMapper cloudTermVectorMapper) {
         indexReader = adaptTo(queryManager, "searchMgr", "handler", "index");
         if (indexReader == null) {
             throw new IllegalArgumentException(
                     "Failed to get index Reader from Query Manager, which should have been a QueryManagerImpl, but was "
                             + queryManager.getClass());
         }
-        cloudTermVectorMapper = new TermCloudVectorMapper(maxSize);
+        this.cloudTermVectorMapper = cloudTermVectorMapper;
     }
 
     /**
@@ -57,6 +89,13 @@ public class TermCloudExtractor {
     protected TermCloudExtractor() {
     }
 
+    /**
+     * Testing only.
+     */
+    protected TermCloudExtractor(TermCloudVectorMapper cloudTermVectorMapper) {
+        this.cloudTermVectorMapper = cloudTermVectorMapper;
+    }
+
     /**
      * Adapts a QueryManager into the underlying Lucene Index Reader
      * 
@@ -97,6 +136,16 @@ public class TermCloudExtractor {
         }
     }
     
+    /**
+     * Adds the terms extracted by another extractor to this one, a term at a time, so
+     * result sets extracted in parallel can be combined into one cloud.
+     *
+     * @param other
+     */
+    public void merge(TermCloudExtractor other) {
+        cloudTermVectorMapper.merge(other.cloudTermVectorMapper);
+    }
+
     public Iterator<CloudTerm> termIteator(int limit) {
         return cloudTermVectorMapper.iterator(limit);
     }
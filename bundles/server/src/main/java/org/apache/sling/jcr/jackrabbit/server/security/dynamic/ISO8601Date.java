@@ -179,4 +179,11 @@ public class ISO8601Date extends GregorianCalendar {
   public void setDate(boolean b) {
     date = b;
   }
+
+  /**
+   * @return true if this is a date without a time, which covers the whole day.
+   */
+  public boolean isDate() {
+    return date;
+  }
 }
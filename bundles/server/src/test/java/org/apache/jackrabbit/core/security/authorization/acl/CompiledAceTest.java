@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.jackrabbit.core.security.authorization.acl;
+
+import org.apache.sling.jcr.jackrabbit.server.security.dynamic.ISO8601Date;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class CompiledAceTest {
+
+  private static final long HOUR = 3600000L;
+
+  @Test
+  public void testActiveRanges() {
+    long now = 1000L * HOUR;
+    CompiledAce ace = CompiledAce.compile(new String[] { range(now - HOUR, now + HOUR),
+        range(now + 3 * HOUR, now + 4 * HOUR) });
+    Assert.assertFalse(ace.isActive(now - HOUR));
+    Assert.assertTrue(ace.isActive(now - HOUR + 1000));
+    Assert.assertTrue(ace.isActive(now));
+    Assert.assertFalse(ace.isActive(now + HOUR));
+    Assert.assertFalse(ace.isActive(now + 2 * HOUR));
+    Assert.assertTrue(ace.isActive(now + 3 * HOUR + 1000));
+    Assert.assertFalse(ace.isActive(now + 5 * HOUR));
+    // going back in time is evaluated again.
+    Assert.assertTrue(ace.isActive(now));
+  }
+
+  @Test
+  public void testNoRanges() {
+    Assert.assertFalse(CompiledAce.compile(new String[0]).isActive(System
+        .currentTimeMillis()));
+  }
+
+  @Test
+  public void testInvalidRange() {
+    CompiledAce ace = CompiledAce.compile(new String[] { "not a range" });
+    Assert.assertSame(CompiledAce.ALWAYS_ACTIVE, ace);
+    Assert.assertTrue(ace.isActive(System.currentTimeMillis()));
+  }
+
+  @Test
+  public void testMatchesUncompiled() {
+    long now = System.currentTimeMillis();
+    String[] ranges = new String[] { range(now - HOUR, now + HOUR),
+        range(now + 2 * HOUR, now + 5 * HOUR) };
+    CompiledAce ace = CompiledAce.compile(ranges);
+    for (long t = now - 2 * HOUR; t < now + 6 * HOUR; t += 997L * 61L) {
+      Assert.assertEquals("At " + t, isActive(ranges, t), ace.isActive(t));
+    }
+  }
+
+  private boolean isActive(String[] ranges, long now) {
+    for (String r : ranges) {
+      String[] range = r.split("/");
+      if (new ISO8601Date(range[0]).before(now) && new ISO8601Date(range[1]).after(now)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private String range(long from, long to) {
+    ISO8601Date start = new ISO8601Date();
+    start.setTimeInMillis(from);
+    ISO8601Date end = new ISO8601Date();
+    end.setTimeInMillis(to);
+    return start.toString() + "/" + end.toString();
+  }
+}
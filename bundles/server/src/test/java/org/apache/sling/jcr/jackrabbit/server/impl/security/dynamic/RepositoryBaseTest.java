@@ -616,4 +616,110 @@ public class RepositoryBaseTest {
 
   }
 
+  @Test
+  public void testManyRulesBasedAces() throws IOException, RepositoryException {
+    Repository repo = getRepositoryBase().getRepository();
+    int nodes = 100;
+    int logins = 20;
+    String treeName = "testRulesTree" + System.currentTimeMillis();
+    String testUserId = "testRulesUser" + System.currentTimeMillis();
+    long now = System.currentTimeMillis();
+    JackrabbitSession session = (JackrabbitSession) repo.login(new SimpleCredentials(
+        "admin", "admin".toCharArray()));
+    try {
+      session.getUserManager().createUser(testUserId, "testpassword");
+      Node tree = session.getRootNode().addNode(treeName);
+      for (int i = 0; i < nodes; i++) {
+        tree.addNode("node" + i);
+      }
+      session.save();
+
+      // deny everything to the user, but only from tomorrow.
+      for (int i = 0; i < nodes; i++) {
+        setRulesBasedDeny(session, tree.getPath() + "/node" + i, testUserId, now + ADAY,
+            now + 2 * ADAY);
+      }
+      if (session.hasPendingChanges()) {
+        session.save();
+      }
+    } finally {
+      session.logout();
+    }
+
+    long start = System.currentTimeMillis();
+    for (int l = 0; l < logins; l++) {
+      session = (JackrabbitSession) repo.login(new SimpleCredentials(testUserId,
+          "testpassword".toCharArray()));
+      try {
+        for (int i = 0; i < nodes; i++) {
+          Assert.assertNotNull(session.getNode("/" + treeName + "/node" + i));
+        }
+      } finally {
+        session.logout();
+      }
+    }
+    long elapsed = System.currentTimeMillis() - start;
+    LOGGER.info("{} logins reading {} nodes with rules based ACEs took {} ms, {} ms a read",
+        new Object[] { logins, nodes, elapsed, ((double) elapsed) / (logins * nodes) });
+
+    // make one ACE active, the change must be seen straight away.
+    session = (JackrabbitSession) repo.login(new SimpleCredentials("admin", "admin"
+        .toCharArray()));
+    try {
+      setRulesBasedDeny(session, "/" + treeName + "/node0", testUserId, now - 3600000L, now
+          + ADAY);
+      if (session.hasPendingChanges()) {
+        session.save();
+      }
+    } finally {
+      session.logout();
+    }
+    session = (JackrabbitSession) repo.login(new SimpleCredentials(testUserId,
+        "testpassword".toCharArray()));
+    try {
+      Assert.assertFalse(session.nodeExists("/" + treeName + "/node0"));
+      Assert.assertTrue(session.nodeExists("/" + treeName + "/node1"));
+    } finally {
+      session.logout();
+    }
+  }
+
+  private void setRulesBasedDeny(JackrabbitSession session, String resourcePath,
+      String userId, long from, long to) throws RepositoryException {
+    AccessControlManager accessControlManager = session.getAccessControlManager();
+    JackrabbitAccessControlList acl = null;
+    for (AccessControlPolicy policy : accessControlManager.getPolicies(resourcePath)) {
+      if (policy instanceof JackrabbitAccessControlList) {
+        acl = (JackrabbitAccessControlList) policy;
+        break;
+      }
+    }
+    if (acl == null) {
+      AccessControlPolicyIterator applicablePolicies = accessControlManager
+          .getApplicablePolicies(resourcePath);
+      while (applicablePolicies.hasNext()) {
+        AccessControlPolicy policy = applicablePolicies.nextAccessControlPolicy();
+        if (policy instanceof JackrabbitAccessControlList) {
+          acl = (JackrabbitAccessControlList) policy;
+          break;
+        }
+      }
+    }
+    Assert.assertNotNull(acl);
+    Principal principal = session.getPrincipalManager().getPrincipal(
+        RulesBasedAce.createPrincipal(userId).getName());
+    acl.addEntry(principal, new Privilege[] { accessControlManager
+        .privilegeFromName("jcr:all") }, false);
+    accessControlManager.setPolicy(resourcePath, acl);
+
+    ISO8601Date start = new ISO8601Date();
+    start.setTimeInMillis(from);
+    ISO8601Date end = new ISO8601Date();
+    end.setTimeInMillis(to);
+    Map<String, Object> ruleProperties = new HashMap<String, Object>();
+    ruleProperties.put(RulesBasedAce.P_ACTIVE_RANGE, session.getValueFactory().createValue(
+        start.toString() + "/" + end.toString()));
+    new RuleACLModifier().setProperties(resourcePath, session, principal, ruleProperties);
+  }
+
 }
@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.sling.jcr.jackrabbit.server.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.sling.jcr.jackrabbit.server.impl.index.CloudTermImpl;
+import org.apache.sling.jcr.jackrabbit.server.impl.index.HashedTermCloud;
+import org.junit.Test;
+
+import java.util.Iterator;
+
+/**
+ *
+ */
+public class HashedTermCloudTest {
+
+    @Test
+    public void testAdd() {
+        HashedTermCloud tc = new HashedTermCloud(10);
+        for (int i = 0; i < 4; i++) {
+            tc.add(new CloudTermImpl("a", 1));
+        }
+        Iterator<CloudTerm> i = tc.iterator(5);
+        assertFalse(i.hasNext());
+        tc.add("a", 1);
+        tc.add("b", 1);
+        i = tc.iterator(0);
+        assertTrue(i.hasNext());
+        CloudTerm t = i.next();
+        assertEquals("a", t.getName());
+        assertEquals(5, t.getCount());
+        assertTrue(i.hasNext());
+        t = i.next();
+        assertEquals("b", t.getName());
+        assertEquals(1, t.getCount());
+        assertFalse(i.hasNext());
+    }
+
+    @Test
+    public void testOrder() {
+        HashedTermCloud tc = new HashedTermCloud(3);
+        tc.add("c", 2);
+        tc.add("b", 2);
+        tc.add("a", 1);
+        tc.add("d", 5);
+        Iterator<CloudTerm> i = tc.iterator(0);
+        assertEquals("d", i.next().getName());
+        assertEquals("b", i.next().getName());
+        assertEquals("c", i.next().getName());
+        assertFalse(i.hasNext());
+    }
+
+    @Test
+    public void testAddOverflow() {
+        HashedTermCloud tc = new HashedTermCloud(10);
+        for (int i = 0; i <= 10; i++) {
+            tc.add(String.valueOf(i), i);
+        }
+        Iterator<CloudTerm> itc = tc.iterator(-1);
+        for (int i = 10; i > 0; i--) {
+            assertTrue(itc.hasNext());
+            assertEquals(i, itc.next().getCount());
+        }
+        assertFalse(itc.hasNext());
+    }
+
+    @Test
+    public void testPrune() {
+        HashedTermCloud tc = new HashedTermCloud(2, 4);
+        tc.add("a", 10);
+        tc.add("b", 5);
+        for (int i = 0; i < 100; i++) {
+            tc.add("x" + i, 1);
+            assertTrue(tc.size() <= 4);
+        }
+        tc.add("b", 1);
+        Iterator<CloudTerm> itc = tc.iterator(0);
+        assertEquals("a:10", itc.next().toString());
+        assertEquals("b:6", itc.next().toString());
+        assertFalse(itc.hasNext());
+    }
+
+    @Test
+    public void testExactByDefault() {
+        HashedTermCloud tc = new HashedTermCloud(2);
+        for (int i = 0; i < 1000; i++) {
+            tc.add("x" + i, 1);
+        }
+        tc.add("late", 2);
+        tc.add("x999", 2);
+        assertEquals(1001, tc.size());
+        Iterator<CloudTerm> itc = tc.iterator(0);
+        assertEquals("x999:3", itc.next().toString());
+        assertEquals("late:2", itc.next().toString());
+        assertFalse(itc.hasNext());
+    }
+
+    @Test
+    public void testMerge() {
+        HashedTermCloud one = new HashedTermCloud(10);
+        HashedTermCloud two = new HashedTermCloud(10);
+        one.add("a", 1);
+        one.add("b", 3);
+        two.add("a", 4);
+        two.add("c", 2);
+        one.merge(two);
+        assertEquals(3, one.size());
+        Iterator<CloudTerm> itc = one.iterator(0);
+        assertEquals("a:5", itc.next().toString());
+        assertEquals("b:3", itc.next().toString());
+        assertEquals("c:2", itc.next().toString());
+        assertFalse(itc.hasNext());
+        // the other cloud is unchanged.
+        assertEquals(2, two.size());
+    }
+
+    @Test
+    public void testImmutable() {
+        HashedTermCloud tc = new HashedTermCloud(10);
+        tc.add("a", 1);
+        Iterator<CloudTerm> itc = tc.iterator(-1);
+        itc.next();
+        try {
+            itc.remove();
+            fail();
+        } catch (UnsupportedOperationException e) {
+
+        }
+    }
+
+}
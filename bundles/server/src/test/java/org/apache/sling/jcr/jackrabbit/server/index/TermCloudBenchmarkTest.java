@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.sling.jcr.jackrabbit.server.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.sling.jcr.jackrabbit.server.impl.index.CloudTermImpl;
+import org.apache.sling.jcr.jackrabbit.server.impl.index.HashedTermCloud;
+import org.apache.sling.jcr.jackrabbit.server.impl.index.TermCloud;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Compares the cost of building a cloud over a result set with {@link TermCloud} and
+ * {@link HashedTermCloud}. Terms are drawn from a skewed vocabulary, as they are in real
+ * content. {@link TermCloud} and the approximate {@link HashedTermCloud} are sized as they
+ * are in production, so the vocabulary does not fit and terms pruned early lose their
+ * counts. The exact {@link HashedTermCloud}, built whole or merged from parts, must match
+ * counting every term.
+ */
+public class TermCloudBenchmarkTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TermCloudBenchmarkTest.class);
+    private static final int DOCUMENTS = 2000;
+    private static final int TERMS_PER_DOCUMENT = 100;
+    private static final int VOCABULARY = 5000;
+    private static final int CLOUD_SIZE = 50;
+    private static final int PARTS = 4;
+
+    @Test
+    public void testBenchmark() {
+        String[] terms = generateTerms();
+        // warm up all
+        buildTermCloud(terms);
+        buildHashedTermCloud(terms, Integer.MAX_VALUE);
+        buildHashedTermCloud(terms, CLOUD_SIZE * 8);
+        buildMergedTermCloud(terms);
+
+        long start = System.nanoTime();
+        TermCloud termCloud = buildTermCloud(terms);
+        long termCloudTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        HashedTermCloud exactTermCloud = buildHashedTermCloud(terms, Integer.MAX_VALUE);
+        long exactTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        HashedTermCloud hashedTermCloud = buildHashedTermCloud(terms, CLOUD_SIZE * 8);
+        long hashedTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        HashedTermCloud mergedTermCloud = buildMergedTermCloud(terms);
+        long mergedTime = System.nanoTime() - start;
+
+        LOGGER.info("{} term occurrences: TermCloud {} ms, exact HashedTermCloud {} ms, "
+                + "approximate HashedTermCloud {} ms, merged from {} parts {} ms",
+                new Object[] { terms.length, termCloudTime / 1000000, exactTime / 1000000,
+                        hashedTime / 1000000, PARTS, mergedTime / 1000000 });
+
+        // check against counting every term.
+        Map<String, Integer> exact = new HashMap<String, Integer>();
+        for (String term : terms) {
+            Integer count = exact.get(term);
+            exact.put(term, count == null ? 1 : count + 1);
+        }
+        List<CloudTermImpl> expected = new ArrayList<CloudTermImpl>();
+        for (Map.Entry<String, Integer> e : exact.entrySet()) {
+            expected.add(new CloudTermImpl(e.getKey(), e.getValue()));
+        }
+        Collections.sort(expected);
+        Set<String> expectedNames = new HashSet<String>();
+        for (int i = 0; i < CLOUD_SIZE; i++) {
+            expectedNames.add(expected.get(i).getName());
+        }
+        Iterator<CloudTerm> exactTerms = exactTermCloud.iterator(0);
+        Iterator<CloudTerm> mergedTerms = mergedTermCloud.iterator(0);
+        for (int i = 0; i < CLOUD_SIZE; i++) {
+            assertEquals(expected.get(i).toString(), exactTerms.next().toString());
+            assertEquals(expected.get(i).toString(), mergedTerms.next().toString());
+        }
+        assertFalse(exactTerms.hasNext());
+        assertFalse(mergedTerms.hasNext());
+
+        // the approximate cloud loses the counts of terms it pruned.
+        Iterator<CloudTerm> actual = hashedTermCloud.iterator(0);
+        int found = 0;
+        for (int i = 0; i < CLOUD_SIZE; i++) {
+            assertTrue(actual.hasNext());
+            CloudTerm term = actual.next();
+            if (i < 10) {
+                // the most frequent terms are never pruned, so are close to exact.
+                assertEquals(expected.get(i).getName(), term.getName());
+                assertTrue(term.getCount() <= expected.get(i).getCount());
+                assertTrue(term.getCount() * 100 >= expected.get(i).getCount() * 99);
+            }
+            if (expectedNames.contains(term.getName())) {
+                found++;
+            }
+        }
+        assertTrue(found + " of the top " + CLOUD_SIZE + " terms found",
+                found >= CLOUD_SIZE * 9 / 10);
+        assertTrue(termCloud.iterator(0).hasNext());
+    }
+
+    private String[] generateTerms() {
+        Random random = new Random(42);
+        String[] terms = new String[DOCUMENTS * TERMS_PER_DOCUMENT];
+        for (int i = 0; i < terms.length; i++) {
+            // cubing a uniform value favours the low end of the vocabulary.
+            double r = random.nextDouble();
+            terms[i] = "term" + (int) (r * r * r * VOCABULARY);
+        }
+        return terms;
+    }
+
+    private TermCloud buildTermCloud(String[] terms) {
+        TermCloud cloud = new TermCloud(CLOUD_SIZE);
+        for (String term : terms) {
+            cloud.add(new CloudTermImpl(term, 1));
+        }
+        return cloud;
+    }
+
+    private HashedTermCloud buildHashedTermCloud(String[] terms, int maxTerms) {
+        HashedTermCloud cloud = new HashedTermCloud(CLOUD_SIZE, maxTerms);
+        for (String term : terms) {
+            cloud.add(term, 1);
+        }
+        return cloud;
+    }
+
+    /**
+     * Builds a cloud for each part of the terms, as parallel extractors would, and merges
+     * them one at a time.
+     */
+    private HashedTermCloud buildMergedTermCloud(String[] terms) {
+        HashedTermCloud merged = new HashedTermCloud(CLOUD_SIZE);
+        int partSize = (terms.length + PARTS - 1) / PARTS;
+        for (int from = 0; from < terms.length; from += partSize) {
+            HashedTermCloud part = new HashedTermCloud(CLOUD_SIZE);
+            for (int i = from; i < Math.min(terms.length, from + partSize); i++) {
+                part.add(terms[i], 1);
+            }
+            merged.merge(part);
+        }
+        return merged;
+    }
+}
@@ -18,9 +18,13 @@
 package org.apache.sling.jcr.jackrabbit.server.index;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
+import org.apache.sling.jcr.jackrabbit.server.impl.index.TermCloudVectorMapper;
 import org.junit.Test;
 
+import java.util.Iterator;
+
 
 /**
  *
@@ -55,4 +59,19 @@ public class TermCloudExtractorTest {
     String e = termCloudExtractor.adaptTo(obj, "a","b","c","d" );
     assertEquals("hello",e);
   }
+
+  @Test
+  public void testMerge() {
+    TermCloudVectorMapper first = new TermCloudVectorMapper(10);
+    TermCloudVectorMapper second = new TermCloudVectorMapper(10);
+    first.map("fish", 2, null, null);
+    second.map("fish", 1, null, null);
+    second.map("chips", 1, null, null);
+    TermCloudExtractor extractor = new TermCloudExtractor(first);
+    extractor.merge(new TermCloudExtractor(second));
+    Iterator<CloudTerm> itc = extractor.termIteator(0);
+    assertEquals("fish:3", itc.next().toString());
+    assertEquals("chips:1", itc.next().toString());
+    assertFalse(itc.hasNext());
+  }
 }
@@ -94,6 +94,18 @@ public class TermCloudVectorMapperTest {
         assertFalse(itc.hasNext());
     }
 
-    
+    @Test
+    public void testMerge() {
+        TermCloudVectorMapper one = new TermCloudVectorMapper(10);
+        TermCloudVectorMapper two = new TermCloudVectorMapper(10);
+        one.map("a", 2, null, null);
+        two.map("a", 3, null, null);
+        two.map("b", 1, null, null);
+        one.merge(two);
+        Iterator<CloudTerm> itc = one.iterator(0);
+        assertEquals("a:5", itc.next().toString());
+        assertEquals("b:1", itc.next().toString());
+        assertFalse(itc.hasNext());
+    }
 
 }
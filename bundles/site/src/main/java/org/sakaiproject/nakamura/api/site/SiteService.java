@@ -25,6 +25,7 @@ import java.util.AbstractCollection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.jcr.Item;
 import javax.jcr.Node;
@@ -314,6 +315,37 @@ public interface SiteService {
   Map<String, List<Group>> getMembership(Session session, String user)
       throws SiteException;
 
+  /**
+   * Gets the identifiers of the sites a user is a member of, through any of the user's
+   * groups. This is the key set of {@link #getMembership(Session, String)} without
+   * loading the groups, and is held for a short time so that it can be called for every
+   * request.
+   *
+   * @param session
+   *          the session used to read the user's groups.
+   * @param user
+   *          the id of the user.
+   * @return the identifiers of the site nodes.
+   * @throws SiteException
+   */
+  Set<String> getMembershipSiteIds(Session session, String user) throws SiteException;
+
+  /**
+   * Gets a summary of a site by the identifier of the site node. Summaries are held
+   * until the site node changes, so listings that show the same sites for many items do
+   * not read the sites again.
+   *
+   * @param session
+   *          the session of the current user, the site must be readable by it.
+   * @param siteId
+   *          the identifier of the site node.
+   * @return the summary of the site, or null if the identifier is not a site readable
+   *         by the session.
+   * @throws SiteException
+   *           when there is an internal problem reading the site.
+   */
+  SiteSummary getSiteSummary(Session session, String siteId) throws SiteException;
+
   /**
    * Gets the default site template for the node, this must be a node that exist and is
    * readable by the current session.
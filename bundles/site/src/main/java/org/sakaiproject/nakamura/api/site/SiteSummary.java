@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.site;
+
+import java.util.Map;
+
+/**
+ * A summary of a site, as shown where content refers to the site by its identifier. The
+ * properties are those of the site node, with values as written by
+ * {@link org.sakaiproject.nakamura.util.ExtendedJSONWriter}, multi valued properties
+ * are held as <code>Object[]</code>.
+ */
+public class SiteSummary {
+  private String id;
+  private String path;
+  private String name;
+  private int memberCount;
+  private Map<String, Object> properties;
+
+  /**
+   * @param id
+   *          the identifier of the site node.
+   * @param path
+   *          the path of the site node.
+   * @param name
+   *          the name of the site node.
+   * @param memberCount
+   *          the number of members of the site.
+   * @param properties
+   *          the properties of the site node, in the order of the node.
+   */
+  public SiteSummary(String id, String path, String name, int memberCount,
+      Map<String, Object> properties) {
+    this.id = id;
+    this.path = path;
+    this.name = name;
+    this.memberCount = memberCount;
+    this.properties = properties;
+  }
+
+  /**
+   * @return the identifier of the site node.
+   */
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * @return the path of the site node.
+   */
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * @return the name of the site node.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return the number of members of the site.
+   */
+  public int getMemberCount() {
+    return memberCount;
+  }
+
+  /**
+   * @return the properties of the site node, this map must not be modified.
+   */
+  public Map<String, Object> getProperties() {
+    return properties;
+  }
+}
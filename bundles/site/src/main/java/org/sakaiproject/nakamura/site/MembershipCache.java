@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.site;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Holds the sites each user is a member of, so the membership of the current user does
+ * not have to be walked on every request. Entries are kept per user and per reading
+ * session user, since the groups that can be seen depend on the session. An entry is
+ * dropped when the user or any of the user's groups change. Users are held in a cluster
+ * invalidated cache, so a user dropped on one node is dropped on the others.
+ */
+public class MembershipCache {
+
+  /**
+   * The memberships of users by user id, each a map by session user id.
+   */
+  static final String MEMBERSHIP_CACHE = "site.memberships";
+
+  /**
+   * The membership of a user.
+   */
+  static class Membership {
+    final String user;
+    /**
+     * The ids of the groups of the user that belong to each site, by site identifier.
+     */
+    final Map<String, List<String>> sites;
+    /**
+     * The ids of every group of the user.
+     */
+    final Set<String> groups;
+
+    Membership(String user, Map<String, List<String>> sites, Set<String> groups) {
+      this.user = user;
+      this.sites = sites;
+      this.groups = groups;
+    }
+  }
+
+  private final Cache<Map<String, Membership>> users;
+
+  /**
+   * @param users
+   *          the cache the memberships are held in.
+   */
+  MembershipCache(Cache<Map<String, Membership>> users) {
+    this.users = users;
+  }
+
+  /**
+   * @param user
+   *          the id of the user.
+   * @param sessionUser
+   *          the id of the session user that read the membership.
+   * @return the membership of the user, or null if it is not held.
+   */
+  Membership get(String user, String sessionUser) {
+    Map<String, Membership> entries = users.get(user);
+    return entries == null ? null : entries.get(sessionUser);
+  }
+
+  /**
+   * Hold the membership of a user. The entries of a user are copied and put back, never
+   * changed in place.
+   */
+  void put(String user, String sessionUser, Membership membership) {
+    synchronized (users) {
+      Map<String, Membership> entries = new HashMap<String, Membership>();
+      Map<String, Membership> current = users.get(user);
+      if (current != null) {
+        entries.putAll(current);
+      }
+      entries.put(sessionUser, membership);
+      users.put(user, entries);
+    }
+  }
+
+  /**
+   * An authorizable has changed, drop it if it is a user and every user in it if it is a
+   * group.
+   */
+  void invalidate(String id) {
+    synchronized (users) {
+      users.remove(id);
+      for (Map<String, Membership> entries : users.list()) {
+        for (Membership membership : entries.values()) {
+          if (membership.groups.contains(id)) {
+            users.remove(membership.user);
+            break;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Drop every user.
+   */
+  void invalidateAll() {
+    users.clear();
+  }
+}
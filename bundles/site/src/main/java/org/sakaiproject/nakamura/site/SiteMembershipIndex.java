@@ -0,0 +1,521 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.site;
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.User;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.personal.PersonalUtils;
+import org.sakaiproject.nakamura.api.site.Sort;
+import org.sakaiproject.nakamura.api.site.SortField;
+import org.sakaiproject.nakamura.api.site.SortOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * A maintained index of the flattened membership of sites. The users and groups of a
+ * site are found by walking the site's groups once, after which the index is kept up to
+ * date from membership changes, so member counts are a lookup and sorted pages come from
+ * lists that are sorted once and then updated in place. Only IDs and sort keys are held.
+ * The index is shared by every caller, so sites must be walked with an administrative
+ * session, and the authorizables for a page are looked up with the caller's session,
+ * which skips any the caller can not read.
+ * 
+ * Sites are held in a cluster invalidated cache by path. A site that is updated is put
+ * back, so the other nodes drop their copy and walk it again. A site is also walked again
+ * if its authorizables property changes.
+ */
+public class SiteMembershipIndex {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SiteMembershipIndex.class);
+
+  /**
+   * The membership of sites by path.
+   */
+  static final String SITE_MEMBERS_CACHE = "site.members";
+
+  /**
+   * The ID and sort keys of a member.
+   */
+  static class Member {
+    private final String id;
+    private final String firstName;
+    private final String lastName;
+
+    Member(String id, String firstName, String lastName) {
+      this.id = id;
+      this.firstName = firstName == null ? "" : firstName;
+      this.lastName = lastName == null ? "" : lastName;
+    }
+
+    String getId() {
+      return id;
+    }
+
+    String get(SortField field) {
+      switch (field) {
+      case firstName:
+        return firstName;
+      case lastName:
+        return lastName;
+      default:
+        return id;
+      }
+    }
+  }
+
+  /**
+   * Orders members by a list of sorts, then by ID so that the order is total.
+   */
+  static class MemberComparator implements Comparator<Member> {
+    private final Sort[] sort;
+
+    MemberComparator(Sort[] sort) {
+      this.sort = sort;
+    }
+
+    public int compare(Member o1, Member o2) {
+      for (Sort s : sort) {
+        int i = o1.get(s.getField()).compareTo(o2.get(s.getField()));
+        if (i != 0) {
+          return s.getOrder() == SortOrder.desc ? -i : i;
+        }
+      }
+      return o1.id.compareTo(o2.id);
+    }
+  }
+
+  /**
+   * Members kept in the order of a sort.
+   */
+  static class SortedMembers {
+    private final MemberComparator comparator;
+    private final List<Member> list;
+
+    SortedMembers(Sort[] sort, Collection<Member> members) {
+      comparator = new MemberComparator(sort);
+      list = new ArrayList<Member>(members);
+      Collections.sort(list, comparator);
+    }
+
+    void insert(Member member) {
+      int i = Collections.binarySearch(list, member, comparator);
+      if (i < 0) {
+        list.add(-i - 1, member);
+      }
+    }
+
+    void remove(Member member) {
+      int i = Collections.binarySearch(list, member, comparator);
+      if (i >= 0) {
+        list.remove(i);
+      }
+    }
+  }
+
+  /**
+   * The flattened membership of one site.
+   */
+  static class SiteMembers {
+    private static final String DIRECT = "";
+    private final String path;
+    private final String[] authorizables;
+    private final Map<String, Member> users = new LinkedHashMap<String, Member>();
+    /**
+     * For each user, the site groups it was found in, or DIRECT if the site lists it.
+     */
+    private final Map<String, Set<String>> userGroups = new HashMap<String, Set<String>>();
+    private final Map<String, Member> groups = new LinkedHashMap<String, Member>();
+    private final Map<String, SortedMembers> sortedUsers = new HashMap<String, SortedMembers>();
+    private final Map<String, SortedMembers> sortedGroups = new HashMap<String, SortedMembers>();
+
+    SiteMembers(String path, String[] authorizables) {
+      this.path = path;
+      this.authorizables = authorizables;
+    }
+
+    boolean isCurrent(String[] currentAuthorizables) {
+      return Arrays.equals(authorizables, currentAuthorizables);
+    }
+
+    synchronized int getUserCount() {
+      return users.size();
+    }
+
+    synchronized int getGroupCount() {
+      return groups.size();
+    }
+
+    synchronized boolean containsGroup(String id) {
+      return groups.containsKey(id);
+    }
+
+    synchronized boolean containsUser(String id) {
+      return users.containsKey(id);
+    }
+
+    synchronized void addGroup(Member group) {
+      if (!groups.containsKey(group.id)) {
+        groups.put(group.id, group);
+        insertSorted(sortedGroups, group);
+      }
+    }
+
+    /**
+     * @param group
+     *          the site group the user was found in, null if the site lists the user.
+     */
+    synchronized void addUser(String group, Member user) {
+      Set<String> in = userGroups.get(user.id);
+      if (in == null) {
+        in = new HashSet<String>();
+        userGroups.put(user.id, in);
+        users.put(user.id, user);
+        insertSorted(sortedUsers, user);
+      }
+      in.add(group == null ? DIRECT : group);
+    }
+
+    /**
+     * Remove a user from a group, and from the site if that was the only way the user
+     * was a member.
+     */
+    synchronized void removeUser(String group, String id) {
+      Set<String> in = userGroups.get(id);
+      if (in != null) {
+        in.remove(group == null ? DIRECT : group);
+        if (in.isEmpty()) {
+          removeUser(id);
+        }
+      }
+    }
+
+    /**
+     * @return true if the user was a member.
+     */
+    synchronized boolean removeUser(String id) {
+      userGroups.remove(id);
+      Member user = users.remove(id);
+      if (user != null) {
+        removeSorted(sortedUsers, user);
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * Replace the sort keys of a user.
+     * 
+     * @return true if the user is a member.
+     */
+    synchronized boolean updateUser(Member user) {
+      Member old = users.get(user.id);
+      if (old != null) {
+        removeSorted(sortedUsers, old);
+        users.put(user.id, user);
+        insertSorted(sortedUsers, user);
+        return true;
+      }
+      return false;
+    }
+
+    synchronized List<String> getUsers(int start, int nitems, Sort[] sort) {
+      return page(users, sortedUsers, start, nitems, sort);
+    }
+
+    synchronized List<String> getGroups(int start, int nitems, Sort[] sort) {
+      return page(groups, sortedGroups, start, nitems, sort);
+    }
+
+    private List<String> page(Map<String, Member> members,
+        Map<String, SortedMembers> sorted, int start, int nitems, Sort[] sort) {
+      List<String> page = new ArrayList<String>();
+      if (sort != null && sort.length > 0) {
+        String key = sortKey(sort);
+        SortedMembers sortedMembers = sorted.get(key);
+        if (sortedMembers == null) {
+          sortedMembers = new SortedMembers(sort, members.values());
+          sorted.put(key, sortedMembers);
+        }
+        List<Member> list = sortedMembers.list;
+        for (int i = Math.max(0, start); i < list.size() && page.size() < nitems; i++) {
+          page.add(list.get(i).id);
+        }
+      } else {
+        Iterator<Member> i = members.values().iterator();
+        for (int skip = 0; skip < start && i.hasNext(); skip++) {
+          i.next();
+        }
+        while (i.hasNext() && page.size() < nitems) {
+          page.add(i.next().id);
+        }
+      }
+      return page;
+    }
+
+    private void insertSorted(Map<String, SortedMembers> sorted, Member member) {
+      for (SortedMembers sortedMembers : sorted.values()) {
+        sortedMembers.insert(member);
+      }
+    }
+
+    private void removeSorted(Map<String, SortedMembers> sorted, Member member) {
+      for (SortedMembers sortedMembers : sorted.values()) {
+        sortedMembers.remove(member);
+      }
+    }
+  }
+
+  private final Cache<SiteMembers> sites;
+
+  /**
+   * @param sites
+   *          the cache the membership of sites is held in.
+   */
+  SiteMembershipIndex(Cache<SiteMembers> sites) {
+    this.sites = sites;
+  }
+
+  /**
+   * @param path
+   *          the path of the site node.
+   * @param authorizables
+   *          the current value of the site's authorizables property.
+   * @return the membership of the site if it is indexed and current, otherwise null.
+   */
+  SiteMembers getIndexed(String path, String[] authorizables) {
+    SiteMembers members = sites.get(path);
+    if (members != null && members.isCurrent(authorizables)) {
+      return members;
+    }
+    return null;
+  }
+
+  /**
+   * Get the membership of a site by path, walking the site's groups with the session if
+   * it is not indexed.
+   * 
+   * @param session
+   *          an administrative session used to walk the site's groups, the result is
+   *          shared with every caller.
+   * @param path
+   *          the path of the site node.
+   * @param authorizables
+   *          the current value of the site's authorizables property.
+   * @return the membership of the site.
+   * @throws RepositoryException
+   */
+  SiteMembers getSiteMembers(Session session, String path, String[] authorizables)
+      throws RepositoryException {
+    SiteMembers members = getIndexed(path, authorizables);
+    if (members == null) {
+      members = build(session, path, authorizables);
+      sites.put(path, members);
+    }
+    return members;
+  }
+
+  /**
+   * @return true if any indexed site has the group.
+   */
+  boolean containsGroup(String groupId) {
+    for (SiteMembers members : sites.list()) {
+      if (members.containsGroup(groupId)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return true if any indexed site has the user.
+   */
+  boolean containsUser(String userId) {
+    for (SiteMembers members : sites.list()) {
+      if (members.containsUser(userId)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * A user has been added to a group, add the user to the sites with that group.
+   */
+  void userJoined(String groupId, Member user) {
+    for (SiteMembers members : sites.list()) {
+      if (members.containsGroup(groupId)) {
+        members.addUser(groupId, user);
+        sites.put(members.path, members);
+      }
+    }
+  }
+
+  /**
+   * A user has been removed from a group.
+   */
+  void userParted(String groupId, String userId) {
+    for (SiteMembers members : sites.list()) {
+      if (members.containsGroup(groupId)) {
+        members.removeUser(groupId, userId);
+        sites.put(members.path, members);
+      }
+    }
+  }
+
+  /**
+   * The sort keys of a user have changed.
+   */
+  void userUpdated(Member user) {
+    for (SiteMembers members : sites.list()) {
+      if (members.updateUser(user)) {
+        sites.put(members.path, members);
+      }
+    }
+  }
+
+  /**
+   * An authorizable has been deleted. Users are removed, sites with a deleted group are
+   * walked again.
+   */
+  void authorizableDeleted(String id) {
+    for (SiteMembers members : sites.list()) {
+      if (members.containsGroup(id)) {
+        sites.remove(members.path);
+      } else if (members.removeUser(id)) {
+        sites.put(members.path, members);
+      }
+    }
+  }
+
+  /**
+   * Drop every site, used when groups are nested or un-nested.
+   */
+  void invalidateAll() {
+    sites.clear();
+  }
+
+  /**
+   * Walk the authorizables of a site, expanding groups.
+   */
+  private SiteMembers build(Session session, String path, String[] authorizables)
+      throws RepositoryException {
+    SiteMembers members = new SiteMembers(path, authorizables);
+    UserManager userManager = AccessControlUtil.getUserManager(session);
+    for (String id : authorizables) {
+      Authorizable a = userManager.getAuthorizable(id);
+      if (a instanceof Group) {
+        if (!members.containsGroup(id)) {
+          members.addGroup(new Member(id, null, null));
+          populateMembers((Group) a, members, session);
+        }
+      } else if (a instanceof User) {
+        members.addUser(null, newMember(session, a));
+      } else if (a == null) {
+        // if a is null
+        LOGGER.warn("Authorizable could not be resolved from id: {}", id);
+      } else {
+        // if a is not one of the known types
+        LOGGER.warn("Cannot handle Authorizable {} of type {}", a, a.getClass());
+      }
+    }
+    return members;
+  }
+
+  /**
+   * Recursively add the members of a group, each group is only expanded once.
+   */
+  private void populateMembers(Group group, SiteMembers members, Session session)
+      throws RepositoryException {
+    String groupId = group.getID();
+    for (Iterator<Authorizable> igm = group.getDeclaredMembers(); igm.hasNext();) {
+      Authorizable a = igm.next();
+      if (a instanceof Group) {
+        if (!members.containsGroup(a.getID())) {
+          members.addGroup(new Member(a.getID(), null, null));
+          populateMembers((Group) a, members, session);
+        }
+      } else {
+        members.addUser(groupId, newMember(session, a));
+      }
+    }
+  }
+
+  /**
+   * Read the sort keys of a user from the profile, or the user if there is no profile.
+   */
+  static Member newMember(Session session, Authorizable user) throws RepositoryException {
+    String firstName = null;
+    String lastName = null;
+    String profilePath = PersonalUtils.getProfilePath(user);
+    Node profileNode = null;
+    try {
+      profileNode = (Node) session.getItem(profilePath);
+    } catch (PathNotFoundException e) {
+      LOGGER.warn("User {} does not have a profile at {} ", user.getID(), profilePath);
+    }
+    if (profileNode == null) {
+      if (user.hasProperty(SortField.firstName.toString())) {
+        firstName = user.getProperty(SortField.firstName.toString())[0].getString();
+      }
+      if (user.hasProperty(SortField.lastName.toString())) {
+        lastName = user.getProperty(SortField.lastName.toString())[0].getString();
+      }
+    } else {
+      if (profileNode.hasProperty(SortField.firstName.toString())) {
+        firstName = profileNode.getProperty(SortField.firstName.toString()).getString();
+      }
+      if (profileNode.hasProperty(SortField.lastName.toString())) {
+        lastName = profileNode.getProperty(SortField.lastName.toString()).getString();
+      }
+    }
+    return new Member(user.getID(), firstName, lastName);
+  }
+
+  private static String sortKey(Sort[] sort) {
+    StringBuilder sb = new StringBuilder();
+    for (Sort s : sort) {
+      if (sb.length() > 0) {
+        sb.append(';');
+      }
+      sb.append(s.getField()).append(',').append(s.getOrder());
+    }
+    return sb.toString();
+  }
+}
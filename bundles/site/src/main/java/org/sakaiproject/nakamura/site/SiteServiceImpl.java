@@ -17,25 +17,34 @@
  */
 package org.sakaiproject.nakamura.site;
 
-import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.Services;
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.Group;
 import org.apache.jackrabbit.api.security.user.User;
 import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
-import org.sakaiproject.nakamura.api.personal.PersonalUtils;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.site.SiteException;
 import org.sakaiproject.nakamura.api.site.SiteService;
+import org.sakaiproject.nakamura.api.site.SiteSummary;
 import org.sakaiproject.nakamura.api.site.Sort;
+import org.sakaiproject.nakamura.api.user.AuthorizableEvent;
+import org.sakaiproject.nakamura.api.user.AuthorizableEvent.Operation;
 import org.sakaiproject.nakamura.api.user.AuthorizablePostProcessService;
 import org.sakaiproject.nakamura.util.JcrUtils;
 import org.sakaiproject.nakamura.util.PathUtils;
@@ -43,12 +52,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.AbstractCollection;
-import java.util.Comparator;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Map.Entry;
 
 import javax.jcr.Item;
+import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.PathNotFoundException;
@@ -66,8 +80,9 @@ import javax.servlet.http.HttpServletResponse;
  * The <code>SiteServiceImpl</code> provides a Site Service implementatoin.
  */
 @Component(immediate = true, label = "%siteService.impl.label", description = "%siteService.impl.desc")
-@Service
-public class SiteServiceImpl implements SiteService {
+@Services(value = { @Service(value = SiteService.class),
+    @Service(value = EventHandler.class) })
+public class SiteServiceImpl implements SiteService, EventHandler {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SiteServiceImpl.class);
 
@@ -86,9 +101,24 @@ public class SiteServiceImpl implements SiteService {
   public static final String DEFAULT_SITE = "/sites/default.html";
 
   /**
-   * The maximum size of any list before we truncate. The user is warned.
+   * Membership changes keep the membership index up to date, resource changes drop site
+   * summaries.
    */
-  private static final int MAXLISTSIZE = 10000;
+  @org.apache.felix.scr.annotations.Property(value = { AuthorizableEvent.TOPIC + "*",
+      SlingConstants.TOPIC_RESOURCE_CHANGED, SlingConstants.TOPIC_RESOURCE_REMOVED },
+      propertyPrivate = true)
+  static final String EVENT_TOPICS = EventConstants.EVENT_TOPIC;
+
+  /**
+   * Authorizable events carry no path and are all delivered, of the resource events only
+   * changes to site nodes and removals, which may take a site with them, are delivered.
+   */
+  @org.apache.felix.scr.annotations.Property(value = "(|(!(" + SlingConstants.PROPERTY_PATH
+      + "=*))(" + SlingConstants.PROPERTY_RESOURCE_TYPE + "="
+      + SiteService.SITE_RESOURCE_TYPE + ")(" + EventConstants.EVENT_TOPIC + "="
+      + SlingConstants.TOPIC_RESOURCE_REMOVED + "))",
+      propertyPrivate = true)
+  static final String EVENT_FILTER = EventConstants.EVENT_FILTER;
 
   /**
    * The OSGi Event Admin Service.
@@ -99,6 +129,9 @@ public class SiteServiceImpl implements SiteService {
   @Reference
   private AuthorizablePostProcessService postProcessService;
 
+  @Reference
+  private CacheManagerService cacheManagerService;
+
   /**
    * {@inheritDoc}
    * 
@@ -204,6 +237,10 @@ public class SiteServiceImpl implements SiteService {
       if ( session.hasPendingChanges()) {
         session.save();
       }
+      if (Joinable.yes.equals(groupJoin) && Joinable.yes.equals(siteJoin)) {
+        getMembershipIndex().userJoined(targetGroup.getID(), SiteMembershipIndex.newMember(
+            session, userAuthorizable));
+      }
     } catch (RepositoryException e) {
       LOGGER.warn(e.getMessage(), e);
       throw new SiteException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
@@ -254,6 +291,7 @@ public class SiteServiceImpl implements SiteService {
         throw new SiteException(HttpServletResponse.SC_CONFLICT, "User " + user
             + " was not a member of " + requestedGroup);
       }
+      getMembershipIndex().userParted(targetGroup.getID(), user);
       postEvent(SiteEvent.unjoinedSite, site, targetGroup);
 
     } catch (RepositoryException e) {
@@ -455,36 +493,17 @@ public class SiteServiceImpl implements SiteService {
    */
   public Iterator<Group> getGroups(Node site, int start, int nitems, Sort[] sort)
       throws SiteException {
-    MembershipTree membership = getMembershipTree(site, true);
-    if (sort != null && sort.length > 0) {
-      Comparator<GroupKey> comparitor = buildCompoundComparitor(sort);
-      List<GroupKey> sortedList = Lists.sortedCopy(membership.getGroups().keySet(), comparitor);
-      Iterator<GroupKey> sortedIterator = sortedList.listIterator(start);
-      return unwrapGroups(Iterators.limit(sortedIterator, nitems));
-    }
-
-    // no sort requested.
-
-    List<GroupKey> finalList = Lists.immutableList(membership.getGroups().keySet());
-    Iterator<GroupKey> unsortedIterator = finalList.listIterator(start);
-    return unwrapGroups(Iterators.limit(unsortedIterator, nitems));
-  }
-
-  public Iterator<Group> unwrapGroups(final Iterator<GroupKey> underlying) {
-    return new Iterator<Group>() {
-
-      public boolean hasNext() {
-        return underlying.hasNext();
-      }
-
-      public Group next() {
-        return underlying.next().getGroup();
-      }
-
-      public void remove() {
-        underlying.remove();
+    try {
+      SiteMembershipIndex.SiteMembers members = getSiteMembers(site);
+      if (members == null) {
+        return resolve(site.getSession(), Lists.<String> newArrayList(), Group.class);
       }
-    };
+      return resolve(site.getSession(), members.getGroups(start, nitems, sort),
+          Group.class);
+    } catch (RepositoryException e) {
+      LOGGER.warn(e.getMessage(), e);
+      throw new SiteException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+    }
   }
 
   /**
@@ -493,250 +512,278 @@ public class SiteServiceImpl implements SiteService {
    * @see org.sakaiproject.nakamura.api.site.SiteService#getMembers(javax.jcr.Node, int,
    *      int, org.sakaiproject.nakamura.api.site.Sort[])
    */
-  public AbstractCollection<User> getMembers(Node site, int start, int nitems, Sort[] sort) {
-    MembershipTree membership = getMembershipTree(site, true);
-    if (sort != null && sort.length > 0) {
-      Comparator<UserKey> comparitor = buildCompoundComparitor(sort);
-      List<UserKey> sortedList = Lists.sortedCopy(membership.getUsers().keySet(), comparitor);
-      Iterator<UserKey> sortedIterator = sortedList.listIterator(start);
-      return returnCollection(sortedIterator, nitems, sortedList.size());
+  public AbstractCollection<User> getMembers(final Node site, int start, int nitems,
+      Sort[] sort) {
+    List<String> page = Lists.newArrayList();
+    final SiteMembershipIndex.SiteMembers members = getSiteMembers(site);
+    if (members != null) {
+      page = members.getUsers(start, nitems, sort);
     }
-
-    // no sort requested.
-    List<UserKey> finalList = Lists.immutableList(membership.getUsers().keySet());
-    Iterator<UserKey> unsortedIterator = finalList.listIterator(start);
-    return returnCollection(unsortedIterator, nitems, finalList.size());
-  }
-
-  private AbstractCollection<User> returnCollection(final Iterator<UserKey> iterator, final int nitems, final int totalSize) {
+    final List<String> ids = page;
     return new AbstractCollection<User>() {
+      private int size = -1;
 
       @Override
       public Iterator<User> iterator() {
-        return unwrapUsers(Iterators.limit(iterator, nitems));
+        try {
+          return resolve(site.getSession(), ids, User.class);
+        } catch (RepositoryException e) {
+          LOGGER.warn(e.getMessage(), e);
+          return Lists.<User> newArrayList().iterator();
+        }
       }
 
       @Override
       public int size() {
-        return totalSize;
+        if (size < 0) {
+          size = getMemberCount(site, members);
+        }
+        return size;
       }
     };
   }
 
-  public Iterator<User> unwrapUsers(final Iterator<UserKey> underlying) {
-    return new Iterator<User>() {
+  /**
+   * Look up a page of authorizables with the session of the caller, skipping any that can
+   * not be found.
+   */
+  private <T extends Authorizable> Iterator<T> resolve(Session session,
+      final List<String> ids, final Class<T> type) throws RepositoryException {
+    final UserManager userManager = AccessControlUtil.getUserManager(session);
+    return new Iterator<T>() {
+      private Iterator<String> underlying = ids.iterator();
+      private T next;
 
       public boolean hasNext() {
-        return underlying.hasNext();
+        while (next == null && underlying.hasNext()) {
+          String id = underlying.next();
+          try {
+            Authorizable a = userManager.getAuthorizable(id);
+            if (type.isInstance(a)) {
+              next = type.cast(a);
+            } else {
+              LOGGER.debug("Authorizable could not be resolved from id: {}", id);
+            }
+          } catch (RepositoryException e) {
+            LOGGER.warn("Failed to resolve {}: {}", id, e.getMessage());
+          }
+        }
+        return next != null;
       }
 
-      public User next() {
-        return underlying.next().getUser();
+      public T next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        T result = next;
+        next = null;
+        return result;
       }
 
       public void remove() {
-        underlying.remove();
+        throw new UnsupportedOperationException();
       }
     };
   }
 
   public int getMemberCount(Node site) {
-    return getMembershipTree(site, false).getUsers().size();
+    return getMemberCount(site, getSiteMembers(site));
   }
 
   /**
-   * Builds a membership tree of users and groups for the site, because of the tree like
-   * nature of membership we may want to think of a more efficient way of performing this
-   * operation, however, there are no queries to perform this and it may be better to have
-   * this in memory. We are taking a google like approach to this operation, limiting the
-   * set to a practical size. If this become a real problem, then we might want to put the
-   * members of a site into a JPA mapped table, although that will require a tree cache
-   * invalidation scheme to keep upto date. Membership is derived not always declared.
-   * 
+   * @return the number of members of the site the session of the site can resolve.
+   */
+  private int getMemberCount(Node site, SiteMembershipIndex.SiteMembers members) {
+    if (members == null) {
+      return 0;
+    }
+    try {
+      return countMembers(site.getSession(), members);
+    } catch (RepositoryException e) {
+      LOGGER.warn(e.getMessage(), e);
+      return 0;
+    }
+  }
+
+  /**
+   * Count the members of a site the session can resolve, as {@link #resolve} does, the
+   * membership index is built with an administrative session and may hold users the
+   * caller can not see.
+   */
+  private int countMembers(Session session, SiteMembershipIndex.SiteMembers members)
+      throws RepositoryException {
+    int count = 0;
+    for (Iterator<User> i = resolve(session, members.getUsers(0, Integer.MAX_VALUE, null),
+        User.class); i.hasNext(); i.next()) {
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Gets the flattened membership of the site from the membership index. The first call
+   * for a site walks its groups, because of the tree like nature of membership there are
+   * no queries to perform this. After that the index is kept up to date from membership
+   * changes, and the site is walked again only if its list of authorizables changes.
+   * Membership is derived not always declared.
    * 
    * @param site
    *          the site
-   * @param lookupProfile
-   *          If a profile should be looked up for all the users of this site. (true will
-   *          be much slower!)
-   * @return a membership tree
-   */
-  private MembershipTree getMembershipTree(Node site, boolean lookupProfile) {
-    Map<GroupKey, Membership> groups = Maps.newLinkedHashMap();
-    Map<UserKey, Membership> users = Maps.newLinkedHashMap();
+   * @return the membership of the site, null if it could not be read.
+   */
+  private SiteMembershipIndex.SiteMembers getSiteMembers(Node site) {
     try {
-      Session session = site.getSession();
-      UserManager userManager = AccessControlUtil.getUserManager(site.getSession());
+      String[] authorizables = new String[0];
       if (site.hasProperty(SiteService.AUTHORIZABLE)) {
         Value[] values = getPropertyValues(site, SiteService.AUTHORIZABLE);
-        for (Value v : values) {
-          String id = v.getString();
-          Authorizable a = userManager.getAuthorizable(id);
-          if (a instanceof Group) {
-            // FIXME: a is never a Group Key (bug?)
-            if (!groups.containsKey(a)) {
-              groups.put(new GroupKey((Group) a), new Membership(null, a));
-              populateMembers((Group) a, groups, users, session);
-            }
-          } else if (a instanceof User) {
-            // FIXME: a is never a User Key (bug?)
-            if (!users.containsKey(a)) {
-              Node profileNode = null;
-              if (lookupProfile) {
-                String profilePath = PersonalUtils.getProfilePath(a);
-                try {
-                  profileNode = (Node) session.getItem(profilePath);
-                } catch ( PathNotFoundException e ) {
-                  LOGGER.warn("User {} does not have a profile at {} ", a.getID(), profilePath);
-                }
-              }
-              users.put(new UserKey((User) a, profileNode), new Membership(null, a));
-            }
-          } else if (a == null) {
-            // if a is null
-            LOGGER.warn("Authorizable could not be resolved from id: {}", id);
-          } else {
-            // if a is not one of the known types
-            LOGGER.warn("Cannot handle Authorizable {} of type {}", a,  a
-                .getClass());
-          }
+        authorizables = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+          authorizables[i] = values[i].getString();
         }
-
-        // might want to cache the unsorted lists at this point, although they are already
-        // cached by JCR.
       } else {
         LOGGER.info(
             "Site ({}) does not have Authorizable property ({}) and thus has no memberships", site
                 .getPath(), SiteService.AUTHORIZABLE);
       }
+      return getSiteMembers(site.getPath(), authorizables);
     } catch (RepositoryException ex) {
       // dont change this warn into {} form, doing so will prevent the exception being displayed.
       LOGGER.warn("Failed to build membership Tree for  site ["+site+"] ", ex);
     }
-    return new MembershipTree(groups, users);
+    return null;
   }
 
   /**
-   * Build a compound set of comparators for performing sorts.
+   * Gets the flattened membership of a site from the membership index, walking the site's
+   * groups with an administrative session if it is not indexed, as the index is shared by
+   * all users.
    * 
-   * @param sort
-   *          the sort array to base the compound set
-   * @return the first comparator in the set.
+   * @param path
+   *          the path of the site.
+   * @param authorizables
+   *          the current value of the site's authorizables property.
+   * @return the membership of the site.
+   * @throws RepositoryException
    */
-  @SuppressWarnings("unchecked")
-  private <T extends AuthorizableKey> Comparator<T> buildCompoundComparitor(Sort[] sort) {
-    if (sort.length == 0) {
-      return null;
+  private SiteMembershipIndex.SiteMembers getSiteMembers(String path, String[] authorizables)
+      throws RepositoryException {
+    SiteMembershipIndex membershipIndex = getMembershipIndex();
+    SiteMembershipIndex.SiteMembers members = membershipIndex.getIndexed(path, authorizables);
+    if (members == null) {
+      Session adminSession = slingRepository.loginAdministrative(null);
+      try {
+        members = membershipIndex.getSiteMembers(adminSession, path, authorizables);
+      } finally {
+        adminSession.logout();
+      }
     }
-    final Comparator<T>[] comparitors = new Comparator[sort.length];
-    int i = 0;
-    for (final Sort s : sort) {
-
-      final int next = i + 1;
-      comparitors[i++] = new Comparator<T>() {
+    return members;
+  }
 
-        /**
-         * Compare the objects
-         */
-        public int compare(T o1, T o2) {
-          try {
-            String c1 = o1.getAuthorizable().getID();
-            String c2 = o2.getAuthorizable().getID();
-            switch (s.getField()) {
-            case firstName:
-              c1 = o1.getFirstName();
-              c2 = o2.getFirstName();
-              break;
-            case id:
-              c1 = o1.getAuthorizable().getID();
-              c2 = o2.getAuthorizable().getID();
-              break;
-            case lastName:
-              c1 = o1.getLastName();
-              c2 = o2.getLastName();
-              break;
-            }
-            switch (s.getOrder()) {
-            case asc:
-              int i = c1.compareTo(c2);
-              if (i == 0) {
-                i = compareNext(o1, o2);
-              }
-              return i;
-            case desc:
-              i = c2.compareTo(c1);
-              if (i == 0) {
-                i = compareNext(o1, o2);
-              }
-              return i;
+  /**
+   * {@inheritDoc}
+   * 
+   * Keeps the membership index up to date as users join and leave groups, and drops
+   * cached memberships and site summaries that have changed.
+   * 
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String topic = event.getTopic();
+    if (SlingConstants.TOPIC_RESOURCE_CHANGED.equals(topic)
+        || SlingConstants.TOPIC_RESOURCE_REMOVED.equals(topic)) {
+      String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+      if (path != null) {
+        if (SlingConstants.TOPIC_RESOURCE_REMOVED.equals(topic)) {
+          getSiteSummaryCache().removed(path);
+        } else {
+          getSiteSummaryCache().changed(path);
+        }
+      }
+      return;
+    }
+    Object operation = event.getProperty(AuthorizableEvent.OPERATION);
+    String principalName = (String) event.getProperty(AuthorizableEvent.PRINCIPAL_NAME);
+    if (!(operation instanceof Operation) || principalName == null) {
+      return;
+    }
+    Object user = event.getProperty(AuthorizableEvent.USER);
+    invalidateMembership(principalName, user);
+    SiteMembershipIndex membershipIndex = getMembershipIndex();
+    try {
+      switch ((Operation) operation) {
+      case join:
+        if (user instanceof User) {
+          if (membershipIndex.containsGroup(principalName)) {
+            SiteMembershipIndex.Member member = loadMember(((User) user).getID());
+            if (member != null) {
+              membershipIndex.userJoined(principalName, member);
             }
-          } catch (RepositoryException e) {
           }
-          return 0;
+        } else {
+          // a group joined a group, nested membership is not tracked incrementally.
+          membershipIndex.invalidateAll();
         }
-
-        /**
-         * Chain to the next comparator in the ordering list.
-         * 
-         * @param o1
-         *          the first object to compare.
-         * @param o2
-         *          the second object to compare.
-         * @return the result of the next comparator in the chain or 0 if this is the last
-         *         one.
-         */
-        private int compareNext(T o1, T o2) {
-          if (next < comparitors.length) {
-            return comparitors[next].compare(o1, o2);
+        break;
+      case part:
+        if (user instanceof User) {
+          membershipIndex.userParted(principalName, ((User) user).getID());
+        } else {
+          membershipIndex.invalidateAll();
+        }
+        break;
+      case update:
+        if (membershipIndex.containsUser(principalName)) {
+          SiteMembershipIndex.Member member = loadMember(principalName);
+          if (member != null) {
+            membershipIndex.userUpdated(member);
           }
-          return 0;
         }
-      };
+        break;
+      case delete:
+        membershipIndex.authorizableDeleted(principalName);
+        break;
+      default:
+        break;
+      }
+    } catch (RepositoryException e) {
+      LOGGER.warn("Unable to update the site membership index, dropping it: {}", e
+          .getMessage());
+      membershipIndex.invalidateAll();
     }
-    return comparitors[0];
   }
 
   /**
-   * Recursively build a list of groups for the group avoiding duplicates or infinite
-   * recursion.
-   * 
-   * @param group
-   *          the group for which we want to know all members.
-   * @param groups
-   *          the groups associated with the site.
-   * @param users
-   *          the users associated with the sites, extracted from groups
-   * @param session
-   *          the session to grab the profile node for users.
-   * @throws RepositoryException
+   * Drops the cached sites of an authorizable that has changed, and of the users in it.
+   * When an authorizable joins or leaves a group both are dropped.
    */
-  private void populateMembers(Group group, Map<GroupKey, Membership> groups,
-      Map<UserKey, Membership> users, Session session) throws RepositoryException {
-    for (Iterator<Authorizable> igm = group.getDeclaredMembers(); igm.hasNext();) {
-      Authorizable a = igm.next();
-      // FIXME: a is not a GroupKey, so this can never be true (Bug?)
-      if (!groups.containsKey(a)) {
-        if (a instanceof Group) {
-          groups.put(new GroupKey((Group) a), new Membership(group, a));
-          populateMembers((Group) a, groups, users, session);
-        } else {
-          String profilePath = PersonalUtils.getProfilePath(a);
-          Node profileNode = null;
-          try {
-            profileNode = (Node) session.getItem(profilePath);
-          } catch ( PathNotFoundException e ) {
-            LOGGER.warn("User {} does not have a profile at {} ", a.getID(), profilePath);
-          }
-          LOGGER.debug("Populate Members adding profile {} {} ",profileNode,profilePath);
-          users.put(new UserKey((User) a, profileNode), new Membership(group, a));
-        }
+  private void invalidateMembership(String principalName, Object user) {
+    MembershipCache membershipCache = getMembershipCache();
+    membershipCache.invalidate(principalName);
+    if (user instanceof Authorizable) {
+      try {
+        membershipCache.invalidate(((Authorizable) user).getID());
+      } catch (RepositoryException e) {
+        LOGGER.warn("Unable to read the changed authorizable, dropping all memberships: {}",
+            e.getMessage());
+        membershipCache.invalidateAll();
       }
-      if (users.size() > MAXLISTSIZE || groups.size() > MAXLISTSIZE) {
-        LOGGER
-            .warn("Large site listing, please consider using dynamic membership rather than explicit members groups parent Group {} "
-                + group.getID());
-        return;
+    }
+  }
+
+  /**
+   * @return the sort keys of a user, null if the user does not exist.
+   */
+  private SiteMembershipIndex.Member loadMember(String userId) throws RepositoryException {
+    Session session = slingRepository.loginAdministrative(null);
+    try {
+      Authorizable a = AccessControlUtil.getUserManager(session).getAuthorizable(userId);
+      if (a instanceof User) {
+        return SiteMembershipIndex.newMember(session, a);
       }
+      return null;
+    } finally {
+      session.logout();
     }
   }
 
@@ -752,22 +799,25 @@ public class SiteServiceImpl implements SiteService {
     try {
       Map<String, List<Group>> sites = Maps.newHashMap();
       UserManager userManager = AccessControlUtil.getUserManager(session);
-      Authorizable a = userManager.getAuthorizable(user);
-      if (a instanceof User) {
-        User u = (User) a;
-        for (Iterator<Group> igroup = u.memberOf(); igroup.hasNext();) {
-          Group group = igroup.next();
-          if (group.hasProperty(SiteService.SITES)) {
-            Value[] siteReferences = group.getProperty(SiteService.SITES);
-            for (Value v : siteReferences) {
-              List<Group> g = sites.get(v.getString());
-              if (g == null) {
-                g = Lists.newArrayList();
-                sites.put(v.getString(), g);
-              }
-              g.add(group);
+      Map<String, Group> groups = Maps.newHashMap();
+      for (Entry<String, List<String>> site : getMembershipEntry(session, user).sites
+          .entrySet()) {
+        List<Group> g = Lists.newArrayList();
+        for (String groupId : site.getValue()) {
+          Group group = groups.get(groupId);
+          if (group == null) {
+            Authorizable a = userManager.getAuthorizable(groupId);
+            if (a instanceof Group) {
+              group = (Group) a;
+              groups.put(groupId, group);
             }
           }
+          if (group != null) {
+            g.add(group);
+          }
+        }
+        if (!g.isEmpty()) {
+          sites.put(site.getKey(), g);
         }
       }
       return sites;
@@ -776,6 +826,101 @@ public class SiteServiceImpl implements SiteService {
     }
   }
 
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.site.SiteService#getMembershipSiteIds(javax.jcr.Session,
+   *      java.lang.String)
+   */
+  public Set<String> getMembershipSiteIds(Session session, String user)
+      throws SiteException {
+    try {
+      return Collections.unmodifiableSet(getMembershipEntry(session, user).sites.keySet());
+    } catch (RepositoryException e) {
+      throw new SiteException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+    }
+  }
+
+  /**
+   * Gets the sites of a user from the membership cache, walking the groups of the user
+   * if they are not held.
+   * 
+   * @param session
+   *          the session used to read the user's groups.
+   * @param user
+   *          the id of the user.
+   * @return the ids of the user's groups by site.
+   * @throws RepositoryException
+   */
+  private MembershipCache.Membership getMembershipEntry(Session session, String user)
+      throws RepositoryException {
+    String sessionUser = session.getUserID();
+    MembershipCache membershipCache = getMembershipCache();
+    MembershipCache.Membership entry = membershipCache.get(user, sessionUser);
+    if (entry != null) {
+      return entry;
+    }
+    Map<String, List<String>> sites = Maps.newHashMap();
+    Set<String> groups = new HashSet<String>();
+    Authorizable a = AccessControlUtil.getUserManager(session).getAuthorizable(user);
+    if (a instanceof User) {
+      User u = (User) a;
+      for (Iterator<Group> igroup = u.memberOf(); igroup.hasNext();) {
+        Group group = igroup.next();
+        groups.add(group.getID());
+        if (group.hasProperty(SiteService.SITES)) {
+          Value[] siteReferences = group.getProperty(SiteService.SITES);
+          for (Value v : siteReferences) {
+            List<String> g = sites.get(v.getString());
+            if (g == null) {
+              g = Lists.newArrayList();
+              sites.put(v.getString(), g);
+            }
+            g.add(group.getID());
+          }
+        }
+      }
+    }
+    entry = new MembershipCache.Membership(user, sites, groups);
+    membershipCache.put(user, sessionUser, entry);
+    return entry;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.site.SiteService#getSiteSummary(javax.jcr.Session,
+   *      java.lang.String)
+   */
+  public SiteSummary getSiteSummary(Session session, String siteId) throws SiteException {
+    try {
+      SiteSummaryCache siteSummaryCache = getSiteSummaryCache();
+      SiteSummaryCache.Site entry = siteSummaryCache.get(siteId);
+      if (entry == null) {
+        Node site;
+        try {
+          site = session.getNodeByIdentifier(siteId);
+        } catch (ItemNotFoundException e) {
+          return null;
+        }
+        if (!isSite(site)) {
+          return null;
+        }
+        entry = SiteSummaryCache.newSite(site, SiteService.AUTHORIZABLE);
+        siteSummaryCache.put(entry);
+      } else if (!session.itemExists(entry.path)) {
+        // held from another session, this one can not read the site.
+        return null;
+      }
+      SiteMembershipIndex.SiteMembers members = getSiteMembers(entry.path,
+          entry.authorizables);
+      return new SiteSummary(entry.id, entry.path, entry.name, countMembers(session,
+          members), entry.properties);
+    } catch (RepositoryException e) {
+      throw new SiteException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+    }
+  }
+
   /**
    * 
    * {@inheritDoc}
@@ -860,4 +1005,41 @@ public class SiteServiceImpl implements SiteService {
     this.slingRepository = null;
   }
 
+  protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
+    this.cacheManagerService = cacheManagerService;
+  }
+
+  protected void unbindCacheManagerService(CacheManagerService cacheManagerService) {
+    this.cacheManagerService = null;
+  }
+
+  /**
+   * @return the flattened membership of sites, maintained from membership changes.
+   */
+  private SiteMembershipIndex getMembershipIndex() {
+    Cache<SiteMembershipIndex.SiteMembers> sites = cacheManagerService.getCache(
+        SiteMembershipIndex.SITE_MEMBERS_CACHE, CacheScope.CLUSTERINVALIDATED);
+    return new SiteMembershipIndex(sites);
+  }
+
+  /**
+   * @return the sites of users, dropped on membership changes.
+   */
+  private MembershipCache getMembershipCache() {
+    Cache<Map<String, MembershipCache.Membership>> users = cacheManagerService.getCache(
+        MembershipCache.MEMBERSHIP_CACHE, CacheScope.CLUSTERINVALIDATED);
+    return new MembershipCache(users);
+  }
+
+  /**
+   * @return the properties of sites by identifier, dropped on resource changes.
+   */
+  private SiteSummaryCache getSiteSummaryCache() {
+    Cache<SiteSummaryCache.Site> sites = cacheManagerService.getCache(
+        SiteSummaryCache.SITE_CACHE, CacheScope.CLUSTERINVALIDATED);
+    Cache<String> paths = cacheManagerService.getCache(SiteSummaryCache.PATH_CACHE,
+        CacheScope.CLUSTERINVALIDATED);
+    return new SiteSummaryCache(sites, paths);
+  }
+
 }
@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.site;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.util.DateUtils;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+/**
+ * Holds the properties of site nodes by identifier, so that content which refers to the
+ * same sites many times, eg a page of files, reads each site once. A site is dropped
+ * when its node changes or is removed. Member counts are not held here, they come from
+ * the {@link SiteMembershipIndex}.
+ * 
+ * The sites and their paths are held in cluster invalidated caches. A site is only
+ * returned while its path still maps to it, so dropping a path on one node drops the
+ * site on every node.
+ */
+public class SiteSummaryCache {
+
+  /**
+   * The properties of sites by identifier.
+   */
+  static final String SITE_CACHE = "site.summaries";
+
+  /**
+   * The identifiers of the held sites by path.
+   */
+  static final String PATH_CACHE = "site.summaries.paths";
+
+  /**
+   * The properties of a site node.
+   */
+  static class Site {
+    final String id;
+    final String path;
+    final String name;
+    final String[] authorizables;
+    final Map<String, Object> properties;
+
+    Site(String id, String path, String name, String[] authorizables,
+        Map<String, Object> properties) {
+      this.id = id;
+      this.path = path;
+      this.name = name;
+      this.authorizables = authorizables;
+      this.properties = properties;
+    }
+  }
+
+  private final Cache<Site> sites;
+
+  private final Cache<String> paths;
+
+  /**
+   * @param sites
+   *          the cache the sites are held in.
+   * @param paths
+   *          the cache the identifiers of the sites are held in by path.
+   */
+  SiteSummaryCache(Cache<Site> sites, Cache<String> paths) {
+    this.sites = sites;
+    this.paths = paths;
+  }
+
+  /**
+   * @return the held site, or null.
+   */
+  Site get(String id) {
+    Site site = sites.get(id);
+    if (site != null && id.equals(paths.get(site.path))) {
+      return site;
+    }
+    return null;
+  }
+
+  /**
+   * Hold a site.
+   */
+  void put(Site entry) {
+    sites.put(entry.id, entry);
+    paths.put(entry.path, entry.id);
+  }
+
+  /**
+   * A node has changed, drop it if it is a held site.
+   */
+  void changed(String path) {
+    String id = paths.get(path);
+    paths.remove(path);
+    if (id != null) {
+      Site site = sites.get(id);
+      if (site != null && site.path.equals(path)) {
+        sites.remove(id);
+      }
+    }
+  }
+
+  /**
+   * A node has been removed, drop any held site at or below it.
+   */
+  void removed(String path) {
+    changed(path);
+    String prefix = path.endsWith("/") ? path : path + "/";
+    for (Site site : sites.list()) {
+      if (site.path.startsWith(prefix)) {
+        paths.remove(site.path);
+        sites.remove(site.id);
+      }
+    }
+  }
+
+  /**
+   * Drop every site.
+   */
+  void invalidateAll() {
+    paths.clear();
+    sites.clear();
+  }
+
+  /**
+   * Read the properties of a site node.
+   * 
+   * @param site
+   *          the site node.
+   * @param authorizablesProperty
+   *          the name of the property holding the site's authorizables.
+   * @return the entry for the site.
+   * @throws RepositoryException
+   */
+  static Site newSite(Node site, String authorizablesProperty) throws RepositoryException {
+    String[] authorizables = new String[0];
+    Map<String, Object> properties = new LinkedHashMap<String, Object>();
+    for (PropertyIterator pi = site.getProperties(); pi.hasNext();) {
+      Property p = pi.nextProperty();
+      if (p.getDefinition().isMultiple()) {
+        Value[] values = p.getValues();
+        Object[] o = new Object[values.length];
+        for (int i = 0; i < values.length; i++) {
+          o[i] = toObject(values[i]);
+        }
+        properties.put(p.getName(), o);
+        if (authorizablesProperty.equals(p.getName())) {
+          authorizables = new String[values.length];
+          for (int i = 0; i < values.length; i++) {
+            authorizables[i] = values[i].getString();
+          }
+        }
+      } else {
+        properties.put(p.getName(), toObject(p.getValue()));
+        if (authorizablesProperty.equals(p.getName())) {
+          authorizables = new String[] { p.getValue().getString() };
+        }
+      }
+    }
+    return new Site(site.getIdentifier(), site.getPath(), site.getName(), authorizables,
+        Collections.unmodifiableMap(properties));
+  }
+
+  /**
+   * @return the value as it is written to JSON.
+   */
+  private static Object toObject(Value value) throws RepositoryException {
+    switch (value.getType()) {
+    case PropertyType.STRING:
+    case PropertyType.NAME:
+    case PropertyType.REFERENCE:
+    case PropertyType.PATH:
+      return value.getString();
+    case PropertyType.BOOLEAN:
+      return value.getBoolean();
+    case PropertyType.LONG:
+      return value.getLong();
+    case PropertyType.DOUBLE:
+      return value.getDouble();
+    case PropertyType.DATE:
+      return DateUtils.iso8601(value.getDate());
+    default:
+      return value.toString();
+    }
+  }
+}
@@ -20,6 +20,7 @@ package org.sakaiproject.nakamura.site;
 import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.isA;
+import static org.junit.Assert.assertEquals;
 
 import org.apache.jackrabbit.api.security.principal.ItemBasedPrincipal;
 import org.apache.jackrabbit.api.security.user.Authorizable;
@@ -30,10 +31,17 @@ import org.apache.sling.jcr.api.SlingRepository;
 import org.easymock.EasyMock;
 import org.junit.Before;
 import org.osgi.service.event.EventAdmin;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.memory.CacheStatistics;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
 import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Value;
@@ -45,6 +53,7 @@ public class AbstractSiteServiceTest extends AbstractEasyMockTest {
 
   protected SiteServiceImpl siteService;
   protected SlingRepository slingRepository;
+  protected CacheManagerService cacheManagerService;
 
   @Override
   @Before
@@ -53,6 +62,7 @@ public class AbstractSiteServiceTest extends AbstractEasyMockTest {
     userManager = createMock(UserManager.class);
     eventAdmin = createMock(EventAdmin.class);
     slingRepository = createMock(SlingRepository.class);
+    cacheManagerService = newCacheManagerService();
   }
 
   protected Group createDummyGroup(String groupName) throws RepositoryException {
@@ -116,12 +126,41 @@ public class AbstractSiteServiceTest extends AbstractEasyMockTest {
     siteService = new SiteServiceImpl();
     siteService.bindEventAdmin(eventAdmin);
     siteService.bindSlingRepository(slingRepository);
+    siteService.bindCacheManagerService(cacheManagerService);
   }
 
   protected void postRequest() {
     siteService.unbindEventAdmin(eventAdmin);
     siteService.unbindSlingRepository(slingRepository);
+    siteService.unbindCacheManagerService(cacheManagerService);
     verify();
   }
 
+  /**
+   * @return a cache manager holding each cluster invalidated cache in a map.
+   */
+  static CacheManagerService newCacheManagerService() {
+    return new CacheManagerService() {
+      private final Map<String, Cache<?>> caches = new HashMap<String, Cache<?>>();
+
+      @SuppressWarnings("unchecked")
+      public synchronized <T> Cache<T> getCache(String name, CacheScope scope) {
+        assertEquals(CacheScope.CLUSTERINVALIDATED, scope);
+        Cache<T> cache = (Cache<T>) caches.get(name);
+        if (cache == null) {
+          cache = new MapCacheImpl<T>();
+          caches.put(name, cache);
+        }
+        return cache;
+      }
+
+      public void unbind(CacheScope scope) {
+      }
+
+      public CacheStatistics getStatistics(String name, CacheScope scope) {
+        return null;
+      }
+    };
+  }
+
 }
@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.site;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks memberships are held per session user and dropped when the user or one of the
+ * user's groups changes.
+ */
+public class MembershipCacheTest {
+
+  private MapCacheImpl<Map<String, MembershipCache.Membership>> users;
+  private MembershipCache cache;
+
+  @Before
+  public void setUp() {
+    users = new MapCacheImpl<Map<String, MembershipCache.Membership>>();
+    cache = new MembershipCache(users);
+    put("alice", "alice", "g-students");
+    put("alice", "admin", "g-students");
+    put("bob", "bob", "g-staff");
+  }
+
+  @Test
+  public void testGet() {
+    MembershipCache.Membership entry = cache.get("alice", "alice");
+    assertNotNull(entry);
+    assertEquals(Arrays.asList("g-students"), entry.sites.get("site-g-students"));
+    assertNull("Held per session user", cache.get("bob", "alice"));
+  }
+
+  @Test
+  public void testInvalidateUser() {
+    cache.invalidate("alice");
+    assertNull(cache.get("alice", "alice"));
+    assertNull(cache.get("alice", "admin"));
+    assertNotNull(cache.get("bob", "bob"));
+  }
+
+  @Test
+  public void testInvalidateGroup() {
+    cache.invalidate("g-staff");
+    assertNull(cache.get("bob", "bob"));
+    assertNotNull(cache.get("alice", "alice"));
+  }
+
+  @Test
+  public void testPutBack() {
+    Map<String, MembershipCache.Membership> held = users.get("alice");
+    put("alice", "carol", "g-students");
+    assertEquals("Entries are copied, not changed in place", 2, held.size());
+    assertEquals(3, users.get("alice").size());
+    assertNotNull(cache.get("alice", "admin"));
+  }
+
+  private void put(String user, String sessionUser, String group) {
+    Map<String, List<String>> sites = new HashMap<String, List<String>>();
+    sites.put("site-" + group, Arrays.asList(group));
+    cache.put(user, sessionUser, new MembershipCache.Membership(user, sites,
+        new HashSet<String>(Arrays.asList(group))));
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.site;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.site.Sort;
+import org.sakaiproject.nakamura.api.site.SortField;
+import org.sakaiproject.nakamura.api.site.SortOrder;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+import org.sakaiproject.nakamura.site.SiteMembershipIndex.Member;
+import org.sakaiproject.nakamura.site.SiteMembershipIndex.SiteMembers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks the membership index keeps counts and sorted pages right as members come and
+ * go, including on a site with 50000 members.
+ */
+public class SiteMembershipIndexTest {
+
+  private static final int SITE_SIZE = 50000;
+
+  private static final Sort[] BY_LAST_NAME = new Sort[] {
+      new Sort(SortField.lastName, SortOrder.asc),
+      new Sort(SortField.firstName, SortOrder.asc) };
+
+  private static final Sort[] BY_FIRST_NAME_DESC = new Sort[] { new Sort(
+      SortField.firstName, SortOrder.desc) };
+
+  private SiteMembers members;
+
+  @Before
+  public void setUp() {
+    members = new SiteMembers("/sites/a", new String[] { "g-students", "g-staff" });
+    members.addGroup(new Member("g-students", null, null));
+    members.addGroup(new Member("g-staff", null, null));
+  }
+
+  @Test
+  public void testDuplicateMembership() {
+    members.addUser("g-students", new Member("alice", "Alice", "Smith"));
+    members.addUser("g-staff", new Member("alice", "Alice", "Smith"));
+    assertEquals(1, members.getUserCount());
+
+    members.removeUser("g-students", "alice");
+    assertTrue("Still a member through g-staff", members.containsUser("alice"));
+    members.removeUser("g-staff", "alice");
+    assertFalse(members.containsUser("alice"));
+    assertEquals(0, members.getUserCount());
+  }
+
+  @Test
+  public void testSortedPages() {
+    members.addUser("g-students", new Member("u1", "Carol", "Young"));
+    members.addUser("g-students", new Member("u2", "Alice", "Brown"));
+    members.addUser("g-staff", new Member("u3", "Bob", "Brown"));
+
+    assertEquals(ids("u2", "u3", "u1"), members.getUsers(0, 10, BY_LAST_NAME));
+    assertEquals(ids("u1", "u3", "u2"), members.getUsers(0, 10, BY_FIRST_NAME_DESC));
+    assertEquals(ids("u3"), members.getUsers(1, 1, BY_LAST_NAME));
+
+    // changes are applied to the sorted lists already built.
+    members.addUser("g-staff", new Member("u4", "Dan", "Adams"));
+    members.updateUser(new Member("u1", "Carol", "Abbot"));
+    members.removeUser("g-students", "u2");
+    assertEquals(ids("u1", "u4", "u3"), members.getUsers(0, 10, BY_LAST_NAME));
+    assertEquals(ids("u4", "u1", "u3"), members.getUsers(0, 10, BY_FIRST_NAME_DESC));
+    assertEquals(3, members.getUserCount());
+  }
+
+  @Test
+  public void testLargeSite() {
+    for (int i = 0; i < SITE_SIZE; i++) {
+      members.addUser(i % 2 == 0 ? "g-students" : "g-staff", new Member("user" + i, "First"
+          + (i % 997), "Last" + (i % 1009)));
+    }
+
+    List<String> first = members.getUsers(0, 25, BY_LAST_NAME);
+
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(SITE_SIZE, members.getUserCount());
+      assertEquals(25, members.getUsers((i * 25) % SITE_SIZE, 25, BY_LAST_NAME).size());
+    }
+
+    for (int i = 0; i < 1000; i++) {
+      members.addUser("g-students", new Member("joined" + i, "First", "Last0"));
+      members.removeUser("g-students", "joined" + i);
+    }
+
+    assertEquals(SITE_SIZE, members.getUserCount());
+    assertEquals(first, members.getUsers(0, 25, BY_LAST_NAME));
+    assertEquals("Last0", "Last" + (Integer.parseInt(first.get(0).substring(4)) % 1009));
+  }
+
+  @Test
+  public void testChangesPutBack() {
+    final List<String> puts = new ArrayList<String>();
+    MapCacheImpl<SiteMembers> sites = new MapCacheImpl<SiteMembers>() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      public SiteMembers put(String key, SiteMembers payload) {
+        puts.add(key);
+        return super.put(key, payload);
+      }
+    };
+    sites.put("/sites/a", members);
+    puts.clear();
+    SiteMembershipIndex index = new SiteMembershipIndex(sites);
+
+    index.userJoined("g-students", new Member("alice", "Alice", "Smith"));
+    assertTrue(members.containsUser("alice"));
+    assertEquals("Put back so other nodes drop their copy", ids("/sites/a"), puts);
+
+    index.userJoined("g-other", new Member("bob", "Bob", "Jones"));
+    index.userUpdated(new Member("bob", "Bob", "Smith"));
+    assertEquals("Sites without the change are not put", 1, puts.size());
+
+    index.authorizableDeleted("g-staff");
+    assertNull(index.getIndexed("/sites/a", new String[] { "g-students", "g-staff" }));
+  }
+
+  private List<String> ids(String... ids) {
+    return Arrays.asList(ids);
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.site;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+import org.sakaiproject.nakamura.site.SiteSummaryCache.Site;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Checks sites are dropped from the summary cache when their nodes change.
+ */
+public class SiteSummaryCacheTest {
+
+  private MapCacheImpl<String> paths;
+  private SiteSummaryCache cache;
+
+  @Before
+  public void setUp() {
+    paths = new MapCacheImpl<String>();
+    cache = new SiteSummaryCache(new MapCacheImpl<Site>(), paths);
+    cache.put(site("id-a", "/sites/a"));
+    cache.put(site("id-b", "/sites/group/b"));
+  }
+
+  @Test
+  public void testChanged() {
+    cache.changed("/sites/a/_pages");
+    assertNotNull("A change below the site does not drop it", cache.get("id-a"));
+    cache.changed("/sites/a");
+    assertNull(cache.get("id-a"));
+    assertNotNull(cache.get("id-b"));
+  }
+
+  @Test
+  public void testRemoved() {
+    cache.removed("/sites/group");
+    assertNull(cache.get("id-b"));
+    assertNotNull(cache.get("id-a"));
+    cache.removed("/sites/a");
+    assertNull(cache.get("id-a"));
+  }
+
+  @Test
+  public void testPathDropped() {
+    // another node drops the path, which invalidates it here.
+    paths.remove("/sites/a");
+    assertNull(cache.get("id-a"));
+    assertNotNull(cache.get("id-b"));
+  }
+
+  @Test
+  public void testMoved() {
+    cache.put(site("id-a", "/sites/moved"));
+    cache.changed("/sites/a");
+    assertNotNull("The old path is no longer tracked", cache.get("id-a"));
+    cache.changed("/sites/moved");
+    assertNull(cache.get("id-a"));
+  }
+
+  private Site site(String id, String path) {
+    Map<String, Object> properties = Collections.emptyMap();
+    return new Site(id, path, path.substring(path.lastIndexOf('/') + 1),
+        new String[0], properties);
+  }
+}
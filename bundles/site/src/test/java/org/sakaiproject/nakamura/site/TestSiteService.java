@@ -3,6 +3,7 @@ package org.sakaiproject.nakamura.site;
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.isA;
 
 import org.apache.jackrabbit.api.JackrabbitSession;
 import org.apache.jackrabbit.api.security.principal.ItemBasedPrincipal;
@@ -19,6 +20,7 @@ import org.sakaiproject.nakamura.api.site.SortField;
 import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
 
 import java.util.AbstractCollection;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
@@ -36,10 +38,15 @@ public class TestSiteService extends AbstractEasyMockTest {
     SlingRepository slingRepository = createMock(SlingRepository.class);
     SiteServiceImpl siteService = new SiteServiceImpl();
     siteService.bindSlingRepository(slingRepository);
+    siteService.bindCacheManagerService(AbstractSiteServiceTest.newCacheManagerService());
     Node siteNode = createMock(Node.class);
     JackrabbitSession session = createMock(JackrabbitSession.class);
     expect(siteNode.getSession()).andReturn(session).anyTimes();
-    expect(session.getUserManager()).andReturn(userManager);
+    expect(session.getUserManager()).andReturn(userManager).anyTimes();
+    // the membership is walked with an administrative session.
+    expect(slingRepository.loginAdministrative(null)).andReturn(session);
+    session.logout();
+    expect(siteNode.getPath()).andReturn("/sites/site1").anyTimes();
     Node profileNode = createMock(Node.class);
     expect(session.getItem("/_user/a/ad/admin/public/authprofile")).andReturn(profileNode).anyTimes();
     expect(profileNode.hasProperty(SortField.firstName.toString())).andReturn(true).anyTimes();
@@ -59,6 +66,9 @@ public class TestSiteService extends AbstractEasyMockTest {
     expect(group1.getID()).andReturn("group1").anyTimes();
     expect(group2.getDeclaredMembers()).andReturn(createUserIterator("admin"));
     expect(group2.getID()).andReturn("group2").anyTimes();
+    User admin = createMock(User.class);
+    expect(admin.getID()).andReturn("admin").anyTimes();
+    expect(userManager.getAuthorizable("admin")).andReturn(admin);
 
     replay();
     AbstractCollection<User> users = siteService.getMembers(siteNode, 0, 3, null); 
@@ -74,20 +84,46 @@ public class TestSiteService extends AbstractEasyMockTest {
     verify();
   }
 
+  @Test
+  public void testMemberCountOnlyResolvable() throws RepositoryException {
+    UserManager adminUserManager = createMock(UserManager.class);
+    UserManager userManager = createMock(UserManager.class);
+    SlingRepository slingRepository = createMock(SlingRepository.class);
+    SiteServiceImpl siteService = new SiteServiceImpl();
+    siteService.bindSlingRepository(slingRepository);
+    siteService.bindCacheManagerService(AbstractSiteServiceTest.newCacheManagerService());
+    Node siteNode = createMock(Node.class);
+    JackrabbitSession session = createMock(JackrabbitSession.class);
+    JackrabbitSession adminSession = createMock(JackrabbitSession.class);
+    expect(siteNode.getSession()).andReturn(session).anyTimes();
+    expect(session.getUserManager()).andReturn(userManager).anyTimes();
+    expect(adminSession.getUserManager()).andReturn(adminUserManager).anyTimes();
+    expect(slingRepository.loginAdministrative(null)).andReturn(adminSession);
+    adminSession.logout();
+    expect(siteNode.getPath()).andReturn("/sites/site1").anyTimes();
+    Node profileNode = createNiceMock(Node.class);
+    expect(adminSession.getItem(isA(String.class))).andReturn(profileNode).anyTimes();
+    addPropertyToNode(siteNode, SiteService.AUTHORIZABLE, new Value[] { new MockValue(
+        "group1") });
+
+    Group group1 = createMock(Group.class);
+    expect(adminUserManager.getAuthorizable("group1")).andReturn(group1);
+    expect(group1.getID()).andReturn("group1").anyTimes();
+    expect(group1.getDeclaredMembers()).andReturn(
+        Arrays.asList(createUser("alice"), createUser("bob")).iterator());
+    // the caller can see alice only.
+    User alice = createMock(User.class);
+    expect(userManager.getAuthorizable("alice")).andReturn(alice).anyTimes();
+    expect(userManager.getAuthorizable("bob")).andReturn(null).anyTimes();
+
+    replay();
+    assertEquals(1, siteService.getMemberCount(siteNode));
+    assertEquals(1, siteService.getMembers(siteNode, 0, 10, null).size());
+    verify();
+  }
+
   private Iterator<Authorizable> createUserIterator(String userName) throws RepositoryException {
-    final User mockUser = createMock(User.class);
-    expect(mockUser.getID()).andReturn(userName).anyTimes();
-    expect(mockUser.isGroup()).andReturn(false).anyTimes();
-    ItemBasedPrincipal p = EasyMock.createMock(ItemBasedPrincipal.class);
-    String hashedPath = "/"+userName.substring(0,1)+"/"+userName.substring(0,2)+"/"+userName;
-    expect(p.getPath()).andReturn("rep:" + hashedPath).anyTimes();
-    expect(mockUser.getPrincipal()).andReturn(p).anyTimes();
-    expect(mockUser.hasProperty("path")).andReturn(true).anyTimes();
-    Value v = EasyMock.createNiceMock(Value.class);
-    expect(v.getString()).andReturn(hashedPath).anyTimes();
-    expect(mockUser.getProperty("path")).andReturn(new Value[] { v }).anyTimes();
-    EasyMock.replay(p);
-    EasyMock.replay(v);
+    final Authorizable mockUser = createUser(userName);
     return new Iterator<Authorizable>() {
 
       boolean had = false;
@@ -106,4 +142,21 @@ public class TestSiteService extends AbstractEasyMockTest {
 
     };
   }
+
+  private Authorizable createUser(String userName) throws RepositoryException {
+    User mockUser = createMock(User.class);
+    expect(mockUser.getID()).andReturn(userName).anyTimes();
+    expect(mockUser.isGroup()).andReturn(false).anyTimes();
+    ItemBasedPrincipal p = EasyMock.createMock(ItemBasedPrincipal.class);
+    String hashedPath = "/"+userName.substring(0,1)+"/"+userName.substring(0,2)+"/"+userName;
+    expect(p.getPath()).andReturn("rep:" + hashedPath).anyTimes();
+    expect(mockUser.getPrincipal()).andReturn(p).anyTimes();
+    expect(mockUser.hasProperty("path")).andReturn(true).anyTimes();
+    Value v = EasyMock.createNiceMock(Value.class);
+    expect(v.getString()).andReturn(hashedPath).anyTimes();
+    expect(mockUser.getProperty("path")).andReturn(new Value[] { v }).anyTimes();
+    EasyMock.replay(p);
+    EasyMock.replay(v);
+    return mockUser;
+  }
 }
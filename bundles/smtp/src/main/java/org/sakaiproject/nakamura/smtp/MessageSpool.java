@@ -0,0 +1,311 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.smtp;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.util.SharedFileInputStream;
+
+/**
+ * Keeps accepted messages on disk until they have been written to the repository, so
+ * that mail that has been acknowledged to the sender survives a restart. Each message is
+ * a data file holding the message as received and an envelope file holding the sender
+ * and the recipients. The envelope is written last, a message without one was never
+ * acknowledged and is ignored.
+ */
+public class MessageSpool {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MessageSpool.class);
+  private static final String DATA = ".eml";
+  private static final String ENVELOPE = ".env";
+  private static final String FAILED = ".failed";
+  private static final String TEMP = ".tmp";
+
+  /**
+   * The number of failed messages kept, the oldest are deleted when there are more.
+   */
+  static final int MAX_FAILED = 100;
+
+  /**
+   * The time (ms) a failed message is kept.
+   */
+  static final long FAILED_RETENTION = 7L * 24L * 60L * 60L * 1000L;
+
+  /**
+   * A message held in the spool.
+   */
+  public static class SpooledMessage {
+    private final String from;
+    private final List<String> recipients;
+    private final File data;
+    private final File envelope;
+
+    SpooledMessage(String from, List<String> recipients, File data, File envelope) {
+      this.from = from;
+      this.recipients = recipients;
+      this.data = data;
+      this.envelope = envelope;
+    }
+
+    public String getFrom() {
+      return from;
+    }
+
+    public List<String> getRecipients() {
+      return recipients;
+    }
+
+    /**
+     * @return the message as received. The stream can be shared, so MIME parts are read
+     *         from the file rather than copied into memory.
+     * @throws IOException
+     */
+    public SharedFileInputStream openData() throws IOException {
+      return new SharedFileInputStream(data);
+    }
+
+    @Override
+    public String toString() {
+      return data.getName();
+    }
+  }
+
+  private final File directory;
+  private final AtomicLong sequence = new AtomicLong();
+
+  private final int maxFailed;
+  private final long failedRetention;
+
+  /**
+   * @param directory
+   *          the directory to keep messages in, created if it does not exist.
+   * @throws IOException
+   */
+  public MessageSpool(File directory) throws IOException {
+    this(directory, MAX_FAILED, FAILED_RETENTION);
+  }
+
+  /**
+   * @param directory
+   *          the directory to keep messages in, created if it does not exist.
+   * @param maxFailed
+   *          the number of failed messages kept.
+   * @param failedRetention
+   *          the time (ms) a failed message is kept.
+   * @throws IOException
+   */
+  MessageSpool(File directory, int maxFailed, long failedRetention) throws IOException {
+    this.directory = directory;
+    this.maxFailed = maxFailed;
+    this.failedRetention = failedRetention;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create the mail spool " + directory);
+    }
+  }
+
+  /**
+   * Writes a message to the spool.
+   * 
+   * @param from
+   *          the envelope sender.
+   * @param recipients
+   *          the envelope recipients.
+   * @param data
+   *          the message, read to the end.
+   * @return the spooled message.
+   * @throws IOException
+   */
+  public SpooledMessage spool(String from, List<String> recipients, InputStream data)
+      throws IOException {
+    String name = System.currentTimeMillis() + "-" + sequence.incrementAndGet();
+    File dataFile = new File(directory, name + DATA);
+    File envelopeFile = new File(directory, name + ENVELOPE);
+    File tempFile = new File(directory, name + TEMP);
+    boolean spooled = false;
+    try {
+      OutputStream out = new FileOutputStream(dataFile);
+      try {
+        IOUtils.copy(data, out);
+      } finally {
+        out.close();
+      }
+      Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8");
+      try {
+        writer.write(from == null ? "" : from);
+        writer.write('\n');
+        for (String recipient : recipients) {
+          writer.write(recipient);
+          writer.write('\n');
+        }
+      } finally {
+        writer.close();
+      }
+      if (!tempFile.renameTo(envelopeFile)) {
+        throw new IOException("Unable to spool message " + name);
+      }
+      spooled = true;
+    } finally {
+      if (!spooled) {
+        // the message was not acknowledged, leave nothing behind.
+        dataFile.delete();
+        tempFile.delete();
+      }
+    }
+    return new SpooledMessage(from, Collections.unmodifiableList(new ArrayList<String>(
+        recipients)), dataFile, envelopeFile);
+  }
+
+  /**
+   * Drops the data of messages that were never acknowledged and failed messages that are
+   * no longer kept. Only call this while nothing is being spooled.
+   * 
+   * @return the messages left in the spool, oldest first.
+   */
+  public List<SpooledMessage> recover() {
+    List<SpooledMessage> messages = new ArrayList<SpooledMessage>();
+    String[] names = directory.list();
+    if (names == null) {
+      return messages;
+    }
+    Arrays.sort(names);
+    Set<String> envelopes = new HashSet<String>();
+    for (String name : names) {
+      if (name.endsWith(ENVELOPE) || name.endsWith(FAILED)) {
+        envelopes.add(baseName(name));
+      }
+    }
+    for (String name : names) {
+      if ((name.endsWith(DATA) || name.endsWith(TEMP))
+          && !envelopes.contains(baseName(name))) {
+        LOGGER.info("Dropping spooled message {} that was never acknowledged", name);
+        new File(directory, name).delete();
+      }
+    }
+    for (String envelopeName : names) {
+      if (!envelopeName.endsWith(ENVELOPE)) {
+        continue;
+      }
+      String name = baseName(envelopeName);
+      File dataFile = new File(directory, name + DATA);
+      File envelopeFile = new File(directory, envelopeName);
+      if (!dataFile.isFile()) {
+        LOGGER.warn("Dropping spooled envelope {} without a message", envelopeName);
+        envelopeFile.delete();
+        continue;
+      }
+      try {
+        messages.add(readEnvelope(dataFile, envelopeFile));
+      } catch (IOException e) {
+        LOGGER.warn("Unable to read spooled envelope {}: {}", envelopeName, e.getMessage());
+      }
+    }
+    pruneFailed();
+    return messages;
+  }
+
+  /**
+   * A message has been written to the repository, drop it.
+   */
+  public void remove(SpooledMessage message) {
+    message.envelope.delete();
+    message.data.delete();
+  }
+
+  /**
+   * A message could not be written to the repository, keep it aside for inspection
+   * without retrying it. Failed messages are kept for a limited time, and only the most
+   * recent are kept.
+   */
+  public synchronized void failed(SpooledMessage message) {
+    File failed = new File(directory, message.envelope.getName().replace(ENVELOPE, FAILED));
+    if (!message.envelope.renameTo(failed)) {
+      message.envelope.delete();
+      message.data.delete();
+    }
+    pruneFailed();
+  }
+
+  /**
+   * Deletes failed messages that are too old, and the oldest while there are too many.
+   */
+  private synchronized void pruneFailed() {
+    String[] names = directory.list(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.endsWith(FAILED);
+      }
+    });
+    if (names == null) {
+      return;
+    }
+    Arrays.sort(names);
+    long expired = System.currentTimeMillis() - failedRetention;
+    int excess = names.length - maxFailed;
+    for (String failedName : names) {
+      File failed = new File(directory, failedName);
+      if (excess > 0 || failed.lastModified() < expired) {
+        LOGGER.info("Deleting failed message {}", failedName);
+        new File(directory, baseName(failedName) + DATA).delete();
+        failed.delete();
+      }
+      excess--;
+    }
+  }
+
+  private String baseName(String name) {
+    return name.substring(0, name.lastIndexOf('.'));
+  }
+
+  private SpooledMessage readEnvelope(File dataFile, File envelopeFile) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(
+        envelopeFile), "UTF-8"));
+    try {
+      String from = reader.readLine();
+      List<String> recipients = new ArrayList<String>();
+      for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+        if (line.length() > 0) {
+          recipients.add(line);
+        }
+      }
+      return new SpooledMessage(from, Collections.unmodifiableList(recipients), dataFile,
+          envelopeFile);
+    } finally {
+      reader.close();
+    }
+  }
+}
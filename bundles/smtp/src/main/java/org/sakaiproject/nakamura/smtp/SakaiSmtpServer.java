@@ -5,28 +5,43 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.osgi.framework.BundleContext;
 import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.message.MessagingService;
+import org.sakaiproject.nakamura.smtp.MessageSpool.SpooledMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.MessageHandlerFactory;
+import org.subethamail.smtp.RejectException;
 import org.subethamail.smtp.TooMuchDataException;
 import org.subethamail.smtp.helper.SimpleMessageListener;
-import org.subethamail.smtp.helper.SimpleMessageListenerAdapter;
 import org.subethamail.smtp.server.SMTPServer;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -35,10 +50,19 @@ import javax.mail.BodyPart;
 import javax.mail.Header;
 import javax.mail.MessagingException;
 import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMultipart;
 
+/**
+ * Receives mail for local users. Each accepted message is spooled to disk once, whatever
+ * the number of recipients, and written to the repository by a small pool of workers. The
+ * message is parsed once, part bodies are streamed into the repository and the message is
+ * saved once before it is copied to the remaining recipients. When the workers fall
+ * behind the SMTP session waits for space in the queue, and if none becomes available the
+ * message is refused with a temporary failure so that the sender retries later.
+ */
 @Component(immediate = true, metatype = true, label = "Receives incoming mail.", name = "org.sakaiproject.nakamura.smtp.SmtpServer")
-public class SakaiSmtpServer implements SimpleMessageListener {
+public class SakaiSmtpServer implements SimpleMessageListener, MessageHandlerFactory {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SakaiSmtpServer.class);
   private static final int MAX_PROPERTY_SIZE = 32 * 1024;
@@ -53,25 +77,51 @@ public class SakaiSmtpServer implements SimpleMessageListener {
 
   @Property
   private static String LOCAL_DOMAINS = "smtp.localdomains";
-  
+
   @Property(intValue=8025)
   private static String SMTP_SERVER_PORT = "smtp.port";
 
+  /**
+   * The number of threads writing messages to the repository, 0 writes each message
+   * within the SMTP session.
+   */
+  @Property(intValue = 2)
+  static final String INGEST_WORKERS = "smtp.ingestWorkers";
+
+  @Property(intValue = 100)
+  static final String QUEUE_SIZE = "smtp.queueSize";
+
+  /**
+   * The number of seconds an SMTP session waits for space in the queue before the message
+   * is refused with a temporary failure.
+   */
+  @Property(intValue = 30)
+  static final String QUEUE_TIMEOUT = "smtp.queueTimeout";
+
+  /**
+   * The directory accepted messages are held in until they are written, defaults to the
+   * bundle data area.
+   */
+  @Property(value = "")
+  static final String SPOOL_DIRECTORY = "smtp.spool";
+
   @Property(value = "The Sakai Foundation")
   static final String SERVICE_VENDOR = "service.vendor";
 
+  private static final int BATCH_SIZE = 10;
+
   private Set<String> domains = new HashSet<String>();
 
+  private BlockingQueue<SpooledMessage> queue;
+  private MessageSpool spool;
+  private List<Thread> workers = new ArrayList<Thread>();
+  private volatile boolean running;
+  private long queueTimeout;
+
   public void activate(ComponentContext context) throws Exception {
-    Integer port = (Integer) context.getProperties().get(SMTP_SERVER_PORT);
-    if ( port == null ) {
-      port = 8025;
-    }
-    LOGGER.info("Starting SMTP server on port {}", port);
-    server = new SMTPServer(new SimpleMessageListenerAdapter(this));
-    server.setPort(port);
-    server.start();
-    String localDomains = (String) context.getProperties().get(LOCAL_DOMAINS);
+    Dictionary<?, ?> properties = context.getProperties();
+    int port = OsgiUtil.toInteger(properties.get(SMTP_SERVER_PORT), 8025);
+    String localDomains = (String) properties.get(LOCAL_DOMAINS);
     if (localDomains == null) {
       localDomains = "localhost";
     }
@@ -79,17 +129,185 @@ public class SakaiSmtpServer implements SimpleMessageListener {
     for (String domain : StringUtils.split(localDomains, ';')) {
       domains.add(domain);
     }
+
+    int ingestWorkers = OsgiUtil.toInteger(properties.get(INGEST_WORKERS), 2);
+    queueTimeout = OsgiUtil.toInteger(properties.get(QUEUE_TIMEOUT), 30);
+    queue = null;
+    if (ingestWorkers > 0) {
+      spool = new MessageSpool(getSpoolDirectory(context,
+          (String) properties.get(SPOOL_DIRECTORY)));
+      queue = new ArrayBlockingQueue<SpooledMessage>(Math.max(1, OsgiUtil.toInteger(
+          properties.get(QUEUE_SIZE), 100)));
+      running = true;
+      for (int i = 0; i < ingestWorkers; i++) {
+        Thread worker = new Thread(new Runnable() {
+          public void run() {
+            ingest();
+          }
+        }, "SMTP Ingest " + i);
+        worker.setDaemon(true);
+        worker.start();
+        workers.add(worker);
+      }
+      List<SpooledMessage> recovered = spool.recover();
+      if (recovered.size() > 0) {
+        LOGGER.info("Delivering {} messages left in the mail spool", recovered.size());
+      }
+      for (SpooledMessage message : recovered) {
+        queue.put(message);
+      }
+    }
+
+    LOGGER.info("Starting SMTP server on port {}", port);
+    server = new SMTPServer(this);
+    server.setPort(port);
+    server.start();
   }
 
   public void deactivate(ComponentContext context) throws Exception {
     LOGGER.info("Stopping SMTP server");
     server.stop();
+    running = false;
+    for (Thread worker : workers) {
+      worker.join(30000);
+      if (worker.isAlive()) {
+        LOGGER.warn("Mail ingest worker {} did not stop, messages remain spooled",
+            worker.getName());
+        worker.interrupt();
+      }
+    }
+    workers.clear();
+  }
+
+  private File getSpoolDirectory(ComponentContext context, String configured) {
+    if (configured != null && configured.trim().length() > 0) {
+      return new File(configured.trim());
+    }
+    BundleContext bundleContext = context.getBundleContext();
+    if (bundleContext != null) {
+      File dataFile = bundleContext.getDataFile("spool");
+      if (dataFile != null) {
+        return dataFile;
+      }
+    }
+    return new File(System.getProperty("java.io.tmpdir"), "nakamura-smtp-spool");
   }
 
   /**
-   * 
    * {@inheritDoc}
-   * 
+   *
+   * @see org.subethamail.smtp.MessageHandlerFactory#create(org.subethamail.smtp.MessageContext)
+   */
+  public MessageHandler create(MessageContext ctx) {
+    return new SpoolingMessageHandler();
+  }
+
+  /**
+   * Collects the recipients of a single SMTP transaction so the message is stored once
+   * for all of them.
+   */
+  private class SpoolingMessageHandler implements MessageHandler {
+    private String from;
+    private List<String> recipients = new ArrayList<String>();
+
+    public void from(String from) throws RejectException {
+      this.from = from;
+    }
+
+    public void recipient(String recipient) throws RejectException {
+      if (!accept(from, recipient)) {
+        throw new RejectException(553, "<" + recipient + "> address unknown.");
+      }
+      recipients.add(recipient);
+    }
+
+    public void data(InputStream data) throws RejectException, TooMuchDataException,
+        IOException {
+      LOGGER.info("Got message FROM: " + from + " TO: " + recipients);
+      if (queue == null) {
+        deliver(from, recipients, data);
+        return;
+      }
+      SpooledMessage message = spool.spool(from, recipients, data);
+      boolean queued = false;
+      try {
+        queued = queue.offer(message, queueTimeout, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (!queued) {
+        spool.remove(message);
+        LOGGER.warn("Mail ingest queue is full, deferring message from {}", from);
+        throw new RejectException(451, "4.3.2 Mailbox busy, try again later");
+      }
+    }
+
+    public void done() {
+    }
+  }
+
+  private void ingest() {
+    List<SpooledMessage> batch = new ArrayList<SpooledMessage>();
+    while (running || !queue.isEmpty()) {
+      try {
+        SpooledMessage message = queue.poll(1, TimeUnit.SECONDS);
+        if (message == null) {
+          continue;
+        }
+        batch.add(message);
+        queue.drainTo(batch, BATCH_SIZE - 1);
+        ingest(batch);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  private void ingest(List<SpooledMessage> batch) {
+    Session session = null;
+    try {
+      session = slingRepository.loginAdministrative(null);
+      for (SpooledMessage message : batch) {
+        InputStream data = null;
+        try {
+          data = message.openData();
+          deliver(session, message.getFrom(), message.getRecipients(), data);
+          spool.remove(message);
+        } catch (Exception e) {
+          LOGGER.error("Unable to write spooled message " + message, e);
+          spool.failed(message);
+          try {
+            session.refresh(false);
+          } catch (RepositoryException e1) {
+            LOGGER.debug("Failed to discard changes ", e1);
+          }
+        } finally {
+          if (data != null) {
+            try {
+              data.close();
+            } catch (IOException e) {
+              LOGGER.debug("Failed to close spooled message ", e);
+            }
+          }
+        }
+      }
+    } catch (RepositoryException e) {
+      // the messages stay in the spool and are picked up on the next activation.
+      LOGGER.error("Unable to open a session to write mail ", e);
+    } finally {
+      if (session != null) {
+        session.logout();
+      }
+    }
+  }
+
+  /**
+   *
+   * {@inheritDoc}
+   *
    * @see org.subethamail.smtp.helper.SimpleMessageListener#accept(java.lang.String,
    *      java.lang.String)
    */
@@ -117,7 +335,7 @@ public class SakaiSmtpServer implements SimpleMessageListener {
     // assume recipient is a fully qualified email address of the form xxx@foo.com
     String[] parts = StringUtils.split(recipient, '@');
     List<String> localPaths = new ArrayList<String>();
-    if (domains.contains(parts[1])) {
+    if (parts.length == 2 && domains.contains(parts[1])) {
       List<String> recipients = messagingService.expandAliases(parts[0]);
       for (String localRecipient : recipients) {
         try {
@@ -133,49 +351,72 @@ public class SakaiSmtpServer implements SimpleMessageListener {
     return localPaths;
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.subethamail.smtp.helper.SimpleMessageListener#deliver(java.lang.String,
+   *      java.lang.String, java.io.InputStream)
+   */
   public void deliver(String from, String recipient, InputStream data)
       throws TooMuchDataException, IOException {
     LOGGER.info("Got message FROM: " + from + " TO: " + recipient);
+    deliver(from, Collections.singletonList(recipient), data);
+  }
+
+  private void deliver(String from, List<String> recipients, InputStream data)
+      throws IOException {
     Session session = null;
     try {
       session = slingRepository.loginAdministrative(null);
+      deliver(session, from, recipients, data);
+    } catch (RepositoryException e) {
+      LOGGER.error("Unable to write message", e);
+      throw new IOException("Message can not be written to repository");
+    } finally {
+      if (session != null) {
+        session.logout();
+      }
+    }
+  }
 
-      List<String> paths = getLocalPath(session, recipient);
-      if (paths.size() > 0) {
-        Map<String, Object> mapProperties = new HashMap<String, Object>();
-        mapProperties.put(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
-            MessageConstants.SAKAI_MESSAGE_RT);
-        mapProperties.put(MessageConstants.PROP_SAKAI_READ, false);
-        mapProperties.put(MessageConstants.PROP_SAKAI_FROM, from);
-        mapProperties.put(MessageConstants.PROP_SAKAI_MESSAGEBOX,
-            MessageConstants.BOX_INBOX);
-        Node createdMessage = writeMessage(session, mapProperties, data, paths.get(0));
-        if (createdMessage != null) {
-          String messagePath = createdMessage.getPath();
-          String messageId = createdMessage.getProperty("message-id").getString();
-          LOGGER.info("Created message {} at: {} ", messageId, messagePath);
-
-          // we might want alias expansion
-          for (int i = 1; i < paths.size(); i++) {
-            String targetPath = paths.get(i);
-            messagingService.copyMessageNode(createdMessage, targetPath);
-          }
-        }
+  /**
+   * Writes a message to the store of the first local recipient and copies it to the
+   * others.
+   */
+  private void deliver(Session session, String from, List<String> recipients,
+      InputStream data) throws RepositoryException, IOException {
+    Set<String> paths = new LinkedHashSet<String>();
+    for (String recipient : recipients) {
+      paths.addAll(getLocalPath(session, recipient));
+    }
+    if (paths.size() == 0) {
+      return;
+    }
+    try {
+      Map<String, Object> mapProperties = new HashMap<String, Object>();
+      mapProperties.put(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
+          MessageConstants.SAKAI_MESSAGE_RT);
+      mapProperties.put(MessageConstants.PROP_SAKAI_READ, false);
+      mapProperties.put(MessageConstants.PROP_SAKAI_FROM, from);
+      mapProperties.put(MessageConstants.PROP_SAKAI_MESSAGEBOX,
+          MessageConstants.BOX_INBOX);
+      Iterator<String> pathIterator = paths.iterator();
+      Node createdMessage = writeMessage(session, mapProperties, data, pathIterator.next());
+      if (createdMessage != null) {
         if (session.hasPendingChanges()) {
           session.save();
         }
-        
+        LOGGER.info("Created message {} at: {} ", mapProperties.get("sakai:message-id"),
+            createdMessage.getPath());
+
+        // we might want alias expansion
+        while (pathIterator.hasNext()) {
+          messagingService.copyMessageNode(createdMessage, pathIterator.next());
+        }
       }
-    } catch (RepositoryException e) {
-      LOGGER.error("Unable to write message", e);
-      throw new IOException("Message can not be written to repository");
     } catch (MessagingException e) {
       LOGGER.error("Unable to write message", e);
       throw new IOException("Message can not be written to repository");
-    } finally {
-      if (session != null) {
-        session.logout();
-      }
     }
   }
 
@@ -192,26 +433,31 @@ public class SakaiSmtpServer implements SimpleMessageListener {
         if ( values.length == 1 ) {
           mapProperties.put("sakai:"+name.toLowerCase(), values[0]);
         } else {
-          mapProperties.put("sakai:"+name.toLowerCase(), values);       
+          mapProperties.put("sakai:"+name.toLowerCase(), values);
         }
       }
     }
+    Object messageId = mapProperties.get("sakai:message-id");
+    if (!(messageId instanceof String)) {
+      messageId = UUID.randomUUID().toString();
+      mapProperties.put("sakai:message-id", messageId);
+    }
+    // the headers are saved by create, the body and the parts are saved with the message.
+    Node message = messagingService.create(session, mapProperties, (String) messageId,
+        storePath);
     String[] contentType = internetHeaders.getHeader("content-type");
     if (contentType != null && contentType.length > 0
         && contentType[0].contains("boundary") && contentType[0].contains("multipart/")) {
-        MimeMultipart multipart = new MimeMultipart(new SMTPDataSource(contentType[0],
-            data));
-        Node message = messagingService.create(session, mapProperties,
-            (String) mapProperties.get("sakai:message-id"), storePath);
-        writeMultipartToNode(session, message, multipart);
-        return message;
+      // when data is shared, as it is from the spool, parts are read from it as they are
+      // written rather than being copied into memory.
+      MimeMultipart multipart = new MimeMultipart(new SMTPDataSource(contentType[0],
+          data));
+      writeMultipartToNode(session, message, multipart);
     } else {
-      Node node = messagingService.create(session, mapProperties);
       // set up to stream the body.
-      node.setProperty(MessageConstants.PROP_SAKAI_BODY, data);
-      node.save();
-      return node;
+      message.setProperty(MessageConstants.PROP_SAKAI_BODY, data);
     }
+    return message;
   }
 
   private void writeMultipartToNode(Session session, Node message, MimeMultipart multipart)
@@ -233,8 +479,10 @@ public class SakaiSmtpServer implements SimpleMessageListener {
     if (part.getContentType().toLowerCase().startsWith("multipart/")) {
       Node childNode = message.addNode(childName);
       writePartPropertiesToNode(part, childNode);
+      InputStream content = (part instanceof MimeBodyPart) ? ((MimeBodyPart) part)
+          .getRawInputStream() : part.getInputStream();
       MimeMultipart multi = new MimeMultipart(new SMTPDataSource(part.getContentType(),
-          part.getInputStream()));
+          content));
       writeMultipartToNode(session, childNode, multi);
       return;
     }
@@ -247,7 +495,6 @@ public class SakaiSmtpServer implements SimpleMessageListener {
     Node childNode = message.addNode(childName);
     writePartPropertiesToNode(part, childNode);
     childNode.setProperty(MessageConstants.PROP_SAKAI_BODY, part.getInputStream());
-    childNode.save();
   }
 
   private void writePartAsFile(Session session, BodyPart part, String nodeName,
@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.smtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.smtp.MessageSpool.SpooledMessage;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks messages survive in the spool until they are removed, and that nothing is left
+ * behind for messages that were never acknowledged.
+ */
+public class MessageSpoolTest {
+
+  private File directory;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = File.createTempFile("spool", "");
+    directory.delete();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  @Test
+  public void testSpoolAndRecover() throws IOException {
+    MessageSpool spool = new MessageSpool(directory);
+    SpooledMessage message = spool(spool);
+    assertEquals("Subject: test", read(message));
+
+    List<SpooledMessage> recovered = new MessageSpool(directory).recover();
+    assertEquals(1, recovered.size());
+    assertEquals("bob@localhost", recovered.get(0).getFrom());
+    assertEquals(Arrays.asList("alice@localhost", "carol@localhost"), recovered.get(0)
+        .getRecipients());
+    assertEquals("Subject: test", read(recovered.get(0)));
+
+    spool.remove(recovered.get(0));
+    assertEquals(0, spool.recover().size());
+    assertEquals(0, directory.list().length);
+  }
+
+  @Test
+  public void testFailedCopyLeavesNothing() throws IOException {
+    MessageSpool spool = new MessageSpool(directory);
+    try {
+      spool.spool("bob@localhost", Arrays.asList("alice@localhost"), new InputStream() {
+        @Override
+        public int read() throws IOException {
+          throw new IOException("Connection reset");
+        }
+      });
+      fail("The copy failed");
+    } catch (IOException e) {
+      assertEquals("Connection reset", e.getMessage());
+    }
+    assertEquals(0, directory.list().length);
+  }
+
+  @Test
+  public void testUnacknowledgedDataDropped() throws IOException {
+    MessageSpool spool = new MessageSpool(directory);
+    new FileOutputStream(new File(directory, "1-1.eml")).close();
+    spool(spool);
+    assertEquals(1, spool.recover().size());
+    assertFalse(new File(directory, "1-1.eml").exists());
+  }
+
+  @Test
+  public void testFailedMessagesCapped() throws IOException {
+    MessageSpool spool = new MessageSpool(directory, 2, 60000L);
+    for (int i = 0; i < 3; i++) {
+      spool.failed(spool(spool));
+    }
+    assertEquals(0, spool.recover().size());
+    assertEquals("Two failed messages, each with its data", 4, directory.list().length);
+  }
+
+  @Test
+  public void testFailedMessagesExpire() throws IOException {
+    MessageSpool spool = new MessageSpool(directory, 2, 60000L);
+    spool.failed(spool(spool));
+    for (File file : directory.listFiles()) {
+      assertTrue(file.setLastModified(System.currentTimeMillis() - 120000L));
+    }
+    assertEquals(0, spool.recover().size());
+    assertEquals(0, directory.list().length);
+  }
+
+  private SpooledMessage spool(MessageSpool spool) throws IOException {
+    return spool.spool("bob@localhost", Arrays.asList("alice@localhost", "carol@localhost"),
+        new ByteArrayInputStream("Subject: test".getBytes("UTF-8")));
+  }
+
+  private String read(SpooledMessage message) throws IOException {
+    InputStream in = message.openData();
+    try {
+      return IOUtils.toString(in, "UTF-8");
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -20,25 +20,34 @@ package org.sakaiproject.nakamura.smtp;
 import junit.framework.Assert;
 
 import org.apache.activemq.util.ByteArrayInputStream;
+import org.apache.commons.io.FileUtils;
 import org.apache.jackrabbit.api.JackrabbitSession;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.easymock.Capture;
 import org.easymock.EasyMock;
+import org.easymock.IAnswer;
 import org.junit.Test;
 import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.message.MessagingService;
 import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.RejectException;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.ServerSocket;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.jcr.Node;
 import javax.jcr.Property;
@@ -101,9 +110,9 @@ public class SakaiSmtpServerTest extends AbstractEasyMockTest {
     JackrabbitSession session = createMock(JackrabbitSession.class);
     MessagingService messagingService = createMock(MessagingService.class);
     Node myMessageNode = createMock(Node.class);
-    Property property = createMock(Property.class);
 
     Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("smtp.ingestWorkers", 0);
 
     session.logout();
     EasyMock.expectLastCall().anyTimes();
@@ -130,16 +139,14 @@ public class SakaiSmtpServerTest extends AbstractEasyMockTest {
 
     Capture<Map<String, Object>> mapProperties2 = new Capture<Map<String, Object>>();
     Capture<Session> sessionCapture2 = new Capture<Session>();
+    Capture<String> path = new Capture<String>();
     EasyMock.expect(
         messagingService.create(EasyMock.capture(sessionCapture2), EasyMock
-            .capture(mapProperties2))).andReturn(myMessageNode);
+            .capture(mapProperties2), EasyMock.isA(String.class), EasyMock
+            .capture(path))).andReturn(myMessageNode);
     EasyMock.expect(myMessageNode.setProperty("sakai:body", dataStream)).andReturn(null);
-    myMessageNode.save();
-    EasyMock.expectLastCall();
 
     EasyMock.expect(myMessageNode.getPath()).andReturn("/messagestore/bob/messagenode");
-    EasyMock.expect(myMessageNode.getProperty("message-id")).andReturn(property);
-    EasyMock.expect(property.getString()).andReturn("messageid");
     EasyMock.expect(session.hasPendingChanges()).andReturn(true);
     session.save();
     EasyMock.expectLastCall();
@@ -160,6 +167,8 @@ public class SakaiSmtpServerTest extends AbstractEasyMockTest {
     Assert.assertTrue(sessionCapture2.hasCaptured());
 
     Assert.assertEquals(session, sessionCapture2.getValue());
+    Assert.assertEquals("The message is stored for the recipient", "/messagestore/alice",
+        path.getValue());
 
     sakaiSmtpServer.deactivate(componentContext);
 
@@ -250,9 +259,9 @@ public class SakaiSmtpServerTest extends AbstractEasyMockTest {
     JackrabbitSession session = createMock(JackrabbitSession.class);
     MessagingService messagingService = createMock(MessagingService.class);
     Node myMessageNode = createMock(Node.class);
-    Property property = createMock(Property.class);
 
     Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("smtp.ingestWorkers", 0);
 
     session.logout();
     EasyMock.expectLastCall().anyTimes();
@@ -277,18 +286,16 @@ public class SakaiSmtpServerTest extends AbstractEasyMockTest {
 
     Capture<Map<String, Object>> mapProperties2 = new Capture<Map<String, Object>>();
     Capture<Session> sessionCapture2 = new Capture<Session>();
+    Capture<String> path = new Capture<String>();
     EasyMock.expect(
         messagingService.create(EasyMock.capture(sessionCapture2), EasyMock
-            .capture(mapProperties2))).andReturn(myMessageNode);
+            .capture(mapProperties2), EasyMock.isA(String.class), EasyMock
+            .capture(path))).andReturn(myMessageNode);
     
     
     EasyMock.expect(myMessageNode.setProperty("sakai:body", dataStream)).andReturn(null);
-    myMessageNode.save();
-    EasyMock.expectLastCall();
 
     EasyMock.expect(myMessageNode.getPath()).andReturn("/messagestore/bob/messagenode");
-    EasyMock.expect(myMessageNode.getProperty("message-id")).andReturn(property);
-    EasyMock.expect(property.getString()).andReturn("messageid");
     EasyMock.expect(session.hasPendingChanges()).andReturn(true);
     session.save();
     EasyMock.expectLastCall();
@@ -309,6 +316,8 @@ public class SakaiSmtpServerTest extends AbstractEasyMockTest {
     Assert.assertTrue(sessionCapture2.hasCaptured());
 
     Assert.assertEquals(session, sessionCapture2.getValue());
+    Assert.assertEquals("The message is stored for the recipient", "/messagestore/alice",
+        path.getValue());
 
     Map<String,Object> headers = mapProperties2.getValue();
     // check multi line parsing of headers
@@ -334,9 +343,9 @@ public class SakaiSmtpServerTest extends AbstractEasyMockTest {
     MessagingService messagingService = createMock(MessagingService.class);
     Node part0Node = createNiceMock(Node.class);
     Node myMessageNode = createMock(Node.class);
-    Property property = createMock(Property.class);
 
     Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("smtp.ingestWorkers", 0);
 
     session.logout();
     EasyMock.expectLastCall().anyTimes();
@@ -372,8 +381,6 @@ public class SakaiSmtpServerTest extends AbstractEasyMockTest {
     
 
     EasyMock.expect(myMessageNode.getPath()).andReturn("/messagestore/bob/messagenode");
-    EasyMock.expect(myMessageNode.getProperty("message-id")).andReturn(property);
-    EasyMock.expect(property.getString()).andReturn("messageid");
     EasyMock.expect(session.hasPendingChanges()).andReturn(true);
     session.save();
     EasyMock.expectLastCall();
@@ -423,10 +430,10 @@ public class SakaiSmtpServerTest extends AbstractEasyMockTest {
     MessagingService messagingService = createMock(MessagingService.class);
     Node part0Node = createNiceMock(Node.class);
     Node myMessageNode = createMock(Node.class);
-    Property property = createMock(Property.class);
     ValueFactory valueFactory = createNiceMock(ValueFactory.class);
 
     Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("smtp.ingestWorkers", 0);
 
     session.logout();
     EasyMock.expectLastCall().anyTimes();
@@ -464,8 +471,6 @@ public class SakaiSmtpServerTest extends AbstractEasyMockTest {
     
 
     EasyMock.expect(myMessageNode.getPath()).andReturn("/messagestore/bob/messagenode");
-    EasyMock.expect(myMessageNode.getProperty("message-id")).andReturn(property);
-    EasyMock.expect(property.getString()).andReturn("messageid");
     EasyMock.expect(session.hasPendingChanges()).andReturn(true);
     session.save();
     EasyMock.expectLastCall();
@@ -504,4 +509,192 @@ public class SakaiSmtpServerTest extends AbstractEasyMockTest {
     verify();
   }
 
+  @Test
+  public void testIngestWorkerStoresOnceForAllRecipients() throws Exception {
+    File spoolDirectory = createSpoolDirectory();
+    ComponentContext componentContext = createWorkerContext(spoolDirectory, 10, 30);
+    SlingRepository slingRepository = createNiceMock(SlingRepository.class);
+    JackrabbitSession session = createNiceMock(JackrabbitSession.class);
+    MessagingService messagingService = createMock(MessagingService.class);
+    Node myMessageNode = createNiceMock(Node.class);
+    EasyMock.expect(slingRepository.loginAdministrative(null)).andReturn(session)
+        .anyTimes();
+    EasyMock.expect(session.hasPendingChanges()).andReturn(true).anyTimes();
+    expectLocalUser(messagingService, session, "alice");
+    expectLocalUser(messagingService, session, "carol");
+
+    Capture<String> path = new Capture<String>();
+    EasyMock.expect(
+        messagingService.create(EasyMock.eq(session), EasyMock.<Map<String, Object>> anyObject(),
+            EasyMock.isA(String.class), EasyMock.capture(path))).andReturn(myMessageNode);
+    final CountDownLatch copied = new CountDownLatch(1);
+    messagingService.copyMessageNode(myMessageNode, "/messagestore/carol");
+    EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+      public Object answer() throws Throwable {
+        copied.countDown();
+        return null;
+      }
+    });
+
+    replay();
+    SakaiSmtpServer sakaiSmtpServer = new SakaiSmtpServer();
+    sakaiSmtpServer.slingRepository = slingRepository;
+    sakaiSmtpServer.messagingService = messagingService;
+    sakaiSmtpServer.activate(componentContext);
+    try {
+      send(sakaiSmtpServer, TESTMESSAGE_GOOD, "alice@localhost", "carol@localhost");
+      Assert.assertTrue(copied.await(10, TimeUnit.SECONDS));
+    } finally {
+      sakaiSmtpServer.deactivate(componentContext);
+    }
+
+    Assert.assertEquals("/messagestore/alice", path.getValue());
+    Assert.assertEquals("The delivered message is removed from the spool", 0,
+        spoolDirectory.list().length);
+    FileUtils.deleteDirectory(spoolDirectory);
+    verify();
+  }
+
+  @Test
+  public void testSpoolDeliveredOnActivation() throws Exception {
+    File spoolDirectory = createSpoolDirectory();
+    new MessageSpool(spoolDirectory).spool("bob@localhost", Arrays
+        .asList("alice@localhost"), new ByteArrayInputStream(TESTMESSAGE_GOOD
+        .getBytes("UTF-8")));
+
+    ComponentContext componentContext = createWorkerContext(spoolDirectory, 10, 30);
+    SlingRepository slingRepository = createNiceMock(SlingRepository.class);
+    JackrabbitSession session = createNiceMock(JackrabbitSession.class);
+    MessagingService messagingService = createMock(MessagingService.class);
+    Node myMessageNode = createNiceMock(Node.class);
+    EasyMock.expect(slingRepository.loginAdministrative(null)).andReturn(session)
+        .anyTimes();
+    EasyMock.expect(session.hasPendingChanges()).andReturn(true).anyTimes();
+    expectLocalUser(messagingService, session, "alice");
+
+    final CountDownLatch created = new CountDownLatch(1);
+    final Node createdNode = myMessageNode;
+    EasyMock.expect(
+        messagingService.create(EasyMock.eq(session), EasyMock.<Map<String, Object>> anyObject(),
+            EasyMock.isA(String.class), EasyMock.eq("/messagestore/alice"))).andAnswer(
+        new IAnswer<Node>() {
+          public Node answer() throws Throwable {
+            created.countDown();
+            return createdNode;
+          }
+        });
+
+    replay();
+    SakaiSmtpServer sakaiSmtpServer = new SakaiSmtpServer();
+    sakaiSmtpServer.slingRepository = slingRepository;
+    sakaiSmtpServer.messagingService = messagingService;
+    sakaiSmtpServer.activate(componentContext);
+    try {
+      Assert.assertTrue(created.await(10, TimeUnit.SECONDS));
+    } finally {
+      sakaiSmtpServer.deactivate(componentContext);
+    }
+
+    Assert.assertEquals(0, spoolDirectory.list().length);
+    FileUtils.deleteDirectory(spoolDirectory);
+    verify();
+  }
+
+  @Test
+  public void testFullQueueDefersWith451() throws Exception {
+    File spoolDirectory = createSpoolDirectory();
+    ComponentContext componentContext = createWorkerContext(spoolDirectory, 1, 0);
+    SlingRepository slingRepository = createNiceMock(SlingRepository.class);
+    JackrabbitSession session = createNiceMock(JackrabbitSession.class);
+    MessagingService messagingService = createMock(MessagingService.class);
+    Node myMessageNode = createNiceMock(Node.class);
+    EasyMock.expect(slingRepository.loginAdministrative(null)).andReturn(session)
+        .anyTimes();
+    EasyMock.expect(session.hasPendingChanges()).andReturn(true).anyTimes();
+    expectLocalUser(messagingService, session, "alice");
+
+    EasyMock.expect(
+        messagingService.create(EasyMock.eq(session), EasyMock.<Map<String, Object>> anyObject(),
+            EasyMock.isA(String.class), EasyMock.eq("/messagestore/alice"))).andReturn(
+        myMessageNode).times(2);
+    // the worker blocks writing the first body until it is released. This is done on the
+    // node, the messaging service and the session are also used by the SMTP session.
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    EasyMock.expect(
+        myMessageNode.setProperty(EasyMock.eq("sakai:body"), EasyMock
+            .isA(InputStream.class))).andAnswer(new IAnswer<Property>() {
+      public Property answer() throws Throwable {
+        started.countDown();
+        release.await(10, TimeUnit.SECONDS);
+        return null;
+      }
+    }).times(2);
+
+    replay();
+    SakaiSmtpServer sakaiSmtpServer = new SakaiSmtpServer();
+    sakaiSmtpServer.slingRepository = slingRepository;
+    sakaiSmtpServer.messagingService = messagingService;
+    sakaiSmtpServer.activate(componentContext);
+    try {
+      send(sakaiSmtpServer, TESTMESSAGE_GOOD, "alice@localhost");
+      Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+      // fills the queue.
+      send(sakaiSmtpServer, TESTMESSAGE_GOOD, "alice@localhost");
+      try {
+        send(sakaiSmtpServer, TESTMESSAGE_GOOD, "alice@localhost");
+        Assert.fail("The queue is full");
+      } catch (RejectException e) {
+        Assert.assertEquals(451, e.getCode());
+      }
+      Assert.assertEquals("The deferred message is not kept", 4,
+          spoolDirectory.list().length);
+    } finally {
+      release.countDown();
+      sakaiSmtpServer.deactivate(componentContext);
+    }
+
+    Assert.assertEquals(0, spoolDirectory.list().length);
+    FileUtils.deleteDirectory(spoolDirectory);
+    verify();
+  }
+
+  private File createSpoolDirectory() throws IOException {
+    File spoolDirectory = File.createTempFile("spool", "");
+    spoolDirectory.delete();
+    return spoolDirectory;
+  }
+
+  private ComponentContext createWorkerContext(File spoolDirectory, int queueSize,
+      int queueTimeout) {
+    ComponentContext componentContext = createNiceMock(ComponentContext.class);
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("smtp.port", getSafePort(8025));
+    properties.put("smtp.ingestWorkers", 1);
+    properties.put("smtp.queueSize", queueSize);
+    properties.put("smtp.queueTimeout", queueTimeout);
+    properties.put("smtp.spool", spoolDirectory.getAbsolutePath());
+    EasyMock.expect(componentContext.getProperties()).andReturn(properties).anyTimes();
+    return componentContext;
+  }
+
+  private void expectLocalUser(MessagingService messagingService, Session session,
+      String user) throws Exception {
+    EasyMock.expect(messagingService.expandAliases(user)).andReturn(
+        Collections.singletonList(user)).anyTimes();
+    EasyMock.expect(messagingService.getFullPathToStore(user, session)).andReturn(
+        "/messagestore/" + user).anyTimes();
+  }
+
+  private void send(SakaiSmtpServer sakaiSmtpServer, String message, String... recipients)
+      throws Exception {
+    MessageHandler handler = sakaiSmtpServer.create(null);
+    handler.from("bob@localhost");
+    for (String recipient : recipients) {
+      handler.recipient(recipient);
+    }
+    handler.data(new ByteArrayInputStream(message.getBytes("UTF-8")));
+    handler.done();
+  }
+
 }
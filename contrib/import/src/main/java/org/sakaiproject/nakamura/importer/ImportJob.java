@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.importer;
+
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+
+/**
+ * The progress of the import of one site archive.
+ */
+public class ImportJob {
+
+  public static final String QUEUED = "queued";
+  public static final String RUNNING = "running";
+  public static final String DONE = "done";
+  public static final String FAILED = "failed";
+
+  private final String id;
+  private final String userId;
+  private final String sitePath;
+  private final String fileName;
+  private String state = QUEUED;
+  /**
+   * The files listed in content.xml.
+   */
+  private int resources;
+  /**
+   * The files saved in the site.
+   */
+  private int imported;
+  /**
+   * The files left out as they were in the site already.
+   */
+  private int skipped;
+  private String error;
+
+  public ImportJob(String id, String userId, String sitePath, String fileName) {
+    this.id = id;
+    this.userId = userId;
+    this.sitePath = sitePath;
+    this.fileName = fileName;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getUserId() {
+    return userId;
+  }
+
+  public String getSitePath() {
+    return sitePath;
+  }
+
+  public synchronized String getState() {
+    return state;
+  }
+
+  public synchronized int getResources() {
+    return resources;
+  }
+
+  public synchronized int getImported() {
+    return imported;
+  }
+
+  public synchronized int getSkipped() {
+    return skipped;
+  }
+
+  public synchronized void start() {
+    state = RUNNING;
+  }
+
+  public synchronized void addResource() {
+    resources++;
+  }
+
+  public synchronized void imported(int count) {
+    imported += count;
+  }
+
+  public synchronized void skipped() {
+    skipped++;
+  }
+
+  public synchronized void done() {
+    state = DONE;
+  }
+
+  public synchronized void fail(String error) {
+    state = FAILED;
+    this.error = error;
+  }
+
+  /**
+   * Write the state of the job as a JSON object.
+   * 
+   * @param write
+   * @throws JSONException
+   */
+  public synchronized void write(JSONWriter write) throws JSONException {
+    write.object();
+    write.key("id");
+    write.value(id);
+    write.key("site");
+    write.value(sitePath);
+    write.key("file");
+    write.value(fileName);
+    write.key("state");
+    write.value(state);
+    write.key("resources");
+    write.value(resources);
+    write.key("imported");
+    write.value(imported);
+    write.key("skipped");
+    write.value(skipped);
+    if (error != null) {
+      write.key("error");
+      write.value(error);
+    }
+    write.endObject();
+  }
+}
@@ -19,17 +19,19 @@ package org.sakaiproject.nakamura.importer;
 
 import com.ctc.wstx.stax.WstxInputFactory;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
-import org.apache.jackrabbit.JcrConstants;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.sling.jcr.api.SlingRepository;
+import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
@@ -38,9 +40,6 @@ import org.sakaiproject.nakamura.api.doc.ServiceMethod;
 import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.doc.ServiceSelector;
-import org.sakaiproject.nakamura.api.files.FileUtils;
-import org.sakaiproject.nakamura.api.files.FilesConstants;
-import org.sakaiproject.nakamura.util.JcrUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,47 +47,72 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Collections;
-import java.util.HashMap;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.TimeZone;
-import java.util.zip.ZipEntry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipException;
-import java.util.zip.ZipFile;
 
-import javax.jcr.Binary;
-import javax.jcr.Node;
-import javax.jcr.RepositoryException;
 import javax.jcr.Session;
-import javax.jcr.ValueFactory;
+import javax.jcr.SimpleCredentials;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.stream.XMLInputFactory;
-import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.XMLStreamReader;
 
 @SuppressWarnings("restriction")
-@SlingServlet(methods = { "POST" }, resourceTypes = { "sling/servlet/default" }, selectors = { "sitearchive" })
+@SlingServlet(methods = { "GET", "POST" }, resourceTypes = { "sling/servlet/default" }, selectors = { "sitearchive" })
 @Properties(value = {
     @Property(name = "service.description", value = "Imports one or more SiteArchive ZIP files from Sakai 2"),
     @Property(name = "service.vendor", value = "The Sakai Foundation") })
-@ServiceDocumentation(name = "ImportSiteArchiveServlet", shortDescription = "Imports one or more SiteArchive ZIP files from Sakai 2", description = { "Imports one or more SiteArchive ZIP files from Sakai 2" }, bindings = @ServiceBinding(type = BindingType.TYPE, selectors = @ServiceSelector(name = "sitearchive", description = "Upload one or more ZIP files."), bindings = "sling/servlet/default"), methods = { @ServiceMethod(name = "POST", description = { "Upload one or more SiteArchive ZIP files from Sakai 2" }, parameters = {
+@ServiceDocumentation(name = "ImportSiteArchiveServlet", shortDescription = "Imports one or more SiteArchive ZIP files from Sakai 2", description = { "Imports one or more SiteArchive ZIP files from Sakai 2. Several archives are imported in parallel.", "An archive imported during the request is read as a stream, the bodies of files that come before content.xml in the archive are spooled to temporary files until content.xml has been read, so an archive with content.xml last takes up to its own size in temporary disk space. An archive imported in the background is copied to a temporary file first and read with content.xml first, nothing else is spooled." }, bindings = @ServiceBinding(type = BindingType.TYPE, selectors = @ServiceSelector(name = "sitearchive", description = "Upload one or more ZIP files."), bindings = "sling/servlet/default"), methods = {
+    @ServiceMethod(name = "POST", description = { "Upload one or more SiteArchive ZIP files from Sakai 2" }, parameters = {
     @ServiceParameter(name = "site", description = "Required: A site must be specified, and it must be an absolute path pointing to a site."),
-    @ServiceParameter(name = "Filedata", description = "Required: the parameter that holds the actual data for the file that should be uploaded. This can be multivalued.") }, response = {
+    @ServiceParameter(name = "Filedata", description = "Required: the parameter that holds the actual data for the file that should be uploaded. This can be multivalued."),
+    @ServiceParameter(name = "async", description = "Optional: true to import in the background, the response lists an import job for each file."),
+    @ServiceParameter(name = "resume", description = "Optional: true to leave out the files that are linked into the site already, to finish an import that was interrupted.") }, response = {
     @ServiceResponse(code = 200, description = "All files were processed without error."),
+    @ServiceResponse(code = 202, description = "The files are imported in the background. A JSON array is returned containing the state of the import job of each file."),
     @ServiceResponse(code = 400, description = "site parameter was not provided"),
     @ServiceResponse(code = 400, description = "site parameter was not absolute"),
     @ServiceResponse(code = 400, description = "Filedata parameter was not provided."),
     @ServiceResponse(code = 415, description = "The uploaded file was not a valid ZIP file."),
-    @ServiceResponse(code = 500, description = "Unexpected error.") }) })
+    @ServiceResponse(code = 500, description = "Unexpected error.") }),
+    @ServiceMethod(name = "GET", description = { "Get the state of the background imports of the current user." }, parameters = {
+    @ServiceParameter(name = "job", description = "Optional: the id of an import job, all the jobs of the user are listed otherwise.") }, response = {
+    @ServiceResponse(code = 200, description = "A JSON object with the state of the job, or an array of them. Example:<pre>{\"id\": \"siteArchive-1\", \"site\": \"/sites/physics\", \"file\": \"archive.zip\", \"state\": \"running\", \"resources\": 120, \"imported\": 100, \"skipped\": 0}</pre>The state is one of queued, running, done or failed."),
+    @ServiceResponse(code = 404, description = "There is no such job.") }) })
 public class ImportSiteArchiveServlet extends SlingAllMethodsServlet {
   private static final long serialVersionUID = 1678771348231033621L;
   public static final Logger LOG = LoggerFactory
       .getLogger(ImportSiteArchiveServlet.class);
 
+  @Property(intValue = 2, label = "Import Threads", description = "The number of archives imported in parallel.")
+  static final String IMPORT_THREADS = "sakai.import.threads";
+
+  @Property(intValue = 50, label = "Queued Imports", description = "The number of archives waiting to be imported in the background.")
+  static final String IMPORT_QUEUE_SIZE = "sakai.import.queueSize";
+
+  @Property(intValue = 100, label = "Batch Size", description = "The number of files written between saves.")
+  static final String IMPORT_BATCH_SIZE = "sakai.import.batchSize";
+
+  /**
+   * The number of jobs whose state is kept, the oldest is dropped when there are more.
+   */
+  private static final int MAX_JOBS = 200;
+  private static final int BUFFER_SIZE = 65536;
+
   @Reference
   transient SlingRepository slingRepository;
 
@@ -96,10 +120,43 @@ public class ImportSiteArchiveServlet extends SlingAllMethodsServlet {
   transient ClusterTrackingService clusterTrackingService;
 
   private transient XMLInputFactory xmlInputFactory = null;
-  private transient Base64 base64 = new Base64();
-  private final String[] supportedVersions = { "Sakai 1.0" };
-  private transient SimpleDateFormat sdf = new SimpleDateFormat(
-      "yyyyMMddHHmmssSSS");
+
+  private transient volatile ThreadPoolExecutor executor;
+
+  private int batchSize = 100;
+
+  private transient Map<String, ImportJob> jobs = new LinkedHashMap<String, ImportJob>() {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, ImportJob> eldest) {
+      return size() > MAX_JOBS;
+    }
+  };
+
+  private long jobCount;
+
+  protected void activate(ComponentContext context) {
+    Dictionary<?, ?> properties = context.getProperties();
+    int threads = Math.max(1, OsgiUtil.toInteger(properties.get(IMPORT_THREADS), 2));
+    int queueSize = Math.max(1, OsgiUtil.toInteger(properties.get(IMPORT_QUEUE_SIZE), 50));
+    batchSize = Math.max(1, OsgiUtil.toInteger(properties.get(IMPORT_BATCH_SIZE), 100));
+    executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Site Archive Import");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+  }
+
+  protected void deactivate(ComponentContext context) {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
 
   /**
    * {@inheritDoc}
@@ -113,7 +170,41 @@ public class ImportSiteArchiveServlet extends SlingAllMethodsServlet {
     xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
     xmlInputFactory.setProperty(XMLInputFactory.IS_VALIDATING, false);
     xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
-    sdf.setTimeZone(TimeZone.getTimeZone("GMT+0"));
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.apache.sling.api.servlets.SlingSafeMethodsServlet#doGet(org.apache.sling.api.SlingHttpServletRequest,
+   *      org.apache.sling.api.SlingHttpServletResponse)
+   */
+  @Override
+  protected void doGet(SlingHttpServletRequest request,
+      SlingHttpServletResponse response) throws ServletException, IOException {
+    final String userId = request.getResourceResolver().adaptTo(Session.class)
+        .getUserID();
+    final RequestParameter jobParam = request.getRequestParameter("job");
+    List<ImportJob> found = new ArrayList<ImportJob>();
+    synchronized (jobs) {
+      for (ImportJob job : jobs.values()) {
+        if (job.getUserId().equals(userId)
+            && (jobParam == null || job.getId().equals(jobParam.getString()))) {
+          found.add(job);
+        }
+      }
+    }
+    if (jobParam != null && found.isEmpty()) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such job.");
+      return;
+    }
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    try {
+      writeJobs(found, jobParam == null, new JSONWriter(response.getWriter()));
+    } catch (JSONException e) {
+      sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getLocalizedMessage(),
+          e, response);
+    }
   }
 
   /**
@@ -141,361 +232,276 @@ public class ImportSiteArchiveServlet extends SlingAllMethodsServlet {
           new IllegalArgumentException(errorMessage), response);
       return;
     }
-    final Session session = request.getResourceResolver()
-        .adaptTo(Session.class);
+    final String userId = request.getResourceResolver().adaptTo(Session.class)
+        .getUserID();
+    final boolean async = "true".equals(getString(request, "async"));
+    final boolean resume = "true".equals(getString(request, "resume"));
+    if (async) {
+      importInBackground(files, sitePath, userId, resume, response);
+      return;
+    }
+
+    // import the archives in parallel, on this thread when the pool is busy.
+    List<ArchiveImport> archiveImports = new ArrayList<ArchiveImport>();
+    List<Future<ImportJob>> imports = new ArrayList<Future<ImportJob>>();
     for (RequestParameter p : files) {
-      LOG.info("Processing file: " + p.getFileName() + ": "
-          + p.getContentType() + ": " + p.getSize() + " bytes");
+      LOG.info("Processing file: " + p.getFileName() + ": " + p.getContentType() + ": "
+          + p.getSize() + " bytes");
+      ImportJob job = newJob(userId, sitePath, p.getFileName());
+      ArchiveImport archiveImport = new ArchiveImport(job, p, null, resume);
+      archiveImports.add(archiveImport);
+      imports.add(submit(archiveImport));
+    }
+    // the imports read the upload of this request, so every one of them is over before
+    // the request is, those that have not started yet are cancelled after a failure.
+    int failed = -1;
+    Throwable failure = null;
+    for (int i = 0; i < imports.size(); i++) {
       try {
-        // create temporary local file of zip contents
-        final File tempZip = File.createTempFile("siteArchive", ".zip");
-        tempZip.deleteOnExit(); // just in case
-        final InputStream in = p.getInputStream();
-        final FileOutputStream out = new FileOutputStream(tempZip);
-        final byte[] buf = new byte[4096];
-        int len;
-        while ((len = in.read(buf)) > 0) {
-          out.write(buf, 0, len);
+        imports.get(i).get();
+      } catch (InterruptedException e) {
+        for (int j = i; j < imports.size(); j++) {
+          archiveImports.get(j).cancel();
+          imports.get(j).cancel(true);
         }
-        in.close();
-        out.close();
-        // process the zip file
-        ZipFile zip = null;
-        try {
-          zip = new ZipFile(tempZip);
-        } catch (ZipException e) {
-          sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE,
-              "Invalid zip file: " + p.getFileName() + ": "
-                  + p.getContentType() + ": " + p.getSize(), null, response);
-        }
-        if (zip != null) {
-          for (ZipEntry entry : Collections.list(zip.entries())) {
-            if (entry.getName().startsWith("__MACOSX")
-                || entry.getName().endsWith(".DS_Store")) {
-              ; // skip entry
-            } else {
-              if ("content.xml".equals(entry.getName())) {
-                processContentXml(zip.getInputStream(entry), sitePath, session,
-                    zip);
-              }
-            }
+        sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getLocalizedMessage(),
+            e, response);
+        return;
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failed = i;
+          failure = e.getCause() == null ? e : e.getCause();
+          for (int j = i + 1; j < imports.size(); j++) {
+            archiveImports.get(j).cancel();
           }
-          zip.close();
-        }
-        // delete temporary file
-        if (tempZip.delete()) {
-          LOG.debug("{}: temporary zip file deleted.", tempZip
-              .getAbsolutePath());
-        } else {
-          LOG.warn("Could not delete temporary file: {}", tempZip
-              .getAbsolutePath());
         }
-      } catch (IOException e) {
-        sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e
-            .getLocalizedMessage(), e, response);
-      } catch (XMLStreamException e) {
-        sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e
-            .getLocalizedMessage(), e, response);
       }
     }
-    response.setStatus(HttpServletResponse.SC_OK);
-    return;
+    if (failure instanceof ZipException) {
+      sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, "Invalid zip file: "
+          + files[failed].getFileName() + ": " + files[failed].getContentType() + ": "
+          + files[failed].getSize(), null, response);
+    } else if (failure != null) {
+      sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+          failure.getLocalizedMessage(), failure, response);
+    } else {
+      response.setStatus(HttpServletResponse.SC_OK);
+    }
   }
 
-  private void processContentXml(InputStream in, String sitePath,
-      Session session, ZipFile zip) throws XMLStreamException {
-    Map<String, Resource> resources = new HashMap<String, Resource>();
-    String currentResourceId = null;
-    XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(in);
-    for (int event = reader.next(); event != XMLStreamReader.END_DOCUMENT; event = reader
-        .next()) {
-      String localName = null;
-      switch (event) {
-      case XMLStreamReader.START_ELEMENT:
-        localName = reader.getLocalName();
-        if ("archive".equalsIgnoreCase(localName)) {
-          final String system = reader.getAttributeValue(null, "system");
-          boolean supportedVersion = false;
-          for (String version : supportedVersions) {
-            if (version.equalsIgnoreCase(system)) {
-              supportedVersion = true;
-            }
-          }
-          if (!supportedVersion) {
-            throw new Error("Not a supported version: " + system);
-          }
-          break;
-        }
-        if ("collection".equalsIgnoreCase(localName)
-            || "resource".equalsIgnoreCase(localName)) {
-          // grab the resource's attributes
-          Resource resource = new Resource();
-          for (int i = 0; i < reader.getAttributeCount(); i++) {
-            resource.attributes.put(reader.getAttributeLocalName(i)
-                .toLowerCase(), reader.getAttributeValue(i));
-          }
-          currentResourceId = resource.getId();
-          resources.put(currentResourceId, resource);
-          break;
-        }
-        if ("property".equalsIgnoreCase(localName)) {
-          Resource resource = resources.get(currentResourceId);
-          final String name = reader.getAttributeValue(null, "name");
-          String value = reader.getAttributeValue(null, "value");
-          if (value != null && !"".equals(value)) {
-            if (reader.getAttributeValue(null, "enc")
-                .equalsIgnoreCase("BASE64")) {
-              value = new String(base64.decode(value));
-            }
-            resource.properties.put(name, value);
-          }
-          break;
-        }
-        break;
-      case XMLStreamReader.END_ELEMENT:
-        localName = reader.getLocalName();
-        if ("collection".equalsIgnoreCase(localName)
-            || "resource".equalsIgnoreCase(localName)) {
-          makeResource(resources.get(currentResourceId), sitePath, session, zip);
+  /**
+   * Copy each archive to a temporary file, as the upload is gone once the request is
+   * over, and queue its import.
+   */
+  private void importInBackground(RequestParameter[] files, String sitePath,
+      String userId, boolean resume, SlingHttpServletResponse response) {
+    final ThreadPoolExecutor executor = this.executor;
+    List<ImportJob> queued = new ArrayList<ImportJob>();
+    for (RequestParameter p : files) {
+      LOG.info("Queueing file: " + p.getFileName() + ": " + p.getContentType() + ": "
+          + p.getSize() + " bytes");
+      ImportJob job = newJob(userId, sitePath, p.getFileName());
+      queued.add(job);
+      File archive = null;
+      try {
+        archive = File.createTempFile("siteArchive", ".zip");
+        archive.deleteOnExit(); // just in case
+        copy(p.getInputStream(), archive);
+        if (executor == null) {
+          throw new RejectedExecutionException("Not active");
         }
-        break;
-      } // end switch
-    } // end for
-    reader.close();
+        executor.execute(new FutureTask<ImportJob>(new ArchiveImport(job, null, archive,
+            resume)));
+      } catch (IOException e) {
+        LOG.warn("Unable to queue " + p.getFileName(), e);
+        job.fail(e.getLocalizedMessage());
+        delete(archive);
+      } catch (RejectedExecutionException e) {
+        job.fail("Too many imports are queued, try again later.");
+        delete(archive);
+      }
+    }
+    response.setStatus(HttpServletResponse.SC_ACCEPTED);
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    try {
+      writeJobs(queued, true, new JSONWriter(response.getWriter()));
+    } catch (JSONException e) {
+      sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getLocalizedMessage(),
+          e, response);
+    } catch (IOException e) {
+      sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getLocalizedMessage(),
+          e, response);
+    }
   }
 
-  private void sendError(int errorCode, String message, Throwable exception,
-      HttpServletResponse response) {
-    if (!response.isCommitted()) {
+  /**
+   * Run an import on the pool, or on this thread when the pool is full or not active.
+   */
+  private Future<ImportJob> submit(ArchiveImport archiveImport) {
+    final ThreadPoolExecutor executor = this.executor;
+    if (executor != null) {
       try {
-        LOG.error(errorCode + ": " + message, exception);
-        response.sendError(errorCode, message);
-      } catch (IOException e) {
-        throw new Error(e);
+        return executor.submit(archiveImport);
+      } catch (RejectedExecutionException e) {
+        LOG.debug("Import pool is full, importing on the request thread.");
       }
-    } else {
-      LOG.error(errorCode + ": " + message, exception);
-      throw new Error(message, exception);
     }
+    FutureTask<ImportJob> task = new FutureTask<ImportJob>(archiveImport);
+    task.run();
+    return task;
   }
 
-  private void makeResource(Resource resource, String sitePath,
-      Session session, ZipFile zip) {
-    if (resource == null) {
-      throw new IllegalArgumentException("Illegal Resource");
-    }
-    final String resourceType = resource.getType();
-    if ("org.sakaiproject.content.types.folder".equalsIgnoreCase(resourceType)) {
-      // folders are not currently supported in K2 - so ignore them
-      // final Node node = makeNode(destination, session);
-      // applyMetaData(node, resource, session);
-    } else if ("org.sakaiproject.content.types.fileUpload"
-        .equalsIgnoreCase(resourceType)
-        || "org.sakaiproject.content.types.TextDocumentType"
-            .equalsIgnoreCase(resourceType)
-        || "org.sakaiproject.content.types.HtmlDocumentType"
-            .equalsIgnoreCase(resourceType)) {
-      final String relativeId = resource.getRelativeId();
-      String fileName = null;
-      if (relativeId.contains("/")) {
-        // folders are not currently supported in K2 - strip the folders.
-        fileName = relativeId.substring(relativeId.lastIndexOf("/") + 1);
-      } else {
-        fileName = relativeId;
-      }
-      final Node node = copyFile(resource.attributes.get("body-location"),
-          fileName, sitePath, resource.attributes.get("content-type"), session,
-          zip);
-      applyMetaData(node, resource, session);
-    } else if ("org.sakaiproject.content.types.urlResource"
-        .equalsIgnoreCase(resourceType)) {
-      // ignore urlResources for now - until BigStore refactor is complete
-      // final String nodeName = destination.replace(":", "");
-      // final Node node = makeNode(nodeName, session);
-      // try {
-      // applyMetaData(node, resource, session);
-      // node.setProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
-      // "sling:redirect");
-      // node.setProperty("sling:target", resource.properties
-      // .get("DAV:displayname"));
-      // } catch (Exception e) {
-      // throw new Error(e);
-      // }
-    } else {
-      LOG.error("Missing handler for type: " + resourceType + ": " + resource);
+  private ImportJob newJob(String userId, String sitePath, String fileName) {
+    synchronized (jobs) {
+      ImportJob job = new ImportJob("siteArchive-" + (++jobCount), userId, sitePath,
+          fileName);
+      jobs.put(job.getId(), job);
+      return job;
     }
   }
 
-  private Node makeNode(String path, Session session) {
-    if (!"/".equals(path) && path.endsWith("/")) { // strip trailing slash
-      path = path.substring(0, path.lastIndexOf("/"));
+  private void writeJobs(List<ImportJob> list, boolean array, JSONWriter write)
+      throws JSONException {
+    if (array) {
+      write.array();
     }
-    Node node = null;
-    try {
-      node = JcrUtils.deepGetOrCreateNode(session, path);
-      if (session.hasPendingChanges()) {
-        session.save();
-      }
-    } catch (RepositoryException e) {
-      throw new Error(e);
+    for (ImportJob job : list) {
+      job.write(write);
+    }
+    if (array) {
+      write.endArray();
     }
-    return node;
   }
 
-  private Node copyFile(String zipEntryName, String fileName, String sitePath,
-      String contentType, Session session, ZipFile zip) {
-    final String id = uniqueId();
-    final String path = FilesConstants.USER_FILESTORE + "/" + id;
-    Node node = null;
-    try {
-      final InputStream in = zip.getInputStream(zip.getEntry(zipEntryName));
-      node = makeNode(path, session);
-      node.setProperty(JcrConstants.JCR_NAME, fileName);
-      node.setProperty(JcrConstants.JCR_MIMETYPE, contentType);
-      ValueFactory valueFactory = session.getValueFactory();
-      Binary content = valueFactory.createBinary(in);
-      node.setProperty(JcrConstants.JCR_CONTENT, content);
-      final String linkPath = sitePath + "/_files/" + fileName;
-      FileUtils.createLink(node, linkPath, sitePath, slingRepository);
-    } catch (RepositoryException e) {
-      throw new Error(e);
-    } catch (IOException e) {
-      throw new Error(e);
+  /**
+   * Imports one archive on its own session, as sessions can not be shared between
+   * threads.
+   */
+  private class ArchiveImport implements Callable<ImportJob> {
+    private final ImportJob job;
+    private final RequestParameter upload;
+    private final File archive;
+    private final boolean resume;
+    private volatile boolean cancelled;
+
+    /**
+     * @param job
+     * @param upload
+     *          the uploaded archive, if it is imported while the request is running.
+     * @param archive
+     *          a copy of the archive, deleted once it has been imported.
+     * @param resume
+     */
+    private ArchiveImport(ImportJob job, RequestParameter upload, File archive,
+        boolean resume) {
+      this.job = job;
+      this.upload = upload;
+      this.archive = archive;
+      this.resume = resume;
     }
-    return node;
-  }
 
-  private void applyMetaData(Node node, Resource resource, Session session) {
-    final Calendar calendar = Calendar.getInstance(TimeZone
-        .getTimeZone("GMT+0"));
-    try {
-      final boolean isNtFile = JcrConstants.NT_FILE.equals(node.getProperty(
-          JcrConstants.JCR_PRIMARYTYPE).getString());
-      if (!isNtFile) { // only set these properties if not nt:file; i.e. they
-        // will already be set otherwise.
-        // sakai:id
-        // node.setProperty(FilesConstants.SAKAI_ID, uniqueId());
-
-        // sakai:user
-        // node.setProperty(FilesConstants.SAKAI_USER, session.getUserID());
-
-        // jcr:mimeType
-        final String mimeType = resource.attributes.get("content-type");
-        if (mimeType != null && !"".equals(mimeType)) {
-          node.setProperty(JcrConstants.JCR_MIMETYPE, mimeType);
-        }
-      }
+    /**
+     * Leave the archive out if the import has not started yet.
+     */
+    private void cancel() {
+      cancelled = true;
+    }
 
-      // loop through all properties
-      for (String key : resource.properties.keySet()) {
-        final String value = resource.properties.get(key);
-        if (value == null || "".equals(value)) {
-          continue; // ignore empty values
-        }
-        // sakai:filename
-        else if (!isNtFile && "DAV:displayname".equals(key)) {
-          node.setProperty("sakai:filename", value);
-          continue;
-        }
-        // sakai:description
-        else if ("CHEF:description".equals(key)) {
-          node.setProperty("sakai:description", value);
-          continue;
-        }
-        // jcr:created
-        else if ("DAV:creationdate".equals(key)
-            && !node.isNodeType(JcrConstants.NT_FILE)) {
-          // cannot set jcr:created on files; i.e. nt:file
-          calendar.setTime(sdf.parse(value));
-          node.setProperty(JcrConstants.JCR_CREATED, calendar);
-          continue;
-        }
-        // jcr:lastModified
-        else if ("DAV:getlastmodified".equals(key)) {
-          calendar.setTime(sdf.parse(value));
-          node.setProperty(JcrConstants.JCR_LASTMODIFIED, calendar);
-          continue;
-        }
-        // map Dublin Core Metadata
-        else if (key.startsWith("http://purl.org/dc/")) {
-          // remap namespace
-          final String purl = key.replace("http://purl.org/dc/", "purl:");
-          node.setProperty(purl, value);
-          continue;
+    /**
+     * {@inheritDoc}
+     * 
+     * @see java.util.concurrent.Callable#call()
+     */
+    public ImportJob call() throws Exception {
+      if (cancelled) {
+        job.fail("Cancelled, another archive failed to import.");
+        delete(archive);
+        return job;
+      }
+      job.start();
+      Session adminSession = null;
+      Session session = null;
+      InputStream in = null;
+      try {
+        adminSession = slingRepository.loginAdministrative(null);
+        session = adminSession.impersonate(new SimpleCredentials(job.getUserId(),
+            new char[0]));
+        SiteArchiveImporter importer = new SiteArchiveImporter(session, job
+            .getSitePath(), batchSize, resume, xmlInputFactory, clusterTrackingService,
+            slingRepository, job);
+        if (archive == null) {
+          in = upload.getInputStream();
+          importer.importArchive(in);
+        } else {
+          importer.importArchive(archive);
         }
-        // map CHEF properties
-        else if (key.startsWith("CHEF:")) {
-          // one-to-one namespace mapping
-          node.setProperty(key, value);
-          continue;
+        job.done();
+        return job;
+      } catch (Exception e) {
+        LOG.warn("Import " + job.getId() + " into " + job.getSitePath() + " failed", e);
+        job.fail(e.getLocalizedMessage());
+        throw e;
+      } finally {
+        if (in != null) {
+          try {
+            in.close();
+          } catch (IOException e) {
+            LOG.debug("Unable to close archive", e);
+          }
         }
-        // map SAKAI properties
-        else if (key.startsWith("SAKAI:")) {
-          // map to sakai: namespace (i.e. lowercase)
-          node.setProperty(key.replace("SAKAI:", "sakai:"), value);
-          continue;
+        if (session != null) {
+          session.logout();
         }
-        // DAV properties
-        else if (key.startsWith("DAV:")) {
-          // all remaining DAV properties will be ignored to avoid conflicts
-          // with WebDAV server
-          continue;
+        if (adminSession != null) {
+          adminSession.logout();
         }
-        LOG.error("Unknown metadata not imported: {},{}", new String[] { key,
-            value });
+        delete(archive);
       }
-      if (session.hasPendingChanges()) {
-        session.save();
-      }
-    } catch (Exception e) {
-      throw new Error(e);
     }
   }
 
-  /**
-   * Generate a cluster unique String id.
-   * 
-   * @return A String which is unique within the cluster.
-   */
-  private String uniqueId() {
-    LOG.debug("uniqueId()");
-    // copied from FilesUploadServlet.java
-    String id = clusterTrackingService.getClusterUniqueId();
-    if (id.endsWith("==")) {
-      id = id.substring(0, id.length() - 2);
+  private void copy(InputStream in, File file) throws IOException {
+    final OutputStream out = new FileOutputStream(file);
+    try {
+      final byte[] buf = new byte[BUFFER_SIZE];
+      int len;
+      while ((len = in.read(buf)) > 0) {
+        out.write(buf, 0, len);
+      }
+    } finally {
+      out.close();
+      in.close();
     }
-    id = id.replace('/', '_').replace('=', '-');
-    // end copied from FilesUploadServlet.java
-    return id;
   }
 
-  /**
-   * Simple data object to collect the data being parsed from content.xml
-   */
-  private static class Resource {
-    private Map<String, String> attributes = new HashMap<String, String>();
-    private Map<String, String> properties = new HashMap<String, String>();
-
-    public String getId() {
-      return attributes.get("id");
-    }
-
-    public String getRelativeId() {
-      return attributes.get("rel-id");
-    }
-
-    public String getType() {
-      return attributes.get("resource-type");
+  private void delete(File file) {
+    if (file != null) {
+      if (file.delete()) {
+        LOG.debug("{}: temporary zip file deleted.", file.getAbsolutePath());
+      } else {
+        LOG.warn("Could not delete temporary file: {}", file.getAbsolutePath());
+      }
     }
+  }
 
-    @Override
-    public int hashCode() {
-      return this.getId().hashCode();
-    }
+  private String getString(SlingHttpServletRequest request, String name) {
+    final RequestParameter param = request.getRequestParameter(name);
+    return param == null ? null : param.getString();
+  }
 
-    @Override
-    public String toString() {
-      return getRelativeId();
+  private void sendError(int errorCode, String message, Throwable exception,
+      HttpServletResponse response) {
+    if (!response.isCommitted()) {
+      try {
+        LOG.error(errorCode + ": " + message, exception);
+        response.sendError(errorCode, message);
+      } catch (IOException e) {
+        throw new Error(e);
+      }
+    } else {
+      LOG.error(errorCode + ": " + message, exception);
+      throw new Error(message, exception);
     }
   }
 }
@@ -0,0 +1,566 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.importer;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.api.files.FileUtils;
+import org.sakaiproject.nakamura.api.files.FilesConstants;
+import org.sakaiproject.nakamura.util.JcrUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Imports one Sakai 2 site archive into a site. The files listed in content.xml are
+ * written to the repository in batches, and each batch is saved and linked into the site
+ * at once. An archive held in a file is read with content.xml first, so every body is
+ * written straight from the archive. An archive read as a stream is read in order: the
+ * bodies that come after content.xml are written straight from the archive, those that
+ * come before it are spooled to temporary files until content.xml says what they are.
+ */
+public class SiteArchiveImporter {
+  private static final Logger LOG = LoggerFactory.getLogger(SiteArchiveImporter.class);
+
+  private static final int BUFFER_SIZE = 65536;
+  private static final String[] SUPPORTED_VERSIONS = { "Sakai 1.0" };
+
+  private final Session session;
+  private final String sitePath;
+  private final int batchSize;
+  private final boolean resume;
+  private final XMLInputFactory xmlInputFactory;
+  private final ClusterTrackingService clusterTrackingService;
+  private final SlingRepository slingRepository;
+  private final ImportJob job;
+  private final Base64 base64 = new Base64();
+  private final SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMddHHmmssSSS");
+
+  /**
+   * Bodies read before content.xml, by entry name.
+   */
+  private final Map<String, File> spooled = new HashMap<String, File>();
+  /**
+   * Files listed in content.xml whose body has not been read yet, by entry name.
+   */
+  private final Map<String, Resource> waiting = new HashMap<String, Resource>();
+  /**
+   * Files written since the last save, and the path of the link of each.
+   */
+  private final List<Node> batch = new ArrayList<Node>();
+  private final List<String> batchLinks = new ArrayList<String>();
+  private boolean contentRead;
+
+  /**
+   * @param session
+   *          the session to write the files with.
+   * @param sitePath
+   *          the site the files are linked into.
+   * @param batchSize
+   *          the number of files written between saves.
+   * @param resume
+   *          true to leave out files that are linked into the site already, to finish an
+   *          import that was interrupted.
+   * @param xmlInputFactory
+   * @param clusterTrackingService
+   * @param slingRepository
+   * @param job
+   *          updated with the progress of the import.
+   */
+  public SiteArchiveImporter(Session session, String sitePath, int batchSize,
+      boolean resume, XMLInputFactory xmlInputFactory,
+      ClusterTrackingService clusterTrackingService, SlingRepository slingRepository,
+      ImportJob job) {
+    this.session = session;
+    this.sitePath = sitePath;
+    this.batchSize = Math.max(1, batchSize);
+    this.resume = resume;
+    this.xmlInputFactory = xmlInputFactory;
+    this.clusterTrackingService = clusterTrackingService;
+    this.slingRepository = slingRepository;
+    this.job = job;
+    sdf.setTimeZone(TimeZone.getTimeZone("GMT+0"));
+  }
+
+  /**
+   * Import an archive.
+   * 
+   * @param in
+   *          the ZIP archive, it is read to the end but not closed.
+   * @throws ZipException
+   *           the archive is not a ZIP file.
+   * @throws IOException
+   * @throws XMLStreamException
+   * @throws RepositoryException
+   */
+  public void importArchive(InputStream in) throws IOException, XMLStreamException,
+      RepositoryException {
+    ZipInputStream zip = new ZipInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+    try {
+      boolean empty = true;
+      for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip
+          .getNextEntry()) {
+        empty = false;
+        final String name = entry.getName();
+        if (entry.isDirectory() || name.startsWith("__MACOSX")
+            || name.endsWith(".DS_Store")) {
+          continue; // skip entry
+        }
+        if ("content.xml".equals(name)) {
+          processContentXml(new EntryInputStream(zip));
+        } else if (contentRead) {
+          Resource resource = waiting.remove(name);
+          if (resource != null) {
+            copyFile(resource, new EntryInputStream(zip));
+          }
+        } else if (!name.endsWith(".xml")) {
+          spool(name, zip);
+        }
+      }
+      if (empty) {
+        throw new ZipException("No entries found");
+      }
+      finish();
+    } finally {
+      for (File file : spooled.values()) {
+        delete(file);
+      }
+    }
+  }
+
+  /**
+   * Import an archive held in a file. content.xml is read first, then the bodies it lists
+   * are written in the order they come in the archive, nothing is spooled.
+   * 
+   * @param archive
+   *          the ZIP archive.
+   * @throws ZipException
+   *           the archive is not a ZIP file.
+   * @throws IOException
+   * @throws XMLStreamException
+   * @throws RepositoryException
+   */
+  public void importArchive(File archive) throws IOException, XMLStreamException,
+      RepositoryException {
+    ZipFile zip = new ZipFile(archive);
+    try {
+      if (zip.size() == 0) {
+        throw new ZipException("No entries found");
+      }
+      ZipEntry content = zip.getEntry("content.xml");
+      if (content != null) {
+        InputStream in = zip.getInputStream(content);
+        try {
+          processContentXml(in);
+        } finally {
+          in.close();
+        }
+        for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries
+            .hasMoreElements()
+            && !waiting.isEmpty();) {
+          ZipEntry entry = entries.nextElement();
+          Resource resource = waiting.remove(entry.getName());
+          if (resource != null) {
+            InputStream body = zip.getInputStream(entry);
+            try {
+              copyFile(resource, body);
+            } finally {
+              body.close();
+            }
+          }
+        }
+      }
+      finish();
+    } finally {
+      zip.close();
+    }
+  }
+
+  /**
+   * Save the last batch, once the whole archive has been read.
+   */
+  private void finish() throws RepositoryException {
+    for (Resource resource : waiting.values()) {
+      LOG.warn("Body of {} not found in the archive", resource);
+    }
+    save();
+  }
+
+  private void processContentXml(InputStream in) throws XMLStreamException,
+      IOException, RepositoryException {
+    Map<String, Resource> resources = new HashMap<String, Resource>();
+    String currentResourceId = null;
+    XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(in);
+    for (int event = reader.next(); event != XMLStreamReader.END_DOCUMENT; event = reader
+        .next()) {
+      String localName = null;
+      switch (event) {
+      case XMLStreamReader.START_ELEMENT:
+        localName = reader.getLocalName();
+        if ("archive".equalsIgnoreCase(localName)) {
+          final String system = reader.getAttributeValue(null, "system");
+          boolean supportedVersion = false;
+          for (String version : SUPPORTED_VERSIONS) {
+            if (version.equalsIgnoreCase(system)) {
+              supportedVersion = true;
+            }
+          }
+          if (!supportedVersion) {
+            throw new XMLStreamException("Not a supported version: " + system);
+          }
+          break;
+        }
+        if ("collection".equalsIgnoreCase(localName)
+            || "resource".equalsIgnoreCase(localName)) {
+          // grab the resource's attributes
+          Resource resource = new Resource();
+          for (int i = 0; i < reader.getAttributeCount(); i++) {
+            resource.attributes.put(reader.getAttributeLocalName(i).toLowerCase(),
+                reader.getAttributeValue(i));
+          }
+          currentResourceId = resource.getId();
+          resources.put(currentResourceId, resource);
+          break;
+        }
+        if ("property".equalsIgnoreCase(localName)) {
+          Resource resource = resources.get(currentResourceId);
+          final String name = reader.getAttributeValue(null, "name");
+          String value = reader.getAttributeValue(null, "value");
+          if (value != null && !"".equals(value)) {
+            if ("BASE64".equalsIgnoreCase(reader.getAttributeValue(null, "enc"))) {
+              value = new String(base64.decode(value));
+            }
+            resource.properties.put(name, value);
+          }
+          break;
+        }
+        break;
+      case XMLStreamReader.END_ELEMENT:
+        localName = reader.getLocalName();
+        if ("collection".equalsIgnoreCase(localName)
+            || "resource".equalsIgnoreCase(localName)) {
+          makeResource(resources.remove(currentResourceId));
+        }
+        break;
+      } // end switch
+    } // end for
+    reader.close();
+    contentRead = true;
+  }
+
+  private void makeResource(Resource resource) throws IOException, RepositoryException {
+    if (resource == null) {
+      throw new IllegalArgumentException("Illegal Resource");
+    }
+    final String resourceType = resource.getType();
+    if ("org.sakaiproject.content.types.folder".equalsIgnoreCase(resourceType)) {
+      // folders are not currently supported in K2 - so ignore them
+    } else if ("org.sakaiproject.content.types.fileUpload".equalsIgnoreCase(resourceType)
+        || "org.sakaiproject.content.types.TextDocumentType"
+            .equalsIgnoreCase(resourceType)
+        || "org.sakaiproject.content.types.HtmlDocumentType"
+            .equalsIgnoreCase(resourceType)) {
+      job.addResource();
+      if (resume && session.itemExists(getLinkPath(resource))) {
+        job.skipped();
+        return;
+      }
+      final String bodyLocation = resource.attributes.get("body-location");
+      final File body = spooled.remove(bodyLocation);
+      if (body != null) {
+        final InputStream in = new FileInputStream(body);
+        try {
+          copyFile(resource, in);
+        } finally {
+          in.close();
+          delete(body);
+        }
+      } else {
+        waiting.put(bodyLocation, resource);
+      }
+    } else if ("org.sakaiproject.content.types.urlResource"
+        .equalsIgnoreCase(resourceType)) {
+      // ignore urlResources for now - until BigStore refactor is complete
+    } else {
+      LOG.error("Missing handler for type: " + resourceType + ": " + resource);
+    }
+  }
+
+  /**
+   * Write a file, saving the batch when it is full.
+   */
+  private void copyFile(Resource resource, InputStream in) throws RepositoryException {
+    final String path = FilesConstants.USER_FILESTORE + "/" + uniqueId();
+    final Node node = JcrUtils.deepGetOrCreateNode(session, path);
+    node.setProperty(JcrConstants.JCR_NAME, getFileName(resource));
+    node.setProperty(JcrConstants.JCR_MIMETYPE, resource.attributes.get("content-type"));
+    Binary content = session.getValueFactory().createBinary(in);
+    node.setProperty(JcrConstants.JCR_CONTENT, content);
+    applyMetaData(node, resource);
+    batch.add(node);
+    batchLinks.add(getLinkPath(resource));
+    if (batch.size() >= batchSize) {
+      save();
+    }
+  }
+
+  /**
+   * Save the files of the batch and link them into the site. The links can only be made
+   * to saved files, so when linking fails the files are removed again. A resumed import
+   * then writes them again, rather than leaving them unlinked.
+   */
+  private void save() throws RepositoryException {
+    if (batch.isEmpty()) {
+      return;
+    }
+    session.save();
+    try {
+      FileUtils.createLinks(batch, batchLinks, sitePath, slingRepository);
+    } catch (RepositoryException e) {
+      removeBatch();
+      throw e;
+    }
+    job.imported(batch.size());
+    batch.clear();
+    batchLinks.clear();
+  }
+
+  /**
+   * Remove the saved files of a batch that could not be linked.
+   */
+  private void removeBatch() {
+    try {
+      session.refresh(false);
+      for (Node node : batch) {
+        node.remove();
+      }
+      session.save();
+    } catch (RepositoryException e) {
+      LOG.warn("Unable to remove the unlinked files of a batch", e);
+    }
+  }
+
+  private void applyMetaData(Node node, Resource resource) throws RepositoryException {
+    final Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("GMT+0"));
+    final boolean isNtFile = JcrConstants.NT_FILE.equals(node.getProperty(
+        JcrConstants.JCR_PRIMARYTYPE).getString());
+    if (!isNtFile) { // only set these properties if not nt:file; i.e. they
+      // will already be set otherwise.
+      // jcr:mimeType
+      final String mimeType = resource.attributes.get("content-type");
+      if (mimeType != null && !"".equals(mimeType)) {
+        node.setProperty(JcrConstants.JCR_MIMETYPE, mimeType);
+      }
+    }
+
+    // loop through all properties
+    for (String key : resource.properties.keySet()) {
+      final String value = resource.properties.get(key);
+      try {
+        if (value == null || "".equals(value)) {
+          continue; // ignore empty values
+        }
+        // sakai:filename
+        else if (!isNtFile && "DAV:displayname".equals(key)) {
+          node.setProperty("sakai:filename", value);
+          continue;
+        }
+        // sakai:description
+        else if ("CHEF:description".equals(key)) {
+          node.setProperty("sakai:description", value);
+          continue;
+        }
+        // jcr:created
+        else if ("DAV:creationdate".equals(key)
+            && !node.isNodeType(JcrConstants.NT_FILE)) {
+          // cannot set jcr:created on files; i.e. nt:file
+          calendar.setTime(sdf.parse(value));
+          node.setProperty(JcrConstants.JCR_CREATED, calendar);
+          continue;
+        }
+        // jcr:lastModified
+        else if ("DAV:getlastmodified".equals(key)) {
+          calendar.setTime(sdf.parse(value));
+          node.setProperty(JcrConstants.JCR_LASTMODIFIED, calendar);
+          continue;
+        }
+        // map Dublin Core Metadata
+        else if (key.startsWith("http://purl.org/dc/")) {
+          // remap namespace
+          final String purl = key.replace("http://purl.org/dc/", "purl:");
+          node.setProperty(purl, value);
+          continue;
+        }
+        // map CHEF properties
+        else if (key.startsWith("CHEF:")) {
+          // one-to-one namespace mapping
+          node.setProperty(key, value);
+          continue;
+        }
+        // map SAKAI properties
+        else if (key.startsWith("SAKAI:")) {
+          // map to sakai: namespace (i.e. lowercase)
+          node.setProperty(key.replace("SAKAI:", "sakai:"), value);
+          continue;
+        }
+        // DAV properties
+        else if (key.startsWith("DAV:")) {
+          // all remaining DAV properties will be ignored to avoid conflicts
+          // with WebDAV server
+          continue;
+        }
+      } catch (java.text.ParseException e) {
+        LOG.warn("Invalid date not imported: {},{}", key, value);
+        continue;
+      }
+      LOG.error("Unknown metadata not imported: {},{}", key, value);
+    }
+  }
+
+  /**
+   * Copy a body that content.xml has not described yet to a temporary file.
+   */
+  private void spool(String name, InputStream in) throws IOException {
+    final File file = File.createTempFile("siteArchive", ".body");
+    file.deleteOnExit(); // just in case
+    final OutputStream out = new FileOutputStream(file);
+    try {
+      final byte[] buf = new byte[BUFFER_SIZE];
+      int len;
+      while ((len = in.read(buf)) > 0) {
+        out.write(buf, 0, len);
+      }
+    } finally {
+      out.close();
+    }
+    File old = spooled.put(name, file);
+    if (old != null) {
+      delete(old);
+    }
+  }
+
+  private void delete(File file) {
+    if (!file.delete()) {
+      LOG.warn("Could not delete temporary file: {}", file.getAbsolutePath());
+    }
+  }
+
+  private String getFileName(Resource resource) {
+    final String relativeId = resource.getRelativeId();
+    if (relativeId.contains("/")) {
+      // folders are not currently supported in K2 - strip the folders.
+      return relativeId.substring(relativeId.lastIndexOf("/") + 1);
+    }
+    return relativeId;
+  }
+
+  private String getLinkPath(Resource resource) {
+    return sitePath + "/_files/" + getFileName(resource);
+  }
+
+  /**
+   * Generate a cluster unique String id.
+   * 
+   * @return A String which is unique within the cluster.
+   */
+  private String uniqueId() {
+    // copied from FilesUploadServlet.java
+    String id = clusterTrackingService.getClusterUniqueId();
+    if (id.endsWith("==")) {
+      id = id.substring(0, id.length() - 2);
+    }
+    id = id.replace('/', '_').replace('=', '-');
+    // end copied from FilesUploadServlet.java
+    return id;
+  }
+
+  /**
+   * The current entry of a ZIP stream, left open when it is closed so that the next
+   * entries can be read.
+   */
+  private static class EntryInputStream extends FilterInputStream {
+    EntryInputStream(ZipInputStream in) {
+      super(in);
+    }
+
+    @Override
+    public void close() {
+      // the entry is closed by the next call to getNextEntry
+    }
+  }
+
+  /**
+   * Simple data object to collect the data being parsed from content.xml
+   */
+  private static class Resource {
+    private Map<String, String> attributes = new HashMap<String, String>();
+    private Map<String, String> properties = new HashMap<String, String>();
+
+    public String getId() {
+      return attributes.get("id");
+    }
+
+    public String getRelativeId() {
+      return attributes.get("rel-id");
+    }
+
+    public String getType() {
+      return attributes.get("resource-type");
+    }
+
+    @Override
+    public int hashCode() {
+      return this.getId().hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return getRelativeId();
+    }
+  }
+}
@@ -17,7 +17,10 @@
  */
 package org.sakaiproject.nakamura.importer;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.RETURNS_SMART_NULLS;
@@ -26,17 +29,36 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.Mockito.withSettings;
 
+import org.apache.jackrabbit.JcrConstants;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
 
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Hashtable;
+
+import javax.jcr.Credentials;
+import javax.jcr.Node;
+import javax.jcr.Property;
 import javax.jcr.Session;
+import javax.jcr.ValueFactory;
+import javax.jcr.nodetype.NodeType;
 import javax.servlet.ServletConfig;
 import javax.servlet.http.HttpServletResponse;
 
@@ -45,9 +67,27 @@ import javax.servlet.http.HttpServletResponse;
  */
 @RunWith(MockitoJUnitRunner.class)
 public class ImportSiteArchiveServletTest {
+  private static final String SITE = "/sites/physics";
+
   private ImportSiteArchiveServlet importSiteArchiveServlet;
   @Mock
   ServletConfig servletConfig;
+  @Mock
+  ComponentContext componentContext;
+  @Mock
+  SlingRepository slingRepository;
+  @Mock
+  Session adminSession;
+  @Mock
+  Session session;
+  @Mock
+  ClusterTrackingService clusterTrackingService;
+  @Mock
+  ValueFactory valueFactory;
+  @Mock
+  Node node;
+  @Mock
+  Property primaryType;
 
   @Before
   public void setUp() throws Exception {
@@ -59,6 +99,77 @@ public class ImportSiteArchiveServletTest {
     }
   }
 
+  @After
+  public void tearDown() {
+    importSiteArchiveServlet.deactivate(componentContext);
+  }
+
+  @Test
+  public void testDoPostAsync() throws Exception {
+    activate();
+    SlingHttpServletRequest request = createPost("ieb", "true", createFile("archive.zip",
+        new FileInputStream("archive.zip")));
+    StringWriter writer = new StringWriter();
+    SlingHttpServletResponse response = createResponse(writer);
+
+    importSiteArchiveServlet.doPost(request, response);
+
+    verify(response).setStatus(HttpServletResponse.SC_ACCEPTED);
+    JSONArray jobs = new JSONArray(writer.toString());
+    assertEquals(1, jobs.length());
+    assertEquals("siteArchive-1", jobs.getJSONObject(0).getString("id"));
+    assertEquals(SITE, jobs.getJSONObject(0).getString("site"));
+    assertEquals("archive.zip", jobs.getJSONObject(0).getString("file"));
+
+    JSONObject job = awaitJob("ieb", "siteArchive-1");
+    assertEquals(ImportJob.DONE, job.getString("state"));
+    assertEquals(7, job.getInt("resources"));
+    assertEquals(7, job.getInt("imported"));
+    assertEquals(0, job.getInt("skipped"));
+  }
+
+  @Test
+  public void testDoGetOwnJobsOnly() throws Exception {
+    activate();
+    importSiteArchiveServlet.doPost(createPost("ieb", "true", createFile("archive.zip",
+        new FileInputStream("archive.zip"))), createResponse(new StringWriter()));
+    awaitJob("ieb", "siteArchive-1");
+
+    StringWriter writer = new StringWriter();
+    importSiteArchiveServlet.doGet(createGet("ieb", null), createResponse(writer));
+    assertEquals(1, new JSONArray(writer.toString()).length());
+
+    writer = new StringWriter();
+    importSiteArchiveServlet.doGet(createGet("other", null), createResponse(writer));
+    assertEquals(0, new JSONArray(writer.toString()).length());
+
+    SlingHttpServletResponse response = createResponse(new StringWriter());
+    importSiteArchiveServlet.doGet(createGet("other", "siteArchive-1"), response);
+    verify(response).sendError(eq(HttpServletResponse.SC_NOT_FOUND), anyString());
+  }
+
+  @Test
+  public void testDoPostFailureWaitsForOtherImports() throws Exception {
+    activate();
+    SlingHttpServletRequest request = createPost("ieb", null, createFile("broken.zip",
+        new ByteArrayInputStream("not a zip".getBytes())), createFile("archive.zip",
+        new FileInputStream("archive.zip")));
+    SlingHttpServletResponse response = createResponse(new StringWriter());
+
+    importSiteArchiveServlet.doPost(request, response);
+
+    verify(response).sendError(eq(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE),
+        anyString());
+    // nothing reads the upload once the request is over.
+    StringWriter writer = new StringWriter();
+    importSiteArchiveServlet.doGet(createGet("ieb", null), createResponse(writer));
+    JSONArray jobs = new JSONArray(writer.toString());
+    assertEquals(2, jobs.length());
+    assertEquals(ImportJob.FAILED, jobs.getJSONObject(0).getString("state"));
+    String state = jobs.getJSONObject(1).getString("state");
+    assertFalse(state, ImportJob.QUEUED.equals(state) || ImportJob.RUNNING.equals(state));
+  }
+
   @Test
   public void testDoPostNoSiteParam() {
     SlingHttpServletRequest request = mock(SlingHttpServletRequest.class,
@@ -218,4 +329,100 @@ public class ImportSiteArchiveServletTest {
   // assertNull("doPost method should not throw any exceptions", e);
   // }
   // }
+
+  private void activate() throws Exception {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(ImportSiteArchiveServlet.IMPORT_THREADS, 1);
+    when(componentContext.getProperties()).thenReturn(properties);
+    importSiteArchiveServlet.activate(componentContext);
+    importSiteArchiveServlet.slingRepository = slingRepository;
+    importSiteArchiveServlet.clusterTrackingService = clusterTrackingService;
+
+    when(slingRepository.loginAdministrative(null)).thenReturn(adminSession);
+    when(adminSession.impersonate(any(Credentials.class))).thenReturn(session);
+    when(adminSession.getItem(anyString())).thenReturn(node);
+    when(adminSession.hasPendingChanges()).thenReturn(true);
+    when(session.getUserID()).thenReturn("ieb");
+    when(session.itemExists(anyString())).thenReturn(true);
+    when(session.getItem(anyString())).thenReturn(node);
+    when(session.getValueFactory()).thenReturn(valueFactory);
+    when(session.hasPendingChanges()).thenReturn(true);
+    when(clusterTrackingService.getClusterUniqueId()).thenReturn("abc==");
+    when(node.getSession()).thenReturn(session);
+    when(node.getPath()).thenReturn("/_user/files/abc");
+    when(node.getProperty(JcrConstants.JCR_PRIMARYTYPE)).thenReturn(primaryType);
+    when(node.getMixinNodeTypes()).thenReturn(new NodeType[0]);
+    when(node.addNode(anyString())).thenReturn(node);
+    when(primaryType.getString()).thenReturn(JcrConstants.NT_UNSTRUCTURED);
+  }
+
+  /**
+   * @return the state of the job once it is done or has failed.
+   */
+  private JSONObject awaitJob(String userId, String id) throws Exception {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (true) {
+      StringWriter writer = new StringWriter();
+      importSiteArchiveServlet.doGet(createGet(userId, id), createResponse(writer));
+      JSONObject job = new JSONObject(writer.toString());
+      String state = job.getString("state");
+      if (ImportJob.DONE.equals(state) || ImportJob.FAILED.equals(state)
+          || System.currentTimeMillis() > deadline) {
+        return job;
+      }
+      Thread.sleep(10);
+    }
+  }
+
+  private SlingHttpServletRequest createPost(String userId, String async,
+      RequestParameter... files) {
+    SlingHttpServletRequest request = createRequest(userId);
+    RequestParameter siteParam = createParameter(SITE);
+    when(request.getRequestParameter("site")).thenReturn(siteParam);
+    if (async != null) {
+      RequestParameter asyncParam = createParameter(async);
+      when(request.getRequestParameter("async")).thenReturn(asyncParam);
+    }
+    when(request.getRequestParameters("Filedata")).thenReturn(files);
+    return request;
+  }
+
+  private SlingHttpServletRequest createGet(String userId, String job) {
+    SlingHttpServletRequest request = createRequest(userId);
+    if (job != null) {
+      RequestParameter jobParam = createParameter(job);
+      when(request.getRequestParameter("job")).thenReturn(jobParam);
+    }
+    return request;
+  }
+
+  private SlingHttpServletRequest createRequest(String userId) {
+    Session userSession = mock(Session.class);
+    when(userSession.getUserID()).thenReturn(userId);
+    ResourceResolver resolver = mock(ResourceResolver.class);
+    when(resolver.adaptTo(Session.class)).thenReturn(userSession);
+    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+    when(request.getResourceResolver()).thenReturn(resolver);
+    return request;
+  }
+
+  private RequestParameter createParameter(String value) {
+    RequestParameter param = mock(RequestParameter.class);
+    when(param.getString()).thenReturn(value);
+    return param;
+  }
+
+  private RequestParameter createFile(String fileName, InputStream in) throws Exception {
+    RequestParameter file = mock(RequestParameter.class);
+    when(file.getFileName()).thenReturn(fileName);
+    when(file.getContentType()).thenReturn("application/zip");
+    when(file.getInputStream()).thenReturn(in);
+    return file;
+  }
+
+  private SlingHttpServletResponse createResponse(StringWriter writer) throws Exception {
+    SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+    when(response.getWriter()).thenReturn(new PrintWriter(writer));
+    return response;
+  }
 }
@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.importer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.ctc.wstx.stax.WstxInputFactory;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.zip.ZipException;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.ValueFactory;
+import javax.jcr.nodetype.NodeType;
+import javax.xml.stream.XMLInputFactory;
+
+/**
+ * Imports the test archive, which holds 7 files whose bodies come before content.xml,
+ * both as a stream and as a file.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class SiteArchiveImporterTest {
+  private static final String SITE = "/sites/physics";
+
+  @Mock
+  Session session;
+  @Mock
+  Session adminSession;
+  @Mock
+  SlingRepository slingRepository;
+  @Mock
+  ClusterTrackingService clusterTrackingService;
+  @Mock
+  ValueFactory valueFactory;
+  @Mock
+  Node node;
+  @Mock
+  Property primaryType;
+
+  private XMLInputFactory xmlInputFactory;
+  private ImportJob job;
+
+  @Before
+  public void setUp() throws Exception {
+    xmlInputFactory = new WstxInputFactory();
+    xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    xmlInputFactory.setProperty(XMLInputFactory.IS_VALIDATING, false);
+    xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+    job = new ImportJob("siteArchive-1", "ieb", SITE, "archive.zip");
+
+    when(session.getUserID()).thenReturn("ieb");
+    when(session.itemExists(anyString())).thenReturn(true);
+    when(session.getItem(anyString())).thenReturn(node);
+    when(session.getValueFactory()).thenReturn(valueFactory);
+    when(session.hasPendingChanges()).thenReturn(true);
+    when(adminSession.getItem(anyString())).thenReturn(node);
+    when(adminSession.getValueFactory()).thenReturn(valueFactory);
+    when(adminSession.hasPendingChanges()).thenReturn(true);
+    when(slingRepository.loginAdministrative(null)).thenReturn(adminSession);
+    when(clusterTrackingService.getClusterUniqueId()).thenReturn("abc==");
+    when(node.getSession()).thenReturn(session);
+    when(node.getPath()).thenReturn("/_user/files/abc");
+    when(node.getProperty(JcrConstants.JCR_PRIMARYTYPE)).thenReturn(primaryType);
+    when(node.getMixinNodeTypes()).thenReturn(new NodeType[0]);
+    when(node.addNode(anyString())).thenReturn(node);
+    when(primaryType.getString()).thenReturn(JcrConstants.NT_UNSTRUCTURED);
+  }
+
+  @Test
+  public void testBatchedSaves() throws Exception {
+    importArchive(3, false);
+
+    assertEquals(7, job.getResources());
+    assertEquals(7, job.getImported());
+    verify(valueFactory, times(7)).createBinary(any(InputStream.class));
+    // 3 batches, each saving its files and then their links.
+    verify(session, times(6)).save();
+    verify(adminSession, times(3)).save();
+    verify(slingRepository, times(3)).loginAdministrative(null);
+  }
+
+  @Test
+  public void testResume() throws Exception {
+    when(session.itemExists(startsWith(SITE + "/_files/"))).thenReturn(false);
+    when(session.itemExists(SITE + "/_files/Picture 13.png")).thenReturn(true);
+    importArchive(100, true);
+
+    assertEquals(7, job.getResources());
+    assertEquals(6, job.getImported());
+    assertEquals(1, job.getSkipped());
+    verify(valueFactory, times(6)).createBinary(any(InputStream.class));
+    verify(session, times(2)).save();
+  }
+
+  @Test
+  public void testUnlinkedBatchRemoved() throws Exception {
+    doThrow(new RepositoryException("Unable to link")).when(adminSession).save();
+    try {
+      importArchive(100, false);
+      fail("The import should fail when the files can not be linked");
+    } catch (RepositoryException e) {
+      assertEquals("Unable to link", e.getMessage());
+    }
+
+    assertEquals(0, job.getImported());
+    // the saved files are removed again, so that resuming writes them.
+    verify(session).refresh(false);
+    verify(node, times(7)).remove();
+    verify(session, times(2)).save();
+  }
+
+  @Test
+  public void testArchiveFile() throws Exception {
+    // content.xml is read first, the bodies are written straight from the file.
+    new SiteArchiveImporter(session, SITE, 3, false, xmlInputFactory,
+        clusterTrackingService, slingRepository, job).importArchive(new File("archive.zip"));
+
+    assertEquals(7, job.getResources());
+    assertEquals(7, job.getImported());
+    verify(valueFactory, times(7)).createBinary(any(InputStream.class));
+    verify(session, times(6)).save();
+  }
+
+  @Test(expected = ZipException.class)
+  public void testNotAZip() throws Exception {
+    new SiteArchiveImporter(session, SITE, 100, false, xmlInputFactory,
+        clusterTrackingService, slingRepository, job)
+        .importArchive(new ByteArrayInputStream("not a zip".getBytes()));
+  }
+
+  private void importArchive(int batchSize, boolean resume) throws Exception {
+    InputStream in = new FileInputStream("archive.zip");
+    try {
+      new SiteArchiveImporter(session, SITE, batchSize, resume, xmlInputFactory,
+          clusterTrackingService, slingRepository, job).importArchive(in);
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -62,6 +62,12 @@ public class LdapConnectionManagerConfig {
   /** Maximum number of connections to allow, if pooling is used. */
   private int poolMaxConns = 10;
 
+  /**
+   * Maximum number of connections bound as the login user to keep apart for searches, if
+   * pooling is used.
+   */
+  private int poolMaxBoundConns = 10;
+
   public LdapConnectionManagerConfig() {
   }
 
@@ -88,6 +94,7 @@ public class LdapConnectionManagerConfig {
     LdapConnectionManagerConfig config = new LdapConnectionManagerConfig(secureConnection, tls,
         keystoreLocation, keystorePassword, operationTimeout, ldapHost, ldapPort, loginUser,
         loginPassword, followReferrals, autoBind, pooling, poolMaxConns);
+    config.setPoolMaxBoundConns(poolMaxBoundConns);
     return config;
   }
 
@@ -305,4 +312,23 @@ public class LdapConnectionManagerConfig {
   public void setPoolMaxConns(int maxConns) {
     this.poolMaxConns = maxConns;
   }
+
+  /**
+   * @return The maximum number of physical connections bound as the login user that are
+   *         pooled apart from the connections handed out for other binds. 0 if there is
+   *         no such pool.
+   */
+  public int getPoolMaxBoundConns() {
+    return poolMaxBoundConns;
+  }
+
+  /**
+   * @param maxBoundConns
+   *          The maximum number of physical connections bound as the login user that are
+   *          pooled apart from the connections handed out for other binds. 0 to have no
+   *          such pool.
+   */
+  public void setPoolMaxBoundConns(int maxBoundConns) {
+    this.poolMaxBoundConns = maxBoundConns;
+  }
 }
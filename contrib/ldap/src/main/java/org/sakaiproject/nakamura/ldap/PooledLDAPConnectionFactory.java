@@ -55,6 +55,9 @@ public class PooledLDAPConnectionFactory implements PoolableObjectFactory {
 
   private List<LdapConnectionLivenessValidator> validators;
 
+  /** bind as the login user whatever the autoBind setting */
+  private boolean bindAlways;
+
   public PooledLDAPConnectionFactory(LdapConnectionManager connMgr,
       List<LdapConnectionLivenessValidator> validators) {
     setConnectionManager(connMgr);
@@ -65,6 +68,20 @@ public class PooledLDAPConnectionFactory implements PoolableObjectFactory {
     this.validators = validators;
   }
 
+  /**
+   * @param bindAlways
+   *          if <code>true</code> the connections are bound as the login user when they
+   *          are made and when they are validated, as they would be with autoBind set.
+   *          Used for the pool of connections kept for searches.
+   */
+  public void setBindAlways(boolean bindAlways) {
+    this.bindAlways = bindAlways;
+  }
+
+  private boolean isAutoBind() {
+    return bindAlways || mgr.getConfig().isAutoBind();
+  }
+
   /**
    * Constructs a new PooledLDAPConnection object, including: passing it the
    * connection manager so it can return itself to the pool if it falls out of
@@ -92,7 +109,7 @@ public class PooledLDAPConnectionFactory implements PoolableObjectFactory {
       conn.startTLS();
       log.debug("makeObject(): successfully initiated TLS");
     }
-    if (mgr.getConfig().isAutoBind()) {
+    if (isAutoBind()) {
       String binddn = mgr.getConfig().getLdapUser();
       log.debug("makeObject(): binding connection to default bind DN [{}]", binddn);
       byte[] bindpw;
@@ -175,7 +192,7 @@ public class PooledLDAPConnectionFactory implements PoolableObjectFactory {
 
         log.debug("validateObject(): connection bindAttempted flag is set");
 
-        if (!(mgr.getConfig().isAutoBind())) {
+        if (!isAutoBind()) {
           log
               .debug("validateObject(): last borrower attempted bind operation, but no default bind credentials available, invalidating connection");
           conn.setActive(false);
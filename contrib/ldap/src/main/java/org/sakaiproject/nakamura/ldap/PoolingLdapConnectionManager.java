@@ -39,7 +39,9 @@ import org.sakaiproject.nakamura.api.ldap.LdapConnectionManagerConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collections;
 import java.util.Hashtable;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -112,6 +114,10 @@ public class PoolingLdapConnectionManager extends SimpleLdapConnectionManager {
   @Property(intValue = DEFAULT_POOLING_MAX_CONNS)
   static final String POOLING_MAX_CONNS = "sakai.ldap.pooling.maxConns";
 
+  static final int DEFAULT_POOLING_MAX_BOUND_CONNS = 10;
+  @Property(intValue = DEFAULT_POOLING_MAX_BOUND_CONNS)
+  static final String POOLING_MAX_BOUND_CONNS = "sakai.ldap.pooling.maxBoundConns";
+
   static final boolean DEFAULT_TLS = false;
   @Property(boolValue = DEFAULT_TLS)
   static final String TLS = "sakai.ldap.tls";
@@ -124,6 +130,18 @@ public class PoolingLdapConnectionManager extends SimpleLdapConnectionManager {
 
   private PooledLDAPConnectionFactory factory;
 
+  /**
+   * Connections kept bound as the login user, so that searches do not have to bind a
+   * connection that was last bound by someone else.
+   */
+  private ObjectPool boundPool;
+
+  private PooledLDAPConnectionFactory boundFactory;
+
+  /** Connections borrowed from {@link #boundPool}, to return them to the right pool */
+  private final Map<LDAPConnection, Boolean> borrowedBound = Collections
+      .synchronizedMap(new IdentityHashMap<LDAPConnection, Boolean>());
+
   /** How long to block waiting for an available connection before throwing an exception */
   private static final int POOL_MAX_WAIT = 60000;
 
@@ -159,8 +177,27 @@ public class PoolingLdapConnectionManager extends SimpleLdapConnectionManager {
     }
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * Connections for the login user come from a pool of connections that are already
+   * bound, if there is one.
+   */
   @Override
   public LDAPConnection getBoundConnection(String dn, String pass) throws LDAPException {
+    if (boundPool != null && isLoginUser(dn, pass)) {
+      log.debug("getBoundConnection(): attempting to borrow bound connection from pool");
+      try {
+        LDAPConnection conn = (LDAPConnection) boundPool.borrowObject();
+        borrowedBound.put(conn, Boolean.TRUE);
+        log.debug("getBoundConnection(): successfully borrowed bound connection from pool");
+        return conn;
+      } catch (LDAPException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new RuntimeException("failed to get pooled connection", e);
+      }
+    }
     log.debug(
         "getBoundConnection():dn=[{}] attempting to borrow connection from pool and bind to dn",
         dn);
@@ -204,7 +241,11 @@ public class PoolingLdapConnectionManager extends SimpleLdapConnectionManager {
     }
 
     try {
-      pool.returnObject(conn);
+      if (borrowedBound.remove(conn) != null) {
+        boundPool.returnObject(conn);
+      } else {
+        pool.returnObject(conn);
+      }
       log.debug("returnConnection(): successfully returned connection to pool");
     } catch (Exception e) {
       throw new RuntimeException("failed to return pooled connection", e);
@@ -229,12 +270,18 @@ public class PoolingLdapConnectionManager extends SimpleLdapConnectionManager {
     try {
       log.debug("deactivate(): closing connection pool");
       pool.close();
+      if (boundPool != null) {
+        boundPool.close();
+      }
       log.debug("destroy(): successfully closed connection pool");
     } catch (Exception e) {
       throw new RuntimeException("failed to shutdown connection pool", e);
     } finally {
       pool = null;
       factory = null;
+      boundPool = null;
+      boundFactory = null;
+      borrowedBound.clear();
     }
     log.debug("destroy(): delegating to parent destroy() impl");
   }
@@ -257,6 +304,16 @@ public class PoolingLdapConnectionManager extends SimpleLdapConnectionManager {
       }
       pool = null;
     }
+    if (boundPool != null) {
+      try {
+        boundPool.close();
+      } catch (Exception e) {
+        // ignore
+      }
+      boundPool = null;
+      boundFactory = null;
+    }
+    borrowedBound.clear();
 
     factory = newPooledLDAPConnectionFactory(this, livenessValidators);
 
@@ -267,6 +324,32 @@ public class PoolingLdapConnectionManager extends SimpleLdapConnectionManager {
         true, // testOnBorrow
         false // testOnReturn
     );
+
+    int maxBoundConns = getConfig().getPoolMaxBoundConns();
+    if (maxBoundConns > 0) {
+      boundFactory = newPooledLDAPConnectionFactory(this, livenessValidators);
+      boundFactory.setBindAlways(true);
+      boundPool = newConnectionPool(boundFactory, maxBoundConns, // maxActive
+          GenericObjectPool.WHEN_EXHAUSTED_BLOCK, // whenExhaustedAction
+          POOL_MAX_WAIT, // maxWait (millis)
+          maxBoundConns, // maxIdle
+          true, // testOnBorrow
+          false // testOnReturn
+      );
+    }
+  }
+
+  /**
+   * @return true if the credentials are those of the login user, or null for the login
+   *         user.
+   */
+  private boolean isLoginUser(String dn, String pass) {
+    if (dn == null) {
+      return true;
+    }
+    LdapConnectionManagerConfig config = getConfig();
+    return dn.equals(config.getLdapUser()) && pass != null
+        && pass.equals(config.getLdapPassword());
   }
 
   /**
@@ -338,6 +421,8 @@ public class PoolingLdapConnectionManager extends SimpleLdapConnectionManager {
     config.setPooling(OsgiUtil.toBoolean(props.get(POOLING), DEFAULT_POOLING));
     config.setPoolMaxConns(OsgiUtil.toInteger(props.get(POOLING_MAX_CONNS),
         DEFAULT_POOLING_MAX_CONNS));
+    config.setPoolMaxBoundConns(OsgiUtil.toInteger(props.get(POOLING_MAX_BOUND_CONNS),
+        DEFAULT_POOLING_MAX_BOUND_CONNS));
     config.setTLS(OsgiUtil.toBoolean(props.get(TLS), DEFAULT_TLS));
 
     return config;
@@ -21,11 +21,14 @@ import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 
 import com.novell.ldap.LDAPConnection;
 
 import org.apache.commons.pool.ObjectPool;
+import org.apache.commons.pool.PoolableObjectFactory;
 import org.junit.Before;
 import org.junit.Test;
 import org.sakaiproject.nakamura.api.ldap.LdapConnectionManagerConfig;
@@ -80,4 +83,31 @@ public class PoolingLdapConnectionManagerTest {
       // expected
     }
   }
+
+  @Test
+  public void testLoginUserConnectionsComeFromBoundPool() throws Exception {
+    final ObjectPool boundPool = createMock(ObjectPool.class);
+    LDAPConnection conn = new LDAPConnection();
+    expect(boundPool.borrowObject()).andReturn(conn);
+    boundPool.returnObject(conn);
+    replay(pool, boundPool);
+
+    config.setLdapUser("cn=app");
+    config.setLdapPassword("secret");
+    poolingConnMgr = new PoolingLdapConnectionManager() {
+      private int pools;
+
+      ObjectPool newConnectionPool(PoolableObjectFactory factory, int maxConns,
+          byte whenExhausted, int maxWait, int maxIdle, boolean testOnBorrow,
+          boolean testOnReturn) {
+        // the main pool is made first
+        return pools++ == 0 ? pool : boundPool;
+      }
+    };
+    poolingConnMgr.init(config);
+
+    assertSame(conn, poolingConnMgr.getBoundConnection("cn=app", "secret"));
+    poolingConnMgr.returnConnection(conn);
+    verify(boundPool);
+  }
 }
@@ -33,9 +33,11 @@ import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.sling.jcr.jackrabbit.server.security.AuthenticationPlugin;
 import org.sakaiproject.nakamura.api.ldap.LdapConnectionManager;
 import org.sakaiproject.nakamura.api.ldap.LdapUtil;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.UnsupportedEncodingException;
 import java.util.Map;
 
 import javax.jcr.Credentials;
@@ -69,14 +71,27 @@ public class LdapAuthenticationPlugin implements AuthenticationPlugin {
   static final String AUTHZ_FILTER = "sakai.auth.ldap.filter.authz";
   private String authzFilter;
 
+  /**
+   * Seconds to hold the DN of a user and whether it passed the authz filter, 0 to search
+   * on every login.
+   */
+  @Property(intValue = 300)
+  static final String CACHE_TTL = "sakai.auth.ldap.cache.ttl";
+  private volatile LdapDirectoryCache cache = new LdapDirectoryCache(0, null);
+
   @Reference
   private LdapConnectionManager connMgr;
 
+  @Reference
+  private CacheManagerService cacheManagerService;
+
   public LdapAuthenticationPlugin() {
   }
 
-  LdapAuthenticationPlugin(LdapConnectionManager connMgr) {
+  LdapAuthenticationPlugin(LdapConnectionManager connMgr,
+      CacheManagerService cacheManagerService) {
     this.connMgr = connMgr;
+    this.cacheManagerService = cacheManagerService;
   }
 
   @Activate
@@ -93,15 +108,13 @@ public class LdapAuthenticationPlugin implements AuthenticationPlugin {
     baseDn = OsgiUtil.toString(props.get(LDAP_BASE_DN), "");
     userFilter = OsgiUtil.toString(props.get(USER_FILTER), "");
     authzFilter = OsgiUtil.toString(props.get(AUTHZ_FILTER), "");
+    cache = new LdapDirectoryCache(OsgiUtil.toInteger(props.get(CACHE_TTL), 300) * 1000L,
+        cacheManagerService);
   }
 
   public boolean authenticate(Credentials credentials) throws RepositoryException {
     boolean auth = false;
     if (credentials instanceof SimpleCredentials) {
-      // get application user credentials
-      String appUser = connMgr.getConfig().getLdapUser();
-      String appPass = connMgr.getConfig().getLdapPassword();
-
       // get user credentials
       SimpleCredentials sc = (SimpleCredentials) credentials;
       
@@ -115,81 +128,28 @@ public class LdapAuthenticationPlugin implements AuthenticationPlugin {
           sc.getUserID()));
       String userPass = new String(sc.getPassword());
 
-      LDAPConnection conn = null;
       try {
-        // 0) Get a connection to the server
-        try {
-          conn = connMgr.getConnection();
-          log.debug("Connected to LDAP server");
-        } catch (LDAPException e) {
-          throw new IllegalStateException("Unable to connect to LDAP server ["
-              + connMgr.getConfig().getLdapHost() + "]");
-        }
-
-        // 1) Bind as app user
-        try {
-          conn.bind(LDAPConnection.LDAP_V3, appUser, appPass.getBytes(UTF8));
-          log.debug("Bound as application user");
-        } catch (LDAPException e) {
-          throw new IllegalArgumentException("Can't bind application user [" + appUser
-              + "]", e);
-        }
-
-        // 2) Search for username (not authz).
+        // 1) Resolve the user DN, searching as app user unless it is held.
         // If search fails, log/report invalid username or password.
-        LDAPSearchResults results = conn.search(baseDn, LDAPConnection.SCOPE_SUB, userDn,
-            null, true);
-        if (results.hasMore()) {
-          log.debug("Found user via search");
+        String userEntryDn = cache.getDn(sc.getUserID());
+        if (userEntryDn == null) {
+          userEntryDn = searchUserDn(userDn);
+          cache.putDn(sc.getUserID(), userEntryDn);
         } else {
-          throw new IllegalArgumentException("Can't find user [" + userDn + "]");
+          log.debug("Found user DN in cache");
         }
 
-        // 3) Bind as user.
+        // 2) Bind as user.
         // If bind fails, log/report invalid username or password.
+        bindUser(sc.getUserID(), userDn, userEntryDn, userPass);
 
-        // value is set below. define here for use in authz check.
-        String userEntryDn = null;
-        try {
-          // KERN-776 Resolve the user DN from the search results and check for an aliased
-          // entry
-          LDAPEntry userEntry = results.next();
-          LDAPAttribute objectClass = userEntry.getAttribute("objectClass");
-
-          if ("aliasObject".equals(objectClass.getStringValue())) {
-            LDAPAttribute aliasDN = userEntry.getAttribute("aliasedObjectName");
-            userEntryDn = aliasDN.getStringValue();
-          } else {
-            userEntryDn = userEntry.getDN();
-          }
-
-          conn.bind(LDAPConnection.LDAP_V3, userEntryDn, userPass.getBytes(UTF8));
-          log.debug("Bound as user");
-        } catch (LDAPException e) {
-          log.warn("Can't bind user [{}]", userDn);
-          throw e;
-        }
-
-        if (authzFilter.length() > 0) {
-          // 4) Return to app user
-          try {
-            conn.bind(LDAPConnection.LDAP_V3, appUser, appPass.getBytes(UTF8));
-            log.debug("Rebound as application user");
-          } catch (LDAPException e) {
-            throw new IllegalArgumentException("Can't bind application user [" + appUser
-                + "]");
-          }
-
-          // 5) Search user DN with authz filter
-          // If search fails, log/report that user is not authorized
-          String userAuthzFilter = "(&(" + userEntryDn + ")(" + authzFilter + "))";
-          results = conn.search(baseDn, LDAPConnection.SCOPE_SUB, userAuthzFilter, null,
-              true);
-          if (results.hasMore()) {
-            log.debug("Found user + authz filter via search");
-          } else {
+        // 3) Search user DN with authz filter as app user, unless it passed lately.
+        // If search fails, log/report that user is not authorized
+        if (authzFilter.length() > 0 && !cache.isAuthorized(userEntryDn)) {
+          if (!searchAuthz(userEntryDn)) {
             throw new IllegalArgumentException("User not authorized [" + userDn + "]");
           }
+          cache.putAuthorized(userEntryDn);
         }
 
         // FINALLY!
@@ -197,10 +157,113 @@ public class LdapAuthenticationPlugin implements AuthenticationPlugin {
         log.info("User [{}] authenticated with LDAP in {}ms", userDn, System.currentTimeMillis() - timeStart);
       } catch (Exception e) {
         log.warn(e.getMessage(), e);
-      } finally {
-        connMgr.returnConnection(conn);
       }
     }
     return auth;
   }
+
+  /**
+   * Search for the entry of a user on a connection bound as the application user.
+   *
+   * @param userDn
+   *          the user filter for the user.
+   * @return the DN of the user, or the DN it is an alias of.
+   * @throws LDAPException
+   */
+  private String searchUserDn(String userDn) throws LDAPException {
+    LDAPConnection conn = getAppConnection();
+    try {
+      LDAPSearchResults results = conn.search(baseDn, LDAPConnection.SCOPE_SUB, userDn,
+          null, true);
+      if (results.hasMore()) {
+        log.debug("Found user via search");
+      } else {
+        throw new IllegalArgumentException("Can't find user [" + userDn + "]");
+      }
+
+      // KERN-776 Resolve the user DN from the search results and check for an aliased
+      // entry
+      LDAPEntry userEntry = results.next();
+      LDAPAttribute objectClass = userEntry.getAttribute("objectClass");
+
+      if ("aliasObject".equals(objectClass.getStringValue())) {
+        LDAPAttribute aliasDN = userEntry.getAttribute("aliasedObjectName");
+        return aliasDN.getStringValue();
+      } else {
+        return userEntry.getDN();
+      }
+    } finally {
+      connMgr.returnConnection(conn);
+    }
+  }
+
+  /**
+   * Bind as a user on a connection of its own, apart from the connections kept bound as
+   * the application user. A DN that the user cannot bind with is not held any longer.
+   *
+   * @throws LDAPException
+   * @throws UnsupportedEncodingException
+   */
+  private void bindUser(String userId, String userDn, String userEntryDn, String userPass)
+      throws LDAPException, UnsupportedEncodingException {
+    LDAPConnection conn = null;
+    try {
+      try {
+        conn = connMgr.getConnection();
+        log.debug("Connected to LDAP server");
+      } catch (LDAPException e) {
+        throw new IllegalStateException("Unable to connect to LDAP server ["
+            + connMgr.getConfig().getLdapHost() + "]");
+      }
+      try {
+        conn.bind(LDAPConnection.LDAP_V3, userEntryDn, userPass.getBytes(UTF8));
+        log.debug("Bound as user");
+      } catch (LDAPException e) {
+        log.warn("Can't bind user [{}]", userDn);
+        cache.remove(userId);
+        throw e;
+      }
+    } finally {
+      connMgr.returnConnection(conn);
+    }
+  }
+
+  /**
+   * @return true if the user DN matches the authz filter, searching on a connection bound
+   *         as the application user.
+   * @throws LDAPException
+   */
+  private boolean searchAuthz(String userEntryDn) throws LDAPException {
+    LDAPConnection conn = getAppConnection();
+    try {
+      String userAuthzFilter = "(&(" + userEntryDn + ")(" + authzFilter + "))";
+      LDAPSearchResults results = conn.search(baseDn, LDAPConnection.SCOPE_SUB,
+          userAuthzFilter, null, true);
+      if (results.hasMore()) {
+        log.debug("Found user + authz filter via search");
+        return true;
+      }
+      return false;
+    } finally {
+      connMgr.returnConnection(conn);
+    }
+  }
+
+  /**
+   * @return a connection bound as the application user. The connection manager keeps
+   *         these apart from the connections users bind on, so it is usually bound
+   *         already.
+   */
+  private LDAPConnection getAppConnection() {
+    String appUser = connMgr.getConfig().getLdapUser();
+    String appPass = connMgr.getConfig().getLdapPassword();
+    try {
+      LDAPConnection conn = connMgr.getBoundConnection(appUser, appPass);
+      log.debug("Bound as application user");
+      return conn;
+    } catch (LDAPException e) {
+      throw new IllegalArgumentException("Can't bind application user [" + appUser + "]",
+          e);
+    }
+  }
 }
@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.auth.ldap;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+/**
+ * Holds what logins have learnt from the directory: the DN each user name resolves to and
+ * the DNs that passed the authorization filter. Both are held for a fixed time, so that a
+ * user moved in the directory or taken out of the authorization filter is seen again
+ * after at most that long. Passwords are never held, every login still binds as the user.
+ * Entries are held in cluster invalidated caches, so a user dropped on one node is
+ * dropped on the others.
+ */
+class LdapDirectoryCache {
+
+  /**
+   * The DN of each user, by user name.
+   */
+  static final String DN_CACHE = "ldapauth.dns";
+
+  /**
+   * The DNs that passed the authorization filter.
+   */
+  static final String AUTHORIZED_CACHE = "ldapauth.authorized";
+
+  /**
+   * A value and the time (ms) it expires.
+   */
+  static class Held {
+    final String value;
+    final long expires;
+
+    Held(String value, long expires) {
+      this.value = value;
+      this.expires = expires;
+    }
+  }
+
+  /**
+   * The time (ms) an entry is held, nothing is held if 0.
+   */
+  private final long ttl;
+
+  private final CacheManagerService cacheManagerService;
+
+  /**
+   * @param ttl
+   *          the time (ms) an entry is held, nothing is held if 0.
+   * @param cacheManagerService
+   *          the cache manager the entries are held in, not used if the ttl is 0.
+   */
+  LdapDirectoryCache(long ttl, CacheManagerService cacheManagerService) {
+    this.ttl = ttl;
+    this.cacheManagerService = cacheManagerService;
+  }
+
+  /**
+   * @return the DN of the user, or null if it is not held.
+   */
+  String getDn(String user) {
+    return ttl > 0 ? get(getDns(), user) : null;
+  }
+
+  void putDn(String user, String dn) {
+    if (ttl > 0) {
+      getDns().put(user, new Held(dn, System.currentTimeMillis() + ttl));
+    }
+  }
+
+  /**
+   * @return true if the DN is held as having passed the authorization filter.
+   */
+  boolean isAuthorized(String dn) {
+    return ttl > 0 && get(getAuthorized(), dn) != null;
+  }
+
+  void putAuthorized(String dn) {
+    if (ttl > 0) {
+      getAuthorized().put(dn, new Held(dn, System.currentTimeMillis() + ttl));
+    }
+  }
+
+  /**
+   * Drop the user, when what is held for it turned out to be wrong.
+   */
+  void remove(String user) {
+    if (ttl > 0) {
+      Cache<Held> dns = getDns();
+      Held dn = dns.get(user);
+      dns.remove(user);
+      if (dn != null) {
+        getAuthorized().remove(dn.value);
+      }
+    }
+  }
+
+  private String get(Cache<Held> cache, String key) {
+    Held held = cache.get(key);
+    if (held == null) {
+      return null;
+    }
+    if (held.expires <= System.currentTimeMillis()) {
+      cache.remove(key);
+      return null;
+    }
+    return held.value;
+  }
+
+  private Cache<Held> getDns() {
+    return cacheManagerService.getCache(DN_CACHE, CacheScope.CLUSTERINVALIDATED);
+  }
+
+  private Cache<Held> getAuthorized() {
+    return cacheManagerService.getCache(AUTHORIZED_CACHE, CacheScope.CLUSTERINVALIDATED);
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.auth.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.internal.stubbing.defaultanswers.Answers.RETURNS_DEEP_STUBS;
+
+import com.novell.ldap.LDAPConnection;
+import com.novell.ldap.LDAPEntry;
+import com.novell.ldap.LDAPSearchResults;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.ldap.LdapConnectionManager;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.SimpleCredentials;
+
+/**
+ * Logs a population of users in repeatedly against a stand-in for the directory and
+ * counts the binds and searches, with nothing held and with DNs and authz results held.
+ */
+public class LdapAuthenticationPluginLoadTest {
+
+  private static final int USERS = 100;
+
+  private static final int LOGINS = 500;
+
+  private final AtomicInteger binds = new AtomicInteger();
+
+  private final AtomicInteger searches = new AtomicInteger();
+
+  @Test
+  public void testRoundTrips() throws Exception {
+    LdapConnectionManager connMgr = createDirectory();
+
+    login(connMgr, 0);
+    assertEquals(LOGINS, binds.get());
+    assertEquals("A DN and an authz search per login", 2 * LOGINS, searches.get());
+
+    login(connMgr, 300);
+    assertEquals(LOGINS, binds.get());
+    assertEquals("A DN and an authz search per user", 2 * USERS, searches.get());
+  }
+
+  private void login(LdapConnectionManager connMgr, int ttl) throws Exception {
+    LdapAuthenticationPlugin plugin = new LdapAuthenticationPlugin(connMgr,
+        LdapAuthenticationPluginTest.newCacheManagerService());
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(LdapAuthenticationPlugin.LDAP_BASE_DN, "ou=People,o=sakai");
+    props.put(LdapAuthenticationPlugin.USER_FILTER, "uid={}");
+    props.put(LdapAuthenticationPlugin.AUTHZ_FILTER, "allowSakai=true");
+    props.put(LdapAuthenticationPlugin.CACHE_TTL, ttl);
+    plugin.activate(props);
+
+    binds.set(0);
+    searches.set(0);
+    for (int i = 0; i < LOGINS; i++) {
+      SimpleCredentials credentials = new SimpleCredentials("user-" + (i % USERS),
+          "pass".toCharArray());
+      assertTrue(plugin.authenticate(credentials));
+    }
+  }
+
+  /**
+   * @return a connection manager handing out connections to a directory where every user
+   *         exists, has the password it is given and passes the authz filter.
+   */
+  private LdapConnectionManager createDirectory() throws Exception {
+    final Map<String, LDAPSearchResults> users = new HashMap<String, LDAPSearchResults>();
+    for (int i = 0; i < USERS; i++) {
+      LDAPSearchResults results = mock(LDAPSearchResults.class);
+      LDAPEntry entry = mock(LDAPEntry.class, RETURNS_DEEP_STUBS.get());
+      when(entry.getAttribute("objectClass").getStringValue()).thenReturn("inetOrgPerson");
+      when(entry.getDN()).thenReturn("uid=user-" + i + ",ou=People,o=sakai");
+      when(results.hasMore()).thenReturn(true);
+      when(results.next()).thenReturn(entry);
+      users.put("uid=user-" + i, results);
+    }
+    final LDAPSearchResults authorized = mock(LDAPSearchResults.class);
+    when(authorized.hasMore()).thenReturn(true);
+
+    LDAPConnection conn = mock(LDAPConnection.class, new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        String method = invocation.getMethod().getName();
+        if ("bind".equals(method)) {
+          binds.incrementAndGet();
+        } else if ("search".equals(method)) {
+          searches.incrementAndGet();
+          LDAPSearchResults results = users.get(invocation.getArguments()[2]);
+          return results == null ? authorized : results;
+        }
+        return null;
+      }
+    });
+
+    LdapConnectionManager connMgr = mock(LdapConnectionManager.class, RETURNS_DEEP_STUBS
+        .get());
+    when(connMgr.getConfig().getLdapUser()).thenReturn("cn=app,o=sakai");
+    when(connMgr.getConfig().getLdapPassword()).thenReturn("secret");
+    when(connMgr.getConnection()).thenReturn(conn);
+    when(connMgr.getBoundConnection(anyString(), anyString())).thenReturn(conn);
+    return connMgr;
+  }
+}
@@ -27,6 +27,7 @@ import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.internal.stubbing.defaultanswers.Answers.RETURNS_DEEP_STUBS;
@@ -42,6 +43,10 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.sakaiproject.nakamura.api.ldap.LdapConnectionManager;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
 import java.util.HashMap;
 
@@ -58,6 +63,7 @@ public class LdapAuthenticationPluginTest {
   private final static String AUTHZ_FILTER = "eduEntitlements=sakai";
   private final static String USER = "joe";
   private final static String PASS = "pass";
+  private final static String USER_DN = "uid=joe, " + LDAP_BASE_DN;
 
   private LdapAuthenticationPlugin ldapAuthenticationPlugin;
 
@@ -74,7 +80,22 @@ public class LdapAuthenticationPluginTest {
   public void setup() throws Exception {
     when(connMgr.getConfig().getLdapUser()).thenReturn(LDAP_USER);
     when(connMgr.getConfig().getLdapPassword()).thenReturn(LDAP_PASS);
-    ldapAuthenticationPlugin = new LdapAuthenticationPlugin(connMgr);
+    ldapAuthenticationPlugin = new LdapAuthenticationPlugin(connMgr,
+        newCacheManagerService());
+  }
+
+  /**
+   * @return a cache manager holding the directory caches in maps.
+   */
+  static CacheManagerService newCacheManagerService() {
+    Cache<Object> dns = new MapCacheImpl<Object>();
+    Cache<Object> authorized = new MapCacheImpl<Object>();
+    CacheManagerService cacheManagerService = mock(CacheManagerService.class);
+    when(cacheManagerService.getCache(LdapDirectoryCache.DN_CACHE,
+        CacheScope.CLUSTERINVALIDATED)).thenReturn(dns);
+    when(cacheManagerService.getCache(LdapDirectoryCache.AUTHORIZED_CACHE,
+        CacheScope.CLUSTERINVALIDATED)).thenReturn(authorized);
+    return cacheManagerService;
   }
 
   @Test
@@ -106,6 +127,7 @@ public class LdapAuthenticationPluginTest {
     ldapAuthenticationPlugin.activate(props);
 
     when(connMgr.getConnection()).thenReturn(conn);
+    when(connMgr.getBoundConnection(LDAP_USER, LDAP_PASS)).thenReturn(conn);
     when(
         conn.search(anyString(), anyInt(), anyString(), any(String[].class), anyBoolean()))
         .thenReturn(results);
@@ -132,6 +154,7 @@ public class LdapAuthenticationPluginTest {
     ldapAuthenticationPlugin.activate(props);
 
     when(connMgr.getConnection()).thenReturn(conn);
+    when(connMgr.getBoundConnection(LDAP_USER, LDAP_PASS)).thenReturn(conn);
     when(
         conn.search(anyString(), anyInt(), anyString(), any(String[].class), anyBoolean()))
         .thenReturn(results);
@@ -158,6 +181,7 @@ public class LdapAuthenticationPluginTest {
     ldapAuthenticationPlugin.activate(props);
 
     when(connMgr.getConnection()).thenReturn(conn);
+    when(connMgr.getBoundConnection(LDAP_USER, LDAP_PASS)).thenReturn(conn);
     when(
         conn.search(anyString(), anyInt(), anyString(), any(String[].class), anyBoolean()))
         .thenReturn(results);
@@ -185,6 +209,12 @@ public class LdapAuthenticationPluginTest {
     props.put(LdapAuthenticationPlugin.USER_FILTER, USER_FILTER);
     ldapAuthenticationPlugin.activate(props);
 
+    when(connMgr.getBoundConnection(LDAP_USER, LDAP_PASS)).thenReturn(conn);
+    when(
+        conn.search(anyString(), anyInt(), anyString(), any(String[].class), anyBoolean()))
+        .thenReturn(results);
+    when(results.hasMore()).thenReturn(true);
+    givenUserEntry("inetOrgPerson");
     when(connMgr.getConnection()).thenThrow(new LDAPException());
 
     // then
@@ -200,8 +230,7 @@ public class LdapAuthenticationPluginTest {
     ldapAuthenticationPlugin.activate(props);
 
     when(connMgr.getConnection()).thenReturn(conn);
-    doThrow(new LDAPException()).when(conn).bind(LDAPConnection.LDAP_V3, LDAP_USER,
-        LDAP_PASS.getBytes("UTF-8"));
+    when(connMgr.getBoundConnection(LDAP_USER, LDAP_PASS)).thenThrow(new LDAPException());
 
     // then
     assertFalse(ldapAuthenticationPlugin.authenticate(simpleCredentials()));
@@ -216,6 +245,7 @@ public class LdapAuthenticationPluginTest {
     ldapAuthenticationPlugin.activate(props);
 
     when(connMgr.getConnection()).thenReturn(conn);
+    when(connMgr.getBoundConnection(LDAP_USER, LDAP_PASS)).thenReturn(conn);
     when(
         conn.search(anyString(), anyInt(), anyString(), any(String[].class), anyBoolean()))
         .thenReturn(results);
@@ -235,12 +265,14 @@ public class LdapAuthenticationPluginTest {
     ldapAuthenticationPlugin.activate(props);
 
     when(connMgr.getConnection()).thenReturn(conn);
+    when(connMgr.getBoundConnection(LDAP_USER, LDAP_PASS)).thenReturn(conn);
     when(
         conn.search(anyString(), anyInt(), anyString(), any(String[].class), anyBoolean()))
         .thenReturn(results);
     when(results.hasMore()).thenReturn(true);
-    doThrow(new LDAPException()).when(conn).bind(LDAPConnection.LDAP_V3,
-        USER_FILTER.replace("{}", USER) + ", " + LDAP_BASE_DN, PASS.getBytes("UTF-8"));
+    when(givenUserEntry("inetOrgPerson").getDN()).thenReturn(USER_DN);
+    doThrow(new LDAPException()).when(conn).bind(LDAPConnection.LDAP_V3, USER_DN,
+        PASS.getBytes("UTF-8"));
 
     // then
     assertFalse(ldapAuthenticationPlugin.authenticate(simpleCredentials()));
@@ -256,12 +288,13 @@ public class LdapAuthenticationPluginTest {
     ldapAuthenticationPlugin.activate(props);
 
     when(connMgr.getConnection()).thenReturn(conn);
-    doNothing().doThrow(new LDAPException()).when(conn).bind(LDAPConnection.LDAP_V3,
-        LDAP_USER, LDAP_PASS.getBytes("UTF-8"));
+    when(connMgr.getBoundConnection(LDAP_USER, LDAP_PASS)).thenReturn(conn).thenThrow(
+        new LDAPException());
     when(
         conn.search(anyString(), anyInt(), anyString(), any(String[].class), anyBoolean()))
         .thenReturn(results);
     when(results.hasMore()).thenReturn(true);
+    givenUserEntry("inetOrgPerson");
 
     // then
     assertFalse(ldapAuthenticationPlugin.authenticate(simpleCredentials()));
@@ -277,13 +310,77 @@ public class LdapAuthenticationPluginTest {
     ldapAuthenticationPlugin.activate(props);
 
     when(connMgr.getConnection()).thenReturn(conn);
+    when(connMgr.getBoundConnection(LDAP_USER, LDAP_PASS)).thenReturn(conn);
     when(
         conn.search(anyString(), anyInt(), anyString(), any(String[].class), anyBoolean()))
         .thenReturn(results);
     when(results.hasMore()).thenReturn(true).thenReturn(false);
+    givenUserEntry("inetOrgPerson");
+
+    // then
+    assertFalse(ldapAuthenticationPlugin.authenticate(simpleCredentials()));
+  }
+
+  @Test
+  public void heldUserSkipsSearches() throws Exception {
+    // given
+    HashMap<String, String> props = new HashMap<String, String>();
+    props.put(LdapAuthenticationPlugin.LDAP_BASE_DN, LDAP_BASE_DN);
+    props.put(LdapAuthenticationPlugin.USER_FILTER, USER_FILTER);
+    props.put(LdapAuthenticationPlugin.AUTHZ_FILTER, AUTHZ_FILTER);
+    ldapAuthenticationPlugin.activate(props);
+
+    when(connMgr.getConnection()).thenReturn(conn);
+    when(connMgr.getBoundConnection(LDAP_USER, LDAP_PASS)).thenReturn(conn);
+    when(
+        conn.search(anyString(), anyInt(), anyString(), any(String[].class), anyBoolean()))
+        .thenReturn(results);
+    when(results.hasMore()).thenReturn(true);
+    when(givenUserEntry("inetOrgPerson").getDN()).thenReturn(USER_DN);
+
+    // then
+    assertTrue(ldapAuthenticationPlugin.authenticate(simpleCredentials()));
+    assertTrue(ldapAuthenticationPlugin.authenticate(simpleCredentials()));
+
+    // the DN and authz searches are made once, the user binds every time
+    verify(conn, times(2)).search(anyString(), anyInt(), anyString(),
+        any(String[].class), anyBoolean());
+    verify(conn, times(2)).bind(LDAPConnection.LDAP_V3, USER_DN, PASS.getBytes("UTF-8"));
+  }
+
+  @Test
+  public void failedBindDropsHeldUser() throws Exception {
+    // given
+    HashMap<String, String> props = new HashMap<String, String>();
+    props.put(LdapAuthenticationPlugin.LDAP_BASE_DN, LDAP_BASE_DN);
+    props.put(LdapAuthenticationPlugin.USER_FILTER, USER_FILTER);
+    ldapAuthenticationPlugin.activate(props);
+
+    when(connMgr.getConnection()).thenReturn(conn);
+    when(connMgr.getBoundConnection(LDAP_USER, LDAP_PASS)).thenReturn(conn);
+    when(
+        conn.search(anyString(), anyInt(), anyString(), any(String[].class), anyBoolean()))
+        .thenReturn(results);
+    when(results.hasMore()).thenReturn(true);
+    when(givenUserEntry("inetOrgPerson").getDN()).thenReturn(USER_DN);
+    doNothing().doThrow(new LDAPException()).doNothing().when(conn).bind(
+        LDAPConnection.LDAP_V3, USER_DN, PASS.getBytes("UTF-8"));
 
     // then
+    assertTrue(ldapAuthenticationPlugin.authenticate(simpleCredentials()));
     assertFalse(ldapAuthenticationPlugin.authenticate(simpleCredentials()));
+    assertTrue(ldapAuthenticationPlugin.authenticate(simpleCredentials()));
+
+    // the DN is searched for again after the failed bind
+    verify(conn, times(2)).search(anyString(), anyInt(), anyString(),
+        any(String[].class), anyBoolean());
+  }
+
+  private LDAPEntry givenUserEntry(String objectClass) throws Exception {
+    LDAPEntry ldapEntry = mock(LDAPEntry.class, RETURNS_DEEP_STUBS.get());
+    when(results.next()).thenReturn(ldapEntry);
+    when(ldapEntry.getAttribute("objectClass").getStringValue()).thenReturn(objectClass);
+    return ldapEntry;
   }
 
   private SimpleCredentials simpleCredentials() {
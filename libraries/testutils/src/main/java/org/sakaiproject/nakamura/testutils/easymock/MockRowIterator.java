@@ -136,7 +136,7 @@ public class MockRowIterator implements RowIterator {
   public void skip(long skipNum) {
     while (skipNum > 0) {
       nextRow();
-      skipNum++;
+      skipNum--;
     }
   }
 